@@ -0,0 +1,160 @@
+package com.flat502.rox.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link ByteScanner} with the byte-at-a-time loops it replaced, over browser-style request header blocks.
+ * <p>
+ * Each pair of benchmarks does the same work as one step of {@link HttpMessageBuffer}'s header parsing: finding
+ * every CRLF line end, finding the CRLFCRLF that ends the headers, and finding the colon in every header line. This
+ * class lives in the same package as {@link ByteScanner} so it can reach it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteScannerBenchmark {
+    private static final String[] HEADERS = new String[] {
+            "GET /static/js/app.3f9c2a1b.js?v=20261018 HTTP/1.1",
+            "Host: www.example.com",
+            "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) "
+                    + "Chrome/129.0.0.0 Safari/537.36",
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8",
+            "Accept-Language: en-GB,en-US;q=0.9,en;q=0.8",
+            "Accept-Encoding: gzip, deflate, br, zstd",
+            "Referer: https://www.example.com/products/category/widgets?page=2&sort=price",
+            "Connection: keep-alive",
+            "Upgrade-Insecure-Requests: 1",
+            "Sec-Fetch-Dest: document",
+            "Sec-Fetch-Mode: navigate",
+            "Sec-Fetch-Site: same-origin",
+            "If-None-Match: \"5d8c72a5edda8d6a\"",
+            "If-Modified-Since: Sat, 17 Oct 2026 09:12:44 GMT" };
+
+    /**
+     * The approximate length of the header block. Longer blocks carry a longer <code>Cookie</code> header, as real
+     * ones usually do.
+     */
+    @Param({ "600", "1000", "1500" })
+    public int size;
+
+    private byte[] data;
+    private ByteBuffer view;
+    private int length;
+
+    @Setup
+    public void setUp() {
+        StringBuilder headers = new StringBuilder();
+        for (String header : HEADERS) {
+            headers.append(header).append("\r\n");
+        }
+        StringBuilder cookie = new StringBuilder("Cookie: _ga=GA1.2.1234567890.1700000000; session=");
+        int remaining = this.size - headers.length() - cookie.length() - 4;
+        for (int i = 0; i < remaining; i++) {
+            cookie.append((char) ('a' + i % 26));
+        }
+        headers.append(cookie).append("\r\n\r\n");
+
+        // Parsed in place in a larger buffer, as HttpMessageBuffer does
+        byte[] block = headers.toString().getBytes(StandardCharsets.US_ASCII);
+        this.length = block.length;
+        this.data = new byte[2048];
+        System.arraycopy(block, 0, this.data, 0, this.length);
+        this.view = ByteScanner.wrap(this.data);
+    }
+
+    @Benchmark
+    public int lineEndsScanner() {
+        int count = 0;
+        for (int i = 1; i < this.length; i++) {
+            i = ByteScanner.indexOf(this.view, i, this.length, (byte) '\n');
+            if (i == -1) {
+                break;
+            }
+            if (this.data[i - 1] == '\r') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int lineEndsBytes() {
+        int count = 0;
+        for (int i = 1; i < this.length; i++) {
+            if (this.data[i] == '\n' && this.data[i - 1] == '\r') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int headerEndScanner() {
+        for (int i = 3; i < this.length; i++) {
+            i = ByteScanner.indexOf(this.view, i, this.length, (byte) '\n');
+            if (i == -1) {
+                break;
+            }
+            if (this.data[i - 1] == '\r' && this.data[i - 2] == '\n' && this.data[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int headerEndBytes() {
+        for (int i = 3; i < this.length; i++) {
+            if (this.data[i] == '\n' && this.data[i - 1] == '\r' && this.data[i - 2] == '\n'
+                    && this.data[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int colonsScanner() {
+        int sum = 0;
+        int start = ByteScanner.indexOf(this.view, 0, this.length, (byte) '\n') + 1;
+        while (start < this.length - 2) {
+            int end = ByteScanner.indexOf(this.view, start, this.length, (byte) '\n') - 1;
+            sum += ByteScanner.indexOf(this.view, start, end, (byte) ':');
+            start = end + 2;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int colonsBytes() {
+        int sum = 0;
+        int start = ByteScanner.indexOf(this.view, 0, this.length, (byte) '\n') + 1;
+        while (start < this.length - 2) {
+            int end = ByteScanner.indexOf(this.view, start, this.length, (byte) '\n') - 1;
+            int split = start;
+            while (split < end && this.data[split] != ':') {
+                split++;
+            }
+            sum += split;
+            start = end + 2;
+        }
+        return sum;
+    }
+}
@@ -66,7 +66,7 @@ public class HttpsServerDemo {
                         public Response handleRequest(RequestContext context) throws Exception {
                             final HttpRequestBuffer req = context.getHttpRequest();
                             // TODO: read host from HTTP request header, if present (allowing for virtual hosts)
-                            String redirectURI = "https://" + hostFinal + ":" + httpsPort + req.getURI();
+                            String redirectURI = "https://" + hostFinal + ":" + httpsPort + req.getRawURI();
                             System.out.println("Redirecting HTTP request " + req.getURI() + " to " + redirectURI);
                             throw new HttpResponseException(HttpConstants.StatusCodes._302_FOUND, "Found") {
                                 @Override
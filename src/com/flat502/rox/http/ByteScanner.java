@@ -0,0 +1,72 @@
+package com.flat502.rox.http;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Searches for single byte values eight bytes at a time.
+ * <p>
+ * Each eight byte word is read as a <code>long</code> and tested for the target byte in every lane at once using
+ * SWAR ("SIMD within a register") arithmetic: XORing the word with the target repeated in every lane zeroes the
+ * matching lanes, and <code>(x - 0x01..01) &amp; ~x &amp; 0x80..80</code> sets the high bit of the lowest zero lane.
+ * Words are read in little-endian order so the first match in memory is the lowest set bit. Higher lanes may be
+ * flagged spuriously (by the borrow out of a true match), but the lowest set bit is always exact, which is all a
+ * forward search needs.
+ * <p>
+ * Buffers must be heap buffers in {@link ByteOrder#LITTLE_ENDIAN little-endian} order (see {@link #wrap(byte[])}).
+ */
+final class ByteScanner {
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    // Ranges shorter than this aren't worth the word-at-a-time setup.
+    private static final int MIN_WORD_SCAN = 16;
+
+    private ByteScanner() {
+    }
+
+    /**
+     * @return A view of <code>buf</code> suitable for passing to {@link #indexOf(ByteBuffer, int, int, byte)}.
+     */
+    static ByteBuffer wrap(byte[] buf) {
+        return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return The offset of the first occurrence of <code>b</code> in <code>buf[from, to)</code>, or <code>-1</code>
+     *         if there isn't one.
+     */
+    static int indexOf(byte[] buf, int from, int to, byte b) {
+        if (to - from < MIN_WORD_SCAN) {
+            return indexOfBytes(buf, from, to, b);
+        }
+        return indexOf(wrap(buf), from, to, b);
+    }
+
+    /**
+     * @return The offset of the first occurrence of <code>b</code> between absolute offsets <code>from</code>
+     *         (inclusive) and <code>to</code> (exclusive) in <code>buf</code>, or <code>-1</code> if there isn't
+     *         one.
+     */
+    static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        int i = from;
+        for (; i <= to - 8; i += 8) {
+            long word = buf.getLong(i) ^ pattern;
+            long found = (word - ONES) & ~word & HIGH_BITS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        return indexOfBytes(buf.array(), i, to, b);
+    }
+
+    private static int indexOfBytes(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -10,6 +10,7 @@ public interface HttpConstants {
      */
     public static interface Methods {
         public static final String GET = "GET";
+        public static final String HEAD = "HEAD";
         public static final String POST = "POST";
         public static final String PUT = "PUT";
         public static final String DELETE = "DELETE";
@@ -20,16 +21,38 @@ public interface HttpConstants {
      * href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14">section 14</a> of RFC 2616.
      */
     public static interface Headers {
+        public static final String ACCEPT = "Accept";
+        public static final String ACCEPT_CHARSET = "Accept-Charset";
         public static final String ACCEPT_ENCODING = "Accept-Encoding";
+        public static final String ACCEPT_LANGUAGE = "Accept-Language";
         public static final String ALLOW = "Allow";
+        public static final String AUTHORIZATION = "Authorization";
+        public static final String CACHE_CONTROL = "Cache-Control";
         public static final String CONTENT_LENGTH = "Content-Length";
         public static final String CONTENT_TYPE = "Content-Type";
         public static final String CONTENT_ENCODING = "Content-Encoding";
+        public static final String COOKIE = "Cookie";
+        public static final String ETAG = "ETag";
+        public static final String EXPECT = "Expect";
         public static final String HOST = "Host";
+        public static final String IF_MATCH = "If-Match";
+        public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+        public static final String IF_NONE_MATCH = "If-None-Match";
+        public static final String IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
         public static final String DATE = "Date";
+        public static final String KEEP_ALIVE = "Keep-Alive";
+        public static final String LAST_MODIFIED = "Last-Modified";
+        public static final String PRAGMA = "Pragma";
+        public static final String RANGE = "Range";
+        public static final String REFERER = "Referer";
         public static final String SERVER = "Server";
         public static final String CONNECTION = "Connection";
+        public static final String RETRY_AFTER = "Retry-After";
+        public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+        public static final String UPGRADE = "Upgrade";
         public static final String USER_AGENT = "User-Agent";
+        public static final String VIA = "Via";
+        public static final String X_FORWARDED_FOR = "X-Forwarded-For";
     }
 
     /**
@@ -73,6 +96,8 @@ public interface HttpConstants {
         public static final int _415_UNSUPPORTED_MEDIA_TYPE = 415;
         public static final int _416_REQUEST_RANGE_NOT_SATISFIABLE = 416;
         public static final int _417_EXPECTATION_FAILED = 417;
+        // From RFC 6585
+        public static final int _431_REQUEST_HEADER_FIELDS_TOO_LARGE = 431;
 
         public static final int _500_INTERNAL_SERVER_ERROR = 500;
         public static final int _501_NOT_IMPLEMENTED = 501;
@@ -82,6 +107,14 @@ public interface HttpConstants {
         public static final int _505_HTTP_VERSION_NOT_SUPPORTED = 505;
     }
 
+    /**
+     * Transfer codings as defined in <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.6">section
+     * 3.6</a> of RFC 2616.
+     */
+    public static interface TransferEncoding {
+        public static final String CHUNKED = "chunked";
+    }
+
     /**
      * Content codings as defined in <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.5">section
      * 3.5</a> of RFC 2616.
@@ -0,0 +1,50 @@
+package com.flat502.rox.http;
+
+import java.nio.charset.StandardCharsets;
+
+import com.flat502.rox.utils.Utils;
+
+/**
+ * Holds the current time formatted for the <code>Date</code> header, both as a {@link String} and as a complete,
+ * pre-encoded header line.
+ * <p>
+ * HTTP dates have a resolution of one second, so the value is only reformatted when the clock moves on to the next
+ * second. The check is made when the value is asked for rather than from a timer, so an idle process does no work
+ * and no thread is needed. Threads racing to refresh the value may each format it, which is harmless.
+ */
+final class HttpDateCache {
+    private static volatile Entry current = new Entry(System.currentTimeMillis() / 1000);
+
+    private HttpDateCache() {
+    }
+
+    /**
+     * @return The entry for the current second.
+     */
+    static Entry current() {
+        long second = System.currentTimeMillis() / 1000;
+        Entry entry = current;
+        if (entry.second != second) {
+            entry = new Entry(second);
+            current = entry;
+        }
+        return entry;
+    }
+
+    static final class Entry {
+        final long second;
+
+        // The formatted date
+        final String value;
+
+        // "Date: <value>\r\n", ready to be written out
+        final byte[] headerLine;
+
+        private Entry(long second) {
+            this.second = second;
+            this.value = Utils.formatHttpDate(second * 1000);
+            this.headerLine = (HttpConstants.Headers.DATE + ": " + this.value + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+}
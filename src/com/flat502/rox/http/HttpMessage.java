@@ -5,7 +5,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -13,7 +14,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import com.flat502.rox.encoding.Encoding;
-import com.flat502.rox.utils.DateFormatThreadLocal;
+import com.flat502.rox.processing.WriteBufferPool;
 import com.flat502.rox.utils.Utils;
 
 /**
@@ -23,19 +24,22 @@ import com.flat502.rox.utils.Utils;
  * This class is not thread-safe.
  */
 public abstract class HttpMessage {
-    private static final DateFormatThreadLocal HTTP_DATE_FORMATS = new DateFormatThreadLocal(new SimpleDateFormat(
-            "EEE, dd MMM yyyy HH:mm:ss Z"));
-
     private Map<String, String> headers = new LinkedHashMap<>();
 
-    private byte[] content;
+    // The cached Date header this instance was created with, and a block of
+    // pre-encoded header lines (see setHeaderTemplate).
+    private HttpDateCache.Entry date;
+    private byte[] headerTemplate;
+
+    private ByteBuffer content;
 
     private Encoding encoding;
 
     /**
      * Constructs an instance
      * <p>
-     * This method sets the <code>Date</code> header to the current date.
+     * This method sets the <code>Date</code> header to the current date. The formatted date is shared by every
+     * message created within the same second, so this costs no formatting.
      *
      * @param encoding
      *            An {@link Encoding} describing the encoding to use when constructing this message. This also
@@ -44,7 +48,8 @@ public abstract class HttpMessage {
     protected HttpMessage(Encoding encoding) {
         this.encoding = encoding;
 
-        this.addHeader(HttpConstants.Headers.DATE, this.formatDate(new Date()));
+        this.date = HttpDateCache.current();
+        this.addHeader(HttpConstants.Headers.DATE, this.date.value);
         if (this.encoding != null) {
             this.addHeader(HttpConstants.Headers.CONTENT_ENCODING, encoding.getName());
         }
@@ -54,15 +59,15 @@ public abstract class HttpMessage {
      * Formats a {@link Date} instance as described in <a
      * href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.3.1">section 3.1.1</a> of RFC 2616.
      * <p>
-     * The actual format used is that described in RC 822 and mentioned in section 3.1.1 of RFC 2616 as the
-     * preferred format.
+     * The actual format used is that described in RFC 1123 and mentioned in section 3.1.1 of RFC 2616 as the
+     * preferred format, in GMT.
      *
      * @param date
      *            The date to format.
      * @return A date formatted for use in an HTTP header.
      */
     public String formatDate(Date date) {
-        return HTTP_DATE_FORMATS.getFormatter().format(date);
+        return Utils.formatHttpDate(date.getTime());
     }
 
     /**
@@ -119,6 +124,20 @@ public abstract class HttpMessage {
         return value;
     }
 
+    /**
+     * Sets a block of pre-encoded header lines, each terminated by CRLF, to be written ahead of the headers set on
+     * this instance. This lets headers that are the same for many messages be encoded once and copied in whole.
+     * <p>
+     * Headers in the template are not visible through {@link #getHeaderValue(String)}, so they should not also be
+     * set individually. The array is not copied and must not be modified.
+     *
+     * @param template
+     *            The encoded header lines, or <code>null</code> for none.
+     */
+    public void setHeaderTemplate(byte[] template) {
+        this.headerTemplate = template;
+    }
+
     protected String getHeaderValue(String name) {
         return this.headers.get(this.normalizeHeaderName(name));
     }
@@ -153,8 +172,28 @@ public abstract class HttpMessage {
         if (content == null) {
             throw new NullPointerException();
         }
-        this.content = content;
-        this.setHeader(HttpConstants.Headers.CONTENT_LENGTH, String.valueOf(this.content.length));
+        this.setContent(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Set the content for this HTTP message to the bytes remaining in a buffer.
+     * <p>
+     * The buffer may be direct or read-only. It isn't copied, and its position and limit are never changed, so a
+     * single buffer may be shared by any number of messages being sent at once. Its content must not be modified
+     * until every message using it has been sent.
+     * <p>
+     * This method sets the <code>Content-Length</code> header (using {@link #setHeader(String, String)}) to the
+     * number of bytes remaining in <code>content</code>.
+     *
+     * @param content
+     *            The content to include in this HTTP message.
+     */
+    public void setContent(ByteBuffer content) {
+        if (content == null) {
+            throw new NullPointerException();
+        }
+        this.content = content.duplicate();
+        this.setHeader(HttpConstants.Headers.CONTENT_LENGTH, String.valueOf(this.content.remaining()));
     }
 
     /**
@@ -173,7 +212,7 @@ public abstract class HttpMessage {
         if (this.encoding != null) {
             ByteArrayOutputStream byteOs = new ByteArrayOutputStream();
             OutputStream encodedStream = this.encoding.getEncoder(byteOs);
-            encodedStream.write(this.content);
+            this.writeContent(encodedStream);
             encodedStream.close();
             byte[] encodedContent = byteOs.toByteArray();
             this.setHeader(HttpConstants.Headers.CONTENT_LENGTH, String.valueOf(encodedContent.length));
@@ -220,7 +259,7 @@ public abstract class HttpMessage {
      * Writes all defined HTTP headers to the given stream.
      * <p>
      * If the <code>Content-Type</code> header has not yet been set it is set to 0 (but see
-     * {@link #setContent(byte[])} as well).
+     * {@link #setContent(byte[])} as well), unless {@link #requiresContentLength()} returns <code>false</code>.
      * <p>
      * Headers are rendered in the order in which they were <i>first</i> added (using either
      * {@link #addHeader(String, String)} or {@link #setHeader(String, String)}). If an existing header is replaced
@@ -231,8 +270,10 @@ public abstract class HttpMessage {
      * @throws IOException
      */
     protected void marshalHeaders(OutputStream os) throws IOException {
-        if (!this.isHeaderSet(HttpConstants.Headers.CONTENT_LENGTH)) {
-            this.setHeader(HttpConstants.Headers.CONTENT_LENGTH, "0");
+        this.ensureContentLength();
+
+        if (this.headerTemplate != null) {
+            os.write(this.headerTemplate);
         }
 
         Iterator<Entry<String, String>> headersIter = this.headers.entrySet().iterator();
@@ -240,6 +281,11 @@ public abstract class HttpMessage {
             Entry<String, String> entry = headersIter.next();
             String name = entry.getKey();
             String value = entry.getValue();
+            if (this.isCachedDate(name, value)) {
+                // Unchanged since construction, so the line is already encoded
+                os.write(this.date.headerLine);
+                continue;
+            }
             os.write(name.getBytes());
             os.write(':');
             os.write(' ');
@@ -253,10 +299,31 @@ public abstract class HttpMessage {
         os.write('\n');
     }
 
+    private void ensureContentLength() {
+        if (this.requiresContentLength() && !this.isHeaderSet(HttpConstants.Headers.CONTENT_LENGTH)) {
+            this.setHeader(HttpConstants.Headers.CONTENT_LENGTH, "0");
+        }
+    }
+
+    private boolean isCachedDate(String name, String value) {
+        return value == this.date.value && name.equals(HttpConstants.Headers.DATE);
+    }
+
+    /**
+     * Indicates whether a <code>Content-Length</code> header should be written when none has been set.
+     * <p>
+     * This implementation returns <code>true</code>.
+     *
+     * @return <code>true</code> if this message carries a <code>Content-Length</code> header.
+     */
+    protected boolean requiresContentLength() {
+        return true;
+    }
+
     /**
      * Writes this instance's content to the given stream.
      * <p>
-     * If {@link #setContent(byte[])} has not been invoked this method returns without doing anything.
+     * If no content has been set this method returns without doing anything.
      *
      * @param contentStream
      *            The stream to write to.
@@ -265,7 +332,25 @@ public abstract class HttpMessage {
      */
     protected void marshalContent(OutputStream contentStream) throws IOException {
         if (this.content != null) {
-            contentStream.write(this.content);
+            this.writeContent(contentStream);
+        }
+    }
+
+    // Copies the content to a stream, a piece at a time if it isn't backed
+    // by an accessible array.
+    private void writeContent(OutputStream os) throws IOException {
+        if (this.content.hasArray()) {
+            os.write(this.content.array(), this.content.arrayOffset() + this.content.position(),
+                    this.content.remaining());
+            return;
+        }
+
+        ByteBuffer src = this.content.duplicate();
+        byte[] chunk = new byte[Math.min(src.remaining(), 8192)];
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), chunk.length);
+            src.get(chunk, 0, length);
+            os.write(chunk, 0, length);
         }
     }
 
@@ -281,14 +366,109 @@ public abstract class HttpMessage {
      */
     public byte[] marshal() throws IOException {
         int size = 32 + this.headers.size() * 15;
+        if (this.headerTemplate != null) {
+            size += this.headerTemplate.length;
+        }
         if (this.content != null) {
-            size += this.content.length;
+            size += this.content.remaining();
         }
         ByteArrayOutputStream byteOs = new ByteArrayOutputStream(size);
         this.marshal(byteOs);
         return byteOs.toByteArray();
     }
 
+    /**
+     * Marshals this instance into buffers ready for a single gathering write.
+     * <p>
+     * The start line and headers are encoded straight into a buffer taken from <code>pool</code>, sized exactly
+     * up front. The content is not copied: it's returned in a buffer of its own that shares the content set on this
+     * instance (or the encoded form of it). Header names and values are encoded one byte per
+     * character, so they should be restricted to US-ASCII as RFC 7230 recommends.
+     *
+     * @param pool
+     *            The pool to take the header buffer from.
+     * @return The start line and headers, ready to be written, followed by the content if there is any. The first
+     *         buffer belongs to <code>pool</code>.
+     * @throws IOException
+     *             If an error occurs encoding the content.
+     */
+    public ByteBuffer[] marshal(WriteBufferPool pool) throws IOException {
+        ByteBuffer content = this.getContentBuffer();
+        this.ensureContentLength();
+
+        String startLine = this.getStartLine();
+        int length = startLine.length() + 4;
+        if (this.headerTemplate != null) {
+            length += this.headerTemplate.length;
+        }
+        for (Entry<String, String> entry : this.headers.entrySet()) {
+            String name = entry.getKey();
+            String value = entry.getValue();
+            if (this.isCachedDate(name, value)) {
+                length += this.date.headerLine.length;
+            } else {
+                length += name.length() + value.length() + 4;
+            }
+        }
+
+        ByteBuffer head = pool.acquire(length);
+        putAscii(head, startLine);
+        head.put((byte) '\r').put((byte) '\n');
+        if (this.headerTemplate != null) {
+            head.put(this.headerTemplate);
+        }
+        for (Entry<String, String> entry : this.headers.entrySet()) {
+            String name = entry.getKey();
+            String value = entry.getValue();
+            if (this.isCachedDate(name, value)) {
+                head.put(this.date.headerLine);
+                continue;
+            }
+            putAscii(head, name);
+            head.put((byte) ':').put((byte) ' ');
+            putAscii(head, value);
+            head.put((byte) '\r').put((byte) '\n');
+        }
+        head.put((byte) '\r').put((byte) '\n');
+        head.flip();
+
+        if (content == null) {
+            return new ByteBuffer[] { head };
+        }
+        return new ByteBuffer[] { head, content };
+    }
+
+    /**
+     * Returns the content to send for {@link #marshal(WriteBufferPool)}, encoding it first if an {@link Encoding}
+     * was specified (in which case the <code>Content-Length</code> header is updated to match).
+     *
+     * @return A buffer holding the content, or <code>null</code> if there is none.
+     * @throws IOException
+     *             If an error occurs encoding the content.
+     */
+    protected ByteBuffer getContentBuffer() throws IOException {
+        if (this.content == null) {
+            return null;
+        }
+        if (this.encoding == null) {
+            return this.content.duplicate();
+        }
+
+        ContentOutputStream byteOs = new ContentOutputStream(this.content.remaining());
+        OutputStream encodedStream = this.encoding.getEncoder(byteOs);
+        this.writeContent(encodedStream);
+        encodedStream.close();
+        this.setHeader(HttpConstants.Headers.CONTENT_LENGTH, String.valueOf(byteOs.size()));
+        return byteOs.toByteBuffer();
+    }
+
+    private static void putAscii(ByteBuffer buf, String s) {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            buf.put((byte) s.charAt(i));
+        }
+    }
+
     /**
      * Get the HTTP version string for this instance.
      *
@@ -320,6 +500,9 @@ public abstract class HttpMessage {
         StringWriter sw = new StringWriter();
         PrintWriter pw = new PrintWriter(sw);
         pw.println(this.getStartLine());
+        if (this.headerTemplate != null) {
+            pw.print(new String(this.headerTemplate, StandardCharsets.US_ASCII));
+        }
         if (this.headers != null) {
             Iterator<Entry<String, String>> headersIter = this.headers.entrySet().iterator();
             while (headersIter.hasNext()) {
@@ -333,8 +516,21 @@ public abstract class HttpMessage {
         if (this.content == null) {
             pw.println("<null content>");
         } else {
-            pw.println(Utils.toHexDump(this.content));
+            byte[] content = new byte[this.content.remaining()];
+            this.content.duplicate().get(content);
+            pw.println(Utils.toHexDump(content));
         }
         return sw.toString();
     }
+
+    // Hands out its buffer rather than a copy of it
+    private static class ContentOutputStream extends ByteArrayOutputStream {
+        ContentOutputStream(int size) {
+            super(size);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(this.buf, 0, this.count);
+        }
+    }
 }
@@ -1,6 +1,6 @@
 package com.flat502.rox.http;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -9,15 +9,26 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
+import com.flat502.rox.http.exception.ContentTooLargeException;
+import com.flat502.rox.http.exception.ExcessiveContentException;
+import com.flat502.rox.http.exception.HeaderTooLargeException;
 import com.flat502.rox.http.exception.HttpBufferException;
 import com.flat502.rox.http.exception.InvalidHeaderException;
+import com.flat502.rox.http.exception.MalformedContentException;
+import com.flat502.rox.http.exception.UnsupportedHeaderException;
 import com.flat502.rox.processing.HttpProcessor;
 import com.flat502.rox.utils.Utils;
 
@@ -27,18 +38,116 @@ import com.flat502.rox.utils.Utils;
 public abstract class HttpMessageBuffer {
     // private static final Pattern HTTP_VERSION = Pattern.compile("HTTP/(\\d+\\.\\d+)");
 
+    // Parser states, in the order they're passed through. Chunked content
+    // passes through the chunk states (repeatedly) in place of
+    // STATE_CONTENT.
+    private static final int STATE_START_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_CONTENT = 2;
+    private static final int STATE_CHUNK_SIZE = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_DATA_END = 5;
+    private static final int STATE_TRAILERS = 6;
+    private static final int STATE_COMPLETE = 7;
+
+    private static final int INITIAL_HEADER_BUFFER_SIZE = 512;
+    private static final int INITIAL_HEADER_COUNT = 16;
+
+    // Limits applied to chunked content: the length of a chunk-size line
+    // (including any extensions), the size of the trailer and the size of a
+    // single chunk.
+    private static final int MAX_CHUNK_LINE_LENGTH = 1024;
+    private static final int MAX_TRAILER_SIZE = 8192;
+    private static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+    /**
+     * The default amount of content held in memory before it is moved to a temporary file.
+     */
+    public static final int DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The default limit on the size of the start line and headers of a message, in bytes.
+     */
+    public static final int DEFAULT_MAX_HEADER_SIZE = 32 * 1024;
+
+    /**
+     * The default limit on the number of header fields in a message.
+     */
+    public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+
+    // Headers that may not be sent in a trailer (see section 4.1.2 of RFC 7230).
+    // Trailer fields with these names are ignored.
+    private static final Set<String> TRAILER_EXCLUSIONS = new HashSet<>(Arrays.asList(
+            HttpConstants.Headers.AUTHORIZATION, HttpConstants.Headers.CACHE_CONTROL,
+            HttpConstants.Headers.CONNECTION, HttpConstants.Headers.CONTENT_ENCODING,
+            HttpConstants.Headers.CONTENT_LENGTH, HttpConstants.Headers.CONTENT_TYPE, HttpConstants.Headers.EXPECT,
+            HttpConstants.Headers.HOST, HttpConstants.Headers.IF_MATCH, HttpConstants.Headers.IF_MODIFIED_SINCE,
+            HttpConstants.Headers.IF_NONE_MATCH, HttpConstants.Headers.IF_UNMODIFIED_SINCE,
+            HttpConstants.Headers.KEEP_ALIVE, HttpConstants.Headers.RANGE,
+            HttpConstants.Headers.TRANSFER_ENCODING, HttpConstants.Headers.UPGRADE));
+
     private HttpProcessor processor;
     private Socket socket;
 
-    private byte[] data;
-    private int offset;
-    private int contentStarts;
+    private int state = STATE_START_LINE;
+
+    // The start line and headers received so far. Header names and values
+    // are read from here on demand, so this is kept for the life of the
+    // message.
+    private byte[] headerData;
+    private int headerLength;
+
+    // A view of headerData for ByteScanner, replaced whenever headerData is.
+    private ByteBuffer headerView;
+
+    // The offset of the line currently being received, and the extent of
+    // the last complete header line (which may yet be continued on the
+    // next line).
+    private int lineStart;
+    private int fieldStart = -1;
+    private int fieldEnd;
+
+    // Each header is recorded as four offsets into headerData: the start and
+    // end of its name and of its (trimmed) value. Well-known names are
+    // resolved to their constant as the header is read. Values are only
+    // turned into Strings when they're asked for.
+    private int[] headerSlices;
+    private String[] headerNames;
+    private String[] headerValues;
+    private int headerCount;
+
+    // Built on demand by getHeaders()
     private Map<String, String> headers;
     private String contentType;
     private Charset contentCharset;
-    private int contentLength;
-    private byte[] content;
-    private boolean isComplete;
+    private long contentLength;
+    private long contentReceived;
+    private MessageBody body;
+
+    // Where content goes once there's too much of it to hold in memory
+    private int spillThreshold = DEFAULT_SPILL_THRESHOLD;
+    private File spillDirectory;
+
+    // Limits enforced as the message arrives. A maxContentLength of 0 means
+    // content isn't limited.
+    private int maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+    private int maxHeaderCount = DEFAULT_MAX_HEADER_COUNT;
+    private long maxContentLength;
+
+    // Set if this message was handed off for processing before its content
+    // had arrived.
+    private volatile boolean streaming;
+
+    // Chunked decoding state: the bytes left in the current chunk (or the
+    // size parsed so far while reading a chunk-size line), how much of the
+    // current line has been seen, and where the trailer starts in
+    // headerData.
+    private long chunkRemaining;
+    private int chunkDigits;
+    private int chunkLineLength;
+    private boolean chunkExtension;
+    private boolean chunkLineCR;
+    private int trailerStart;
 
     /**
      * Construct a new buffer for the given socket.
@@ -50,7 +159,6 @@ public abstract class HttpMessageBuffer {
     protected HttpMessageBuffer(HttpProcessor processor, Socket socket) {
         this.processor = processor;
         this.socket = socket;
-        this.contentStarts = -1;
     }
 
     /**
@@ -86,78 +194,69 @@ public abstract class HttpMessageBuffer {
      *             for the same reasons described under {@link #isComplete()}.
      */
     public int addBytes(byte[] newData, int offset, int count) throws Exception {
-        if (this.data == null) {
-            this.data = new byte[count];
-            this.offset = 0;
-        } else {
-            byte[] tmp = new byte[this.data.length + count];
-            System.arraycopy(this.data, 0, tmp, 0, this.data.length);
-            this.data = tmp;
+        ByteBuffer buf = ByteBuffer.wrap(newData, offset, count);
+        if (!this.addBytes(buf)) {
+            return -1;
         }
-        System.arraycopy(newData, offset, this.data, this.offset, count);
-        this.offset += count;
+        return buf.hasRemaining() ? buf.position() : 0;
+    }
 
-        if (!this.isComplete()) {
-            return -1;
+    /**
+     * Add new data received on the socket this buffer is associated with.
+     * <p>
+     * This behaves like {@link #addBytes(byte[], int, int)} but copies directly from a (possibly direct)
+     * {@link ByteBuffer}. All remaining data in <code>newData</code> is consumed unless it completes this message, in
+     * which case the position of <code>newData</code> is left at the start of any data following the message.
+     * <p>
+     * Parsing is incremental: the start line and each header are unpacked as soon as they have been received, and
+     * scanning picks up where the previous call left off. Once the headers are complete content is copied straight
+     * into a {@link MessageBody}, which holds it in memory (in an array sized from the <code>Content-Length</code>
+     * header where there is one) or, past the {@link #setSpillThreshold(int, File) spill threshold}, in a temporary
+     * file.
+     * <p>
+     * Content sent with a <code>Transfer-Encoding</code> of <code>chunked</code> is decoded as it arrives into an
+     * array that grows as chunks are received. Fields in the trailer are added to the message's headers, with the
+     * exception of those that may not appear in a trailer (such as <code>Content-Length</code> or
+     * <code>Host</code>).
+     *
+     * @param newData
+     *            The data to add to this buffer.
+     * @return <code>true</code> if this buffer now holds a complete message.
+     * @throws Exception
+     *             for the same reasons described under {@link #isComplete()}.
+     */
+    public boolean addBytes(ByteBuffer newData) throws Exception {
+        if (this.state < STATE_CONTENT && !this.addHeaderBytes(newData)) {
+            return false;
         }
 
-        // Check if there's extra data in the buffer
-        int excess = this.data.length - (this.contentStarts + this.contentLength);
-        if (excess > 0) {
-            // Trim our copied buffer so we don't hang onto large chunks of
-            // duplicate data. This won't impact non-pipelined performance
-            // since in that case we should only ever get complete (or partial)
-            // messages.
-            byte[] tmp = new byte[this.data.length - excess];
-            System.arraycopy(this.data, 0, tmp, 0, tmp.length);
-            this.data = tmp;
-            return offset + count - excess;
+        if (this.state == STATE_CONTENT) {
+            int count = (int) Math.min(newData.remaining(), this.contentLength - this.contentReceived);
+            this.body.write(newData, count);
+            this.contentReceived += count;
+            if (this.contentReceived == this.contentLength) {
+                this.contentComplete();
+            }
+        } else if (this.state > STATE_CONTENT && this.state < STATE_COMPLETE) {
+            this.addChunkedBytes(newData);
         }
 
-        return 0;
+        return this.state == STATE_COMPLETE;
     }
 
     /**
      * Test if this buffer contains a complete HTTP message.
      * <p>
-     * Roughly speaking this test consists of three steps, ordered as follows:
-     * <ol>
-     * <li>A test if a complete set of HTTP headers are present.</li>
-     * <li>A test if the <code>Content-Length</code> header is present.</li>
-     * <li>A test if the <code>Content-Length</code> header value and the content of the HTTP message are equal.</li>
-     * </ol>
+     * A message is complete once all of its headers have been received and validated, and as much content as the
+     * <code>Content-Length</code> header specifies has followed them. Problems with the headers are reported by
+     * {@link #addBytes(ByteBuffer)} as soon as they are detected.
      *
      * @return <code>true</code> if this buffer holds a complete HTTP message, otherwise <code>false</code>.
      * @throws Exception
-     *             if a problem occurs applying any of the tests mention above.
+     *             for compatibility with implementations that validate messages lazily.
      */
     public boolean isComplete() throws Exception {
-        if (this.isComplete) {
-            return true;
-        }
-
-        if (this.data == null) {
-            return false;
-        }
-
-        // Avoid seeking to the start of the content repeatedly
-        // in the case where the content comes in in multiple packets
-        if (this.contentStarts == -1) {
-            // We're interested in two things:
-            // 1. Do we have all the headers?
-            // 2. Do we have enough body to satisfy Content-Length?
-            this.contentStarts = this.seekToContentStart();
-            if (this.contentStarts == -1) {
-                return false;
-            }
-
-            // We have all of the headers at this point.
-            // Unpack and validate.
-            this.headers = this.unpackHeaders(contentStarts);
-        }
-
-        isComplete = this.isContentComplete();
-        return isComplete;
+        return this.state == STATE_COMPLETE;
     }
 
     /**
@@ -174,28 +273,209 @@ public abstract class HttpMessageBuffer {
      *             if this request is not yet complete.
      */
     public Map<String, String> getHeaders() {
-        if (this.headers == null) {
+        if (this.state < STATE_CONTENT) {
             throw new IllegalStateException("This request is incomplete");
         }
-        return Collections.unmodifiableMap(this.headers);
+        if (this.headers == null) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int i = 0; i < this.headerCount; i++) {
+                String name = this.headerName(i);
+                String prevValue = headers.get(name);
+                headers.put(name, prevValue == null ? this.headerValue(i) : prevValue + ", " + this.headerValue(i));
+            }
+            this.headers = Collections.unmodifiableMap(headers);
+        }
+        return this.headers;
     }
 
+    /**
+     * Get the value of a header. Header names are not case-sensitive.
+     * <p>
+     * As with {@link #getHeaders()} the values of duplicate headers are combined into a single, comma-separated
+     * value.
+     *
+     * @param name
+     *            The name of the header.
+     * @return The header's value, or <code>null</code> if the header isn't present.
+     * @throws IllegalStateException
+     *             if this request is not yet complete.
+     */
     public String getHeaderValue(String name) {
-        if (this.headers == null) {
+        if (this.state < STATE_CONTENT) {
             throw new IllegalStateException("This request is incomplete");
         }
-        return this.headers.get(this.normalizeHeaderName(name));
+        // Well-known names are matched by reference
+        String known = KnownHeaders.lookup(name);
+        String value = null;
+        for (int i = 0; i < this.headerCount; i++) {
+            boolean matches;
+            if (known != null) {
+                matches = this.headerNames[i] == known;
+            } else {
+                matches = this.headerNames[i] == null && this.headerNameEquals(i, name);
+            }
+            if (matches) {
+                value = value == null ? this.headerValue(i) : value + ", " + this.headerValue(i);
+            }
+        }
+        return value;
     }
 
+    /**
+     * Test if all of the headers in the underlying HTTP message have been received.
+     * <p>
+     * Once this returns <code>true</code> the headers may be inspected, and the content may be consumed through
+     * {@link #getContentChannel()} or {@link #getContentStream()} as it arrives.
+     *
+     * @return <code>true</code> if all of the headers have been received.
+     */
+    public boolean isHeaderComplete() {
+        return this.state >= STATE_CONTENT;
+    }
+
+    /**
+     * Marks this message as having been dispatched before its content arrived.
+     */
+    public void setStreaming() {
+        this.streaming = true;
+    }
+
+    /**
+     * @return <code>true</code> if this message was dispatched as soon as its headers arrived, in which case its
+     *         content may still be arriving.
+     */
+    public boolean isStreaming() {
+        return this.streaming;
+    }
+
+    /**
+     * Configures how much content is held in memory before it is moved to a temporary file. Must be called before
+     * any content has been added. Since content is added by the selecting thread the file is written on that
+     * thread, so this trades heap for time spent blocked on the disk.
+     *
+     * @param threshold
+     *            The number of bytes of content to hold in memory.
+     * @param directory
+     *            The directory to create temporary files in, or <code>null</code> for the default temporary
+     *            directory.
+     */
+    public void setSpillThreshold(int threshold, File directory) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold is negative");
+        }
+        this.spillThreshold = threshold;
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * Configures the limits on the headers of this message. Must be called before any data has been added.
+     * <p>
+     * Limits are checked as data arrives, so an oversized message is rejected (with a
+     * {@link HeaderTooLargeException}) without being buffered in its entirety.
+     *
+     * @param maxSize
+     *            The largest number of bytes the start line and headers may occupy, including line terminators.
+     *            Defaults to {@link #DEFAULT_MAX_HEADER_SIZE}.
+     * @param maxCount
+     *            The largest number of header fields. Defaults to {@link #DEFAULT_MAX_HEADER_COUNT}.
+     */
+    public void setHeaderLimits(int maxSize, int maxCount) {
+        if (maxSize <= 0 || maxCount <= 0) {
+            throw new IllegalArgumentException("Header limits must be positive: size=" + maxSize + ", count="
+                    + maxCount);
+        }
+        this.maxHeaderSize = maxSize;
+        this.maxHeaderCount = maxCount;
+    }
+
+    /**
+     * Configures the largest content this message may have. Must be called before any data has been added.
+     * <p>
+     * A <code>Content-Length</code> over the limit is rejected as soon as the headers have been read, before any
+     * content arrives. Chunked content is rejected as soon as a chunk size takes it over the limit. In both cases a
+     * {@link ContentTooLargeException} is raised.
+     *
+     * @param max
+     *            The largest content length, in bytes, or <code>0</code> for no limit (the default).
+     */
+    public void setMaxContentLength(long max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max is negative");
+        }
+        this.maxContentLength = max;
+    }
+
+    /**
+     * Returns the content of this message as an array.
+     * <p>
+     * Content that has been moved to a temporary file is read back into memory, so code that handles large messages
+     * should use {@link #getContentChannel()} instead.
+     *
+     * @return The content, or <code>null</code> if it has not all arrived yet.
+     * @throws IllegalStateException
+     *             if the headers are incomplete, or if the content can't be read back from its temporary file.
+     */
     public byte[] getContent() {
-        if (this.headers == null) {
+        if (this.state < STATE_CONTENT) {
             throw new IllegalStateException("This request is incomplete");
         }
-        return this.content;
+        if (this.state != STATE_COMPLETE) {
+            return null;
+        }
+        try {
+            return this.body.toByteArray();
+        } catch (IOException e) {
+            throw (IllegalStateException) new IllegalStateException("Unable to read content: " + e.getMessage())
+                    .initCause(e);
+        }
     }
 
+    /**
+     * Returns a channel that reads the content of this message from the beginning. Reads block until content
+     * arrives, so this may be used while the content is still being received.
+     *
+     * @return A channel for reading the content of this message.
+     * @throws IllegalStateException
+     *             if the headers are incomplete.
+     */
+    public ReadableByteChannel getContentChannel() {
+        if (this.state < STATE_CONTENT) {
+            throw new IllegalStateException("This request is incomplete");
+        }
+        return this.body.newChannel();
+    }
+
+    /**
+     * Returns a stream that reads the content of this message from the beginning, blocking as described under
+     * {@link #getContentChannel()}.
+     */
     public InputStream getContentStream() throws IOException {
-        return new ByteArrayInputStream(this.getContent());
+        if (this.state < STATE_CONTENT) {
+            throw new IllegalStateException("This request is incomplete");
+        }
+        return this.body.newInputStream();
+    }
+
+    /**
+     * Releases the temporary file holding this message's content, if there is one. Invoked once the message has been
+     * handled. Content that arrives after this is discarded.
+     */
+    public void releaseContent() {
+        if (this.body != null) {
+            this.body.release();
+        }
+    }
+
+    /**
+     * Releases any resources held by a message that will never be completed (because its connection was closed or
+     * it couldn't be parsed). Anything waiting for content that will now never arrive fails with an
+     * {@link IOException}.
+     */
+    public void abandon() {
+        if (this.body != null) {
+            this.body.fail(new IOException("Message abandoned before its content was received"));
+            this.body.release();
+        }
     }
 
     public Reader getContentReader() throws IOException {
@@ -219,8 +499,8 @@ public abstract class HttpMessageBuffer {
     public String toString() {
         StringWriter sw = new StringWriter();
         PrintWriter pw = new PrintWriter(sw);
-        if (this.headers != null) {
-            Iterator<Entry<String, String>> headersIter = this.headers.entrySet().iterator();
+        if (this.state >= STATE_CONTENT) {
+            Iterator<Entry<String, String>> headersIter = this.getHeaders().entrySet().iterator();
             while (headersIter.hasNext()) {
                 Entry<String, String> entry = headersIter.next();
                 pw.print(entry.getKey());
@@ -229,8 +509,10 @@ public abstract class HttpMessageBuffer {
             }
         }
         pw.println();
-        if (this.content == null) {
+        if (this.state != STATE_COMPLETE) {
             pw.println("<null content>");
+        } else if (this.body.isSpilled()) {
+            pw.println("<" + this.contentLength + " byte(s) of content in a temporary file>");
         } else {
             try {
                 if (this.getContentCharset() != null) {
@@ -246,90 +528,116 @@ public abstract class HttpMessageBuffer {
     }
 
     /**
-     * This is easy: just look for two CRLF pairs.
+     * Appends header data and unpacks any lines it completes. Only data up to the end of the headers is consumed, so
+     * on return <code>newData</code> is positioned at the first byte of content (if any has arrived).
      *
-     * @return The index of the first byte of data after the headers or -1 if the headers are not all present.
+     * @return <code>true</code> once the headers are complete.
      */
-    private int seekToContentStart() {
-        for (int i = 0; i < this.data.length; i++) {
-            // byte ch = this.data[i];
-            if (this.data[i] == '\r') {
-                if (i > this.data.length - 4) {
-                    return -1;
-                }
-                if (this.data[i + 1] == '\n' && this.data[i + 2] == '\r' && this.data[i + 3] == '\n') {
-                    return i + 4;
-                }
-            }
-        }
-        return -1;
-    }
-
-    private Map<String, String> unpackHeaders(int contentStarts) throws Exception {
-        Map<String, String> headers = new LinkedHashMap<>();
-        boolean firstLine = true;
-        int idx = 0;
-        int lineBegins = idx;
-        while (true) {
-            // Seek to end of line
-            while (true) {
-                if (this.data[idx] == '\r' && this.data[idx + 1] == '\n') {
-                    if (idx + 4 < contentStarts && (this.data[idx + 2] == ' ' || this.data[idx + 2] == '\t')) {
-                        // Multiline header
-                    } else {
-                        break;
-                    }
-                }
-                idx++;
-            }
-            if (lineBegins == idx) {
+    private boolean addHeaderBytes(ByteBuffer newData) throws Exception {
+        // Never copy more than one byte past the limit, so headerData stays
+        // bounded however much a client sends.
+        int maxLength = this.state == STATE_TRAILERS ? this.trailerStart + MAX_TRAILER_SIZE : this.maxHeaderSize;
+        int count = Math.min(newData.remaining(), maxLength + 1 - this.headerLength);
+        int scanFrom = this.headerLength;
+        int limit = scanFrom + count;
+        this.ensureHeaderCapacity(limit);
+        newData.get(this.headerData, scanFrom, count);
+        this.headerLength = limit;
+
+        // Only the new data needs scanning, but a CR at the end of the last
+        // lot can pair with an LF at the start of this lot.
+        for (int i = scanFrom; i < limit; i++) {
+            i = ByteScanner.indexOf(this.headerView, i, limit, (byte) '\n');
+            if (i == -1) {
                 break;
             }
-            String line = new String(this.data, lineBegins, idx - lineBegins, "ASCII");
-            if (firstLine) {
-                this.unpackPreamble(line);
-                firstLine = false;
-            } else {
-                this.addHeader(headers, line);
+            if (i == this.lineStart || this.headerData[i - 1] != '\r') {
+                continue;
             }
 
-            lineBegins = idx + 2;
-            idx += 2;
+            int lineEnd = i - 1;
+            int lineStart = this.lineStart;
+            this.lineStart = i + 1;
+            if (this.endOfLine(lineStart, lineEnd)) {
+                // Give back anything following the headers
+                newData.position(newData.position() - (limit - (i + 1)));
+                this.headerLength = i + 1;
+                if (this.state == STATE_TRAILERS) {
+                    this.trailerComplete();
+                } else {
+                    this.headersComplete();
+                }
+                return true;
+            }
         }
-        return headers;
-    }
 
-    private void addHeader(Map<String, String> headers, String line) {
-        int splitIdx = line.indexOf(':');
-        String name = this.normalizeHeaderName(line.substring(0, splitIdx).trim());
-        String value = line.substring(splitIdx + 1).trim();
-
-        if (headers.containsKey(name)) {
-            // the spec allows us to roll these up into a single
-            // key:value pair where value is all the values
-            // of duplicate keys are comma separated (in
-            // the order in which they occur in the request)
-            String prevValue = headers.get(name);
-            value = prevValue + ", " + value;
+        if (this.state == STATE_START_LINE && this.headerLength - this.lineStart > this.getMaxStartLineLength()) {
+            throw new HeaderTooLargeException("Start line exceeds " + this.getMaxStartLineLength() + " bytes", true);
+        }
+        if (this.headerLength > maxLength) {
+            if (this.state == STATE_TRAILERS) {
+                throw new ExcessiveContentException("Trailer exceeds " + MAX_TRAILER_SIZE + " bytes");
+            }
+            throw new HeaderTooLargeException("Headers exceed " + this.maxHeaderSize + " bytes",
+                    this.state == STATE_START_LINE);
         }
-        headers.put(name, value);
+        return false;
     }
 
-    protected abstract void unpackPreamble(String line) throws Exception;
+    private void ensureHeaderCapacity(int capacity) {
+        if (this.headerData == null) {
+            this.headerData = new byte[Math.max(INITIAL_HEADER_BUFFER_SIZE, capacity)];
+            this.headerView = ByteScanner.wrap(this.headerData);
+        } else if (capacity > this.headerData.length) {
+            byte[] tmp = new byte[Math.max(this.headerData.length * 2, capacity)];
+            System.arraycopy(this.headerData, 0, tmp, 0, this.headerLength);
+            this.headerData = tmp;
+            this.headerView = ByteScanner.wrap(this.headerData);
+        }
+    }
 
-    public abstract double getHttpVersion();
+    /**
+     * Handles a complete line (excluding its CRLF terminator).
+     * <p>
+     * A header line isn't unpacked until the start of the next line has been seen, since headers may be continued
+     * over multiple lines by starting each continuation line with whitespace.
+     *
+     * @return <code>true</code> if this was the empty line marking the end of the headers.
+     */
+    private boolean endOfLine(int lineStart, int lineEnd) throws Exception {
+        if (this.state == STATE_START_LINE) {
+            // Be lenient about blank lines ahead of the start line
+            if (lineEnd > lineStart) {
+                if (lineEnd - lineStart > this.getMaxStartLineLength()) {
+                    throw new HeaderTooLargeException("Start line exceeds " + this.getMaxStartLineLength() + " bytes",
+                            true);
+                }
+                this.unpackPreamble(this.headerData, lineStart, lineEnd - lineStart);
+                this.headerSlices = new int[INITIAL_HEADER_COUNT * 4];
+                this.headerNames = new String[INITIAL_HEADER_COUNT];
+                this.headerValues = new String[INITIAL_HEADER_COUNT];
+                this.state = STATE_HEADERS;
+            }
+            return false;
+        }
 
-    public abstract String getHttpVersionString();
+        if (lineEnd > lineStart && this.fieldStart != -1
+                && (this.headerData[lineStart] == ' ' || this.headerData[lineStart] == '\t')) {
+            // Multiline header
+            this.fieldEnd = lineEnd;
+            return false;
+        }
 
-    // TODO: Document
-    protected void validateHeaders() throws HttpBufferException {
+        if (this.fieldStart != -1) {
+            this.addHeader(this.fieldStart, this.fieldEnd);
+        }
+        this.fieldStart = lineStart;
+        this.fieldEnd = lineEnd;
+        return lineEnd == lineStart;
     }
 
-    /**
-     * This is more interesting. We need to find the content-length (mandatory header according to the XMLRPC spec).
-     * Then we can check if the
-     */
-    private boolean isContentComplete() throws HttpBufferException {
+    private void headersComplete() throws HttpBufferException {
+        this.state = STATE_CONTENT;
         this.validateHeaders();
 
         String contentTypeValue = this.getHeaderValue(HttpConstants.Headers.CONTENT_TYPE);
@@ -343,29 +651,271 @@ public abstract class HttpMessageBuffer {
             }
         }
 
-        String lenStr = this.headers.get(this.normalizeHeaderName(HttpConstants.Headers.CONTENT_LENGTH));
+        String lenStr = this.getHeaderValue(HttpConstants.Headers.CONTENT_LENGTH);
+        String transferEncoding = this.getHeaderValue(HttpConstants.Headers.TRANSFER_ENCODING);
+        if (transferEncoding != null) {
+            if (!transferEncoding.equalsIgnoreCase(HttpConstants.TransferEncoding.CHUNKED)) {
+                throw new UnsupportedHeaderException(HttpConstants.Headers.TRANSFER_ENCODING, transferEncoding);
+            }
+            if (lenStr != null) {
+                // Section 4.4 of RFC 2616 says to ignore Content-Length here but
+                // a message with both is more likely to be an attempt to confuse
+                // an intermediary than anything legitimate.
+                throw new InvalidHeaderException(HttpConstants.Headers.CONTENT_LENGTH, lenStr);
+            }
+            this.body = new MessageBody(-1, this.spillThreshold, this.spillDirectory);
+            this.state = STATE_CHUNK_SIZE;
+            return;
+        }
+
         try {
             if (lenStr != null) {
-                this.contentLength = Integer.parseInt(lenStr);
+                this.contentLength = Long.parseLong(lenStr);
             }
         } catch (NumberFormatException e) {
             throw new InvalidHeaderException(HttpConstants.Headers.CONTENT_LENGTH, lenStr, e);
         }
-        int receivedLen = this.data.length - this.contentStarts;
-        //		if (receivedLen > this.contentLength) {
-        //			throw new ExcessiveContentException("Content length (" + this.contentLength + ") exceeded: "
-        //					+ receivedLen);
-        //		}
+        if (this.contentLength < 0) {
+            throw new InvalidHeaderException(HttpConstants.Headers.CONTENT_LENGTH, lenStr);
+        }
+        if (this.maxContentLength > 0 && this.contentLength > this.maxContentLength) {
+            throw new ContentTooLargeException("Content-Length of " + this.contentLength + " exceeds "
+                    + this.maxContentLength + " bytes");
+        }
 
-        if (receivedLen < this.contentLength) {
-            return false;
+        this.body = new MessageBody(this.contentLength, this.spillThreshold, this.spillDirectory);
+        if (this.contentLength == 0) {
+            this.contentComplete();
+        }
+    }
+
+    private void contentComplete() {
+        this.body.complete();
+        this.state = STATE_COMPLETE;
+    }
+
+    /**
+     * Decodes chunked content. Chunk data is copied straight into the message body. Chunk-size lines are parsed a
+     * byte at a time since they're short. Once the last chunk has been read the trailer is handled like the headers.
+     */
+    private void addChunkedBytes(ByteBuffer newData) throws Exception {
+        while (newData.hasRemaining()) {
+            if (this.state == STATE_CHUNK_DATA) {
+                int count = (int) Math.min(newData.remaining(), this.chunkRemaining);
+                this.body.write(newData, count);
+                this.contentReceived += count;
+                this.chunkRemaining -= count;
+                if (this.chunkRemaining == 0) {
+                    this.state = STATE_CHUNK_DATA_END;
+                }
+            } else if (this.state == STATE_TRAILERS) {
+                this.addHeaderBytes(newData);
+                return;
+            } else {
+                this.addChunkLineByte(newData.get());
+            }
+        }
+    }
+
+    /**
+     * Handles a byte of a chunk-size line, or of the CRLF that follows the data in a chunk.
+     */
+    private void addChunkLineByte(byte b) throws HttpBufferException {
+        if (++this.chunkLineLength > MAX_CHUNK_LINE_LENGTH) {
+            throw new ExcessiveContentException("Chunk size line exceeds " + MAX_CHUNK_LINE_LENGTH + " bytes");
+        }
+
+        if (this.chunkLineCR) {
+            if (b != '\n') {
+                throw new MalformedContentException("Expected LF after CR in chunked content");
+            }
+            this.chunkLineCR = false;
+            this.chunkLineLength = 0;
+            if (this.state == STATE_CHUNK_DATA_END) {
+                this.state = STATE_CHUNK_SIZE;
+            } else {
+                this.endOfChunkSize();
+            }
+            return;
+        }
+
+        if (b == '\r') {
+            this.chunkLineCR = true;
+            return;
         }
+        if (this.state == STATE_CHUNK_DATA_END) {
+            throw new MalformedContentException("Chunk data exceeds chunk size");
+        }
+        if (this.chunkExtension) {
+            // Extensions are ignored
+            return;
+        }
+
+        int digit = Character.digit(b, 16);
+        if (digit != -1) {
+            if (this.chunkRemaining > MAX_CHUNK_SIZE >> 4) {
+                throw new ContentTooLargeException("Chunk size exceeds " + MAX_CHUNK_SIZE + " bytes");
+            }
+            this.chunkRemaining = this.chunkRemaining * 16 + digit;
+            this.chunkDigits++;
+        } else if (b == ';' || b == ' ' || b == '\t') {
+            this.chunkExtension = true;
+        } else {
+            throw new MalformedContentException("Invalid character in chunk size: 0x" + Integer.toHexString(b & 0xFF));
+        }
+    }
+
+    private void endOfChunkSize() throws HttpBufferException {
+        if (this.chunkDigits == 0) {
+            throw new MalformedContentException("Missing chunk size");
+        }
+        this.chunkDigits = 0;
+        this.chunkExtension = false;
+
+        if (this.chunkRemaining == 0) {
+            // The last chunk. Any trailer goes into headerData after the headers.
+            this.trailerStart = this.headerLength;
+            this.lineStart = this.headerLength;
+            this.fieldStart = -1;
+            this.state = STATE_TRAILERS;
+            return;
+        }
+        if (this.maxContentLength > 0 && this.contentReceived + this.chunkRemaining > this.maxContentLength) {
+            throw new ContentTooLargeException("Chunked content exceeds " + this.maxContentLength + " bytes");
+        }
+        this.state = STATE_CHUNK_DATA;
+    }
+
+    private void trailerComplete() {
+        this.contentLength = this.contentReceived;
+        this.contentComplete();
+    }
+
+    /**
+     * Records the header held in <code>headerData</code> between <code>start</code> and <code>end</code>.
+     * <p>
+     * Duplicate headers are recorded separately. The spec allows us to roll these up into a single value in which
+     * the values of duplicate headers are comma separated (in the order in which they occur in the message), which
+     * is done when the value is asked for.
+     */
+    private void addHeader(int start, int end) throws HttpBufferException {
+        int splitIdx = ByteScanner.indexOf(this.headerView, start, end, (byte) ':');
+        if (splitIdx == -1) {
+            throw new HttpBufferException("Malformed header: "
+                    + new String(this.headerData, start, end - start, StandardCharsets.US_ASCII));
+        }
+
+        int nameStart = this.skipWhitespace(start, splitIdx);
+        int nameEnd = this.trimWhitespace(nameStart, splitIdx);
+        int valueStart = this.skipWhitespace(splitIdx + 1, end);
+        int valueEnd = this.trimWhitespace(valueStart, end);
+
+        if (this.headerCount == this.maxHeaderCount && this.state != STATE_TRAILERS) {
+            throw new HeaderTooLargeException("More than " + this.maxHeaderCount + " headers", false);
+        }
+        if (this.headerCount == this.headerNames.length) {
+            int capacity = this.headerCount * 2;
+            this.headerSlices = Arrays.copyOf(this.headerSlices, capacity * 4);
+            this.headerNames = Arrays.copyOf(this.headerNames, capacity);
+            this.headerValues = Arrays.copyOf(this.headerValues, capacity);
+        }
+
+        int slice = this.headerCount * 4;
+        this.headerSlices[slice] = nameStart;
+        this.headerSlices[slice + 1] = nameEnd;
+        this.headerSlices[slice + 2] = valueStart;
+        this.headerSlices[slice + 3] = valueEnd;
+        String knownName = KnownHeaders.lookup(this.headerData, nameStart, nameEnd - nameStart);
+        if (this.state == STATE_TRAILERS) {
+            if (knownName != null && TRAILER_EXCLUSIONS.contains(knownName)) {
+                return;
+            }
+            this.headers = null;
+        }
+        this.headerNames[this.headerCount] = knownName;
+        this.headerCount++;
+    }
+
+    // Returns the offset of the first non-whitespace byte in [start, end)
+    private int skipWhitespace(int start, int end) {
+        while (start < end && (this.headerData[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        return start;
+    }
 
-        this.content = new byte[this.contentLength];
-        System.arraycopy(this.data, this.contentStarts, this.content, 0, this.content.length);
+    // Returns the offset just past the last non-whitespace byte in [start, end)
+    private int trimWhitespace(int start, int end) {
+        while (end > start && (this.headerData[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private String headerName(int index) {
+        String name = this.headerNames[index];
+        if (name == null) {
+            int slice = index * 4;
+            int start = this.headerSlices[slice];
+            name = this.normalizeHeaderName(new String(this.headerData, start, this.headerSlices[slice + 1] - start,
+                    StandardCharsets.US_ASCII));
+        }
+        return name;
+    }
+
+    private String headerValue(int index) {
+        String value = this.headerValues[index];
+        if (value == null) {
+            int slice = index * 4;
+            int start = this.headerSlices[slice + 2];
+            value = new String(this.headerData, start, this.headerSlices[slice + 3] - start,
+                    StandardCharsets.US_ASCII);
+            this.headerValues[index] = value;
+        }
+        return value;
+    }
+
+    private boolean headerNameEquals(int index, String name) {
+        int slice = index * 4;
+        int start = this.headerSlices[slice];
+        int length = this.headerSlices[slice + 1] - start;
+        if (length != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char ch = (char) (this.headerData[start + i] & 0xFF);
+            char other = name.charAt(i);
+            if (ch != other && Character.toLowerCase(ch) != Character.toLowerCase(other)) {
+                return false;
+            }
+        }
         return true;
     }
 
+    /**
+     * Unpacks the start line of the message, which is held in <code>data</code> (excluding its line terminator).
+     * The contents of <code>data</code> may change once this returns, so anything needed later must be copied out.
+     */
+    protected abstract void unpackPreamble(byte[] data, int offset, int length) throws Exception;
+
+    /**
+     * Returns the length of the longest start line that will be accepted, excluding its line terminator. A longer
+     * start line is rejected with a {@link HeaderTooLargeException} as soon as enough of it has arrived.
+     * <p>
+     * The default implementation returns the header size limit (see {@link #setHeaderLimits(int, int)}).
+     */
+    protected int getMaxStartLineLength() {
+        return this.maxHeaderSize;
+    }
+
+    public abstract double getHttpVersion();
+
+    public abstract String getHttpVersionString();
+
+    // TODO: Document
+    protected void validateHeaders() throws HttpBufferException {
+    }
+
     /**
      * Called to normalize header names.
      * <p>
@@ -1,23 +1,30 @@
 package com.flat502.rox.http;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.regex.Pattern;
 
 import com.flat502.rox.encoding.Encoding;
 import com.flat502.rox.encoding.EncodingMap;
+import com.flat502.rox.http.exception.ContentTooLargeException;
 import com.flat502.rox.http.exception.ExcessiveContentException;
+import com.flat502.rox.http.exception.HeaderTooLargeException;
 import com.flat502.rox.http.exception.HttpBufferException;
 import com.flat502.rox.http.exception.HttpResponseException;
 import com.flat502.rox.http.exception.InvalidHeaderException;
+import com.flat502.rox.http.exception.MalformedContentException;
 import com.flat502.rox.http.exception.MissingHeaderException;
 import com.flat502.rox.http.exception.UnsupportedHeaderException;
 import com.flat502.rox.server.HttpServer;
@@ -27,29 +34,36 @@ import com.flat502.rox.utils.Utils;
  * This class represents a buffer built up from one or more network messages, and containing an HTTP request.
  */
 public class HttpRequestBuffer extends HttpMessageBuffer {
-    private static final Comparator<Float> QVALUE_CMP = new Comparator<Float>() {
-        @Override
-        public int compare(Float qvalue1, Float qvalue2) {
-            if (qvalue1 == null && qvalue2 == null) {
-                return 0;
-            }
-            if (qvalue1 == null) {
-                // a > b
-                return 1;
-            }
-            if (qvalue2 == null) {
-                // a < b
-                return -1;
-            }
-            return qvalue1.compareTo(qvalue2);
-        }
-    };
-
     // private static final Pattern REQUEST_LINE = Pattern.compile("(\\S+) (\\S+) (\\S+)");
 
+    /**
+     * The default limit on the length of a request URI.
+     */
+    public static final int DEFAULT_MAX_URI_LENGTH = 8192;
+
+    // Room on the request line for the method, HTTP version and separators
+    // on top of the URI. Generous, since the request line is only checked
+    // against this until it's complete.
+    private static final int REQUEST_LINE_OVERHEAD = 64;
+
+    private static final String EXPECT_CONTINUE = "100-continue";
+
+    private static final String HTTP_1_0 = "HTTP/1.0";
+    private static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final String FORM_URLENCODED = "application/x-www-form-urlencoded";
+
     private String method;
     private String rawUri;
+    private String path;
     private String uri;
+
+    // The undecoded query string, and the parameters decoded from it and
+    // from form content. All null until asked for.
+    private byte[] queryData;
+    private String queryString;
+    private Map<String, List<String>> queryParameters;
+    private Map<String, List<String>> formParameters;
     private double httpVersion;
     private String httpVersionString;
 
@@ -58,6 +72,8 @@ public class HttpRequestBuffer extends HttpMessageBuffer {
 
     private Map<String, Float> acceptedEncodings;
 
+    private int maxURILength = DEFAULT_MAX_URI_LENGTH;
+
     public HttpRequestBuffer(HttpServer server, Socket socket) {
         this(server, socket, null);
     }
@@ -81,14 +97,175 @@ public class HttpRequestBuffer extends HttpMessageBuffer {
         return this.method;
     }
 
+    /**
+     * Returns the request URI with its path normalized as described under
+     * {@link Utils#normalizeURIPath(byte[], int, int)}. Any query string follows the path, still encoded.
+     *
+     * @return The normalized request URI.
+     */
     public String getURI() {
+        if (this.uri == null && this.path != null) {
+            this.uri = this.queryData == null ? this.path : this.path + "?" + this.getQueryString();
+        }
         return this.uri;
     }
 
+    /**
+     * @return The path of the request URI, normalized as described under
+     *         {@link Utils#normalizeURIPath(byte[], int, int)}. The query string is not included.
+     */
+    public String getPath() {
+        return this.path;
+    }
+
+    /**
+     * @return The request URI exactly as it appeared in the request line, including any query string.
+     */
+    public String getRawURI() {
+        return this.rawUri;
+    }
+
+    /**
+     * @return The query string (still encoded, without the leading <code>?</code>), or <code>null</code> if the
+     *         request URI didn't have one.
+     */
+    public String getQueryString() {
+        if (this.queryString == null && this.queryData != null) {
+            this.queryString = new String(this.queryData, StandardCharsets.US_ASCII);
+        }
+        return this.queryString;
+    }
+
+    /**
+     * Returns the parameters in the query string, decoded as UTF-8.
+     * <p>
+     * The query string is only decoded the first time this is called. See
+     * {@link Utils#decodeParameters(byte[], int, int, Charset)} for details of the decoding and of the map returned.
+     *
+     * @return The decoded parameters. The map is empty if there is no query string.
+     */
+    public Map<String, List<String>> getQueryParameters() {
+        if (this.queryParameters == null) {
+            if (this.queryData == null) {
+                this.queryParameters = Collections.emptyMap();
+            } else {
+                this.queryParameters = Utils.decodeParameters(this.queryData, 0, this.queryData.length,
+                        StandardCharsets.UTF_8);
+            }
+        }
+        return this.queryParameters;
+    }
+
+    /**
+     * @return The first value of the named query parameter, or <code>null</code> if it's not present.
+     * @see #getQueryParameters()
+     */
+    public String getQueryParameter(String name) {
+        return firstValue(this.getQueryParameters(), name);
+    }
+
+    /**
+     * Returns the parameters in the content of an <code>application/x-www-form-urlencoded</code> request (an HTML
+     * form submission), decoded using the character set named by the <code>Content-Type</code> header (or UTF-8 if
+     * there isn't one).
+     * <p>
+     * The content is only decoded the first time this is called. See
+     * {@link Utils#decodeParameters(byte[], int, int, Charset)} for details of the decoding and of the map returned.
+     *
+     * @return The decoded parameters. The map is empty if the request doesn't have form content.
+     * @throws IllegalStateException
+     *             if the content of the request hasn't all arrived yet.
+     * @throws IOException
+     *             if the content can't be read or decoded.
+     */
+    public Map<String, List<String>> getFormParameters() throws IOException {
+        if (this.formParameters == null) {
+            if (!FORM_URLENCODED.equalsIgnoreCase(this.getContentType())) {
+                this.formParameters = Collections.emptyMap();
+            } else {
+                byte[] content = this.getDecodedContent();
+                String contentType = this.getHeaderValue(HttpConstants.Headers.CONTENT_TYPE);
+                Charset charset = contentType.indexOf("charset=") == -1 ? StandardCharsets.UTF_8
+                        : this.getContentCharset();
+                this.formParameters = Utils.decodeParameters(content, 0, content.length, charset);
+            }
+        }
+        return this.formParameters;
+    }
+
+    /**
+     * @return The first value of the named form parameter, or <code>null</code> if it's not present.
+     * @see #getFormParameters()
+     */
+    public String getFormParameter(String name) throws IOException {
+        return firstValue(this.getFormParameters(), name);
+    }
+
+    private byte[] getDecodedContent() throws IOException {
+        byte[] content = this.getContent();
+        if (content == null) {
+            throw new IllegalStateException("The content is incomplete");
+        }
+        if (this.encoding == null) {
+            return content;
+        }
+        InputStream is = this.getContentStream();
+        try {
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream(content.length * 2);
+            byte[] buf = new byte[4096];
+            int count;
+            while ((count = is.read(buf)) != -1) {
+                decoded.write(buf, 0, count);
+            }
+            return decoded.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String firstValue(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Configures the longest request URI that will be accepted. Must be called before any data has been added.
+     * <p>
+     * Requests with a longer URI are rejected with a <code>414</code> status code. This is checked as the request
+     * line arrives, so an oversized URI is never buffered in its entirety.
+     *
+     * @param max
+     *            The longest URI accepted, in bytes. Defaults to {@link #DEFAULT_MAX_URI_LENGTH}.
+     */
+    public void setMaxURILength(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+        this.maxURILength = max;
+    }
+
+    /**
+     * Test if the client is waiting for a <code>100 (Continue)</code> response before it sends the content of this
+     * request, as described in <a href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec8.html#sec8.2.3">section
+     * 8.2.3</a> of RFC 2616.
+     *
+     * @return <code>true</code> if this is an HTTP/1.1 request with an <code>Expect: 100-continue</code> header.
+     * @throws IllegalStateException
+     *             if the headers of this request are incomplete.
+     */
+    public boolean expectsContinue() {
+        if (this.getHttpVersion() < 1.1) {
+            // HTTP/1.0 clients can't be relied on to mean it (section 8.2.3)
+            return false;
+        }
+        String expect = this.getHeaderValue(HttpConstants.Headers.EXPECT);
+        return expect != null && expect.equalsIgnoreCase(EXPECT_CONTINUE);
+    }
+
     @Override
-    public boolean isComplete() throws Exception {
+    public boolean addBytes(ByteBuffer newData) throws Exception {
         try {
-            return super.isComplete();
+            return super.addBytes(newData);
         } catch (MissingHeaderException e) {
             throw new HttpResponseException(HttpConstants.StatusCodes._412_PRECONDITION_FAILED,
                     "Precondition Failed (Missing " + e.getHeaderName() + " Header)", e);
@@ -97,11 +274,35 @@ public class HttpRequestBuffer extends HttpMessageBuffer {
                 throw new HttpResponseException(HttpConstants.StatusCodes._415_UNSUPPORTED_MEDIA_TYPE,
                         "Unsupported Media Type (Bad " + e.getHeaderName() + ": " + e.getHeaderValue() + ")", e);
             }
+            if (e.getHeaderName().equals(HttpConstants.Headers.EXPECT)) {
+                throw new HttpResponseException(HttpConstants.StatusCodes._417_EXPECTATION_FAILED,
+                        "Expectation Failed (" + e.getHeaderValue() + ")", e);
+            }
+            if (e.getHeaderName().equals(HttpConstants.Headers.TRANSFER_ENCODING)) {
+                throw new HttpResponseException(HttpConstants.StatusCodes._501_NOT_IMPLEMENTED,
+                        "Not Implemented (" + e.getHeaderName() + ": " + e.getHeaderValue() + ")", e);
+            }
             throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST,
                     "Bad Request (Unsupported: " + e.getHeaderName() + "=" + e.getHeaderValue() + ")", e);
+        } catch (InvalidHeaderException e) {
+            throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST,
+                    "Bad Request (Invalid " + e.getHeaderName() + " Header)", e);
+        } catch (HeaderTooLargeException e) {
+            if (e.isStartLine()) {
+                throw new HttpResponseException(HttpConstants.StatusCodes._414_REQUEST_URI_TOO_LARGE,
+                        "Request-URI Too Large", e);
+            }
+            throw new HttpResponseException(HttpConstants.StatusCodes._431_REQUEST_HEADER_FIELDS_TOO_LARGE,
+                    "Request Header Fields Too Large", e);
+        } catch (ContentTooLargeException e) {
+            throw new HttpResponseException(HttpConstants.StatusCodes._413_REQUEST_ENTITY_TOO_LARGE,
+                    "Request Entity Too Large", e);
         } catch (ExcessiveContentException e) {
             throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST,
                     "Bad Request (excessive content)", e);
+        } catch (MalformedContentException e) {
+            throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST,
+                    "Bad Request (malformed content: " + e.getMessage() + ")", e);
         }
     }
 
@@ -123,12 +324,19 @@ public class HttpRequestBuffer extends HttpMessageBuffer {
      * order of qvalue. Ties (i.e. equal qvalues) are broken by sorted so the first to appear in the header value
      * appears first.
      * <p>
-     * The map instance returned is unmodifiable.
+     * The map instance returned is unmodifiable. The header is only parsed the first time this is called, and
+     * elements of it that are malformed are left out.
      *
      * @return <code>null</code> if no <code>Accept-Encoding</code> header was present, or a map of accepted
      *         encodings.
      */
     public Map<String, Float> getAcceptedEncodings() {
+        if (this.acceptedEncodings == null) {
+            String acceptEncoding = this.getHeaderValue(HttpConstants.Headers.ACCEPT_ENCODING);
+            if (acceptEncoding != null) {
+                this.acceptedEncodings = parseAcceptedEncodings(acceptEncoding);
+            }
+        }
         return this.acceptedEncodings;
     }
 
@@ -148,86 +356,89 @@ public class HttpRequestBuffer extends HttpMessageBuffer {
     public String toString() {
         StringWriter sw = new StringWriter();
         PrintWriter pw = new PrintWriter(sw);
-        pw.println(this.method + " " + this.uri + " " + String.valueOf(this.httpVersion));
+        pw.println(this.method + " " + this.getURI() + " " + String.valueOf(this.httpVersion));
         pw.print(super.toString());
         return sw.toString();
     }
 
     @Override
-    protected void unpackPreamble(String line) throws HttpResponseException {
+    protected void unpackPreamble(byte[] data, int offset, int length) throws HttpResponseException {
         // Method SP Request-URI SP HTTP-Version CRLF
-        try {
-            int splitIdx = line.indexOf(' ');
-            this.method = line.substring(0, splitIdx);
+        int end = offset + length;
+        int methodEnd = ByteScanner.indexOf(data, offset, end, (byte) ' ');
+        int uriEnd = methodEnd == -1 ? -1 : ByteScanner.indexOf(data, methodEnd + 1, end, (byte) ' ');
+        if (uriEnd == -1) {
+            throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST,
+                    "Bad Request (malformed request line)", this);
+        }
 
-            if (!method.equals(HttpConstants.Methods.GET) && !method.equals(HttpConstants.Methods.POST)) {
-                //				System.out.println(Utils.toHexDump(this.data));
-                throw new HttpResponseException(HttpConstants.StatusCodes._501_NOT_IMPLEMENTED, "Not Implemented ("
-                        + method + ")", this);
-            }
+        if (matches(data, offset, methodEnd, HttpConstants.Methods.GET)) {
+            this.method = HttpConstants.Methods.GET;
+        } else if (matches(data, offset, methodEnd, HttpConstants.Methods.HEAD)) {
+            this.method = HttpConstants.Methods.HEAD;
+        } else if (matches(data, offset, methodEnd, HttpConstants.Methods.POST)) {
+            this.method = HttpConstants.Methods.POST;
+        } else {
+            this.method = new String(data, offset, methodEnd - offset, StandardCharsets.US_ASCII);
+            throw new HttpResponseException(HttpConstants.StatusCodes._501_NOT_IMPLEMENTED, "Not Implemented ("
+                    + this.method + ")", this);
+        }
 
-            int splitIdx2 = line.indexOf(' ', splitIdx + 1);
-            this.rawUri = line.substring(splitIdx + 1, splitIdx2);
-            splitIdx = splitIdx2;
-            if (this.rawUri.equals("*")) {
-                throw new HttpResponseException(HttpConstants.StatusCodes._501_NOT_IMPLEMENTED,
-                        "Not Implemented (wildcard URI)", this);
-            }
-            // TODO: Do we really want URI to validate this too?
+        int uriStart = methodEnd + 1;
+        if (uriEnd - uriStart > this.maxURILength) {
+            throw new HttpResponseException(HttpConstants.StatusCodes._414_REQUEST_URI_TOO_LARGE,
+                    "Request-URI Too Large", this);
+        }
+        this.rawUri = new String(data, uriStart, uriEnd - uriStart, StandardCharsets.US_ASCII);
+        if (this.rawUri.equals("*")) {
+            throw new HttpResponseException(HttpConstants.StatusCodes._501_NOT_IMPLEMENTED,
+                    "Not Implemented (wildcard URI)", this);
+        }
 
-            this.uri = Utils.normalizeURIPath(this.rawUri);
+        // The query is kept as bytes and only decoded if it's asked for
+        int pathEnd = ByteScanner.indexOf(data, uriStart, uriEnd, (byte) '?');
+        if (pathEnd == -1) {
+            pathEnd = uriEnd;
+        } else {
+            this.queryData = Arrays.copyOfRange(data, pathEnd + 1, uriEnd);
+        }
+        try {
+            this.path = Utils.normalizeURIPath(data, uriStart, pathEnd - uriStart);
+        } catch (IllegalArgumentException e) {
+            throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST,
+                    "Bad Request (malformed request line: " + e.getMessage() + ")", this, e);
+        }
 
-            this.httpVersionString = line.substring(splitIdx + 1);
+        int versionStart = uriEnd + 1;
+        if (matches(data, versionStart, end, HTTP_1_1)) {
+            this.httpVersionString = HTTP_1_1;
+            this.httpVersion = 1.1;
+        } else if (matches(data, versionStart, end, HTTP_1_0)) {
+            this.httpVersionString = HTTP_1_0;
+            this.httpVersion = 1.0;
+        } else {
+            this.httpVersionString = new String(data, versionStart, end - versionStart, StandardCharsets.US_ASCII);
+            throw new HttpResponseException(HttpConstants.StatusCodes._505_HTTP_VERSION_NOT_SUPPORTED,
+                    "HTTP Version Not Supported (" + this.httpVersionString + ")", this);
+        }
+    }
 
-            if (this.httpVersionString.equals("HTTP/1.1")) {
-                this.httpVersion = 1.1;
-            } else if (this.httpVersionString.equals("HTTP/1.0")) {
-                this.httpVersion = 1.0;
-            } else {
-                throw new HttpResponseException(HttpConstants.StatusCodes._505_HTTP_VERSION_NOT_SUPPORTED,
-                        "HTTP Version Not Supported (" + this.httpVersionString + ")", this);
+    // Tests if data[start, end) holds exactly the (ASCII) string s
+    private static boolean matches(byte[] data, int start, int end, String s) {
+        if (end - start != s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (data[start + i] != s.charAt(i)) {
+                return false;
             }
-        } catch (RuntimeException e) {
-            throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST,
-                    "Bad Request (malformed request line: " + e.getMessage() + ")", this, e);
         }
+        return true;
+    }
 
-        //		// Method SP Request-URI SP HTTP-Version CRLF
-        //		Matcher m = REQUEST_LINE.matcher(line);
-        //		if (!m.matches()) {
-        //			this.getLog().error(HttpRequestBuffer.class, "Malformed HTTP request header: [" + line + "]");
-        //			throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST,
-        //					"Bad Request (malformed request line)", this);
-        //		}
-        //
-        //		this.method = m.group(1).toUpperCase();
-        //		if (!method.equals("POST")) {
-        //			throw new HttpResponseException(HttpConstants.StatusCodes._501_NOT_IMPLEMENTED, "Not Implemented (" + method
-        //					+ ")", this);
-        //		}
-        //
-        //		this.uri = m.group(2);
-        //		if (this.uri.equals("*")) {
-        //			throw new HttpResponseException(HttpConstants.StatusCodes._501_NOT_IMPLEMENTED,
-        //					"Not Implemented (wildcard URI)", this);
-        //		}
-        //		try {
-        //			// Give Java a chance to do some additional validation.
-        //			new URI(this.uri);
-        //		} catch (URISyntaxException e) {
-        //			this.getLog().error(HttpRequestBuffer.class, "Malformed URI in HTTP request header: [" + this.uri + "]");
-        //			throw new HttpResponseException(HttpConstants.StatusCodes._400_BAD_REQUEST, "Bad Request (malformed URI)",
-        //					this, e);
-        //		}
-        //
-        //		String httpVersionString = m.group(3);
-        //		try {
-        //			this.httpVersion = this.parseHttpVersion(httpVersionString);
-        //		} catch (IllegalArgumentException e) {
-        //			this.getLog().error(HttpRequestBuffer.class, "Unsupported HTTP version: [" + httpVersionString + "]");
-        //			throw new HttpResponseException(HttpConstants.StatusCodes._505_HTTP_VERSION_NOT_SUPPORTED,
-        //					"HTTP Version Not Supported (" + httpVersionString + ")", this, e);
-        //		}
+    @Override
+    protected int getMaxStartLineLength() {
+        return this.maxURILength + REQUEST_LINE_OVERHEAD;
     }
 
     @Override
@@ -244,8 +455,9 @@ public class HttpRequestBuffer extends HttpMessageBuffer {
     protected void validateHeaders() throws HttpBufferException {
         super.validateHeaders();
 
-        if (!this.getMethod().equals(HttpConstants.Methods.GET)
-                && this.getHeaderValue(HttpConstants.Headers.CONTENT_LENGTH) == null) {
+        if (!this.getMethod().equals(HttpConstants.Methods.GET) && !this.getMethod().equals(HttpConstants.Methods.HEAD)
+                && this.getHeaderValue(HttpConstants.Headers.CONTENT_LENGTH) == null
+                && this.getHeaderValue(HttpConstants.Headers.TRANSFER_ENCODING) == null) {
             throw new MissingHeaderException(HttpConstants.Headers.CONTENT_LENGTH);
         }
 
@@ -268,80 +480,113 @@ public class HttpRequestBuffer extends HttpMessageBuffer {
             }
         }
 
-        String acceptEncoding = this.getHeaderValue(HttpConstants.Headers.ACCEPT_ENCODING);
-        if (acceptEncoding != null) {
-            this.unpackAcceptedEncodings(acceptEncoding);
+        if (this.getHttpVersion() > 1.0) {
+            // 100-continue is the only expectation we know how to meet
+            String expect = this.getHeaderValue(HttpConstants.Headers.EXPECT);
+            if (expect != null && !expect.equalsIgnoreCase(EXPECT_CONTINUE)) {
+                throw new UnsupportedHeaderException(HttpConstants.Headers.EXPECT, expect);
+            }
         }
     }
 
-    private static final Pattern COMMA_DELIM = Pattern.compile("\\s*,\\s*");
-    private static final Pattern SEMICOLON_DELIM = Pattern.compile("\\s*;\\s*");
-    private static final Pattern EQUALS_DELIM = Pattern.compile("\\s*=\\s*");
-
-    private void unpackAcceptedEncodings(String acceptEncoding) throws InvalidHeaderException {
-        acceptEncoding = acceptEncoding.trim();
-        this.acceptedEncodings = new LinkedHashMap<>();
-        if (!acceptEncoding.equals("")) {
-            String[] encodings = COMMA_DELIM.split(acceptEncoding);
-            for (String encoding2 : encodings) {
-                String[] parts = SEMICOLON_DELIM.split(encoding2);
-                if (parts.length > 2) {
-                    throw new InvalidHeaderException(HttpConstants.Headers.ACCEPT_ENCODING, acceptEncoding);
-                }
-                String name = parts[0].toLowerCase();
-                Float qvalue = null;
-                if (parts.length == 2) {
-                    parts = EQUALS_DELIM.split(parts[1]);
-                    if (parts.length != 2) {
-                        throw new InvalidHeaderException(HttpConstants.Headers.ACCEPT_ENCODING, acceptEncoding);
-                    }
-                    try {
-                        qvalue = new Float(parts[1]);
-                        if (qvalue.floatValue() < 0 || qvalue.floatValue() > 1.0) {
-                            throw new InvalidHeaderException(HttpConstants.Headers.ACCEPT_ENCODING, acceptEncoding);
-                        }
-                    } catch (NumberFormatException e) {
-                        throw new InvalidHeaderException(HttpConstants.Headers.ACCEPT_ENCODING, acceptEncoding, e);
-                    }
-                }
+    /**
+     * Parses the value of an <code>Accept-Encoding</code> header by hand, in a single pass per element. Elements
+     * that can't be parsed are ignored rather than failing the request.
+     */
+    private static Map<String, Float> parseAcceptedEncodings(String value) {
+        // Names and qvalues in order of first appearance
+        List<String> names = new ArrayList<>();
+        List<Float> qvalues = new ArrayList<>();
+        int start = 0;
+        while (start < value.length()) {
+            int end = value.indexOf(',', start);
+            if (end == -1) {
+                end = value.length();
+            }
+            parseAcceptedEncoding(value, start, end, names, qvalues);
+            start = end + 1;
+        }
 
-                if (this.acceptedEncodings.containsKey(name)) {
-                    Float prevQvalue = this.acceptedEncodings.get(name);
-                    if (QVALUE_CMP.compare(qvalue, prevQvalue) > 0) {
-                        this.acceptedEncodings.put(name, qvalue);
-                    }
-                } else {
-                    this.acceptedEncodings.put(name, qvalue);
-                }
+        // A stable insertion sort: there are only ever a handful of entries
+        int count = names.size();
+        for (int i = 1; i < count; i++) {
+            String name = names.get(i);
+            Float qvalue = qvalues.get(i);
+            int j = i;
+            while (j > 0 && compareQvalues(qvalue, qvalues.get(j - 1)) > 0) {
+                names.set(j, names.get(j - 1));
+                qvalues.set(j, qvalues.get(j - 1));
+                j--;
             }
+            names.set(j, name);
+            qvalues.set(j, qvalue);
+        }
 
-            // Finally, sort the keys of the map we've built based on the
-            // associated qvalues.
-            // List<String> keys = new ArrayList<>(this.acceptedEncodings.keySet());
-            Comparator<String> cmp2 = new Comparator<String>() {
-                @Override
-                public int compare(String name1, String name2) {
-                    Float q1 = acceptedEncodings.get(name1);
-                    Float q2 = acceptedEncodings.get(name2);
-                    // We want them sorted highest to lowest and they can't be equal
-                    // or we break the Map interface so tiebreak by sorted name1 ahead
-                    // of name2 which means we fall back to order of occurrence
-                    // in the Accept-Encoding header.
-                    int v = QVALUE_CMP.compare(q2, q1);
-                    return (v == 0) ? (1) : v;
+        Map<String, Float> encodings = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            encodings.put(names.get(i), qvalues.get(i));
+        }
+        return Collections.unmodifiableMap(encodings);
+    }
+
+    // Parses a single "coding [; q=qvalue]" element from value[start, end)
+    private static void parseAcceptedEncoding(String value, int start, int end, List<String> names,
+            List<Float> qvalues) {
+        int split = value.indexOf(';', start);
+        if (split == -1 || split > end) {
+            split = end;
+        }
+        String name = trim(value, start, split).toLowerCase();
+        if (name.isEmpty()) {
+            return;
+        }
+
+        Float qvalue = null;
+        if (split < end) {
+            String param = trim(value, split + 1, end);
+            int equals = param.indexOf('=');
+            if (equals == -1 || param.indexOf(';') != -1) {
+                return;
+            }
+            try {
+                float q = Float.parseFloat(param.substring(equals + 1).trim());
+                if (!(q >= 0 && q <= 1)) {
+                    return;
                 }
-            };
-            TreeMap<String, Float> tm = new TreeMap<>(cmp2);
-            tm.putAll(this.acceptedEncodings);
+                qvalue = Float.valueOf(q);
+            } catch (NumberFormatException e) {
+                return;
+            }
+        }
+
+        // Duplicates keep their first position but take the highest qvalue
+        int index = names.indexOf(name);
+        if (index == -1) {
+            names.add(name);
+            qvalues.add(qvalue);
+        } else if (compareQvalues(qvalue, qvalues.get(index)) > 0) {
+            qvalues.set(index, qvalue);
+        }
+    }
 
-            // Don't give back tm directly because it contains a
-            // reference to acceptEncodings which it will want to use
-            // every time it iterates. That gets out of hand quickly.
-            this.acceptedEncodings = new LinkedHashMap<>();
-            this.acceptedEncodings.putAll(tm);
+    // An unspecified qvalue (null) ranks above an explicit 1.0
+    private static int compareQvalues(Float qvalue1, Float qvalue2) {
+        if (qvalue1 == null) {
+            return qvalue2 == null ? 0 : 1;
         }
+        if (qvalue2 == null) {
+            return -1;
+        }
+        return qvalue1.compareTo(qvalue2);
+    }
 
-        // Lock this map down
-        this.acceptedEncodings = Collections.unmodifiableMap(this.acceptedEncodings);
+    private static String trim(String value, int start, int end) {
+        while (start < end && value.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && value.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return value.substring(start, end);
     }
 }
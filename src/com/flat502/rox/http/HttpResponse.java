@@ -2,6 +2,7 @@ package com.flat502.rox.http;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import com.flat502.rox.encoding.Encoding;
 
@@ -12,6 +13,8 @@ public class HttpResponse extends HttpMessage {
     private int statusCode;
     private String reasonPhrase;
     private String rspHttpVersionString;
+    private boolean contentOmitted;
+    private boolean contentLengthUnknown;
 
     /**
      * Constructs an instance
@@ -78,6 +81,75 @@ public class HttpResponse extends HttpMessage {
         os.write('\n');
     }
 
+    @Override
+    protected String getStartLine() {
+        return this.getVersionString() + ' ' + this.statusCode + ' ' + this.reasonPhrase;
+    }
+
+    /**
+     * Marks this response as one whose content is not sent, as for a response to a <code>HEAD</code> request or a
+     * <code>304</code> response. The headers (including <code>Content-Length</code>) still describe the content, but
+     * only the headers are {@link #marshal(OutputStream) marshalled}.
+     */
+    public void setContentOmitted() {
+        this.contentOmitted = true;
+    }
+
+    /**
+     * @return <code>true</code> if this response's content is not sent.
+     * @see #setContentOmitted()
+     */
+    public boolean isContentOmitted() {
+        return this.contentOmitted;
+    }
+
+    /**
+     * Writes this response to a given {@link java.io.OutputStream}. If the content is
+     * {@link #setContentOmitted() omitted} only the start line and headers are written. Content that has an encoding
+     * is still encoded, so the <code>Content-Length</code> is the one the full response would carry.
+     */
+    @Override
+    public void marshal(OutputStream os) throws IOException {
+        if (!this.contentOmitted) {
+            super.marshal(os);
+            return;
+        }
+        super.getContentBuffer();
+        this.marshalStartLine(os);
+        this.marshalHeaders(os);
+        os.flush();
+    }
+
+    /**
+     * Marks this response as one whose content length isn't known when the headers are sent, so no
+     * <code>Content-Length</code> header is added. The content is delimited by the <code>chunked</code> transfer
+     * coding or by closing the connection.
+     */
+    public void setContentLengthUnknown() {
+        this.contentLengthUnknown = true;
+    }
+
+    /**
+     * Returns <code>null</code> if the content is {@link #setContentOmitted() omitted}, after encoding it if need be
+     * so the <code>Content-Length</code> matches.
+     */
+    @Override
+    protected ByteBuffer getContentBuffer() throws IOException {
+        ByteBuffer content = super.getContentBuffer();
+        return this.contentOmitted ? null : content;
+    }
+
+    /**
+     * Responses that never carry content (<code>1xx</code>, <code>204</code> and <code>304</code>) and responses
+     * whose {@link #setContentLengthUnknown() length is unknown} are sent without a <code>Content-Length</code>
+     * unless one has been set explicitly.
+     */
+    @Override
+    protected boolean requiresContentLength() {
+        return !this.contentLengthUnknown && this.statusCode >= 200 && this.statusCode != HttpConstants.StatusCodes._204_NO_CONTENT
+                && this.statusCode != HttpConstants.StatusCodes._304_NOT_MODIFIED;
+    }
+
     public boolean mustCloseConnection() {
         if (!this.getVersionString().equals("HTTP/1.1")) {
             // Always close for earlier clients
@@ -0,0 +1,122 @@
+package com.flat502.rox.http;
+
+/**
+ * A table of well-known HTTP header names.
+ * <p>
+ * Header names read off the wire are looked up here directly from the bytes they were received in. A match yields
+ * the shared, normalized {@link String} constant for the name, so the common headers never cost an allocation.
+ * <p>
+ * Lookups go through a perfect hash: the hash multiplier is chosen when this class is loaded so that no two known
+ * names share a slot, and a lookup costs a single hash and a single comparison.
+ */
+final class KnownHeaders {
+    private static final String[] NAMES = new String[] { HttpConstants.Headers.ACCEPT,
+            HttpConstants.Headers.ACCEPT_CHARSET, HttpConstants.Headers.ACCEPT_ENCODING,
+            HttpConstants.Headers.ACCEPT_LANGUAGE, HttpConstants.Headers.AUTHORIZATION,
+            HttpConstants.Headers.CACHE_CONTROL, HttpConstants.Headers.CONNECTION,
+            HttpConstants.Headers.CONTENT_ENCODING, HttpConstants.Headers.CONTENT_LENGTH,
+            HttpConstants.Headers.CONTENT_TYPE, HttpConstants.Headers.COOKIE, HttpConstants.Headers.DATE,
+            HttpConstants.Headers.EXPECT, HttpConstants.Headers.HOST, HttpConstants.Headers.IF_MATCH,
+            HttpConstants.Headers.IF_MODIFIED_SINCE, HttpConstants.Headers.IF_NONE_MATCH,
+            HttpConstants.Headers.IF_UNMODIFIED_SINCE, HttpConstants.Headers.KEEP_ALIVE,
+            HttpConstants.Headers.PRAGMA, HttpConstants.Headers.RANGE, HttpConstants.Headers.REFERER,
+            HttpConstants.Headers.TRANSFER_ENCODING, HttpConstants.Headers.UPGRADE,
+            HttpConstants.Headers.USER_AGENT, HttpConstants.Headers.VIA, HttpConstants.Headers.X_FORWARDED_FOR };
+
+    // The table holds 2^BITS slots. A name's slot is the top BITS bits of its
+    // hash times MULTIPLIER, which is chosen so that no two names collide.
+    private static final int BITS;
+    private static final int MULTIPLIER;
+    private static final String[] TABLE;
+
+    static {
+        int bits = 32 - Integer.numberOfLeadingZeros(NAMES.length) + 1;
+        int multiplier = 0x9E3779B9;
+        String[] table;
+        for (int attempt = 1;; attempt++) {
+            table = place(bits, multiplier);
+            if (table != null) {
+                break;
+            }
+            multiplier += 2;
+            if (attempt % 10000 == 0) {
+                // Give ourselves more room rather than searching forever
+                bits++;
+            }
+        }
+        BITS = bits;
+        MULTIPLIER = multiplier;
+        TABLE = table;
+    }
+
+    private KnownHeaders() {
+    }
+
+    /**
+     * @return The normalized constant for the header name held in <code>buf</code> (ignoring case), or
+     *         <code>null</code> if it's not a well-known name.
+     */
+    static String lookup(byte[] buf, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = hash * 31 + toLowerCase(buf[i]);
+        }
+        String name = TABLE[slot(hash, MULTIPLIER, BITS)];
+        if (name == null || name.length() != length) {
+            return null;
+        }
+        for (int i = 0; i < length; i++) {
+            if (toLowerCase(buf[offset + i]) != toLowerCase(name.charAt(i))) {
+                return null;
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @return The normalized constant for <code>name</code> (ignoring case), or <code>null</code> if it's not a
+     *         well-known name.
+     */
+    static String lookup(String name) {
+        String known = TABLE[slot(hash(name), MULTIPLIER, BITS)];
+        if (known == null || !known.equalsIgnoreCase(name)) {
+            return null;
+        }
+        return known;
+    }
+
+    static String[] getNames() {
+        return NAMES.clone();
+    }
+
+    /**
+     * @return A table with every known name in its slot, or <code>null</code> if two names collide.
+     */
+    private static String[] place(int bits, int multiplier) {
+        String[] table = new String[1 << bits];
+        for (String name : NAMES) {
+            int slot = slot(hash(name), multiplier, bits);
+            if (table[slot] != null) {
+                return null;
+            }
+            table[slot] = name;
+        }
+        return table;
+    }
+
+    private static int hash(String name) {
+        int hash = 0;
+        for (int i = 0; i < name.length(); i++) {
+            hash = hash * 31 + toLowerCase(name.charAt(i));
+        }
+        return hash;
+    }
+
+    private static int slot(int hash, int multiplier, int bits) {
+        return (hash * multiplier) >>> (32 - bits);
+    }
+
+    private static int toLowerCase(int ch) {
+        return (ch >= 'A' && ch <= 'Z') ? ch + ('a' - 'A') : ch;
+    }
+}
@@ -0,0 +1,362 @@
+package com.flat502.rox.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The content of an HTTP message, as it arrives.
+ * <p>
+ * Content is held in memory until it grows past a threshold, after which all of it is moved to a temporary file
+ * (which is deleted when this instance is {@link #release() released}). Large uploads therefore cost disk space
+ * rather than heap.
+ * <p>
+ * Moving content to the temporary file and writing to it both block the selecting thread, and with it every other
+ * connection it serves. This is the price of not copying content between threads, and is kept down by choosing a
+ * threshold (see {@link HttpMessageBuffer#setSpillThreshold(int, File)}) that only the occasional message exceeds.
+ * <p>
+ * Content is written by the selecting thread as it is read off the network and may be read concurrently through
+ * the channels returned by {@link #newChannel()}. Reads block until data is available, so a handler can consume the
+ * content of a streamed request while the rest of it is still arriving.
+ */
+public class MessageBody {
+    private static final int INITIAL_SIZE = 4096;
+
+    // The largest content we'll hand out as a single array.
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    private final long expectedLength;
+    private final int spillThreshold;
+    private final File spillDirectory;
+
+    // Exactly one of these holds the content at any time. Reallocating the
+    // array or switching to the file is done while holding our monitor.
+    private byte[] memory;
+    private FileChannel file;
+
+    // Written only by the selecting thread, read under our monitor.
+    private long length;
+    private boolean complete;
+    private IOException failure;
+    private volatile boolean released;
+
+    /**
+     * @param expectedLength
+     *            The length of the content, or <code>-1</code> if it isn't known in advance.
+     * @param spillThreshold
+     *            The amount of content that may be held in memory.
+     * @param spillDirectory
+     *            The directory to create temporary files in, or <code>null</code> to use the default temporary
+     *            directory.
+     */
+    MessageBody(long expectedLength, int spillThreshold, File spillDirectory) {
+        this.expectedLength = expectedLength;
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+        if (expectedLength < 0) {
+            this.memory = new byte[Math.min(INITIAL_SIZE, spillThreshold)];
+        } else if (expectedLength <= spillThreshold) {
+            this.memory = new byte[(int) expectedLength];
+        } else {
+            this.memory = new byte[0];
+        }
+    }
+
+    /**
+     * @return The number of bytes received so far.
+     */
+    public synchronized long length() {
+        return this.length;
+    }
+
+    /**
+     * @return <code>true</code> once all of the content has been received.
+     */
+    public synchronized boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * @return <code>true</code> if the content has been moved to a temporary file.
+     */
+    public synchronized boolean isSpilled() {
+        return this.file != null;
+    }
+
+    /**
+     * Returns a new channel that reads this content from the beginning. Reads block until more content has arrived
+     * and return <code>-1</code> once all of it has been read.
+     *
+     * @return A channel for reading this content.
+     */
+    public ReadableByteChannel newChannel() {
+        return new BodyChannel();
+    }
+
+    /**
+     * Returns a new stream that reads this content from the beginning, blocking as described under
+     * {@link #newChannel()}.
+     *
+     * @return A stream for reading this content.
+     */
+    public InputStream newInputStream() {
+        synchronized (this) {
+            if (this.complete && this.file == null) {
+                return new ByteArrayInputStream(this.memory, 0, (int) this.length);
+            }
+        }
+        return Channels.newInputStream(this.newChannel());
+    }
+
+    /**
+     * Returns the complete content as an array. Content that has been moved to a temporary file is read back into
+     * memory, so callers that expect large content should prefer {@link #newChannel()}.
+     *
+     * @return The content of the message.
+     * @throws IllegalStateException
+     *             if the content is incomplete.
+     * @throws IOException
+     *             if the content has been moved to a temporary file and it can't be read, or if it is too large to
+     *             fit in an array.
+     */
+    public synchronized byte[] toByteArray() throws IOException {
+        if (!this.complete) {
+            throw new IllegalStateException("The content is incomplete");
+        }
+        if (this.file == null) {
+            if (this.memory.length != this.length) {
+                this.memory = Arrays.copyOf(this.memory, (int) this.length);
+            }
+            return this.memory;
+        }
+        if (this.length > MAX_ARRAY_SIZE) {
+            throw new IOException("Content too large to buffer (" + this.length + " bytes)");
+        }
+        ByteBuffer dst = ByteBuffer.allocate((int) this.length);
+        while (dst.hasRemaining()) {
+            if (this.file.read(dst, dst.position()) == -1) {
+                throw new IOException("Temporary file truncated");
+            }
+        }
+        return dst.array();
+    }
+
+    /**
+     * Releases the temporary file holding this content, if there is one. Content arriving after this is discarded,
+     * and channels reading from a temporary file will fail.
+     */
+    public void release() {
+        FileChannel file;
+        synchronized (this) {
+            if (this.released) {
+                return;
+            }
+            this.released = true;
+            file = this.file;
+            this.notifyAll();
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Nothing useful we can do about this
+            }
+        }
+    }
+
+    /**
+     * Appends <code>count</code> bytes from <code>src</code>. Only called from the selecting thread.
+     */
+    void write(ByteBuffer src, int count) throws IOException {
+        if (this.released) {
+            this.discard(src, count);
+            return;
+        }
+
+        if (this.file == null
+                && (this.expectedLength > this.spillThreshold || this.length + count > this.spillThreshold)) {
+            this.spill();
+            if (this.released) {
+                this.discard(src, count);
+                return;
+            }
+        }
+
+        if (this.file == null) {
+            synchronized (this) {
+                int required = (int) this.length + count;
+                if (required > this.memory.length) {
+                    int size = (int) Math.min(Math.max(this.memory.length * 2L, required), this.spillThreshold);
+                    this.memory = Arrays.copyOf(this.memory, size);
+                }
+                src.get(this.memory, (int) this.length, count);
+                this.length += count;
+                this.notifyAll();
+            }
+            return;
+        }
+
+        ByteBuffer data = src.duplicate();
+        data.limit(data.position() + count);
+        long position = this.length;
+        try {
+            while (data.hasRemaining()) {
+                position += this.file.write(data, position);
+            }
+        } catch (ClosedChannelException e) {
+            if (!this.released) {
+                throw e;
+            }
+            // Released while we were writing
+            this.discard(src, count);
+            return;
+        }
+        src.position(data.position());
+        synchronized (this) {
+            this.length = position;
+            this.notifyAll();
+        }
+    }
+
+    private void discard(ByteBuffer src, int count) {
+        src.position(src.position() + count);
+        synchronized (this) {
+            this.length += count;
+        }
+    }
+
+    synchronized void complete() {
+        this.complete = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Fails any current or future reads of content that hasn't arrived yet. Used when the message is abandoned
+     * before all of its content has been received.
+     */
+    synchronized void fail(IOException cause) {
+        if (!this.complete && this.failure == null) {
+            this.failure = cause;
+            this.notifyAll();
+        }
+    }
+
+    private void spill() throws IOException {
+        Path path;
+        if (this.spillDirectory == null) {
+            path = Files.createTempFile("rox-", ".body");
+        } else {
+            path = Files.createTempFile(this.spillDirectory.toPath(), "rox-", ".body");
+        }
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+
+        ByteBuffer data = ByteBuffer.wrap(this.memory, 0, (int) this.length);
+        while (data.hasRemaining()) {
+            file.write(data, data.position());
+        }
+        synchronized (this) {
+            if (!this.released) {
+                this.file = file;
+                this.memory = null;
+                return;
+            }
+        }
+        // Released while we were spilling
+        file.close();
+    }
+
+    /**
+     * Waits until content beyond <code>position</code> is available, and copies it to <code>dst</code> if it's in
+     * memory.
+     *
+     * @return The number of bytes copied, <code>0</code> if content is available in the temporary file (and
+     *         <code>dst</code> hasn't been touched), or <code>-1</code> if all of the content has been read.
+     */
+    private synchronized int awaitContent(long position, ByteBuffer dst) throws IOException {
+        while (this.length <= position && !this.complete && this.failure == null && !this.released) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for content");
+            }
+        }
+        if (this.length > position) {
+            if (this.file != null) {
+                return 0;
+            }
+            int count = (int) Math.min(dst.remaining(), this.length - position);
+            dst.put(this.memory, (int) position, count);
+            return count;
+        }
+        if (this.failure != null) {
+            throw (IOException) new IOException("Content incomplete: " + this.failure.getMessage())
+                    .initCause(this.failure);
+        }
+        if (this.complete) {
+            return -1;
+        }
+        throw new ClosedChannelException();
+    }
+
+    private synchronized long available(long position) {
+        return this.length - position;
+    }
+
+    private class BodyChannel implements ReadableByteChannel {
+        private long position;
+        private boolean open = true;
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!this.open) {
+                throw new ClosedChannelException();
+            }
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+
+            int count = MessageBody.this.awaitContent(this.position, dst);
+            if (count == 0) {
+                // The content we're waiting for is in the temporary file. It
+                // won't go anywhere until we're released, so read it without
+                // holding our monitor.
+                long available = MessageBody.this.available(this.position);
+                ByteBuffer target = dst;
+                if (dst.remaining() > available) {
+                    target = dst.duplicate();
+                    target.limit(target.position() + (int) available);
+                }
+                count = MessageBody.this.file.read(target, this.position);
+                if (target != dst) {
+                    dst.position(target.position());
+                }
+            }
+            if (count > 0) {
+                this.position += count;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+        }
+    }
+}
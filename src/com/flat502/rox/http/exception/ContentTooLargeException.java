@@ -0,0 +1,13 @@
+package com.flat502.rox.http.exception;
+
+/**
+ * Raised when the content of a message (as announced by its <code>Content-Length</code> header, or as received in
+ * chunks) exceeds a configured limit.
+ */
+public class ContentTooLargeException extends HttpBufferException {
+    private static final long serialVersionUID = 1L;
+
+    public ContentTooLargeException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,23 @@
+package com.flat502.rox.http.exception;
+
+/**
+ * Raised when the start line or headers of a message exceed a configured limit, either in total size or in the
+ * number of header fields.
+ */
+public class HeaderTooLargeException extends HttpBufferException {
+    private static final long serialVersionUID = 1L;
+
+    private boolean startLine;
+
+    public HeaderTooLargeException(String msg, boolean startLine) {
+        super(msg);
+        this.startLine = startLine;
+    }
+
+    /**
+     * @return <code>true</code> if it was the start line (rather than the header fields) that was too long.
+     */
+    public boolean isStartLine() {
+        return this.startLine;
+    }
+}
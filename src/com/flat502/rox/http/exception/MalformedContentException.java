@@ -0,0 +1,12 @@
+package com.flat502.rox.http.exception;
+
+/**
+ * Raised when the content of an HTTP message can't be decoded according to its <code>Transfer-Encoding</code>.
+ */
+public class MalformedContentException extends HttpBufferException {
+    private static final long serialVersionUID = 1L;
+
+    public MalformedContentException(String msg) {
+        super(msg);
+    }
+}
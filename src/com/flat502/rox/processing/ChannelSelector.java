@@ -1,38 +1,100 @@
 package com.flat502.rox.processing;
 
 import java.io.IOException;
+import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelectableChannel;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.flat502.rox.log.Log;
 import com.flat502.rox.log.LogFactory;
 import com.flat502.rox.utils.Utils;
 
+/**
+ * A single selecting thread (a "reactor").
+ * <p>
+ * A {@link ResourcePool} owns one or more instances of this class. Each instance owns a {@link Selector} and the set
+ * of channels registered with it. All changes to that {@link Selector} (registrations, interest operation updates
+ * and cancellations) are queued on the owning instance and applied by the thread running it.
+ */
 class ChannelSelector implements Runnable {
     private static Log log = LogFactory.getLog(ChannelSelector.class);
 
+    private static final int OP_READ = SelectionKey.OP_READ;
+
+    // How often (in milliseconds) to check if suspended reads can be resumed.
+    private static final long RESUME_CHECK_INTERVAL = 10;
+
     private boolean shouldShutdown;
     private Object mutex = new Object();
     private Set<HttpProcessor> processors = new HashSet<>();
     private Map<SelectableChannel, HttpProcessor> channelOwners = new HashMap<>();
 
+    // Changes to apply to socketSelector from the selecting thread, in
+    // the order they were queued. Any thread may add to this queue, only
+    // the selecting thread removes from it.
+    private Queue<SelectorChange> pendingChanges = new ConcurrentLinkedQueue<>();
+
+    // Set when a wakeup has been issued since the selecting thread last
+    // drained pendingChanges. Further changes queued while this is set
+    // don't need another (expensive) wakeup.
+    private AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // A local buffer for all non-blocking I/O read operations on
+    // channels registered with this instance.
+    private ByteBuffer readBuf = ByteBuffer.allocate(8192);
+
+    // Direct buffers for reads on channels registered with this instance.
+    // Created by the selecting thread on first use so the configured
+    // sizes are picked up.
+    private ReadBufferPool readBufferPool;
+
+    // Keys that used up their read budget on the current pass, and those
+    // that did so on the previous pass. The latter are serviced after all
+    // other ready keys. Only touched by the selecting thread.
+    private Set<SelectionKey> overBudgetKeys = new HashSet<>();
+    private Set<SelectionKey> deferredKeys = new HashSet<>();
+    private List<SelectionKey> laterKeys = new ArrayList<>();
+
+    // Connections whose reads were suspended because the worker queue
+    // backed up. Only touched by the selecting thread.
+    private List<Connection> suspendedConnections = new ArrayList<>();
+
+    // The number of times a read budget was hit. Only updated by the
+    // selecting thread.
+    private volatile long readByteBudgetHits;
+    private volatile long readMessageBudgetHits;
+
+    // A local array used to gather the buffers queued for a channel
+    // registered with this instance into a single write.
+    private ByteBuffer[] writeVector = new ByteBuffer[64];
+
     // A local buffer used when we read() to check for remote closure
     private ByteBuffer closureTestBuf = ByteBuffer.allocate(16);
 
     private Selector socketSelector;
     private ResourcePool resourcePool;
 
+    private volatile Thread selectingThread;
+
     public ChannelSelector(ResourcePool pool) throws IOException {
         this.socketSelector = SelectorProvider.provider().openSelector();
         this.resourcePool = pool;
@@ -42,6 +104,118 @@ class ChannelSelector implements Runnable {
         return this.socketSelector;
     }
 
+    /**
+     * Returns the buffer used for reads on channels registered with this instance.
+     * <p>
+     * This buffer may only be used by the thread running this instance.
+     */
+    ByteBuffer getReadBuffer() {
+        return this.readBuf;
+    }
+
+    /**
+     * Returns the pool of direct buffers used for reads on channels registered with this instance.
+     * <p>
+     * This pool may only be used by the thread running this instance.
+     */
+    ReadBufferPool getReadBufferPool() {
+        if (this.readBufferPool == null) {
+            this.readBufferPool = new ReadBufferPool(this.resourcePool.getReadBufferSize(),
+                    this.resourcePool.getMaxReadBufferSize());
+        }
+        return this.readBufferPool;
+    }
+
+    /**
+     * Records that a connection stopped reading because it used up its read budget. The key is serviced after all
+     * other ready keys on the next pass.
+     *
+     * @param messages
+     *            <code>true</code> if the message budget was hit, <code>false</code> if the byte budget was.
+     */
+    void readBudgetExhausted(SelectionKey key, boolean messages) {
+        this.overBudgetKeys.add(key);
+        if (messages) {
+            this.readMessageBudgetHits++;
+        } else {
+            this.readByteBudgetHits++;
+        }
+    }
+
+    /**
+     * Stops reading from a connection until the worker queue drains to its low watermark.
+     */
+    void suspendReads(SelectionKey key, Connection connection) {
+        if (connection.isReadSuspended()) {
+            return;
+        }
+        if (log.logTrace()) {
+            log.trace("Suspending reads on " + Utils.toString(connection.getSocket()));
+        }
+        connection.setReadSuspended(true);
+        key.interestOps(key.interestOps() & ~OP_READ);
+        this.suspendedConnections.add(connection);
+    }
+
+    /**
+     * Resumes reading from every suspended connection once the worker queue has drained to its low watermark.
+     */
+    void resumeReadsIfDrained() {
+        if (this.suspendedConnections.isEmpty()
+                || this.resourcePool.getQueue().size() > this.resourcePool.getQueueLowWatermark()) {
+            return;
+        }
+
+        if (log.logTrace()) {
+            log.trace("Resuming reads on " + this.suspendedConnections.size() + " connection(s)");
+        }
+        for (int i = 0; i < this.suspendedConnections.size(); i++) {
+            Connection connection = this.suspendedConnections.get(i);
+            connection.setReadSuspended(false);
+            SelectionKey key = connection.getSelectionKey();
+            try {
+                // If a write is in progress reads are re-armed once it completes
+                if (key != null && key.isValid() && key.interestOps() == 0) {
+                    key.interestOps(OP_READ);
+                }
+            } catch (CancelledKeyException e) {
+                // Closed in the meantime
+            }
+        }
+        this.suspendedConnections.clear();
+    }
+
+    long getReadByteBudgetHits() {
+        return this.readByteBudgetHits;
+    }
+
+    long getReadMessageBudgetHits() {
+        return this.readMessageBudgetHits;
+    }
+
+    /**
+     * Returns the array used to gather buffers for writes on channels registered with this instance.
+     * <p>
+     * This array may only be used by the thread running this instance and should be cleared after use.
+     */
+    ByteBuffer[] getWriteVector() {
+        return this.writeVector;
+    }
+
+    /**
+     * @return <code>true</code> if the calling thread is the thread running this instance.
+     */
+    boolean isSelectingThread() {
+        return Thread.currentThread() == this.selectingThread;
+    }
+
+    /**
+     * @return An approximation of the number of channels registered with this instance.
+     */
+    int getChannelCount() {
+        return this.socketSelector.keys().size();
+    }
+
     protected void register(HttpProcessor processor) {
         if (log.logTrace()) {
             log.trace("ChannelSelector registers " + processor);
@@ -71,18 +245,11 @@ class ChannelSelector implements Runnable {
                     entry.getKey().close();
                 }
             }
-
-            // Ensure the associated processor has a chance to process
-            // pending changes (e.g. ServerChannel cancellation).
-            try {
-                processor.processPendingSelectorChanges();
-            } catch (IOException e) {
-                processor.handleProcessingException(null, e);
-            }
         }
 
-        // Kick the selector thread so it notices this change
-        this.socketSelector.wakeup();
+        // Kick the selector thread so it notices this change (and processes
+        // any pending changes, e.g. ServerChannel cancellation).
+        this.wakeup();
     }
 
     protected void addChannel(HttpProcessor processor, SelectableChannel channel) {
@@ -97,13 +264,70 @@ class ChannelSelector implements Runnable {
         }
     }
 
+    /**
+     * @return The processor a channel was added for, or <code>null</code> if it has none (or has been removed).
+     */
+    HttpProcessor getOwner(SelectableChannel channel) {
+        synchronized (this.mutex) {
+            return this.channelOwners.get(channel);
+        }
+    }
+
+    /**
+     * Queue's a channel for registration with the underlying {@link Selector}.
+     * <p>
+     * {@link ServerSocketChannel}s are registered for accepts. Connected {@link SocketChannel}s are registered for
+     * reads, unconnected ones for connection completion.
+     */
+    void queueRegistration(SelectableChannel channel) {
+        this.queueChange(new SelectorChange(SelectorChange.REGISTER, channel, 0));
+    }
+
+    /**
+     * Queue's a newly connected channel for registration for reads. The {@link Connection} is attached to the
+     * resulting {@link SelectionKey}.
+     */
+    void queueRegistration(Connection connection) {
+        SelectorChange change = new SelectorChange(SelectorChange.REGISTER, connection.getChannel(), 0);
+        change.connection = connection;
+        this.queueChange(change);
+    }
+
+    void queueInterestOps(Socket socket, int interestOps) {
+        this.queueChange(new SelectorChange(SelectorChange.INTEREST_OPS, socket.getChannel(), interestOps));
+    }
+
+    void queueCancellation(AbstractSelectableChannel channel) {
+        this.queueChange(new SelectorChange(SelectorChange.CANCEL, channel, 0));
+    }
+
+    private void queueChange(SelectorChange change) {
+        this.pendingChanges.add(change);
+
+        // The selecting thread drains the queue before every select() so it
+        // never needs waking up. Anyone else only needs to wake it if nobody
+        // has done so since it last drained the queue.
+        if (!this.isSelectingThread() && this.wakeupPending.compareAndSet(false, true)) {
+            this.wakeup();
+        }
+    }
+
+    /**
+     * Makes the current (or next) <code>select()</code> on the underlying {@link Selector} return immediately.
+     */
+    void wakeup() {
+        this.socketSelector.wakeup();
+    }
+
     public void shutdown() {
         this.shouldShutdown = true;
-        this.socketSelector.wakeup();
+        this.wakeup();
     }
 
     @Override
     public void run() {
+        this.selectingThread = Thread.currentThread();
+
         while (true) {
             if (this.shouldShutdown) {
                 break;
@@ -111,11 +335,17 @@ class ChannelSelector implements Runnable {
 
             try {
                 this.processPendingSelectorChanges();
+                this.resumeReadsIfDrained();
 
                 if (log.logTrace()) {
                     log.trace(resourcePool.getClass().getSimpleName() + ": select() call");
                 }
-                this.socketSelector.select();
+                if (this.suspendedConnections.isEmpty()) {
+                    this.socketSelector.select();
+                } else {
+                    // Nothing will wake us when the queue drains, so check periodically
+                    this.socketSelector.select(RESUME_CHECK_INTERVAL);
+                }
                 if (log.logTrace()) {
                     log.trace("select() returns");
                 }
@@ -133,35 +363,9 @@ class ChannelSelector implements Runnable {
                     log.trace("select() returned " + readyKeys.size() + " selected key(s)");
                 }
 
-                // Someone is ready for I/O, get the ready keys
-                Iterator<SelectionKey> i = readyKeys.iterator();
-
-                // Process the next event
-                while (i.hasNext()) {
-                    SelectionKey key = i.next();
-                    i.remove();
-
-                    if (log.logTrace()) {
-                        log.trace("select() returned key: " + Utils.toString(key));
-                    }
-
-                    HttpProcessor processor = null;
-                    if (key.isValid()) {
-                        // Decide who should handle it
-                        synchronized (this) {
-                            processor = this.channelOwners.get(key.channel());
-                        }
-
-                        if (processor == null) {
-                            // There's no owner associated with this channel. This probably
-                            // means a pooled connection has been closed remotely.
-                            this.checkForClosure(key);
-                        } else {
-                            processor.handleSelectionKeyOperation(key);
-                        }
-                    }
-                }
+                this.processReadyKeys(readyKeys);
             } catch (Exception e) {
+                this.laterKeys.clear();
                 this.handleProcessingException(e);
             }
         }
@@ -175,6 +379,66 @@ class ChannelSelector implements Runnable {
         }
     }
 
+    /**
+     * Dispatches each of the keys selected on this pass, removing them from <code>readyKeys</code>. Keys that ran out
+     * of read budget on the previous pass are dispatched after all the others.
+     */
+    void processReadyKeys(Set<SelectionKey> readyKeys) throws IOException {
+        // Keys that ran out of read budget last time go to the back
+        // of the line.
+        Set<SelectionKey> deferred = this.overBudgetKeys;
+        this.overBudgetKeys = this.deferredKeys;
+        this.deferredKeys = deferred;
+        this.overBudgetKeys.clear();
+
+        // Someone is ready for I/O, get the ready keys
+        Iterator<SelectionKey> i = readyKeys.iterator();
+
+        // Process the next event
+        while (i.hasNext()) {
+            SelectionKey key = i.next();
+            i.remove();
+
+            if (!deferred.isEmpty() && deferred.contains(key)) {
+                this.laterKeys.add(key);
+                continue;
+            }
+            this.dispatch(key);
+        }
+
+        for (int k = 0; k < this.laterKeys.size(); k++) {
+            this.dispatch(this.laterKeys.get(k));
+        }
+        this.laterKeys.clear();
+        deferred.clear();
+    }
+
+    private void dispatch(SelectionKey key) throws IOException {
+        if (log.logTrace()) {
+            log.trace("select() returned key: " + Utils.toString(key));
+        }
+
+        HttpProcessor processor = null;
+        if (key.isValid()) {
+            // Decide who should handle it. Connections know their owner,
+            // anything else (e.g. listening channels) is looked up.
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                processor = ((Connection) attachment).getProcessor();
+            } else {
+                processor = this.getOwner(key.channel());
+            }
+
+            if (processor == null) {
+                // There's no owner associated with this channel. This probably
+                // means a pooled connection has been closed remotely.
+                this.checkForClosure(key);
+            } else {
+                processor.handleSelectionKeyOperation(key);
+            }
+        }
+    }
+
     private void checkForClosure(SelectionKey key) {
         SocketChannel socketChannel = (SocketChannel) key.channel();
         if (log.logTrace()) {
@@ -238,20 +502,131 @@ class ChannelSelector implements Runnable {
         }
     }
 
-    private void processPendingSelectorChanges() {
-        synchronized (this.mutex) {
-            Iterator<HttpProcessor> i = processors.iterator();
-            while (i.hasNext()) {
-                HttpProcessor processor = i.next();
-                try {
-                    processor.processPendingSelectorChanges();
-                } catch (IOException e) {
-                    processor.handleProcessingException(null, e);
+    /**
+     * @return <code>true</code> if a wakeup has been issued since queued changes were last applied.
+     */
+    boolean isWakeupPending() {
+        return this.wakeupPending.get();
+    }
+
+    /**
+     * Applies every queued change, in the order they were queued. Only called by the thread running this instance.
+     */
+    void processPendingSelectorChanges() {
+        // Clear the flag before draining. A change queued after this point
+        // either gets drained below or issues a wakeup that makes the next
+        // select() return immediately.
+        this.wakeupPending.set(false);
+
+        SelectorChange change;
+        while ((change = this.pendingChanges.poll()) != null) {
+            try {
+                switch (change.type) {
+                case SelectorChange.REGISTER:
+                    this.applyRegistration(change.channel, change.connection);
+                    break;
+                case SelectorChange.INTEREST_OPS:
+                    this.applyInterestOps((SocketChannel) change.channel, change.ops);
+                    break;
+                case SelectorChange.CANCEL:
+                    this.applyCancellation(change.channel);
+                    break;
                 }
+            } catch (IOException e) {
+                this.handleProcessingException(change.channel, e);
             }
         }
     }
 
+    private void applyRegistration(SelectableChannel selectable, Connection connection) throws IOException {
+        if (selectable instanceof ServerSocketChannel) {
+            if (log.logTrace()) {
+                log.trace("Interest ops change to OP_ACCEPT for "
+                        + Utils.toString(((ServerSocketChannel) selectable).socket()));
+            }
+            selectable.register(this.socketSelector, SelectionKey.OP_ACCEPT);
+            return;
+        }
+
+        SocketChannel channel = (SocketChannel) selectable;
+
+        // Re-registering replaces the key's attachment so hang on to any
+        // existing Connection.
+        if (connection == null) {
+            SelectionKey existing = channel.keyFor(this.socketSelector);
+            if (existing != null && existing.attachment() instanceof Connection) {
+                connection = (Connection) existing.attachment();
+            }
+        }
+
+        SelectionKey key;
+        if (channel.isConnected()) {
+            // A registration is re-queued after an SSL I/O
+            // operation to avoid a CancelledKeyException.
+            // In that case we are interested in reads, not
+            // connections.
+            if (log.logTrace()) {
+                log.trace("Interest ops change to OP_READ for " + Utils.toString(channel.socket()));
+            }
+            key = channel.register(this.socketSelector, SelectionKey.OP_READ, connection);
+        } else {
+            if (log.logTrace()) {
+                log.trace("Interest ops change to OP_CONNECT for " + Utils.toString(channel.socket()));
+            }
+            key = channel.register(this.socketSelector, SelectionKey.OP_CONNECT, connection);
+        }
+        if (connection != null) {
+            connection.setSelectionKey(key);
+        }
+    }
+
+    private void applyInterestOps(SocketChannel channel, int ops) {
+        // Only update the interest ops set if we're not
+        // waiting to complete the connection (otherwise we
+        // disable the OP_CONNECT interest op and never see
+        // the connection complete).
+        if (!channel.isConnected()) {
+            return;
+        }
+        SelectionKey sk = channel.keyFor(this.socketSelector);
+        if (sk != null && sk.isValid()) {
+            if (log.logTrace()) {
+                log.trace("Interest ops change for " + Utils.toString(channel.socket()) + ": "
+                        + (ops == OP_READ ? "OP_READ" : "OP_WRITE"));
+            }
+            sk.interestOps(ops);
+        }
+    }
+
+    private void applyCancellation(SelectableChannel channel) throws IOException {
+        boolean client = channel instanceof SocketChannel;
+        boolean connected = (client && ((SocketChannel) channel).isConnected());
+        if (!client || connected) {
+            channel.close();
+            SelectionKey key = channel.keyFor(this.socketSelector);
+            if (key != null) {
+                key.cancel();
+            }
+        }
+        if (log.logTrace()) {
+            if (client) {
+                log.trace("Cancellation on socket " + Utils.toString(((SocketChannel) channel).socket()));
+            } else {
+                log.trace("Cancellation on serverSocket " + Utils.toString(((ServerSocketChannel) channel).socket()));
+            }
+        }
+    }
+
+    private void handleProcessingException(SelectableChannel channel, IOException e) {
+        HttpProcessor processor = this.getOwner(channel);
+        if (processor == null) {
+            log.debug("Error applying selector change to unowned channel", e);
+            return;
+        }
+        Socket socket = (channel instanceof SocketChannel) ? ((SocketChannel) channel).socket() : null;
+        processor.handleProcessingException(socket, e);
+    }
+
     private void handleProcessingException(Exception e) {
         synchronized (this.mutex) {
             Iterator<HttpProcessor> i = processors.iterator();
@@ -261,4 +636,22 @@ class ChannelSelector implements Runnable {
             }
         }
     }
+
+    // A single queued change to the underlying Selector.
+    private static class SelectorChange {
+        static final int REGISTER = 0;
+        static final int INTEREST_OPS = 1;
+        static final int CANCEL = 2;
+
+        final int type;
+        final SelectableChannel channel;
+        final int ops;
+        Connection connection;
+
+        SelectorChange(int type, SelectableChannel channel, int ops) {
+            this.type = type;
+            this.channel = channel;
+            this.ops = ops;
+        }
+    }
 }
@@ -0,0 +1,276 @@
+package com.flat502.rox.processing;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.flat502.rox.http.HttpMessageBuffer;
+
+/**
+ * The state associated with a single connected {@link SocketChannel}.
+ * <p>
+ * An instance is created by {@link HttpProcessor#newConnection(SocketChannel)} when a channel is registered and is
+ * attached to the channel's {@link SelectionKey}, so the selecting thread can reach it without any lookups. Worker
+ * threads reach it through the objects they are handed (or, failing that, through
+ * {@link HttpProcessor#getConnection(Socket)}).
+ * <p>
+ * Sub-classes may hold additional per-connection state. Everything is released in one place when the connection is
+ * deregistered.
+ */
+public class Connection {
+    private HttpProcessor processor;
+    private SocketChannel channel;
+    private Socket socket;
+
+    // The selecting thread that owns this connection and our key on its Selector.
+    private ChannelSelector selector;
+    private volatile SelectionKey key;
+
+    // An incomplete message being read, and the size class of the pooled
+    // buffer to use for the next read. Only touched by the selecting thread.
+    private HttpMessageBuffer readBuffer;
+    private int readSizeClass;
+
+    // Set once the headers of the message being read have been handled (see
+    // HttpProcessor.headersReceived). Only touched by the selecting thread.
+    private boolean headersHandled;
+
+    // Set while reads are suspended because the worker queue is backed up.
+    // Only touched by the selecting thread.
+    private boolean readSuspended;
+
+    // The number of messages read on this connection that have been queued
+    // for processing but not yet answered.
+    private AtomicInteger messagesInFlight = new AtomicInteger();
+
+    // Data queued for writing (ByteBuffers, PooledBuffers and ContentSources),
+    // and whether to close once it's all written. Guarded by this instance.
+    private LinkedList<Object> writeBuffers = new LinkedList<>();
+    private boolean closeAfterWrite;
+
+    // Non-null once an SSL handshake has been started.
+    private volatile SSLSessionMetadata sslSession;
+
+    protected Connection(HttpProcessor processor, SocketChannel channel) {
+        this.processor = processor;
+        this.channel = channel;
+        this.socket = channel.socket();
+    }
+
+    public HttpProcessor getProcessor() {
+        return this.processor;
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    public Socket getSocket() {
+        return this.socket;
+    }
+
+    /**
+     * @return The {@link SelectionKey} for this connection, or <code>null</code> if the channel has not been
+     *         registered with its selecting thread yet.
+     */
+    public SelectionKey getSelectionKey() {
+        return this.key;
+    }
+
+    ChannelSelector getChannelSelector() {
+        return this.selector;
+    }
+
+    void setChannelSelector(ChannelSelector selector) {
+        this.selector = selector;
+    }
+
+    void setSelectionKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    HttpMessageBuffer getReadBuffer() {
+        return this.readBuffer;
+    }
+
+    void setReadBuffer(HttpMessageBuffer readBuffer) {
+        this.readBuffer = readBuffer;
+        this.headersHandled = false;
+    }
+
+    boolean isHeadersHandled() {
+        return this.headersHandled;
+    }
+
+    void setHeadersHandled() {
+        this.headersHandled = true;
+    }
+
+    int getReadSizeClass() {
+        return this.readSizeClass;
+    }
+
+    void setReadSizeClass(int readSizeClass) {
+        this.readSizeClass = readSizeClass;
+    }
+
+    boolean isReadSuspended() {
+        return this.readSuspended;
+    }
+
+    void setReadSuspended(boolean readSuspended) {
+        this.readSuspended = readSuspended;
+    }
+
+    void messagesQueued(int count) {
+        this.messagesInFlight.addAndGet(count);
+    }
+
+    void messageCompleted() {
+        this.messagesInFlight.decrementAndGet();
+    }
+
+    /**
+     * @return <code>true</code> if messages read on this connection are still waiting for a response. Always
+     *         <code>false</code> unless the processor {@link HttpProcessor#tracksMessagesInFlight() tracks} them.
+     */
+    public boolean hasMessagesInFlight() {
+        return this.messagesInFlight.get() > 0;
+    }
+
+    SSLSessionMetadata getSSLSessionMetadata() {
+        return this.sslSession;
+    }
+
+    void setSSLSessionMetadata(SSLSessionMetadata sslSession) {
+        this.sslSession = sslSession;
+    }
+
+    /**
+     * @param pooled
+     *            <code>true</code> if <code>data</code> came from the processor's {@link WriteBufferPool} and should
+     *            be returned to it once it's been written.
+     */
+    synchronized void putWriteBuffer(ByteBuffer data, boolean pooled) {
+        this.writeBuffers.add(pooled ? new PooledBuffer(data) : data);
+    }
+
+    synchronized void putWriteContent(ContentSource content) {
+        content.attach(this);
+        this.writeBuffers.add(content);
+    }
+
+    /**
+     * @return The oldest entry in the write queue, either a {@link ByteBuffer} or a {@link ContentSource}, or
+     *         <code>null</code> if nothing is queued.
+     */
+    synchronized Object getWriteQueueHead() {
+        Object entry = this.writeBuffers.peek();
+        if (entry instanceof PooledBuffer) {
+            return ((PooledBuffer) entry).buffer;
+        }
+        return entry;
+    }
+
+    /**
+     * Copies as many of the queued write buffers as will fit into <code>dst</code>, oldest first. Copying stops at
+     * the first {@link ContentSource}.
+     *
+     * @return The number of buffers copied.
+     */
+    synchronized int getWriteBuffers(ByteBuffer[] dst) {
+        int count = 0;
+        Iterator<Object> iter = this.writeBuffers.iterator();
+        while (count < dst.length && iter.hasNext()) {
+            Object entry = iter.next();
+            if (entry instanceof PooledBuffer) {
+                dst[count++] = ((PooledBuffer) entry).buffer;
+            } else if (entry instanceof ByteBuffer) {
+                dst[count++] = (ByteBuffer) entry;
+            } else {
+                break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Discards entries that have been written in their entirety from the head of the write queue.
+     *
+     * @return <code>true</code> if the write queue is now empty.
+     */
+    synchronized boolean removeWrittenBuffers() {
+        while (!this.writeBuffers.isEmpty()) {
+            Object entry = this.writeBuffers.peek();
+            if (entry instanceof ContentSource) {
+                ContentSource content = (ContentSource) entry;
+                if (!content.isComplete()) {
+                    break;
+                }
+                content.release();
+            } else if (entry instanceof PooledBuffer) {
+                ByteBuffer buf = ((PooledBuffer) entry).buffer;
+                if (buf.hasRemaining()) {
+                    break;
+                }
+                this.processor.getWriteBufferPool().release(buf);
+            } else if (((ByteBuffer) entry).hasRemaining()) {
+                break;
+            }
+            this.writeBuffers.poll();
+        }
+        return this.writeBuffers.isEmpty();
+    }
+
+    synchronized boolean isWriteQueued() {
+        return !this.writeBuffers.isEmpty();
+    }
+
+    synchronized void setCloseAfterWrite() {
+        this.closeAfterWrite = true;
+    }
+
+    synchronized boolean isCloseAfterWrite() {
+        return this.closeAfterWrite;
+    }
+
+    /**
+     * Releases everything held by this instance. Invoked when the connection is deregistered.
+     * <p>
+     * Sub-classes that hold additional state should override this and invoke this implementation.
+     */
+    protected void release() {
+        synchronized (this) {
+            for (Object entry : this.writeBuffers) {
+                if (entry instanceof ContentSource) {
+                    ((ContentSource) entry).release();
+                } else if (entry instanceof PooledBuffer) {
+                    this.processor.getWriteBufferPool().release(((PooledBuffer) entry).buffer);
+                }
+            }
+            this.writeBuffers.clear();
+        }
+        if (this.readBuffer != null) {
+            // Fails reads of streamed content that will now never arrive
+            this.readBuffer.abandon();
+            this.readBuffer = null;
+        }
+        SSLSessionMetadata session = this.sslSession;
+        if (session != null) {
+            session.cancelHandshakeTimer();
+        }
+    }
+
+    // A queued buffer that belongs to the processor's WriteBufferPool
+    private static class PooledBuffer {
+        final ByteBuffer buffer;
+
+        PooledBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.flat502.rox.processing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Content queued for writing on a {@link Connection} that isn't held in a buffer of its own, such as a
+ * {@link FileRegion} or a {@link ContentStream}. The selecting thread pulls data from a source as the socket becomes
+ * writable.
+ * <p>
+ * Sources are only implemented within this package.
+ */
+public abstract class ContentSource {
+    ContentSource() {
+    }
+
+    /**
+     * @return <code>true</code> once every byte from this source has been written.
+     */
+    public abstract boolean isComplete();
+
+    /**
+     * Returns the next data to write. The same buffer is returned until it has been consumed.
+     *
+     * @return A buffer positioned at the next byte to be written, or <code>null</code> if there is nothing to write
+     *         right now (either because the source is complete or because more data hasn't been produced yet).
+     */
+    abstract ByteBuffer nextChunk() throws IOException;
+
+    /**
+     * Invoked when this source is queued on a connection.
+     */
+    void attach(Connection connection) {
+    }
+
+    /**
+     * Releases anything held by this source. Invoked once it has been written, or when the connection it was
+     * queued on is closed first.
+     */
+    abstract void release();
+}
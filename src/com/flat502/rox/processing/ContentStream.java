@@ -0,0 +1,280 @@
+package com.flat502.rox.processing;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+
+/**
+ * Content that is sent while an application thread is still producing it, so it never has to be held in memory in
+ * its entirety.
+ * <p>
+ * The producer writes the content through the {@link WritableByteChannel} interface and {@link #close() closes} this
+ * instance once it's done. Each write is copied into a queue that the selecting thread drains as the socket becomes
+ * writable. The queue is bounded: a write blocks while more than the buffer limit is waiting to be sent, so a fast
+ * producer is held to the pace of the client. When the queue runs dry the selecting thread stops waiting for the
+ * socket to become writable until the producer writes more.
+ * <p>
+ * In {@link #setChunked(boolean) chunked} mode each queued buffer is framed as a chunk of the <code>chunked</code>
+ * transfer coding as it's sent, and the terminating chunk follows once this instance is closed. Framing happens on
+ * the way out, so the producer may start writing before the mode has been decided.
+ * <p>
+ * Writes fail with a {@link ClosedChannelException} once the connection has been closed.
+ */
+public class ContentStream extends ContentSource implements WritableByteChannel {
+    /**
+     * The default number of bytes that may be queued before writes block.
+     */
+    public static final int DEFAULT_BUFFER_LIMIT = 256 * 1024;
+
+    // The most data copied into a single buffer (and so a single chunk).
+    private static final int MAX_CHUNK_SIZE = 32 * 1024;
+
+    private static final byte[] CRLF = new byte[] { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+
+    private final long length;
+    private final int bufferLimit;
+
+    // Everything up to the next comment is guarded by this instance.
+    private LinkedList<ByteBuffer> queue = new LinkedList<>();
+    private int queued;
+    private long written;
+    private boolean chunked;
+    private boolean closed;
+    private boolean lastChunkQueued;
+    private boolean released;
+    private boolean discarded;
+
+    // Non-null once queued on a connection, and set when the selecting
+    // thread found nothing to write and is waiting to be woken.
+    private Connection connection;
+    private boolean stalled;
+
+    // The buffers making up the chunk being written. Only touched by the
+    // selecting thread.
+    private ByteBuffer[] parts;
+    private int part;
+
+    /**
+     * @param length
+     *            The total length of the content, or <code>-1</code> if it isn't known in advance.
+     */
+    public ContentStream(long length) {
+        this(length, DEFAULT_BUFFER_LIMIT);
+    }
+
+    /**
+     * @param length
+     *            The total length of the content, or <code>-1</code> if it isn't known in advance.
+     * @param bufferLimit
+     *            The number of bytes that may be queued before writes block.
+     */
+    public ContentStream(long length, int bufferLimit) {
+        if (bufferLimit < 1) {
+            throw new IllegalArgumentException("Buffer limit must be at least 1: " + bufferLimit);
+        }
+        this.length = length;
+        this.bufferLimit = bufferLimit;
+    }
+
+    /**
+     * @return The total length of the content, or <code>-1</code> if it isn't known in advance.
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Selects whether the content is framed using the <code>chunked</code> transfer coding. This must be decided
+     * before this instance is queued on a connection.
+     */
+    public synchronized void setChunked(boolean chunked) {
+        if (this.connection != null) {
+            throw new IllegalStateException("Content framing cannot be changed once writing has begun");
+        }
+        this.chunked = chunked;
+    }
+
+    /**
+     * Discards the content rather than sending it, as when answering a <code>HEAD</code> request. Writes still
+     * succeed so the producer needn't know.
+     */
+    public synchronized void discard() {
+        this.discarded = true;
+        this.queue.clear();
+        this.queued = 0;
+        this.notifyAll();
+    }
+
+    /**
+     * Queues the content remaining in <code>src</code> to be sent, blocking while the queue is full.
+     *
+     * @return The number of bytes written, which is always all of them.
+     * @throws ClosedChannelException
+     *             if this instance has been closed or the connection has gone away.
+     * @throws IOException
+     *             if this would exceed the length given when this instance was created.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        while (src.hasRemaining()) {
+            int size = Math.min(src.remaining(), MAX_CHUNK_SIZE);
+            ByteBuffer data = ByteBuffer.allocate(size);
+            int limit = src.limit();
+            src.limit(src.position() + size);
+            data.put(src);
+            src.limit(limit);
+            data.flip();
+            this.enqueue(data);
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !this.closed && !this.released;
+    }
+
+    /**
+     * Marks the end of the content. If a length was given and fewer bytes than that have been written the
+     * connection is closed once what has been written is sent, since the response can't be completed.
+     */
+    @Override
+    public void close() {
+        Connection wake;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.notifyAll();
+            wake = this.takeStalledConnection();
+        }
+        if (wake != null) {
+            wake.getProcessor().requestWrite(wake);
+        }
+    }
+
+    private void enqueue(ByteBuffer data) throws IOException {
+        Connection wake;
+        synchronized (this) {
+            while (this.queued >= this.bufferLimit && !this.closed && !this.released && !this.discarded) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting to write content");
+                }
+            }
+            if (this.closed || this.released) {
+                throw new ClosedChannelException();
+            }
+            if (this.length >= 0 && this.written + data.remaining() > this.length) {
+                throw new IOException("Content exceeds its declared length of " + this.length + " byte(s)");
+            }
+            this.written += data.remaining();
+            if (this.discarded) {
+                return;
+            }
+            this.queue.add(data);
+            this.queued += data.remaining();
+            wake = this.takeStalledConnection();
+        }
+        if (wake != null) {
+            wake.getProcessor().requestWrite(wake);
+        }
+    }
+
+    // Returns the connection to wake up if the selecting thread is waiting
+    // for more data. The caller must hold our lock.
+    private Connection takeStalledConnection() {
+        if (!this.stalled) {
+            return null;
+        }
+        this.stalled = false;
+        return this.connection;
+    }
+
+    @Override
+    public synchronized boolean isComplete() {
+        if (this.parts != null && this.parts[this.parts.length - 1].hasRemaining()) {
+            return false;
+        }
+        return this.closed && this.queue.isEmpty() && (!this.chunked || this.lastChunkQueued);
+    }
+
+    @Override
+    synchronized void attach(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Returns the next buffer to write. If nothing is ready and the content isn't complete, the producer will
+     * request a write on the connection when it next writes (or closes this instance).
+     *
+     * @throws IOException
+     *             if this instance was closed before its declared length was reached.
+     */
+    @Override
+    ByteBuffer nextChunk() throws IOException {
+        while (this.parts != null) {
+            if (this.parts[this.part].hasRemaining()) {
+                return this.parts[this.part];
+            }
+            if (++this.part == this.parts.length) {
+                this.parts = null;
+            }
+        }
+
+        ByteBuffer data;
+        boolean chunked;
+        synchronized (this) {
+            data = this.queue.poll();
+            if (data == null) {
+                if (!this.closed) {
+                    this.stalled = true;
+                    return null;
+                }
+                if (this.length >= 0 && this.written < this.length) {
+                    throw new IOException("Content ended after " + this.written + " of " + this.length
+                            + " byte(s)");
+                }
+                if (!this.chunked || this.lastChunkQueued) {
+                    return null;
+                }
+                this.lastChunkQueued = true;
+            } else {
+                this.queued -= data.remaining();
+                this.notifyAll();
+            }
+            chunked = this.chunked;
+        }
+
+        if (data == null) {
+            this.parts = new ByteBuffer[] { ByteBuffer.wrap(LAST_CHUNK) };
+        } else if (chunked) {
+            byte[] size = (Integer.toHexString(data.remaining()) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            this.parts = new ByteBuffer[] { ByteBuffer.wrap(size), data, ByteBuffer.wrap(CRLF) };
+        } else {
+            this.parts = new ByteBuffer[] { data };
+        }
+        this.part = 0;
+        return this.parts[0];
+    }
+
+    /**
+     * Fails any blocked or subsequent writes. Invoked once the content has been sent, or when the connection it
+     * was queued on is closed first.
+     */
+    @Override
+    synchronized void release() {
+        this.released = true;
+        this.queue.clear();
+        this.queued = 0;
+        this.notifyAll();
+    }
+}
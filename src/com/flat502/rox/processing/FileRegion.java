@@ -0,0 +1,123 @@
+package com.flat502.rox.processing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A region of a file queued for writing on a {@link Connection}.
+ * <p>
+ * On plain connections the region is sent with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which
+ * lets the operating system copy file data straight to the socket without it ever landing on the heap. Data that
+ * has to pass through an {@link javax.net.ssl.SSLEngine} is read instead through a series of memory-mapped windows
+ * (see {@link #nextChunk()}), so only a bounded amount is mapped at any one time.
+ * <p>
+ * The underlying channel is closed once the region has been written, or when the connection it was queued on is
+ * closed.
+ */
+public class FileRegion extends ContentSource {
+    // The largest window mapped at once when the region can't be transferred directly.
+    private static final long MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private FileChannel channel;
+    private long position;
+    private long end;
+
+    // The currently mapped window, if any
+    private ByteBuffer chunk;
+
+    /**
+     * @param channel
+     *            The channel to read from. This is closed once the region has been written.
+     * @param position
+     *            The offset of the first byte to write.
+     * @param count
+     *            The number of bytes to write.
+     */
+    public FileRegion(FileChannel channel, long position, long count) {
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Invalid file region: position=" + position + ", count=" + count);
+        }
+        this.channel = channel;
+        this.position = position;
+        this.end = position + count;
+    }
+
+    /**
+     * @return The number of bytes still to be written.
+     */
+    public long remaining() {
+        long remaining = this.end - this.position;
+        if (this.chunk != null) {
+            remaining += this.chunk.remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * @return <code>true</code> once every byte in this region has been written.
+     */
+    @Override
+    public boolean isComplete() {
+        return this.remaining() == 0;
+    }
+
+    /**
+     * Transfers as much of this region as the target will accept, up to a limit.
+     *
+     * @return The number of bytes transferred.
+     * @throws IOException
+     *             if the file has been truncated so that the rest of the region can never be sent.
+     */
+    long transferTo(WritableByteChannel target, long max) throws IOException {
+        long count = Math.min(max, this.end - this.position);
+        long numWritten = this.channel.transferTo(this.position, count, target);
+        if (numWritten == 0 && count > 0 && this.channel.size() <= this.position) {
+            // transferTo() reports a short file the same way as a full socket,
+            // so without this we'd wait for OP_WRITE forever
+            throw new IOException("file truncated");
+        }
+        this.position += numWritten;
+        return numWritten;
+    }
+
+    /**
+     * Returns a mapped window onto the next part of this region. The same buffer is returned until it has been
+     * consumed, after which the next window is mapped.
+     *
+     * @return A buffer positioned at the next byte to be written, or <code>null</code> if the region is complete.
+     */
+    @Override
+    ByteBuffer nextChunk() throws IOException {
+        if (this.chunk != null && this.chunk.hasRemaining()) {
+            return this.chunk;
+        }
+        if (this.position == this.end) {
+            this.chunk = null;
+            return null;
+        }
+
+        long size = Math.min(MAX_CHUNK_SIZE, this.end - this.position);
+        this.chunk = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, size);
+        this.position += size;
+        return this.chunk;
+    }
+
+    @Override
+    void release() {
+        this.close();
+    }
+
+    /**
+     * Closes the underlying channel. Invoked once the region has been written or abandoned.
+     */
+    void close() {
+        this.chunk = null;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // Nothing useful we can do about this
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.flat502.rox.processing;
 
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 import com.flat502.rox.http.HttpMessageBuffer;
@@ -38,11 +39,15 @@ public abstract class HttpMessageHandler implements Runnable {
      * <ol>
      * <li>{@link HttpMessageBuffer} instances, representing complete HTTP messages received from a remote entity.
      * These are passed to {@link #handleMessage(HttpMessageBuffer)} for processing.</li>
+     * <li>{@link List Lists} of {@link HttpMessageBuffer} instances, representing several complete HTTP messages
+     * received from a remote entity in a single read (as happens when requests are pipelined). These are passed to
+     * {@link #handleMessages(List)} for processing.</li>
      * <li>{@link HttpMessageException} instances when an error occurs while compiling an HTTP message. These are
      * unpacked and passed to {@link #handleHttpMessageException(HttpMessageBuffer, Throwable)} for processing.</li>
      * </ol>
      */
     @Override
+    @SuppressWarnings("unchecked")
     public void run() {
         synchronized (this.terminateMutex) {
             if (this.shouldTerminate) {
@@ -60,6 +65,8 @@ public abstract class HttpMessageHandler implements Runnable {
                 Object o = this.queue.take();
                 if (o instanceof HttpMessageBuffer) {
                     this.handleMessage((HttpMessageBuffer) o);
+                } else if (o instanceof List) {
+                    this.handleMessages((List<HttpMessageBuffer>) o);
                 } else if (o instanceof HttpMessageException) {
                     HttpMessageException exception = (HttpMessageException) o;
                     this.handleHttpMessageException(exception.getMsg(), exception.getCause());
@@ -105,6 +112,27 @@ public abstract class HttpMessageHandler implements Runnable {
      */
     protected abstract void handleMessage(HttpMessageBuffer msg) throws Exception;
 
+    /**
+     * Called to handle several complete HTTP messages that were received together on the same connection.
+     * <p>
+     * The default implementation passes each message to {@link #handleMessage(HttpMessageBuffer)} in turn, in the
+     * order they were received. A failure handling one message does not prevent the rest from being handled.
+     *
+     * @param msgs
+     *            The complete HTTP messages, in the order they were received.
+     * @throws Exception
+     *             Implementations may raise an exception if an error occurs during processing.
+     */
+    protected void handleMessages(List<HttpMessageBuffer> msgs) throws Exception {
+        for (HttpMessageBuffer msg : msgs) {
+            try {
+                this.handleMessage(msg);
+            } catch (Exception e) {
+                log.error("HTTP message handler caught exception", e);
+            }
+        }
+    }
+
     /**
      * Called when an error occurs while handling an HTTP message.
      * <p>
@@ -11,15 +11,13 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.AbstractSelectableChannel;
 import java.security.GeneralSecurityException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 import java.util.Timer;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
@@ -39,9 +37,10 @@ import com.flat502.rox.utils.Utils;
  * This abstract base class encapsulates all of the generic logic common to both client and server side
  * communication over HTTP.
  * <p>
- * This particular implementation uses a single {@link java.lang.Thread} (this class) to manage all I/O on the
- * underlying collection of sockets. I/O is managed using a {@link java.nio.channels.Selector} instance. This thread
- * may be shared with other instances by means of a {@link com.flat502.rox.processing.ResourcePool}.
+ * This particular implementation uses one or more selecting {@link java.lang.Thread}s to manage all I/O on the
+ * underlying collection of sockets. Each thread manages I/O using its own {@link java.nio.channels.Selector}
+ * instance and a socket is owned by exactly one of them for its lifetime. These threads may be shared with other
+ * instances by means of a {@link com.flat502.rox.processing.ResourcePool}. See {@link #setSelectorCount(int)}.
  * <p>
  * I/O writes are queued and written whenever the target socket becomes available for writing. I/O reads are
  * buffered in an instance of {@link com.flat502.rox.http.HttpMessageBuffer} until a complete message is available
@@ -54,23 +53,24 @@ import com.flat502.rox.utils.Utils;
  * {@link com.flat502.rox.processing.ResourcePool}. A worker pool may be provided when an instance of this class is
  * created. This allows multiple instances to share an underlying worker pool.
  * <p>
- * All I/O and any state changes on the underlying {@link java.nio.channels.Selector} (like updates to interest
- * operations on channels, or new channel registrations) are handled directly by the thread backing this instance to
- * avoid unexpected blocking due to platform inconsistencies in the underlying NIO implementation.
+ * All I/O and any state changes on an underlying {@link java.nio.channels.Selector} (like updates to interest
+ * operations on channels, or new channel registrations) are handled directly by the thread owning that
+ * {@link java.nio.channels.Selector} to avoid unexpected blocking due to platform inconsistencies in the underlying
+ * NIO implementation.
  */
 public abstract class HttpProcessor {
     private static Log log = LogFactory.getLog(HttpProcessor.class);
 
-    private static final String CLOSE_AFTER_WRITE = "CloseAfterWrite";
-
     // Implementation note: Win32 NIO implementations have had
     // problems in the past if OP_READ and OP_WRITE are set at
     // the same time. Interleaving them solves the problem.
     private static final Integer OP_WRITE = new Integer(SelectionKey.OP_WRITE);
     private static final Integer OP_READ = new Integer(SelectionKey.OP_READ);
 
-    // A local buffer for all non-blocking I/O read operations.
-    private ByteBuffer nonBlockingReadBuf = ByteBuffer.allocate(8192);
+    // The most we'll write to a single connection in response to one
+    // OP_WRITE event before giving the selecting thread's other
+    // connections a turn.
+    private static final long MAX_WRITE_BYTES_PER_EVENT = 256 * 1024;
 
     // A local buffer for all blocking I/O read operations.
     // private byte[] blockingReadBuf = new byte[8192];
@@ -86,8 +86,16 @@ public abstract class HttpProcessor {
     private boolean sharedWorkerPool;
     private ResourcePool resourcePool;
 
+    // The primary ChannelSelector. Listening channels are registered with this one.
     private ChannelSelector channelSelector;
 
+    // Maps each registered listening channel to the ChannelSelector that owns it.
+    private Map<SelectableChannel, ChannelSelector> channelSelectors = new ConcurrentHashMap<>();
+
+    // Maps each connected channel to its state. Only used to find a
+    // Connection from a Socket, I/O events use the SelectionKey attachment.
+    private Map<SelectableChannel, Connection> connections = new ConcurrentHashMap<>();
+
     private SSLSessionPolicy sslSessionPolicy;
 
     private ProfilerCollection profilers = new ProfilerCollection();
@@ -99,13 +107,6 @@ public abstract class HttpProcessor {
     // socket events.
     private Selector socketSelector;
 
-    // Maps Socket to OP_WRITE or OP_READ.
-    private Map<Socket, Integer> pendingInterestOps = new LinkedHashMap<>();
-
-    private Set<SocketChannel> pendingRegistrations = new HashSet<>();
-    private Set<AbstractSelectableChannel> pendingCancellations = new HashSet<>();
-
-    private Map<Socket, SSLSessionMetadata> sslEngineMap = new HashMap<>();
     private SSLContext sslContext;
 
     // true if we're using SSL
@@ -232,6 +233,136 @@ public abstract class HttpProcessor {
         }
     }
 
+    /**
+     * Set the number of selecting threads used for I/O.
+     * <p>
+     * Each selecting thread owns its own {@link Selector}. Newly accepted connections are assigned to the least
+     * loaded selecting thread and remain with it until they are closed.
+     * <p>
+     * This must be invoked before this instance is {@link #start() started}. If the underlying
+     * {@link ResourcePool} is shared the change affects all instances sharing it.
+     *
+     * @param count
+     *            The number of selecting threads. Must be at least 1.
+     * @throws IllegalArgumentException
+     *             if <code>count</code> is less than 1.
+     * @throws IllegalStateException
+     *             if processing has already started.
+     * @throws IOException
+     *             if an additional {@link Selector} cannot be opened.
+     */
+    public void setSelectorCount(int count) throws IOException {
+        synchronized (this.workerPoolMutex) {
+            this.resourcePool.setSelectorCount(count);
+        }
+    }
+
+    /**
+     * Get the number of selecting threads used for I/O.
+     *
+     * @return The number of selecting threads.
+     */
+    public int getSelectorCount() {
+        synchronized (this.workerPoolMutex) {
+            return this.resourcePool.getSelectorCount();
+        }
+    }
+
+    /**
+     * Set the range of buffer sizes used for socket reads.
+     * <p>
+     * This must be invoked before this instance is {@link #start() started}. If the underlying
+     * {@link ResourcePool} is shared the change affects all instances sharing it.
+     *
+     * @see ResourcePool#setReadBufferSize(int, int)
+     */
+    public void setReadBufferSize(int initialSize, int maxSize) {
+        synchronized (this.workerPoolMutex) {
+            this.resourcePool.setReadBufferSize(initialSize, maxSize);
+        }
+    }
+
+    /**
+     * Set whether responses are marshalled into direct buffers.
+     * <p>
+     * This must be invoked before this instance is {@link #start() started}. If the underlying
+     * {@link ResourcePool} is shared the change affects all instances sharing it.
+     *
+     * @see ResourcePool#setDirectWriteBuffers(boolean)
+     */
+    public void setDirectWriteBuffers(boolean direct) {
+        synchronized (this.workerPoolMutex) {
+            this.resourcePool.setDirectWriteBuffers(direct);
+        }
+    }
+
+    /**
+     * @return The pool that outgoing messages should be marshalled into. Buffers taken from it can be handed to
+     *         {@link #queueWrite(Connection, ByteBuffer[], boolean[], ContentSource, boolean)}, which returns them once
+     *         they've been written.
+     */
+    protected WriteBufferPool getWriteBufferPool() {
+        return this.resourcePool.getWriteBufferPool();
+    }
+
+    /**
+     * Set how much a single connection may read each time its selecting thread services it.
+     * <p>
+     * This must be invoked before this instance is {@link #start() started}. If the underlying
+     * {@link ResourcePool} is shared the change affects all instances sharing it.
+     *
+     * @see ResourcePool#setReadBudget(int, int)
+     */
+    public void setReadBudget(int maxBytes, int maxMessages) {
+        synchronized (this.workerPoolMutex) {
+            this.resourcePool.setReadBudget(maxBytes, maxMessages);
+        }
+    }
+
+    /**
+     * @return The number of times a connection has had its reads cut short by the byte limit set using
+     *         {@link #setReadBudget(int, int)}.
+     */
+    public long getReadByteBudgetHits() {
+        return this.resourcePool.getReadByteBudgetHits();
+    }
+
+    /**
+     * @return The number of times a connection has had its reads cut short by the message limit set using
+     *         {@link #setReadBudget(int, int)}.
+     */
+    public long getReadMessageBudgetHits() {
+        return this.resourcePool.getReadMessageBudgetHits();
+    }
+
+    /**
+     * Set the worker queue depths at which reads are suspended and resumed.
+     * <p>
+     * This must be invoked before this instance is {@link #start() started}. If the underlying
+     * {@link ResourcePool} is shared the change affects all instances sharing it.
+     *
+     * @see ResourcePool#setQueueWatermarks(int, int)
+     */
+    public void setQueueWatermarks(int high, int low) {
+        synchronized (this.workerPoolMutex) {
+            this.resourcePool.setQueueWatermarks(high, low);
+        }
+    }
+
+    /**
+     * Bound the number of complete messages waiting for a worker.
+     * <p>
+     * This must be invoked before this instance is {@link #start() started}. If the underlying
+     * {@link ResourcePool} is shared the change affects all instances sharing it.
+     *
+     * @see ResourcePool#setMaxQueueSize(int)
+     */
+    public void setMaxQueueSize(int max) {
+        synchronized (this.workerPoolMutex) {
+            this.resourcePool.setMaxQueueSize(max);
+        }
+    }
+
     /**
      * Set the regular expression used to select the SSL cipher suites to use for all connections from this point
      * on.
@@ -284,7 +415,11 @@ public abstract class HttpProcessor {
     }
 
     protected SSLSession newSSLSession(Socket socket) {
-        javax.net.ssl.SSLSession session = this.getSSLSession(socket);
+        return this.newSSLSession(this.getConnection(socket));
+    }
+
+    protected SSLSession newSSLSession(Connection connection) {
+        javax.net.ssl.SSLSession session = this.getSSLSession(connection);
         if (session == null) {
             return null;
         }
@@ -292,7 +427,14 @@ public abstract class HttpProcessor {
     }
 
     protected javax.net.ssl.SSLSession getSSLSession(Socket socket) {
-        SSLSessionMetadata sessionMetadata = this.sslEngineMap.get(socket);
+        return this.getSSLSession(this.getConnection(socket));
+    }
+
+    private javax.net.ssl.SSLSession getSSLSession(Connection connection) {
+        if (connection == null) {
+            return null;
+        }
+        SSLSessionMetadata sessionMetadata = connection.getSSLSessionMetadata();
         if (sessionMetadata == null) {
             return null;
         }
@@ -334,19 +476,14 @@ public abstract class HttpProcessor {
             if (!this.sharedWorkerPool) {
                 this.resourcePool.shutdown();
             }
-            // This will call channelSelector.deregister() for client instances
-            // (indirectly, as part of detaching from the resource pool).
             this.stopImpl();
 
             this.shouldShutdown = true;
 
-            // But this is still requires for server instances
-            // TODO: Move into stopImpl on the server?
-            this.channelSelector.deregister(this);
-
-            // Wake up the selecting thread so it notices this channel should
-            // be deregistered.
-            this.socketSelector.wakeup();
+            // Deregister from every selecting thread. This closes any channels
+            // still owned by this instance and wakes each selecting thread so
+            // it notices.
+            this.resourcePool.detach(this);
         }
     }
 
@@ -356,101 +493,12 @@ public abstract class HttpProcessor {
         return this.useHttps;
     }
 
-    void processPendingSelectorChanges() throws IOException {
-        // Process any queued channel registrations
-        synchronized (this.pendingRegistrations) {
-            if (this.pendingRegistrations.size() > 0) {
-                Iterator<SocketChannel> channels = this.pendingRegistrations.iterator();
-                while (channels.hasNext()) {
-                    SocketChannel channel = channels.next();
-                    boolean wq = isWriteQueued(channel.socket());
-                    if (log.logTrace()) {
-                        log.trace("Registering channel (wq=" + wq + ") for " + Utils.toString(channel.socket()));
-                    }
-                    if (channel.isConnected()) {
-                        // A registration is re-queued after an SSL I/O
-                        // operation to avoid a CancelledKeyException.
-                        // In that case we are interested in reads, not
-                        // connections.
-                        if (log.logTrace()) {
-                            log.trace("Interest ops change to OP_READ for " + Utils.toString(channel.socket()));
-                        }
-                        channel.register(this.getSocketSelector(), SelectionKey.OP_READ);
-                    } else {
-                        if (log.logTrace()) {
-                            log.trace("Interest ops change to OP_CONNECT for " + Utils.toString(channel.socket()));
-                        }
-                        channel.register(this.getSocketSelector(), SelectionKey.OP_CONNECT);
-                    }
-                }
-                this.pendingRegistrations.clear();
-            }
-        }
-
-        // Process any queued interestOps updates.
-        synchronized (this.pendingInterestOps) {
-            if (this.pendingInterestOps.size() > 0) {
-                Iterator<Entry<Socket, Integer>> entries = this.pendingInterestOps.entrySet().iterator();
-                while (entries.hasNext()) {
-                    Entry<Socket, Integer> entry = entries.next();
-                    Socket socket = entry.getKey();
-                    SelectionKey sk = socket.getChannel().keyFor(this.getSocketSelector());
-                    if (socket.getChannel().isConnected()) {
-                        // Only update the interest ops set if we're not
-                        // waiting to complete the connection (otherwise we
-                        // disable the OP_CONNECT interest op and never see
-                        // the connection complete).
-                        if (sk != null && sk.isValid()) {
-                            int ops = entry.getValue().intValue();
-                            if (log.logTrace()) {
-                                log.trace("Interest ops change for " + Utils.toString(socket) + ": "
-                                        + (ops == OP_READ ? "OP_READ" : "OP_WRITE"));
-                            }
-                            sk.interestOps(ops);
-                        }
-                    }
-                }
-                this.pendingInterestOps.clear();
-            }
-        }
-
-        // Process any queued channel cancellations
-        synchronized (this.pendingCancellations) {
-            if (this.pendingCancellations.size() > 0) {
-                Iterator<AbstractSelectableChannel> channels = this.pendingCancellations.iterator();
-                while (channels.hasNext()) {
-                    SelectableChannel channel = channels.next();
-                    boolean client = channel instanceof SocketChannel;
-                    boolean connected = (client && ((SocketChannel) channel).isConnected());
-                    if (!client || connected) {
-                        channel.close();
-                        SelectionKey key = channel.keyFor(this.getSocketSelector());
-                        if (key != null) {
-                            key.cancel();
-                        }
-                    }
-                    if (log.logTrace()) {
-                        if (client) {
-                            log.trace("Cancellation on socket "
-                                    + Utils.toString(((SocketChannel) channel).socket()));
-                        } else {
-                            log.trace("Cancellation on serverSocket "
-                                    + Utils.toString(((ServerSocketChannel) channel).socket()));
-                        }
-                    }
-
-                }
-                this.pendingCancellations.clear();
-            }
-        }
-    }
-
     void processSelectionKey(SelectionKey key) throws IOException {
         try {
             this.handleSelectionKeyOperation(key);
         } catch (IOException e) {
             SocketChannel socketChannel = (SocketChannel) key.channel();
-            this.deregisterSocket(socketChannel.socket());
+            this.deregisterConnection((Connection) key.attachment());
             //		this.queueCancellation(socketChannel);
             key.cancel();
             socketChannel.close();
@@ -481,8 +529,8 @@ public abstract class HttpProcessor {
      *             if an error occurs during initialization.
      */
     protected void initialize() throws IOException {
+        this.resourcePool.attach(this);
         this.channelSelector = this.resourcePool.getChannelSelector();
-        this.channelSelector.register(this);
         this.socketSelector = this.channelSelector.getSocketSelector();
         this.initSelector(this.socketSelector);
     }
@@ -497,17 +545,87 @@ public abstract class HttpProcessor {
      *            The {@link SocketChannel} to register.
      */
     protected void queueRegistration(SocketChannel channel) {
-        synchronized (this.pendingRegistrations) {
-            this.pendingRegistrations.add(channel);
-        }
-        this.getSocketSelector().wakeup();
+        this.selectorFor(channel).queueRegistration(channel);
     }
 
     protected void queueCancellation(AbstractSelectableChannel channel) {
-        synchronized (this.pendingCancellations) {
-            this.pendingCancellations.add(channel);
+        this.selectorFor(channel).queueCancellation(channel);
+    }
+
+    /**
+     * Registers a listening {@link ServerSocketChannel} for accepts.
+     * <p>
+     * Listening channels are spread across the selecting threads by position, so registering channels with
+     * positions <code>0</code> to <code>n-1</code> places each on its own selecting thread when there are at least
+     * <code>n</code> of them. The registration is queued and applied by the owning selecting thread.
+     *
+     * @param channel
+     *            The {@link ServerSocketChannel} to register.
+     * @param index
+     *            The position of the channel amongst the listening channels of this instance.
+     */
+    protected void registerListeningChannel(ServerSocketChannel channel, int index) {
+        ChannelSelector selector = this.resourcePool.getChannelSelector(index);
+        this.registerChannel(channel, selector);
+        selector.queueRegistration(channel);
+    }
+
+    /**
+     * Registers a newly accepted {@link SocketChannel} for reads with one of the selecting threads.
+     * <p>
+     * The selecting thread is chosen using {@link ResourcePool#nextChannelSelector()}. If the caller is that
+     * selecting thread the channel is registered immediately, otherwise the registration is queued. Either way a
+     * new {@link Connection} is created (see {@link #newConnection(SocketChannel)}) and attached to the channel's
+     * {@link SelectionKey}.
+     *
+     * @param channel
+     *            The {@link SocketChannel} to register.
+     * @return The {@link Connection} created for the channel.
+     * @throws IOException
+     *             if the channel cannot be switched to non-blocking mode or registered.
+     */
+    protected Connection registerAcceptedChannel(SocketChannel channel) throws IOException {
+        ChannelSelector selector = this.resourcePool.nextChannelSelector();
+        Connection connection = this.newConnection(channel);
+        connection.setChannelSelector(selector);
+        this.connections.put(channel, connection);
+        selector.addChannel(this, channel);
+
+        channel.configureBlocking(false);
+        if (selector.isSelectingThread()) {
+            connection.setSelectionKey(channel.register(selector.getSocketSelector(), SelectionKey.OP_READ,
+                    connection));
+        } else {
+            selector.queueRegistration(connection);
         }
-        this.getSocketSelector().wakeup();
+        return connection;
+    }
+
+    /**
+     * Factory method for the state associated with a newly connected channel.
+     * <p>
+     * Sub-classes may override this to return a sub-class of {@link Connection} holding additional state.
+     *
+     * @param channel
+     *            The connected channel.
+     * @return A new {@link Connection}.
+     */
+    protected Connection newConnection(SocketChannel channel) {
+        return new Connection(this, channel);
+    }
+
+    /**
+     * Returns the {@link Connection} for a registered {@link Socket}.
+     *
+     * @param socket
+     *            The socket to look up.
+     * @return The {@link Connection}, or <code>null</code> if the socket is not (or no longer) registered.
+     */
+    protected Connection getConnection(Socket socket) {
+        if (socket == null || socket.getChannel() == null) {
+            return null;
+        }
+        return this.connections.get(socket.getChannel());
     }
 
     protected Timer getTimer() {
@@ -526,7 +644,10 @@ public abstract class HttpProcessor {
     }
 
     /**
-     * Returns a handle to the {@link Selector} this thread is using for all I/O.
+     * Returns a handle to the primary {@link Selector}.
+     * <p>
+     * Listening channels are registered with this {@link Selector}. Other channels may be registered with a
+     * different {@link Selector}, use {@link #keyFor(SelectableChannel)} to find the key for a channel.
      *
      * @return A handle to the {@link Selector}.
      */
@@ -534,6 +655,36 @@ public abstract class HttpProcessor {
         return this.socketSelector;
     }
 
+    /**
+     * Returns the {@link SelectionKey} for a channel on the {@link Selector} the channel is registered with.
+     *
+     * @param channel
+     *            The channel to look up.
+     * @return The {@link SelectionKey}, or <code>null</code> if the channel is not (yet) registered.
+     */
+    protected SelectionKey keyFor(SelectableChannel channel) {
+        return channel.keyFor(this.selectorFor(channel).getSocketSelector());
+    }
+
+    /**
+     * @return The number of channels registered across all selecting threads.
+     */
+    protected int getActiveChannelCount() {
+        return this.resourcePool.getActiveChannelCount();
+    }
+
+    private ChannelSelector selectorFor(SelectableChannel channel) {
+        Connection connection = this.connections.get(channel);
+        if (connection != null) {
+            return connection.getChannelSelector();
+        }
+        ChannelSelector selector = this.channelSelectors.get(channel);
+        if (selector == null) {
+            return this.channelSelector;
+        }
+        return selector;
+    }
+
     /**
      * Central dispatch routine for handling I/O events on the underlying {@link Selector}.
      * <p>
@@ -559,8 +710,11 @@ public abstract class HttpProcessor {
     /**
      * Writes any pending data to the socket indicated by the given {@link SelectionKey}.
      * <p>
-     * This implementation checks for data using the {@link #getWriteBuffer(Socket)} method. If data is available as
-     * much as possible is written to the socket.
+     * All data queued for the connection is written using a single gathering write, up to a limit per call so a
+     * single busy connection can't starve the others sharing its selecting thread. If the socket's send buffer fills
+     * up the connection remains registered for <code>OP_WRITE</code> and the remainder is written when the socket
+     * next becomes writable. Once the queue is drained the connection reverts to <code>OP_READ</code> (or is
+     * closed, if that was requested).
      *
      * @param key
      *            The {@link SelectionKey} indicating the socket available for writing.
@@ -570,11 +724,11 @@ public abstract class HttpProcessor {
     protected void write(SelectionKey key) throws IOException {
         SocketChannel socketChannel = (SocketChannel) key.channel();
         Socket socket = socketChannel.socket();
-        ByteBuffer buf = null;
+        Connection connection = (Connection) key.attachment();
 
         // If we're using HTTPS and handshaking is still happening then we need to call
         // SSLEngine.wrap() which will write the next chunk of handshake data.
-        if (this.useHttps && this.isHandshaking(socket)) {
+        if (this.useHttps && this.isHandshaking(connection)) {
             if (log.logTrace()) {
                 log.trace(this.getClass().getSimpleName() + ": write(): still handshaking for "
                         + Utils.toString(socket));
@@ -584,19 +738,80 @@ public abstract class HttpProcessor {
                 this.progressSSLHandshake(key);
             } catch (SSLException e) {
                 safeClose(key, socketChannel, "SSL handshake error during write()", e);
-                this.handleSSLHandshakeFailed(socket);
+                this.handleSSLHandshakeFailed(connection);
                 handleProcessingException(socket, e);
             }
 
             return;
         }
 
-        // Get the next chunk of application data to write, if we're using
-        // HTTPS we'll encrypt it a little further down.
+        try {
+            if (this.useHttps) {
+                this.writeEncrypted(key, connection);
+            } else {
+                this.writeGathered(key, connection);
+            }
+        } catch (IOException e) {
+            // An error occurred
+            safeClose(key, socketChannel, "write() failed", e);
+        }
+    }
+
+    /**
+     * Writes as much queued data as possible using gathering writes.
+     */
+    private void writeGathered(SelectionKey key, Connection connection) throws IOException {
+        SocketChannel socketChannel = connection.getChannel();
+        ByteBuffer[] vector = connection.getChannelSelector().getWriteVector();
+        long budget = MAX_WRITE_BYTES_PER_EVENT;
+
         while (true) {
-            buf = this.getWriteBuffer(socket);
+            int count = connection.getWriteBuffers(vector);
+            if (count == 0) {
+                Object head = connection.getWriteQueueHead();
+                if (head instanceof FileRegion) {
+                    // Let the OS copy file data straight to the socket
+                    FileRegion region = (FileRegion) head;
+                    long numQueued = Math.min(region.remaining(), budget);
+                    long numWritten = region.transferTo(socketChannel, numQueued);
+                    if (log.logTrace()) {
+                        log.trace(this.getClass().getSimpleName() + ": Transferred " + numWritten + " of "
+                                + numQueued + " file byte(s) on " + Utils.toString(connection.getSocket()));
+                    }
+
+                    if (connection.removeWrittenBuffers()) {
+                        this.processWriteQueueDrained(key, connection);
+                        return;
+                    }
+                    budget -= numWritten;
+                    if (numWritten < numQueued || budget <= 0) {
+                        return;
+                    }
+                    continue;
+                }
+                if (head instanceof ContentSource) {
+                    ContentSource content = (ContentSource) head;
+                    ByteBuffer chunk = content.nextChunk();
+                    if (chunk == null) {
+                        if (this.contentUnavailable(key, connection, content)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    long numQueued = chunk.remaining();
+                    long numWritten = socketChannel.write(chunk);
+                    if (log.logTrace()) {
+                        log.trace(this.getClass().getSimpleName() + ": Wrote " + numWritten + " of " + numQueued
+                                + " streamed byte(s) on " + Utils.toString(connection.getSocket()));
+                    }
+
+                    budget -= numWritten;
+                    if (numWritten < numQueued || budget <= 0) {
+                        return;
+                    }
+                    continue;
+                }
 
-            if (buf == null) {
                 // A second OP_WRITE was queued at some point. This happens
                 // because multiple threads (the selector and the caller's
                 // original "write" thread) can both request an OP_WRITE
@@ -605,37 +820,166 @@ public abstract class HttpProcessor {
                 // and just ignore the fact that there's nothing to write.
                 if (log.logTrace()) {
                     log.trace(this.getClass().getSimpleName()
-                            + ": Ignoring write() call with no write buffer queued on [" + Utils.toString(socket)
-                            + "]");
+                            + ": Ignoring write() call with no write buffer queued on ["
+                            + Utils.toString(connection.getSocket()) + "]");
                 }
+                this.processWriteQueueDrained(key, connection);
+                return;
+            }
+
+            long numQueued = 0;
+            long numWritten;
+            try {
+                for (int i = 0; i < count; i++) {
+                    numQueued += vector[i].remaining();
+                }
+                numWritten = socketChannel.write(vector, 0, count);
+            } finally {
+                // Don't hang on to buffers once they've been written
+                Arrays.fill(vector, 0, count, null);
+            }
+
+            if (log.logTrace()) {
+                log.trace(this.getClass().getSimpleName() + ": Wrote " + numWritten + " of " + numQueued
+                        + " byte(s) from " + count + " buffer(s) on " + Utils.toString(connection.getSocket()));
+            }
 
-                key.interestOps(SelectionKey.OP_READ);
+            if (connection.removeWrittenBuffers()) {
+                this.processWriteQueueDrained(key, connection);
                 return;
             }
 
-            if (this.useHttps) {
-                buf = this.encryptWriteBuffer(socket, buf);
+            budget -= numWritten;
+            if (numWritten < numQueued || budget <= 0) {
+                // Either the socket's send buffer is full or this connection
+                // has had its share for now. Either way we stay registered for
+                // OP_WRITE and pick up where we left off next time around.
+                return;
             }
+        }
+    }
 
-            try {
-                if (writeBuffer(key, socketChannel, buf)) {
-                    // All data was successsfully written
-                    this.processDataWritten(key, socket);
+    /**
+     * Encrypts and writes as much queued data as possible.
+     * <p>
+     * Each {@link SSLEngine#wrap(ByteBuffer, ByteBuffer) wrap()} produces at most one SSL record so the data is
+     * written one record at a time. A record that could only be partially written is held in the session's network
+     * buffer and is completed before anything else is encrypted.
+     */
+    private void writeEncrypted(SelectionKey key, Connection connection) throws IOException {
+        SocketChannel socketChannel = connection.getChannel();
+        SSLSessionMetadata sessionMetadata = connection.getSSLSessionMetadata();
+        long budget = MAX_WRITE_BYTES_PER_EVENT;
+
+        while (true) {
+            if (!sessionMetadata.netBufferPending) {
+                Object head = connection.getWriteQueueHead();
+                ByteBuffer buf;
+                if (head instanceof ContentSource) {
+                    // Everything has to pass through the SSLEngine, so file
+                    // data is read through a mapped window rather than
+                    // transferred.
+                    buf = ((ContentSource) head).nextChunk();
+                    if (buf == null) {
+                        if (this.contentUnavailable(key, connection, (ContentSource) head)) {
+                            return;
+                        }
+                        continue;
+                    }
+                } else {
+                    buf = (ByteBuffer) head;
+                }
+                if (buf == null) {
+                    this.processWriteQueueDrained(key, connection);
+                    return;
                 }
-            } catch (IOException e) {
-                // An error occurred
-                safeClose(key, socketChannel, "write() failed", e);
+                this.encryptWriteBuffer(connection, buf);
+                sessionMetadata.netBufferPending = true;
             }
+
+            int numQueued = sessionMetadata.netBuffer.remaining();
+            if (!this.writeBuffer(key, socketChannel, sessionMetadata.netBuffer)) {
+                // The socket's send buffer is full, wait for OP_WRITE
+                return;
+            }
+            sessionMetadata.netBuffer.clear();
+            sessionMetadata.netBufferPending = false;
+
+            if (connection.removeWrittenBuffers()) {
+                this.processWriteQueueDrained(key, connection);
+                return;
+            }
+
+            budget -= numQueued;
+            if (budget <= 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handles a {@link ContentSource} at the head of the write queue that has nothing to write. Either it's complete,
+     * and is discarded, or it's a {@link ContentStream} waiting on its producer. In the latter case we stop asking
+     * for OP_WRITE; the producer asks again once it has written more.
+     *
+     * @return <code>true</code> if there's nothing more to write for now.
+     */
+    private boolean contentUnavailable(SelectionKey key, Connection connection, ContentSource content)
+            throws IOException {
+        if (connection.removeWrittenBuffers()) {
+            this.processWriteQueueDrained(key, connection);
+            return true;
+        }
+        if (connection.getWriteQueueHead() != content) {
+            // Complete, move on to whatever follows it
+            return false;
+        }
+        if (log.logTrace()) {
+            log.trace(this.getClass().getSimpleName() + ": Waiting for streamed content on "
+                    + Utils.toString(connection.getSocket()));
+        }
+        key.interestOps(connection.isReadSuspended() ? 0 : SelectionKey.OP_READ);
+        return true;
+    }
+
+    /**
+     * Attempts to write buffers immediately from the calling thread, using a single gathering write.
+     * <p>
+     * Nothing is written if data is already queued for the connection, since that must go out first. The caller
+     * must hold the lock on <code>connection</code>.
+     *
+     * @return <code>true</code> if the buffers were written in their entirety (or the write failed and the socket
+     *         was closed), <code>false</code> if some or all of them still need to be queued.
+     */
+    private boolean writeDirect(Connection connection, SelectionKey key, ByteBuffer[] bufs, boolean close) {
+        SocketChannel socketChannel = connection.getChannel();
+        Socket socket = connection.getSocket();
+        if (!key.isValid() || connection.isWriteQueued()) {
+            return false;
         }
+
+        try {
+            if (!this.writeBuffers(key, socketChannel, bufs)) {
+                return false;
+            }
+            if (close) {
+                this.closeAfterWrite(key, connection);
+            }
+        } catch (IOException e) {
+            safeClose(key, socketChannel, "Direct write failed", e);
+            this.handleProcessingException(socket, e);
+        }
+        return true;
     }
 
     private boolean writeBuffer(SelectionKey key, SocketChannel socketChannel, ByteBuffer buf) throws IOException {
         Socket socket = socketChannel.socket();
 
         if (log.logTrace()) {
-            byte[] d = buf.array();
+            byte[] d = new byte[buf.remaining()];
+            buf.duplicate().get(d);
             log.trace(this.getClass().getSimpleName() + ": Writing " + buf.remaining() + " byte(s) on "
-                    + Utils.toString(socket) + ":\n" + Utils.toHexDump(d, buf.position(), buf.remaining()));
+                    + Utils.toString(socket) + ":\n" + Utils.toHexDump(d, 0, d.length));
         }
 
         int numWritten = socketChannel.write(buf);
@@ -647,6 +991,27 @@ public abstract class HttpProcessor {
         return (buf.remaining() == 0);
     }
 
+    private boolean writeBuffers(SelectionKey key, SocketChannel socketChannel, ByteBuffer[] bufs)
+            throws IOException {
+        if (bufs.length == 1) {
+            return this.writeBuffer(key, socketChannel, bufs[0]);
+        }
+
+        Socket socket = socketChannel.socket();
+        if (log.logTrace()) {
+            log.trace(this.getClass().getSimpleName() + ": Writing " + bufs.length + " buffer(s) on "
+                    + Utils.toString(socket));
+        }
+
+        long numWritten = socketChannel.write(bufs);
+        if (log.logTrace()) {
+            log.trace(this.getClass().getSimpleName() + ": Wrote " + numWritten + " byte(s) on "
+                    + Utils.toString(socket));
+        }
+
+        return !bufs[bufs.length - 1].hasRemaining();
+    }
+
     /**
      * Reads any pending data from the socket indicated by the given {@link SelectionKey}.
      * <p>
@@ -662,8 +1027,9 @@ public abstract class HttpProcessor {
     protected void read(SelectionKey key) throws IOException {
         SocketChannel socketChannel = (SocketChannel) key.channel();
         Socket socket = socketChannel.socket();
+        Connection connection = (Connection) key.attachment();
 
-        if (this.useHttps && this.isHandshaking(socket)) {
+        if (this.useHttps && this.isHandshaking(connection)) {
             if (log.logTrace()) {
                 log.trace(this.getClass().getSimpleName() + ": read(): still handshaking for "
                         + Utils.toString(socket));
@@ -679,9 +1045,20 @@ public abstract class HttpProcessor {
             return;
         }
 
-        HttpMessageBuffer httpMsg = this.getReadBuffer(socket);
+        if (!this.useHttps) {
+            this.readPooled(key, connection);
+            return;
+        }
+
+        // SSL connections aren't held to the read budget. The handshake
+        // depends on the selecting thread's shared heap buffer, so encrypted
+        // data is read into it just once per pass, which bounds the pass at
+        // that buffer's size. Pipelined requests within it aren't counted
+        // against the message budget.
 
-        ByteBuffer readBuf = this.nonBlockingReadBuf;
+        HttpMessageBuffer httpMsg = this.getReadBuffer(connection);
+
+        ByteBuffer readBuf = connection.getChannelSelector().getReadBuffer();
 
         int numRead;
         try {
@@ -697,28 +1074,25 @@ public abstract class HttpProcessor {
             return;
         }
 
-        if (this.useHttps) {
-            ByteBuffer decryptedBuf = null;
-            try {
-                while (readBuf.hasRemaining()) {
-                    // unwrap() (decrypt) the message
-                    decryptedBuf = this.decryptReadBuffer(socket, readBuf);
-                    this.processReadData(httpMsg, decryptedBuf.array(), decryptedBuf.remaining());
-                }
-            } catch (SSLException e) {
-                if (decryptedBuf != null) {
-                    decryptedBuf.clear();
-                }
+        ByteBuffer decryptedBuf = null;
+        try {
+            while (readBuf.hasRemaining()) {
+                // unwrap() (decrypt) the message
+                decryptedBuf = this.decryptReadBuffer(connection, readBuf);
+                httpMsg = this.getReadBuffer(connection);
+                this.processReadData(connection, httpMsg, decryptedBuf);
+            }
+        } catch (SSLException e) {
+            if (decryptedBuf != null) {
+                decryptedBuf.clear();
+            }
 
-                // The remote entity probably forcibly closed the connection.
-                // Nothing to see here. Move on.
-                safeClose(key, socketChannel, "SSL decryption failed", e);
+            // The remote entity probably forcibly closed the connection.
+            // Nothing to see here. Move on.
+            safeClose(key, socketChannel, "SSL decryption failed", e);
 
-                this.handleMessageException(httpMsg, e);
-                return;
-            }
-        } else {
-            this.processReadData(httpMsg, readBuf.array(), readBuf.remaining());
+            this.handleMessageException(httpMsg, e);
+            return;
         }
 
         // Clear our read buffer after we've handled the data instead of before
@@ -727,6 +1101,63 @@ public abstract class HttpProcessor {
         readBuf.clear();
     }
 
+    /**
+     * Reads into direct buffers from the selecting thread's {@link ReadBufferPool} and hands the data straight to
+     * the connection's {@link HttpMessageBuffer}. The pooled buffer's size adapts to how much each read returns.
+     * <p>
+     * Reads are repeated for as long as they fill the buffer (suggesting more data is waiting) until the
+     * connection has used up its read budget for this pass of the selecting thread. A connection that runs out of
+     * budget is serviced after all other ready connections on the next pass.
+     */
+    private void readPooled(SelectionKey key, Connection connection) throws IOException {
+        ChannelSelector selector = connection.getChannelSelector();
+        ReadBufferPool pool = selector.getReadBufferPool();
+        int byteBudget = this.resourcePool.getReadByteBudget();
+        int messageBudget = this.resourcePool.getReadMessageBudget();
+        int numBytes = 0;
+        int numMessages = 0;
+
+        while (true) {
+            HttpMessageBuffer httpMsg = this.getReadBuffer(connection);
+            int sizeClass = connection.getReadSizeClass();
+            ByteBuffer readBuf = pool.acquire(sizeClass);
+            boolean full;
+            try {
+                int numRead;
+                try {
+                    numRead = readBuffer(key, connection.getChannel(), readBuf);
+                } catch (Exception e) {
+                    this.handleMessageException(httpMsg, e);
+                    return;
+                }
+
+                full = numRead == readBuf.capacity();
+                connection.setReadSizeClass(pool.adjust(sizeClass, numRead));
+                if (numRead > 0) {
+                    numMessages += this.processReadData(connection, httpMsg, readBuf);
+                }
+                numBytes += numRead;
+            } finally {
+                pool.release(readBuf, sizeClass);
+            }
+
+            if (!full || !key.isValid() || connection.isReadSuspended()) {
+                // The socket has been drained (or closed), or the worker
+                // queue is backed up
+                return;
+            }
+
+            if (numBytes >= byteBudget) {
+                selector.readBudgetExhausted(key, false);
+                return;
+            }
+            if (numMessages >= messageBudget) {
+                selector.readBudgetExhausted(key, true);
+                return;
+            }
+        }
+    }
+
     private int readBuffer(SelectionKey key, SocketChannel socketChannel, ByteBuffer readBuf) throws IOException {
         Socket socket = socketChannel.socket();
 
@@ -763,9 +1194,8 @@ public abstract class HttpProcessor {
         readBuf.limit(numRead);
 
         if (log.logTrace()) {
-            byte[] d = readBuf.array();
             log.trace(this.getClass().getSimpleName() + ": Read " + numRead + " byte(s) on "
-                    + Utils.toString(socket) + ":\n" + Utils.toHexDump(d, readBuf.position(), readBuf.remaining()));
+                    + Utils.toString(socket) + ":\n" + Utils.toHexDump(readBuf));
         }
 
         return numRead;
@@ -785,15 +1215,16 @@ public abstract class HttpProcessor {
         }
 
         // This will clean up associated buffers and SSL engines too
-        this.deregisterSocket(socketChannel.socket());
+        this.deregisterConnection((Connection) key.attachment());
     }
 
-    private ByteBuffer encryptWriteBuffer(Socket socket, ByteBuffer buffer) throws SSLException {
+    private ByteBuffer encryptWriteBuffer(Connection connection, ByteBuffer buffer) throws SSLException {
+        Socket socket = connection.getSocket();
         if (log.logTrace()) {
             log.trace("Encrypting " + buffer.remaining() + " byte(s) for " + Utils.toString(socket));
         }
 
-        SSLSessionMetadata sessionMetadata = this.sslEngineMap.get(socket);
+        SSLSessionMetadata sessionMetadata = connection.getSSLSessionMetadata();
 
         sessionMetadata.netBuffer.clear();
         SSLEngineResult result = sessionMetadata.engine.wrap(buffer, sessionMetadata.netBuffer);
@@ -807,12 +1238,13 @@ public abstract class HttpProcessor {
         return sessionMetadata.netBuffer;
     }
 
-    private ByteBuffer decryptReadBuffer(Socket socket, ByteBuffer buffer) throws SSLException {
+    private ByteBuffer decryptReadBuffer(Connection connection, ByteBuffer buffer) throws SSLException {
+        Socket socket = connection.getSocket();
         if (log.logTrace()) {
             log.trace("Decrypting " + buffer.remaining() + " byte(s) for " + Utils.toString(socket));
         }
 
-        SSLSessionMetadata sessionMetadata = this.sslEngineMap.get(socket);
+        SSLSessionMetadata sessionMetadata = connection.getSSLSessionMetadata();
 
         sessionMetadata.appBuffer.clear();
         SSLEngineResult result = sessionMetadata.engine.unwrap(buffer, sessionMetadata.appBuffer);
@@ -830,8 +1262,10 @@ public abstract class HttpProcessor {
     /**
      * Queue's data to be written on the indicated {@link Socket}.
      * <p>
-     * The data is queued internally and the interest operations set on the associated {@link SocketChannel} is
-     * updated to indicate that a write operation is desired.
+     * If nothing is already queued for the socket (and SSL is not in use) the data is first written directly from
+     * the calling thread, using a non-blocking write. Anything that could not be written immediately is queued
+     * internally and the interest operations set on the associated {@link SocketChannel} is updated to indicate
+     * that a write operation is desired.
      *
      * @param socket
      *            The socket to which the data should be written.
@@ -841,45 +1275,147 @@ public abstract class HttpProcessor {
      *            The socket should be closed after the write completes
      */
     protected void queueWrite(Socket socket, byte[] data, boolean close) {
-        SelectionKey key = socket.getChannel().keyFor(this.getSocketSelector());
+        Connection connection = this.getConnection(socket);
+        if (connection == null) {
+            if (log.logTrace()) {
+                log.trace("Discarding " + data.length + " byte(s) queued for deregistered socket "
+                        + Utils.toString(socket));
+            }
+            return;
+        }
+        this.queueWrite(connection, data, close);
+    }
+
+    /**
+     * Queue's data to be written on the indicated {@link Connection}.
+     *
+     * @see #queueWrite(Socket, byte[], boolean)
+     */
+    protected void queueWrite(Connection connection, byte[] data, boolean close) {
+        this.queueWrite(connection, data, null, close);
+    }
+
+    /**
+     * Queue's data followed by a region of a file or a stream of content to be written on the indicated
+     * {@link Connection}.
+     * <p>
+     * A file region is written without being copied onto the heap where possible (see {@link FileRegion}). Its
+     * channel is closed once it has been written, or if the connection is closed first. A {@link ContentStream} is
+     * written as its producer writes to it.
+     *
+     * @param connection
+     *            The connection to write to.
+     * @param data
+     *            The data to write ahead of the content (typically HTTP headers).
+     * @param content
+     *            The file region or content stream to write. May be <code>null</code>.
+     * @param close
+     *            The connection should be closed after the write completes.
+     */
+    protected void queueWrite(Connection connection, byte[] data, ContentSource content, boolean close) {
         if (log.logTrace()) {
-            boolean pendReg = this.pendingRegistrations.contains(socket.getChannel());
-            log.trace("Queuing " + data.length + " byte(s) (close=" + close + ", socket=" + Utils.toString(socket)
-                    + ", key=" + key + ", pr=" + pendReg + "):\n" + Utils.toHexDump(data, 0, data.length));
+            log.trace("Queuing " + data.length + " byte(s) for " + Utils.toString(connection.getSocket()) + ":\n"
+                    + Utils.toHexDump(data, 0, data.length));
         }
+        this.queueWrite(connection, new ByteBuffer[] { ByteBuffer.wrap(data) }, content, close);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(data);
-        this.putWriteBuffer(socket, buf);
+    /**
+     * Queue's several buffers followed by a region of a file or a stream of content to be written on the indicated
+     * {@link Connection}.
+     * <p>
+     * The buffers are written in order, with a single gathering write where possible. This is how responses to
+     * pipelined requests are coalesced.
+     *
+     * @param connection
+     *            The connection to write to.
+     * @param data
+     *            The buffers to write ahead of the content. These must not be modified once queued.
+     * @param content
+     *            The file region or content stream to write. May be <code>null</code>.
+     * @param close
+     *            The connection should be closed after the write completes.
+     * @see #queueWrite(Connection, byte[], ContentSource, boolean)
+     */
+    protected void queueWrite(Connection connection, ByteBuffer[] data, ContentSource content, boolean close) {
+        this.queueWrite(connection, data, null, content, close);
+    }
 
-        if (key == null) {
-            // This channel isn't registered yet. We've queued the
-            // write. When the channel is connected the selector
-            // thread will notice and set the interest Ops to OP_WRITE
-            if (log.logTrace()) {
-                log.trace("Queued write for unregistered channel on " + Utils.toString(socket));
+    /**
+     * Queue's several buffers, some of which were taken from the {@link #getWriteBufferPool() write buffer pool},
+     * followed by a region of a file or a stream of content to be written on the indicated {@link Connection}.
+     * <p>
+     * Pooled buffers are returned to the pool as soon as they've been written (or the connection is closed), so
+     * the caller must not touch them once they've been queued.
+     *
+     * @param connection
+     *            The connection to write to.
+     * @param data
+     *            The buffers to write ahead of the content. These must not be modified once queued.
+     * @param pooled
+     *            Indicates which of the entries in <code>data</code> came from the write buffer pool. May be
+     *            <code>null</code> if none of them did.
+     * @param content
+     *            The file region or content stream to write. May be <code>null</code>.
+     * @param close
+     *            The connection should be closed after the write completes.
+     * @see #queueWrite(Connection, ByteBuffer[], ContentSource, boolean)
+     */
+    protected void queueWrite(Connection connection, ByteBuffer[] data, boolean[] pooled, ContentSource content,
+            boolean close) {
+        Socket socket = connection.getSocket();
+        SelectionKey key = connection.getSelectionKey();
+        if (log.logTrace()) {
+            long length = 0;
+            for (ByteBuffer buf : data) {
+                length += buf.remaining();
+            }
+            log.trace("Queuing " + length + " byte(s) in " + data.length + " buffer(s)"
+                    + (content == null ? "" : " and a " + content.getClass().getSimpleName()) + " (close=" + close
+                    + ", socket=" + Utils.toString(socket) + ", key=" + key + ")");
+        }
+
+        // Writers to the same connection serialize on it so a direct
+        // write can never overtake data queued by another thread.
+        synchronized (connection) {
+            boolean written = key != null && !this.useHttps
+                    && this.writeDirect(connection, key, data, close && content == null);
+            for (int i = 0; i < data.length; i++) {
+                boolean isPooled = pooled != null && pooled[i];
+                if (!written && data[i].hasRemaining()) {
+                    connection.putWriteBuffer(data[i], isPooled);
+                } else if (isPooled) {
+                    this.getWriteBufferPool().release(data[i]);
+                }
+            }
+            if (content != null && key != null && !key.isValid()) {
+                // The direct write failed and the connection has been closed
+                content.release();
+                return;
+            }
+            if (written && content == null) {
+                return;
+            }
+
+            if (content != null) {
+                connection.putWriteContent(content);
             }
-        } else {
             if (close) {
                 // Signal that we want a close after the write completes.
-                // This should never be required on an unregistered
-                // SelectionKey since it's really only used to shut down
-                // a socket in the event of bad data or to shut down
-                // a socket after responding to a pre-1.1 client.
-                key.attach(CLOSE_AFTER_WRITE);
+                connection.setCloseAfterWrite();
             }
         }
 
+        if (key == null && log.logTrace()) {
+            log.trace("Queued write for unregistered channel on " + Utils.toString(socket));
+        }
+
         // Indicate that we're interested in writing on this socket. The socket
-        // itself may not be connected (or even registered) at this point, but at
-        // the very least a registration has been queued (otherwise there would
-        // be no socket to begin with). If so then the registration will be
-        // processed and this OP_WRITE will be ignored (if the socket is not
-        // yet connected) or applied (if it is).
-        //
-        // We have to do this because the connection operation may finish on this
-        // socket before this method is called, in which case this write would
-        // never happen.
-        this.queueInterestOpsUpdate(socket, OP_WRITE);
+        // itself may not be registered at this point, but at the very least a
+        // registration has been queued (otherwise there would be no connection
+        // to begin with). Changes are applied in order, so this OP_WRITE is
+        // applied once the registration has been processed.
+        this.queueInterestOpsUpdate(connection, OP_WRITE);
     }
 
     /**
@@ -933,82 +1469,25 @@ public abstract class HttpProcessor {
     protected abstract void handleTimeout(Socket socket, Exception cause);
 
     /**
-     * Called when a complete HTTP message has been identified.
-     *
-     * @param socket
-     *            The socket on which a complete message has been received.
-     */
-    protected abstract void removeReadBuffer(Socket socket);
-
-    /**
-     * Called when a a socket is deregistered and any buffers associated with it should be released.
-     *
-     * @param socket
-     *            The socket on which a complete message has been received.
-     */
-    protected abstract void removeReadBuffers(Socket socket);
-
-    /**
-     * Called when data is available on a socket.
+     * Called when data arrives on a connection with no incomplete message buffered.
      * <p>
-     * Implementations must return a buffer, even if this means creating a new instance. The same buffer should be
-     * returned for a given socket until the {@link #removeReadBuffer(Socket)} method is invoked, ensuring that
-     * message fragmentation is correctly handled.
+     * Implementations must return a new buffer. The buffer is held by the {@link Connection} until a complete
+     * message has been read into it, ensuring that message fragmentation is correctly handled.
      *
-     * @param socket
-     *            The socket on which data has arrived.
-     * @return A message buffer for the given socket.
+     * @param connection
+     *            The connection on which data has arrived.
+     * @return A new message buffer for the given connection.
      */
-    protected abstract HttpMessageBuffer getReadBuffer(Socket socket);
+    protected abstract HttpMessageBuffer newReadBuffer(Connection connection);
 
-    /**
-     * Called when data is available to be written to a socket.
-     *
-     * @param socket
-     *            The socket on which the data should be sent.
-     * @param data
-     *            The data to be written.
-     */
-    protected abstract void putWriteBuffer(Socket socket, ByteBuffer data);
-
-    /**
-     * Called to find out if data is queued to be written to a socket.
-     *
-     * @param socket
-     *            The socket on which the data should be sent.
-     * @return <code>true</code> if there is a buffer waiting to be written on the given socket
-     */
-    protected abstract boolean isWriteQueued(Socket socket);
-
-    /**
-     * Called when a all of the data in a pending write buffer has been written to a socket.
-     *
-     * @param socket
-     *            The socket the buffer was associated with.
-     */
-    protected abstract void removeWriteBuffer(Socket socket);
-
-    /**
-     * Called when a a socket is deregistered and any buffers associated with it should be released.
-     *
-     * @param socket
-     *            The socket the buffer was associated with.
-     */
-    protected abstract void removeWriteBuffers(Socket socket);
-
-    /**
-     * Called when a socket becomes available for writing.
-     * <p>
-     * Implementations should return a buffer only if one has been added using
-     * {@link #putWriteBuffer(Socket, ByteBuffer)}. The same buffer should be returned for a given socket until the
-     * {@link #removeWriteBuffer(Socket)} method is invoked, ensuring that large messages that must be written in
-     * multiple fragments are correctly handled.
-     *
-     * @param socket
-     *            The socket that is available for writing.
-     * @return A data buffer for the given socket.
-     */
-    protected abstract ByteBuffer getWriteBuffer(Socket socket);
+    private HttpMessageBuffer getReadBuffer(Connection connection) {
+        HttpMessageBuffer buffer = connection.getReadBuffer();
+        if (buffer == null) {
+            buffer = this.newReadBuffer(connection);
+            connection.setReadBuffer(buffer);
+        }
+        return buffer;
+    }
 
     /**
      * Request an update to a given {@link Socket}'s interest operation set.
@@ -1022,10 +1501,11 @@ public abstract class HttpProcessor {
      *            The new interest operation.
      */
     private void queueInterestOpsUpdate(Socket socket, Integer interestOp) {
-        synchronized (this.pendingInterestOps) {
-            this.pendingInterestOps.put(socket, interestOp);
-        }
-        this.getSocketSelector().wakeup();
+        this.selectorFor(socket.getChannel()).queueInterestOps(socket, interestOp.intValue());
+    }
+
+    private void queueInterestOpsUpdate(Connection connection, Integer interestOp) {
+        connection.getChannelSelector().queueInterestOps(connection.getSocket(), interestOp.intValue());
     }
 
     protected void queueRead(Socket socket) {
@@ -1036,6 +1516,13 @@ public abstract class HttpProcessor {
         this.queueInterestOpsUpdate(socket, OP_WRITE);
     }
 
+    /**
+     * Asks the selecting thread to resume writing on a connection whose {@link ContentStream} had run dry.
+     */
+    void requestWrite(Connection connection) {
+        this.queueInterestOpsUpdate(connection, OP_WRITE);
+    }
+
     public void registerSSLSessionPolicy(SSLSessionPolicy policy) {
         this.sslSessionPolicy = policy;
     }
@@ -1051,24 +1538,49 @@ public abstract class HttpProcessor {
 
     // TODO: Comment to describe why this differes to registerSocket
     protected void registerChannel(SelectableChannel channel) {
-        this.channelSelector.addChannel(this, channel);
+        this.registerChannel(channel, this.channelSelector);
+    }
+
+    private void registerChannel(SelectableChannel channel, ChannelSelector selector) {
+        this.channelSelectors.put(channel, selector);
+        selector.addChannel(this, channel);
     }
 
     protected void deregisterChannel(SelectableChannel channel) {
-        this.channelSelector.removeChannel(channel);
+        ChannelSelector selector = this.selectorFor(channel);
+        this.channelSelectors.remove(channel);
+        selector.removeChannel(channel);
     }
 
     protected void registerSocket(Socket socket, String host, int port, boolean client) throws IOException {
     }
 
-    protected void deregisterSocket(Socket socket) {
-        this.removeReadBuffers(socket);
-        this.removeWriteBuffers(socket);
-
-        this.deregisterChannel(socket.getChannel());
+    /**
+     * Releases all state associated with a connection and detaches it from its {@link SelectionKey}.
+     * <p>
+     * Sub-classes holding additional per-connection state should release it by overriding
+     * {@link Connection#release()} rather than this method.
+     *
+     * @param connection
+     *            The connection to deregister. May be <code>null</code>, in which case this is a no-op.
+     */
+    protected void deregisterConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        this.deregisterChannel(connection.getChannel());
+        this.connections.remove(connection.getChannel());
+        SelectionKey key = connection.getSelectionKey();
+        if (key != null) {
+            // Anything still holding the key mustn't reach a released connection
+            key.attach(null);
+        }
+        connection.release();
     }
 
-    private SSLSessionMetadata initSocketSSLHandshake(Socket socket) throws SSLException {
+    private SSLSessionMetadata initSocketSSLHandshake(Connection connection) throws SSLException {
+        Socket socket = connection.getSocket();
+
         // Create the engine
         SSLEngine engine = this.initSocketSSLEngine(socket);
 
@@ -1087,7 +1599,7 @@ public abstract class HttpProcessor {
         }
 
         // Record the new engine so it get's closed when the socket is shut down.
-        this.sslEngineMap.put(socket, metadata);
+        connection.setSSLSessionMetadata(metadata);
 
         return metadata;
     }
@@ -1099,8 +1611,8 @@ public abstract class HttpProcessor {
         return engine;
     }
 
-    private boolean isHandshaking(Socket socket) {
-        SSLSessionMetadata sessionMetadata = this.sslEngineMap.get(socket);
+    private boolean isHandshaking(Connection connection) {
+        SSLSessionMetadata sessionMetadata = connection.getSSLSessionMetadata();
         return (sessionMetadata == null)
                 || (sessionMetadata.engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING);
     }
@@ -1108,15 +1620,17 @@ public abstract class HttpProcessor {
     private void progressSSLHandshake(SelectionKey key) throws IOException {
         SocketChannel socketChannel = (SocketChannel) key.channel();
         Socket socket = socketChannel.socket();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer readBuf = connection.getChannelSelector().getReadBuffer();
 
         // Make sure an engine is initialized for this socket
-        SSLSessionMetadata sessionMetadata = this.sslEngineMap.get(socket);
+        SSLSessionMetadata sessionMetadata = connection.getSSLSessionMetadata();
         if (sessionMetadata == null) {
             if (log.logTrace()) {
                 log.trace(this.getClass().getSimpleName() + ": Initializing SSL engine for "
                         + this.getClass().getSimpleName() + " on " + Utils.toString(socket));
             }
-            sessionMetadata = this.initSocketSSLHandshake(socket);
+            sessionMetadata = this.initSocketSSLHandshake(connection);
             this.handleSSLHandshakeStarted(socket, sessionMetadata);
         }
 
@@ -1153,7 +1667,7 @@ public abstract class HttpProcessor {
                         log.trace(this.getClass().getSimpleName() + ": NEED_UNWRAP for " + Utils.toString(socket)
                                 + ": calling readBuffer()");
                     }
-                    numRead = this.readBuffer(key, socketChannel, this.nonBlockingReadBuf);
+                    numRead = this.readBuffer(key, socketChannel, readBuf);
                 } catch (RemoteSocketClosedException e) {
                     // The remote guy shut us out during the handshak
                     throw new SSLException("Handshake aborted by remote entity (socket closed)", e);
@@ -1174,13 +1688,13 @@ public abstract class HttpProcessor {
                     // Since we're in here the channel is already registered for OP_READ.
                     // Don't requeue it since that will needlessly wake up the selecting
                     // thread.
-                    this.nonBlockingReadBuf.clear();
+                    readBuf.clear();
                     return;
                 }
 
-                while (this.nonBlockingReadBuf.hasRemaining()) {
+                while (readBuf.hasRemaining()) {
                     sessionMetadata.appBuffer.clear();
-                    result = engine.unwrap(this.nonBlockingReadBuf, sessionMetadata.appBuffer);
+                    result = engine.unwrap(readBuf, sessionMetadata.appBuffer);
                     sessionMetadata.appBuffer.flip();
                     // A handshake never produces data for us to consume.
                     if (sessionMetadata.appBuffer.hasRemaining()) {
@@ -1194,7 +1708,7 @@ public abstract class HttpProcessor {
 
                     if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
                         // Need more data
-                        this.queueInterestOpsUpdate(socket, OP_READ);
+                        this.queueInterestOpsUpdate(connection, OP_READ);
                         break;
                     }
 
@@ -1203,7 +1717,7 @@ public abstract class HttpProcessor {
                     }
                 }
 
-                this.nonBlockingReadBuf.clear();
+                readBuf.clear();
 
                 break;
             case NEED_WRAP:
@@ -1239,7 +1753,7 @@ public abstract class HttpProcessor {
                     }
                     if (!this.writeBuffer(key, socketChannel, sessionMetadata.netBuffer)) {
                         // Only some of the data was written Still have data to write, make sure we are alerted to write availability on the socket
-                        this.queueInterestOpsUpdate(socket, OP_WRITE);
+                        this.queueInterestOpsUpdate(connection, OP_WRITE);
                         // And return since we have to wait for the socket to become available.
                         return;
                     }
@@ -1264,7 +1778,7 @@ public abstract class HttpProcessor {
 
                     // We need more data (to pass to unwrap(), signal we're interested
                     // in reading on the socket
-                    this.queueInterestOpsUpdate(socket, OP_READ);
+                    this.queueInterestOpsUpdate(connection, OP_READ);
 
                     // And return since we have to wait for the socket to become available.
                     return;
@@ -1298,10 +1812,10 @@ public abstract class HttpProcessor {
         }
     }
 
-    private void handleSSLHandshakeFailed(Socket socket) {
-        SSLSessionMetadata metadata = this.sslEngineMap.get(socket);
+    private void handleSSLHandshakeFailed(Connection connection) {
+        SSLSessionMetadata metadata = connection.getSSLSessionMetadata();
         if (metadata == null) {
-            log.warn("SSL handshake meta-data not found for " + Utils.toString(socket));
+            log.warn("SSL handshake meta-data not found for " + Utils.toString(connection.getSocket()));
             return;
         }
 
@@ -1338,51 +1852,237 @@ public abstract class HttpProcessor {
 
     protected abstract void handleSSLHandshakeFinished(Socket socket, SSLEngine engine);
 
-    private void processReadData(HttpMessageBuffer httpMsg, byte[] data, int numRead) throws IOException {
+    // Returns the number of complete messages queued
+    private int processReadData(Connection connection, HttpMessageBuffer httpMsg, ByteBuffer data)
+            throws IOException {
         if (log.logTrace()) {
-            log.trace("Read " + numRead + " byte(s):\n" + Utils.toHexDump(data, 0, numRead));
+            log.trace("Read " + data.remaining() + " byte(s):\n" + Utils.toHexDump(data));
         }
 
+        // Complete messages read here (typically pipelined requests) are
+        // dispatched together once the read has been consumed, so they reach
+        // a single worker in the order they arrived.
+        List<HttpMessageBuffer> batch = null;
         try {
-            Socket socket = httpMsg.getSocket();
-            int excess = httpMsg.addBytes(data, 0, numRead);
-            // FIXME: To really support pipelining we need to guarantee
-            // response order. The way I see it this means "pipelining" only
-            // really means "all requests received in a single read". If we
-            // assume that then we could collect them all together here
-            // before dispatching them and have the handler threads know how
-            // to deal with a single "batch" call.
-            while (excess >= 0) {
-                // Clear this socket's request buffer
-                this.removeReadBuffer(socket);
-                this.getQueue().add(httpMsg);
-
-                if (excess > 0) {
-                    // There's still data, start a new message
-                    httpMsg = this.getReadBuffer(socket);
-                    excess = httpMsg.addBytes(data, excess, numRead - excess);
-                } else {
+            while (httpMsg.addBytes(data)) {
+                // Clear this connection's request buffer
+                connection.setReadBuffer(null);
+                if (!httpMsg.isStreaming()) {
+                    if (batch == null) {
+                        batch = new ArrayList<>(4);
+                    }
+                    batch.add(httpMsg);
+                }
+
+                if (!data.hasRemaining()) {
                     // We have a complete message and no more data
-                    // break out of the loop
-                    break;
+                    return this.enqueueMessages(connection, batch);
+                }
+
+                // There's still data, start a new message
+                httpMsg = this.getReadBuffer(connection);
+            }
+
+            // Anything complete goes ahead of the message still being read
+            int numMessages = this.enqueueMessages(connection, batch);
+            batch = null;
+
+            // The message is incomplete, but if its headers are in it may be
+            // handed off now so its content can be consumed as it arrives.
+            if (httpMsg.isHeaderComplete() && !connection.isHeadersHandled()) {
+                connection.setHeadersHandled();
+                this.headersReceived(connection, httpMsg);
+                if (this.shouldStream(connection, httpMsg)) {
+                    httpMsg.setStreaming();
+                    if (this.enqueueMessage(connection, httpMsg, 1)) {
+                        numMessages++;
+                    }
                 }
             }
+            return numMessages;
         } catch (Exception e) {
+            // Messages read ahead of the one that failed are still answered
+            int numMessages = this.enqueueMessages(connection, batch);
+            httpMsg.abandon();
             this.handleMessageException(httpMsg, e);
+            return numMessages;
         }
     }
 
-    private boolean processDataWritten(SelectionKey key, Socket socket) throws IOException {
-        this.removeWriteBuffer(socket);
+    /**
+     * Places the complete messages from a single read on the worker queue. A lone message is queued as is, several
+     * are queued together as a {@link List} so one worker handles all of them, in order.
+     *
+     * @return The number of messages queued.
+     */
+    private int enqueueMessages(Connection connection, List<HttpMessageBuffer> batch) throws IOException {
+        if (batch == null) {
+            return 0;
+        }
+        if (batch.size() == 1) {
+            return this.enqueueMessage(connection, batch.get(0), 1) ? 1 : 0;
+        }
+        return this.enqueueMessage(connection, batch, batch.size()) ? batch.size() : 0;
+    }
 
-        if (key.attachment() == CLOSE_AFTER_WRITE) {
-            key.cancel();
-            socket.getChannel().close();
-            this.deregisterSocket(socket);
+    /**
+     * Called on the selecting thread once the headers of a message have been read and validated but its content has
+     * not arrived yet. This is not called for a message whose content arrives along with its headers.
+     * <p>
+     * This is called at most once per message and must not block. The default implementation does nothing.
+     *
+     * @throws IOException
+     *             if an error occurs writing to the connection.
+     */
+    protected void headersReceived(Connection connection, HttpMessageBuffer msg) throws IOException {
+    }
+
+    /**
+     * Called on the selecting thread once the headers of a message have been read but its content has not, to
+     * decide whether the message should be queued for processing straight away. A message queued early is marked as
+     * {@link HttpMessageBuffer#isStreaming() streaming} and its content can be consumed through
+     * {@link HttpMessageBuffer#getContentChannel()} as it arrives.
+     * <p>
+     * This is called at most once per message and must not block. The default implementation returns
+     * <code>false</code>.
+     *
+     * @return <code>true</code> to queue the message before its content has arrived.
+     */
+    protected boolean shouldStream(Connection connection, HttpMessageBuffer msg) {
+        return false;
+    }
+
+    /**
+     * Places a complete message (or a batch of them) on the worker queue, applying the queue limits configured on
+     * the {@link ResourcePool}. A batch occupies a single slot on the queue.
+     *
+     * @return <code>false</code> if the item was rejected because the queue is full.
+     */
+    private boolean enqueueMessage(Connection connection, Object item, int numMessages) throws IOException {
+        int depth = this.queue.size();
+        int max = this.resourcePool.getMaxQueueSize();
+        boolean full = max > 0 && depth >= max;
+        boolean tracked = this.tracksMessagesInFlight();
+        if (full && tracked && !connection.hasMessagesInFlight()) {
+            if (log.logDebug()) {
+                log.debug("Worker queue full (" + depth + "), rejecting message on "
+                        + Utils.toString(connection.getSocket()));
+            }
+            this.suspendReads(connection);
+            // Nothing will handle these, so free any content spilled to disk now
+            this.releaseContent(item);
+            this.rejectMessage(connection, this.firstMessage(item));
             return false;
+        }
+
+        if (tracked) {
+            connection.messagesQueued(numMessages);
+        }
+        this.queue.add(item);
+
+        int high = this.resourcePool.getQueueHighWatermark();
+        if (full || (high > 0 && depth + 1 >= high)) {
+            this.suspendReads(connection);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void releaseContent(Object item) {
+        if (item instanceof List) {
+            for (HttpMessageBuffer msg : (List<HttpMessageBuffer>) item) {
+                msg.releaseContent();
+            }
         } else {
-            key.interestOps(SelectionKey.OP_READ);
-            return true;
+            ((HttpMessageBuffer) item).releaseContent();
         }
     }
+
+    @SuppressWarnings("unchecked")
+    private HttpMessageBuffer firstMessage(Object item) {
+        if (item instanceof List) {
+            return ((List<HttpMessageBuffer>) item).get(0);
+        }
+        return (HttpMessageBuffer) item;
+    }
+
+    private void suspendReads(Connection connection) {
+        SelectionKey key = connection.getSelectionKey();
+        if (key != null && key.isValid()) {
+            connection.getChannelSelector().suspendReads(key, connection);
+        }
+    }
+
+    /**
+     * Called on the selecting thread when a complete message is read while the worker queue is full (see
+     * {@link ResourcePool#setMaxQueueSize(int)}). Reads on the connection have already been suspended, and the
+     * content of the message (and of any read along with it) has already been released.
+     * <p>
+     * The default implementation closes the connection. Implementations may want to let the remote party know why
+     * first.
+     *
+     * @param connection
+     *            The connection the message was read from.
+     * @param msg
+     *            The rejected message.
+     * @throws IOException
+     *             if an error occurs notifying the remote party.
+     */
+    protected void rejectMessage(Connection connection, HttpMessageBuffer msg) throws IOException {
+        SelectionKey key = connection.getSelectionKey();
+        if (key != null) {
+            safeClose(key, connection.getChannel(), "Worker queue full, closing connection", null);
+        }
+    }
+
+    /**
+     * Notes that a message read on the given connection has been answered.
+     * <p>
+     * Sub-classes that {@link #tracksMessagesInFlight() track messages in flight} must invoke this once for every
+     * message taken from the worker queue, when its response is queued. Others need not invoke it at all.
+     */
+    protected void messageCompleted(Connection connection) {
+        connection.messageCompleted();
+    }
+
+    /**
+     * Indicates whether this instance invokes {@link #messageCompleted(Connection)} for every message it takes from
+     * the worker queue, so {@link Connection#hasMessagesInFlight()} can be relied on.
+     * <p>
+     * Only then are messages rejected when the worker queue is full (see {@link ResourcePool#setMaxQueueSize(int)}),
+     * since a connection with messages in flight mustn't have a later one rejected. Otherwise a full queue only
+     * suspends reads, as the high watermark does. The default implementation returns <code>false</code>.
+     *
+     * @return <code>true</code> if messages in flight are tracked.
+     */
+    protected boolean tracksMessagesInFlight() {
+        return false;
+    }
+
+    /**
+     * Invoked on the selecting thread once everything queued for a connection has been written.
+     */
+    private void processWriteQueueDrained(SelectionKey key, Connection connection) throws IOException {
+        boolean close;
+        synchronized (connection) {
+            if (connection.isWriteQueued()) {
+                // Another thread got in first, stay registered for OP_WRITE
+                return;
+            }
+            close = connection.isCloseAfterWrite();
+        }
+
+        if (close) {
+            this.closeAfterWrite(key, connection);
+        } else {
+            // Suspended reads are re-armed when they're resumed
+            key.interestOps(connection.isReadSuspended() ? 0 : SelectionKey.OP_READ);
+        }
+    }
+
+    private void closeAfterWrite(SelectionKey key, Connection connection) throws IOException {
+        key.cancel();
+        connection.getChannel().close();
+        this.deregisterConnection(connection);
+    }
 }
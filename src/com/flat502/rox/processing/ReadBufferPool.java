@@ -0,0 +1,114 @@
+package com.flat502.rox.processing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct {@link ByteBuffer}s used for socket reads.
+ * <p>
+ * Reading into a heap buffer costs an extra copy, since the JDK reads into a temporary direct buffer of its own and
+ * then copies the data across. Reading straight into a direct buffer avoids that.
+ * <p>
+ * Buffers come in a small number of size classes, each twice the size of the one before it, from the minimum size
+ * up to (at most) the maximum size. Buffers are carved out of larger direct slabs so we don't pay for a separate
+ * native allocation (and its eventual cleanup) per buffer. Each connection tracks the size class it reads with and
+ * {@link #adjust(int, int)} moves it up after reads that fill the buffer and down after reads that use less than
+ * half of it.
+ * <p>
+ * Each {@link ChannelSelector} has its own instance, so this class is not thread-safe.
+ */
+class ReadBufferPool {
+    // The (approximate) size of the direct allocations buffers are sliced from.
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    private final int minSize;
+    private final ArrayDeque<ByteBuffer>[] free;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    ReadBufferPool(int minSize, int maxSize) {
+        if (minSize < 1) {
+            throw new IllegalArgumentException("Minimum read buffer size must be at least 1: " + minSize);
+        }
+        if (maxSize < minSize) {
+            throw new IllegalArgumentException("Maximum read buffer size is less than the minimum (" + maxSize
+                    + " < " + minSize + ")");
+        }
+
+        int classes = 1;
+        while (((long) minSize << classes) <= maxSize) {
+            classes++;
+        }
+
+        this.minSize = minSize;
+        this.free = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            this.free[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return The number of size classes. Valid size classes range from <code>0</code> to one less than this.
+     */
+    int getSizeClassCount() {
+        return this.free.length;
+    }
+
+    /**
+     * @return The capacity of buffers in the given size class.
+     */
+    int getSize(int sizeClass) {
+        return this.minSize << sizeClass;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new slab if none are free.
+     */
+    ByteBuffer acquire(int sizeClass) {
+        ArrayDeque<ByteBuffer> list = this.free[sizeClass];
+        ByteBuffer buf = list.poll();
+        if (buf == null) {
+            this.allocateSlab(sizeClass);
+            buf = list.poll();
+        }
+        return buf;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool.
+     */
+    void release(ByteBuffer buf, int sizeClass) {
+        buf.clear();
+        this.free[sizeClass].push(buf);
+    }
+
+    /**
+     * Chooses the size class to use for the next read on a connection.
+     *
+     * @param sizeClass
+     *            The size class used for the last read.
+     * @param numRead
+     *            The number of bytes that read returned.
+     * @return The size class for the next read.
+     */
+    int adjust(int sizeClass, int numRead) {
+        int size = this.getSize(sizeClass);
+        if (numRead >= size && sizeClass < this.free.length - 1) {
+            return sizeClass + 1;
+        }
+        if (numRead < size / 2 && sizeClass > 0) {
+            return sizeClass - 1;
+        }
+        return sizeClass;
+    }
+
+    private void allocateSlab(int sizeClass) {
+        int size = this.getSize(sizeClass);
+        int count = Math.max(1, SLAB_SIZE / size);
+        ByteBuffer slab = ByteBuffer.allocateDirect(size * count);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * size);
+            slab.position(i * size);
+            this.free[sizeClass].push(slab.slice());
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.flat502.rox.processing;
 
 import java.io.IOException;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Timer;
@@ -13,8 +14,19 @@ import com.flat502.rox.utils.ProfilerCollection;
 
 // TODO: Document
 public abstract class ResourcePool {
-    private Thread processingThread;
-    private ChannelSelector channelSelector;
+    private List<Thread> processingThreads = new ArrayList<>();
+    private List<ChannelSelector> channelSelectors = new ArrayList<>();
+    private List<HttpProcessor> processors = new ArrayList<>();
+    private int selectorCount = 1;
+    private int nextSelector;
+    private volatile int readBufferSize = 8192;
+    private volatile int maxReadBufferSize = 64 * 1024;
+    private volatile int readByteBudget = 256 * 1024;
+    private volatile int readMessageBudget = 32;
+    private volatile int queueHighWatermark;
+    private volatile int queueLowWatermark;
+    private volatile int maxQueueSize;
+    private volatile WriteBufferPool writeBufferPool = new WriteBufferPool(true);
     private Timer timer;
     private BlockingQueue<Object> queue;
     private List<HttpMessageHandler> workers = new LinkedList<>();
@@ -27,13 +39,364 @@ public abstract class ResourcePool {
         this.queue = this.newQueue();
     }
 
+    /**
+     * Returns the primary {@link ChannelSelector}.
+     * <p>
+     * Listening channels are registered with this selector. Accepted channels are distributed across all selectors
+     * using {@link #nextChannelSelector()}.
+     */
     protected ChannelSelector getChannelSelector() throws IOException {
         synchronized (workers) {
-            if (this.channelSelector == null) {
-                this.channelSelector = this.newChannelSelector();
+            if (this.channelSelectors.isEmpty()) {
+                this.openChannelSelectors();
+            }
+            return this.channelSelectors.get(0);
+        }
+    }
+
+    /**
+     * Returns the {@link ChannelSelector} at a given position.
+     * <p>
+     * Positions wrap, so any non-negative index selects a {@link ChannelSelector}. This is used to spread
+     * listening channels across selectors. At least one {@link HttpProcessor} must have been attached.
+     */
+    protected ChannelSelector getChannelSelector(int index) {
+        synchronized (workers) {
+            return this.channelSelectors.get(index % this.channelSelectors.size());
+        }
+    }
+
+    /**
+     * Select the {@link ChannelSelector} a newly accepted channel should be registered with.
+     * <p>
+     * The selector with the fewest registered channels is chosen. Ties are broken in a round-robin fashion so a
+     * burst of connections accepted before any of them is registered is still spread across all selectors.
+     *
+     * @return The {@link ChannelSelector} to register a new channel with.
+     */
+    protected ChannelSelector nextChannelSelector() throws IOException {
+        synchronized (workers) {
+            if (this.channelSelectors.isEmpty()) {
+                return this.getChannelSelector();
+            }
+            int size = this.channelSelectors.size();
+            int start = this.nextSelector++ % size;
+            ChannelSelector best = null;
+            int bestCount = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                ChannelSelector candidate = this.channelSelectors.get((start + i) % size);
+                int count = candidate.getChannelCount();
+                if (count < bestCount) {
+                    best = candidate;
+                    bestCount = count;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Set the number of selecting threads (and associated {@link java.nio.channels.Selector}s) this instance will
+     * use for I/O.
+     * <p>
+     * This must be invoked before processing begins. The default is a single selecting thread.
+     *
+     * @param count
+     *            The number of selecting threads. Must be at least 1.
+     * @throws IllegalArgumentException
+     *             if <code>count</code> is less than 1.
+     * @throws IllegalStateException
+     *             if processing has already started.
+     * @throws IOException
+     *             if an additional {@link java.nio.channels.Selector} cannot be opened.
+     */
+    public void setSelectorCount(int count) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Selector count must be at least 1: " + count);
+        }
+        synchronized (workers) {
+            if (!this.processingThreads.isEmpty()) {
+                throw new IllegalStateException("Selector count cannot be changed once processing has started");
+            }
+            this.selectorCount = count;
+            if (!this.channelSelectors.isEmpty()) {
+                this.openChannelSelectors();
+            }
+        }
+    }
+
+    /**
+     * Get the number of selecting threads this instance uses (or will use) for I/O.
+     *
+     * @return The number of selecting threads.
+     */
+    public int getSelectorCount() {
+        synchronized (workers) {
+            return this.selectorCount;
+        }
+    }
+
+    /**
+     * Set the range of buffer sizes used for socket reads.
+     * <p>
+     * Each selecting thread keeps a pool of direct buffers for reads. A connection starts out reading into a buffer
+     * of the initial size. Reads that fill the buffer move the connection up to a buffer twice the size (up to the
+     * maximum) and reads that use less than half of it move it back down again.
+     * <p>
+     * This must be invoked before processing begins. The defaults are 8KB and 64KB respectively.
+     *
+     * @param initialSize
+     *            The initial (and smallest) read buffer size, in bytes.
+     * @param maxSize
+     *            The largest read buffer size, in bytes.
+     * @throws IllegalArgumentException
+     *             if <code>initialSize</code> is less than 1 or <code>maxSize</code> is less than
+     *             <code>initialSize</code>.
+     * @throws IllegalStateException
+     *             if processing has already started.
+     */
+    public void setReadBufferSize(int initialSize, int maxSize) {
+        if (initialSize < 1) {
+            throw new IllegalArgumentException("Read buffer size must be at least 1: " + initialSize);
+        }
+        if (maxSize < initialSize) {
+            throw new IllegalArgumentException("Maximum read buffer size is less than the initial size ("
+                    + maxSize + " < " + initialSize + ")");
+        }
+        synchronized (workers) {
+            if (!this.processingThreads.isEmpty()) {
+                throw new IllegalStateException("Read buffer size cannot be changed once processing has started");
+            }
+            this.readBufferSize = initialSize;
+            this.maxReadBufferSize = maxSize;
+        }
+    }
+
+    /**
+     * @return The initial size of buffers used for socket reads.
+     */
+    public int getReadBufferSize() {
+        return this.readBufferSize;
+    }
+
+    /**
+     * @return The largest size of buffers used for socket reads.
+     */
+    public int getMaxReadBufferSize() {
+        return this.maxReadBufferSize;
+    }
+
+    /**
+     * Set whether responses are marshalled into direct buffers.
+     * <p>
+     * Headers are marshalled into pooled buffers which are returned to the pool once they've been written. Direct
+     * buffers save the JDK copying each of them into a temporary direct buffer when it's written, at the cost of
+     * memory outside the heap.
+     * <p>
+     * This must be invoked before processing begins. The default is to use direct buffers.
+     *
+     * @throws IllegalStateException
+     *             if processing has already started.
+     */
+    public void setDirectWriteBuffers(boolean direct) {
+        synchronized (workers) {
+            if (!this.processingThreads.isEmpty()) {
+                throw new IllegalStateException("Write buffers cannot be changed once processing has started");
             }
+            this.writeBufferPool = new WriteBufferPool(direct);
+        }
+    }
+
+    /**
+     * @return The pool outgoing data is marshalled into.
+     */
+    public WriteBufferPool getWriteBufferPool() {
+        return this.writeBufferPool;
+    }
+
+    /**
+     * Set how much a single connection may read each time its selecting thread services it.
+     * <p>
+     * A selecting thread keeps reading from a connection for as long as there appears to be more data waiting,
+     * until either limit is reached. A connection that reaches a limit is serviced after every other ready
+     * connection on the selecting thread's next pass, so one busy client (a large upload or a deep pipeline) can't
+     * hold up everyone else sharing its thread. A read is never split to honour a limit, so either may be exceeded
+     * by up to one read.
+     * <p>
+     * The budget applies to plain connections only. SSL connections are read once per pass, into a buffer shared by
+     * every connection on the selecting thread, so each pass is already bounded by that buffer's size.
+     * <p>
+     * This must be invoked before processing begins. The defaults are 256KB and 32 messages.
+     *
+     * @param maxBytes
+     *            The number of bytes a connection may read per pass.
+     * @param maxMessages
+     *            The number of complete messages a connection may read per pass.
+     * @throws IllegalArgumentException
+     *             if either value is less than 1.
+     * @throws IllegalStateException
+     *             if processing has already started.
+     */
+    public void setReadBudget(int maxBytes, int maxMessages) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Read byte budget must be at least 1: " + maxBytes);
+        }
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("Read message budget must be at least 1: " + maxMessages);
+        }
+        synchronized (workers) {
+            if (!this.processingThreads.isEmpty()) {
+                throw new IllegalStateException("Read budget cannot be changed once processing has started");
+            }
+            this.readByteBudget = maxBytes;
+            this.readMessageBudget = maxMessages;
+        }
+    }
+
+    /**
+     * @return The number of bytes a connection may read each time its selecting thread services it.
+     */
+    public int getReadByteBudget() {
+        return this.readByteBudget;
+    }
+
+    /**
+     * @return The number of complete messages a connection may read each time its selecting thread services it.
+     */
+    public int getReadMessageBudget() {
+        return this.readMessageBudget;
+    }
+
+    /**
+     * @return The number of times, across all selecting threads, that a connection has had its reads cut short by
+     *         the byte budget.
+     */
+    public long getReadByteBudgetHits() {
+        synchronized (workers) {
+            long count = 0;
+            for (ChannelSelector selector : this.channelSelectors) {
+                count += selector.getReadByteBudgetHits();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return The number of times, across all selecting threads, that a connection has had its reads cut short by
+     *         the message budget.
+     */
+    public long getReadMessageBudgetHits() {
+        synchronized (workers) {
+            long count = 0;
+            for (ChannelSelector selector : this.channelSelectors) {
+                count += selector.getReadMessageBudgetHits();
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Set the worker queue depths at which reads are suspended and resumed.
+     * <p>
+     * Once the queue of complete messages waiting for a worker reaches the high watermark, connections that already
+     * have a message waiting for a response stop being read from. Reading resumes once the queue has drained to the
+     * low watermark. Connections without outstanding messages are still read from, so new clients aren't turned
+     * away (but see {@link #setMaxQueueSize(int)}).
+     * <p>
+     * Watermarks are disabled by default. This must be invoked before processing begins.
+     *
+     * @param high
+     *            The queue depth at which reads are suspended, or <code>0</code> to disable suspension.
+     * @param low
+     *            The queue depth at which suspended reads are resumed.
+     * @throws IllegalArgumentException
+     *             if either value is negative or <code>low</code> is not less than <code>high</code> (when
+     *             <code>high</code> is not <code>0</code>).
+     * @throws IllegalStateException
+     *             if processing has already started.
+     */
+    public void setQueueWatermarks(int high, int low) {
+        if (high < 0 || low < 0) {
+            throw new IllegalArgumentException("Queue watermarks cannot be negative: " + high + ", " + low);
+        }
+        if (high > 0 && low >= high) {
+            throw new IllegalArgumentException("Low queue watermark must be less than the high watermark ("
+                    + low + " >= " + high + ")");
+        }
+        synchronized (workers) {
+            if (!this.processingThreads.isEmpty()) {
+                throw new IllegalStateException("Queue watermarks cannot be changed once processing has started");
+            }
+            this.queueHighWatermark = high;
+            this.queueLowWatermark = low;
+        }
+    }
+
+    /**
+     * @return The queue depth at which reads are suspended, or <code>0</code> if suspension is disabled.
+     */
+    public int getQueueHighWatermark() {
+        return this.queueHighWatermark;
+    }
+
+    /**
+     * @return The queue depth at which suspended reads are resumed.
+     */
+    public int getQueueLowWatermark() {
+        return this.queueLowWatermark;
+    }
+
+    /**
+     * Bound the number of complete messages waiting for a worker.
+     * <p>
+     * A message read while the queue is full is rejected (a server answers with a <code>503</code>) unless its
+     * connection already has messages waiting for a response. Those are queued anyway, since rejecting them would
+     * reorder responses on the connection, but reads on the connection are suspended until the queue drains so the
+     * bound is exceeded by at most one message per connection.
+     * <p>
+     * Messages are only rejected by processors that {@link HttpProcessor#tracksMessagesInFlight() track} which
+     * messages are waiting for a response (as servers do). For any others a full queue suspends reads on the
+     * connection, so the bound is exceeded by at most one message per connection read from.
+     * <p>
+     * The queue is unbounded by default. This must be invoked before processing begins.
+     *
+     * @param max
+     *            The maximum queue depth, or <code>0</code> for an unbounded queue.
+     * @throws IllegalArgumentException
+     *             if <code>max</code> is negative.
+     * @throws IllegalStateException
+     *             if processing has already started.
+     */
+    public void setMaxQueueSize(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Maximum queue size cannot be negative: " + max);
+        }
+        synchronized (workers) {
+            if (!this.processingThreads.isEmpty()) {
+                throw new IllegalStateException("Queue size cannot be changed once processing has started");
+            }
+            this.maxQueueSize = max;
+        }
+    }
+
+    /**
+     * @return The maximum queue depth, or <code>0</code> if the queue is unbounded.
+     */
+    public int getMaxQueueSize() {
+        return this.maxQueueSize;
+    }
+
+    /**
+     * @return The number of channels registered across all selectors.
+     */
+    protected int getActiveChannelCount() {
+        synchronized (workers) {
+            int count = 0;
+            for (ChannelSelector selector : this.channelSelectors) {
+                count += selector.getChannelCount();
+            }
+            return count;
         }
-        return this.channelSelector;
     }
 
     protected Timer getTimer() {
@@ -48,14 +411,24 @@ public abstract class ResourcePool {
     }
 
     protected void startProcessingThread() {
+        List<Thread> threads;
         synchronized (workers) {
-            if (this.processingThread != null) {
+            if (!this.processingThreads.isEmpty()) {
                 return;
             }
 
-            this.processingThread = this.newProcessingThread(this.channelSelector);
+            for (int i = 0; i < this.channelSelectors.size(); i++) {
+                Thread thread = this.newProcessingThread(this.channelSelectors.get(i));
+                if (this.channelSelectors.size() > 1) {
+                    thread.setName(thread.getName() + "-" + i);
+                }
+                this.processingThreads.add(thread);
+            }
+            threads = new ArrayList<>(this.processingThreads);
+        }
+        for (Thread thread : threads) {
+            thread.start();
         }
-        this.processingThread.start();
     }
 
     public BlockingQueue<Object> getQueue() {
@@ -68,7 +441,9 @@ public abstract class ResourcePool {
                 while (this.removeWorker() > 0) {
                 }
             }
-            this.channelSelector.shutdown();
+            for (ChannelSelector selector : this.channelSelectors) {
+                selector.shutdown();
+            }
             if (this.timer != null) {
                 this.timer.cancel();
             }
@@ -168,9 +543,37 @@ public abstract class ResourcePool {
         return new ChannelSelector(this);
     }
 
+    protected void attach(HttpProcessor processor) throws IOException {
+        synchronized (workers) {
+            this.processors.add(processor);
+            for (ChannelSelector selector : this.channelSelectors) {
+                selector.register(processor);
+            }
+            this.openChannelSelectors();
+        }
+    }
+
+    // Brings the number of selectors in line with selectorCount. The primary
+    // selector (the first) is never discarded. Callers must hold the workers lock.
+    private void openChannelSelectors() throws IOException {
+        while (this.channelSelectors.size() < this.selectorCount) {
+            ChannelSelector selector = this.newChannelSelector();
+            for (HttpProcessor processor : this.processors) {
+                selector.register(processor);
+            }
+            this.channelSelectors.add(selector);
+        }
+        while (this.channelSelectors.size() > this.selectorCount) {
+            this.channelSelectors.remove(this.channelSelectors.size() - 1).getSocketSelector().close();
+        }
+    }
+
     protected void detach(HttpProcessor processor) throws IOException {
         synchronized (workers) {
-            this.channelSelector.deregister(processor);
+            this.processors.remove(processor);
+            for (ChannelSelector selector : this.channelSelectors) {
+                selector.deregister(processor);
+            }
         }
     }
 
@@ -17,6 +17,10 @@ class SSLSessionMetadata {
     public final SSLEngine engine;
     public final ByteBuffer netBuffer;
     public final ByteBuffer appBuffer;
+
+    // Set while netBuffer holds encrypted application data that has
+    // not been completely written yet.
+    boolean netBufferPending;
     private TimerTask handshakeTimerTask;
 
     private HttpProcessor processor;
@@ -0,0 +1,124 @@
+package com.flat502.rox.processing;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of {@link ByteBuffer}s that outgoing HTTP headers are marshalled into.
+ * <p>
+ * Buffers are direct by default, so a socket write doesn't have to copy them into a temporary direct buffer of its
+ * own first. As with {@link ReadBufferPool}, buffers come in size classes that double from the smallest up, and are
+ * sliced out of larger slabs.
+ * <p>
+ * Buffers are acquired by whichever thread marshals a response and are released once they have been written, which
+ * may be on a different thread, so this class is thread-safe. A buffer that is never released is simply garbage
+ * collected. Requests for more than the largest size class are met with a buffer that isn't pooled.
+ */
+public class WriteBufferPool {
+    private static final int MIN_SIZE = 256;
+    private static final int MAX_SIZE = 8192;
+
+    // The (approximate) size of the allocations buffers are sliced from, and
+    // the most free memory kept for each size class.
+    private static final int SLAB_SIZE = 64 * 1024;
+    private static final int MAX_FREE_BYTES = 16 * SLAB_SIZE;
+
+    private final boolean direct;
+    private final ArrayDeque<ByteBuffer>[] free;
+
+    /**
+     * @param direct
+     *            <code>true</code> to pool direct buffers, <code>false</code> to pool heap buffers.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public WriteBufferPool(boolean direct) {
+        int classes = 1;
+        while ((MIN_SIZE << classes) <= MAX_SIZE) {
+            classes++;
+        }
+
+        this.direct = direct;
+        this.free = new ArrayDeque[classes];
+        for (int i = 0; i < classes; i++) {
+            this.free[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if this pool hands out direct buffers.
+     */
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * Takes a buffer with room for at least <code>size</code> bytes from the pool. The buffer's position is
+     * <code>0</code> and its limit is <code>size</code>.
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = this.getSizeClass(size);
+        if (sizeClass == -1) {
+            return this.allocate(size);
+        }
+
+        ArrayDeque<ByteBuffer> list = this.free[sizeClass];
+        ByteBuffer buf;
+        synchronized (list) {
+            buf = list.poll();
+            if (buf == null) {
+                this.allocateSlab(sizeClass);
+                buf = list.poll();
+            }
+        }
+        buf.limit(size);
+        return buf;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool. The buffer must not be used again by the
+     * caller. Buffers too large to have come from the pool are ignored.
+     */
+    public void release(ByteBuffer buf) {
+        if (buf.isDirect() != this.direct) {
+            return;
+        }
+        int sizeClass = this.getSizeClass(buf.capacity());
+        if (sizeClass == -1 || (MIN_SIZE << sizeClass) != buf.capacity()) {
+            return;
+        }
+
+        buf.clear();
+        ArrayDeque<ByteBuffer> list = this.free[sizeClass];
+        synchronized (list) {
+            if (list.size() * buf.capacity() < MAX_FREE_BYTES) {
+                list.push(buf);
+            }
+        }
+    }
+
+    // Returns the smallest size class that holds size bytes, or -1 if size
+    // is larger than the largest size class.
+    private int getSizeClass(int size) {
+        for (int i = 0; i < this.free.length; i++) {
+            if (size <= (MIN_SIZE << i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer allocate(int size) {
+        return this.direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private void allocateSlab(int sizeClass) {
+        int size = MIN_SIZE << sizeClass;
+        int count = SLAB_SIZE / size;
+        ByteBuffer slab = this.allocate(size * count);
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * size);
+            slab.position(i * size);
+            this.free[sizeClass].push(slab.slice());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.flat502.rox.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.flat502.rox.encoding.Encoding;
+import com.flat502.rox.http.HttpConstants;
+import com.flat502.rox.http.HttpRequestBuffer;
+import com.flat502.rox.http.HttpResponse;
+import com.flat502.rox.processing.WriteBufferPool;
+import com.flat502.rox.server.response.Response;
+
+/**
+ * The marshalled forms of a response registered with {@link HttpServer#registerStaticResponse(Response)}.
+ * <p>
+ * A form is kept for each combination of HTTP version, kind of request method and content encoding the response
+ * has been sent with, and is duplicated for every connection it's written to. The <code>Date</code> header is the
+ * only part that changes over time, so a form is rebuilt when it's asked for in a later second than the one it was
+ * built in. Rebuilding rather than patching the date in place means a buffer never changes while another connection
+ * may still be writing it. Threads racing to rebuild a form may each build it, which is harmless.
+ * <p>
+ * Conditional requests depend on more than these, so they're never answered from here.
+ */
+final class CachedResponse {
+    // Forms are indexed by HTTP version (1.0 or 1.1) and method (GET, HEAD
+    // or anything else, which gets no ETag)
+    private static final int FORMS = 6;
+
+    private final Response response;
+    private final AtomicReferenceArray<Form> unencoded = new AtomicReferenceArray<>(FORMS);
+    private final ConcurrentHashMap<Encoding, AtomicReferenceArray<Form>> encoded = new ConcurrentHashMap<>();
+
+    CachedResponse(Response response) {
+        this.response = response;
+    }
+
+    /**
+     * Returns the form of the response to send in reply to <code>request</code>, building it if need be.
+     *
+     * @param encoding
+     *            The encoding the content is sent with, or <code>null</code>.
+     * @param pool
+     *            The pool to marshal headers with. Forms keep copies of their own, so every buffer taken from it is
+     *            returned straight away.
+     * @return The form to send, or <code>null</code> if this request must be answered in the usual way.
+     */
+    Form getForm(HttpServer server, HttpRequestBuffer request, Encoding encoding, WriteBufferPool pool)
+            throws IOException {
+        int index = indexOf(request);
+        if (index == -1) {
+            return null;
+        }
+
+        AtomicReferenceArray<Form> forms = this.unencoded;
+        if (encoding != null) {
+            forms = this.encoded.get(encoding);
+            if (forms == null) {
+                AtomicReferenceArray<Form> created = new AtomicReferenceArray<>(FORMS);
+                forms = this.encoded.putIfAbsent(encoding, created);
+                if (forms == null) {
+                    forms = created;
+                }
+            }
+        }
+
+        long second = System.currentTimeMillis() / 1000;
+        Form form = forms.get(index);
+        if (form == null || form.second != second) {
+            form = new Form(second, server.toHttpResponse(request, this.response, encoding), pool);
+            forms.set(index, form);
+        }
+        return form;
+    }
+
+    /**
+     * Discards every form, so they're rebuilt using the server's current settings.
+     */
+    void flush() {
+        for (int i = 0; i < FORMS; i++) {
+            this.unencoded.set(i, null);
+        }
+        this.encoded.clear();
+    }
+
+    private static int indexOf(HttpRequestBuffer request) {
+        if (request.getHeaderValue(HttpConstants.Headers.IF_NONE_MATCH) != null
+                || request.getHeaderValue(HttpConstants.Headers.IF_MODIFIED_SINCE) != null) {
+            return -1;
+        }
+
+        int index;
+        String version = request.getHttpVersionString();
+        if ("HTTP/1.1".equals(version)) {
+            index = 3;
+        } else if ("HTTP/1.0".equals(version)) {
+            index = 0;
+        } else {
+            return -1;
+        }
+
+        String method = request.getMethod();
+        if (method.equals(HttpConstants.Methods.HEAD)) {
+            index += 1;
+        } else if (!method.equals(HttpConstants.Methods.GET)) {
+            index += 2;
+        }
+        return index;
+    }
+
+    /**
+     * A response as it goes on the wire.
+     */
+    static final class Form {
+        final long second;
+        final boolean close;
+
+        // The headers, then the content if there is any
+        private final ByteBuffer[] data;
+
+        private Form(long second, HttpResponse httpRsp, WriteBufferPool pool) throws IOException {
+            ByteBuffer[] data = httpRsp.marshal(pool);
+
+            // A form outlives any one write, so the headers are moved out of
+            // the pooled buffer they were marshalled into and that buffer
+            // goes straight back
+            ByteBuffer head = data[0];
+            data[0] = pool.isDirect() ? ByteBuffer.allocateDirect(head.remaining())
+                    : ByteBuffer.allocate(head.remaining());
+            data[0].put(head.duplicate()).flip();
+            pool.release(head);
+
+            for (int i = 0; i < data.length; i++) {
+                data[i] = data[i].asReadOnlyBuffer();
+            }
+            this.second = second;
+            this.close = httpRsp.mustCloseConnection();
+            this.data = data;
+        }
+
+        /**
+         * @return Buffers to write this form from, which share its content but have positions of their own.
+         */
+        ByteBuffer[] getData() {
+            ByteBuffer[] copy = new ByteBuffer[this.data.length];
+            for (int i = 0; i < copy.length; i++) {
+                copy[i] = this.data[i].duplicate();
+            }
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.flat502.rox.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Generates and compares HTTP entity tags (<code>ETag</code> header values).
+ * <p>
+ * Tags for in-memory content are derived from a fast, non-cryptographic 64-bit hash of the content. A collision
+ * would only cause a client to keep a stale copy, so there's no need for anything stronger. Content is hashed eight
+ * bytes at a time.
+ */
+final class EntityTags {
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+
+    private EntityTags() {
+    }
+
+    /**
+     * Generates a tag for in-memory content.
+     *
+     * @param weak
+     *            <code>true</code> for a weak tag. A strong tag promises a byte-for-byte identical representation, so
+     *            content that will be compressed on the way out should get a weak tag.
+     */
+    static String forContent(byte[] content, boolean weak) {
+        return format(Long.toHexString(hash(content)), weak);
+    }
+
+    /**
+     * Generates a tag for the content remaining in a buffer, which may be direct. The buffer's position is left
+     * unchanged.
+     */
+    static String forContent(ByteBuffer content, boolean weak) {
+        return format(Long.toHexString(hash(content)), weak);
+    }
+
+    /**
+     * Generates a strong tag for a file from its modification time and length.
+     */
+    static String forFile(long lastModified, long length) {
+        return format(Long.toHexString(lastModified) + "-" + Long.toHexString(length), false);
+    }
+
+    /**
+     * Evaluates an <code>If-None-Match</code> header value against a tag using the weak comparison function
+     * described in section 2.3.2 of RFC 7232 (so <code>W/"x"</code> matches <code>"x"</code>).
+     *
+     * @return <code>true</code> if <code>tag</code> is listed (or the value is <code>*</code>).
+     */
+    static boolean matches(String ifNoneMatch, String tag) {
+        String opaque = opaqueTag(tag);
+        int length = ifNoneMatch.length();
+        int start = 0;
+        while (start < length) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end == -1) {
+                end = length;
+            }
+            String candidate = ifNoneMatch.substring(start, end).trim();
+            if (candidate.equals("*") || opaqueTag(candidate).equals(opaque)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static String format(String value, boolean weak) {
+        return (weak ? "W/\"" : "\"") + value + "\"";
+    }
+
+    // Strips the weakness indicator, if any
+    private static String opaqueTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    static long hash(byte[] content) {
+        return hash(ByteBuffer.wrap(content));
+    }
+
+    static long hash(ByteBuffer content) {
+        ByteBuffer data = content.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = data.position();
+        int end = data.limit();
+        long hash = PRIME_3 + (end - start);
+        int i = start;
+        for (; i <= end - 8; i += 8) {
+            hash ^= mix(data.getLong(i));
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_2;
+        }
+        for (; i < end; i++) {
+            hash ^= (data.get(i) & 0xFFL) * PRIME_3;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+        }
+
+        // Final avalanche
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long mix(long value) {
+        return Long.rotateLeft(value * PRIME_2, 31) * PRIME_1;
+    }
+}
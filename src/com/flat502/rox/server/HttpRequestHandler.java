@@ -1,5 +1,7 @@
 package com.flat502.rox.server;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 
 import com.flat502.rox.http.HttpConstants;
@@ -22,22 +24,9 @@ class HttpRequestHandler extends HttpMessageHandler {
 
     @Override
     protected void handleMessage(HttpMessageBuffer msg) throws Exception {
-        if (!(msg instanceof HttpRequestBuffer)) {
-            throw new IllegalArgumentException("Expected instance of " + HttpRequestBuffer.class.getName()
-                    + ", got " + msg.getClass().getName());
-        }
-        HttpRequestBuffer request = (HttpRequestBuffer) msg;
-
-        if (!(request.getOrigin() instanceof HttpServer)) {
-            throw new IllegalArgumentException("Expected instance of " + HttpServer.class.getName() + ", got "
-                    + request.getOrigin().getClass().getName());
-        }
+        HttpRequestBuffer request = this.toRequest(msg);
         HttpServer server = (HttpServer) request.getOrigin();
 
-        if (!request.isComplete()) {
-            throw new IllegalStateException("Incomplete request on my queue");
-        }
-
         HttpResponse httpRsp;
         try {
             server.routeRequest(request.getSocket(), request);
@@ -57,6 +46,34 @@ class HttpRequestHandler extends HttpMessageHandler {
             log.error("Error routing HTTP request:\n" + request.toString(), e);
         }
 
-        server.queueResponse(request.getSocket(), httpRsp.marshal(), httpRsp.mustCloseConnection());
+        server.queueResponse(request.getSocket(), httpRsp);
+    }
+
+    @Override
+    protected void handleMessages(List<HttpMessageBuffer> msgs) throws Exception {
+        List<HttpRequestBuffer> requests = new ArrayList<>(msgs.size());
+        for (HttpMessageBuffer msg : msgs) {
+            requests.add(this.toRequest(msg));
+        }
+        HttpRequestBuffer first = requests.get(0);
+        ((HttpServer) first.getOrigin()).routeRequests(first.getSocket(), requests);
+    }
+
+    private HttpRequestBuffer toRequest(HttpMessageBuffer msg) throws Exception {
+        if (!(msg instanceof HttpRequestBuffer)) {
+            throw new IllegalArgumentException("Expected instance of " + HttpRequestBuffer.class.getName()
+                    + ", got " + msg.getClass().getName());
+        }
+        HttpRequestBuffer request = (HttpRequestBuffer) msg;
+
+        if (!(request.getOrigin() instanceof HttpServer)) {
+            throw new IllegalArgumentException("Expected instance of " + HttpServer.class.getName() + ", got "
+                    + request.getOrigin().getClass().getName());
+        }
+
+        if (!request.isComplete() && !request.isStreaming()) {
+            throw new IllegalStateException("Incomplete request on my queue");
+        }
+        return request;
     }
 }
\ No newline at end of file
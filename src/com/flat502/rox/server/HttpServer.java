@@ -1,22 +1,26 @@
 package com.flat502.rox.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketOption;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -33,11 +37,20 @@ import com.flat502.rox.http.HttpResponse;
 import com.flat502.rox.http.exception.HttpResponseException;
 import com.flat502.rox.log.Log;
 import com.flat502.rox.log.LogFactory;
+import com.flat502.rox.processing.Connection;
+import com.flat502.rox.processing.ContentSource;
+import com.flat502.rox.processing.ContentStream;
 import com.flat502.rox.processing.HttpProcessor;
 import com.flat502.rox.processing.RemoteSocketClosedException;
 import com.flat502.rox.processing.ResourcePool;
 import com.flat502.rox.processing.SSLConfiguration;
+import com.flat502.rox.processing.SSLSession;
+import com.flat502.rox.processing.WriteBufferPool;
+import com.flat502.rox.server.ResponseCoordinator.QueuedResponse;
+import com.flat502.rox.server.response.ByteBufferResponse;
+import com.flat502.rox.server.response.FileRegionResponse;
 import com.flat502.rox.server.response.Response;
+import com.flat502.rox.server.response.StreamingResponse;
 import com.flat502.rox.utils.Utils;
 
 /**
@@ -56,9 +69,23 @@ import com.flat502.rox.utils.Utils;
 public class HttpServer extends HttpProcessor {
     private static Log log = LogFactory.getLog(HttpServer.class);
 
+    // The interim response sent to clients waiting for permission to send
+    // request content. It's the same for every request.
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    // Bounds on the cache of negotiated response encodings, and the value
+    // cached when negotiation finds nothing acceptable.
+    private static final int MAX_NEGOTIATED_ENCODINGS = 256;
+    private static final int MAX_NEGOTIATED_VALUE_LENGTH = 256;
+    private static final Object NO_ENCODING = new Object();
+
     // Asynchronous request handlers that test for matching request URIs.
     private ConcurrentLinkedDeque<AsynchronousRequestHandler> uriHandlers = new ConcurrentLinkedDeque<>();
 
+    // The subset of uriHandlers that may take requests before their content arrives.
+    private ConcurrentLinkedDeque<StreamingRequestHandler> streamingHandlers = new ConcurrentLinkedDeque<>();
+
     // The address (and name) and port we bind on.
     // We store the host along with the host so we
     // don't have to continually check for a null address.
@@ -66,38 +93,56 @@ public class HttpServer extends HttpProcessor {
     private String host;
     private int port;
 
-    private ServerSocketChannel serverChannel;
+    // The channels we accept connections on. There is more than one
+    // only if multiple acceptors have been configured.
+    private List<ServerSocketChannel> serverChannels = new ArrayList<>();
 
     // The value used for the HTTP Header field.
     // This is stored separately so we don't "forget"
     // that the user initialized us with a null host.
     private String headerHostValue;
 
-    // Maps Sockets to incomplete HttpRequestBuffer instances.
-    private Map<Socket, HttpRequestBuffer> requestBuffers = new HashMap<>();
-
-    // Maps Sockets to ByteBuffer instances that are
-    // ready to be written out on the socket.
-    // Placing a ByteBuffer in here effectively 'queues' it for
-    // delivery to the associated SocketChannel when it next
-    // becomes available for writing.
-    private Map<Socket, List<ByteBuffer>> responseBuffers = new HashMap<>();
+    // The Server header alone (for HTTP/1.0) and the Host and Server headers,
+    // encoded once on first use. See HttpMessage.setHeaderTemplate.
+    private volatile byte[][] headerTemplates;
 
     private AcceptPolicy acceptPolicy;
 
     private ServerEncodingMap contentEncodingMap = new ServerEncodingMap();
     private boolean encodeResponses;
 
+    // Whether ETag headers are generated for in-memory response content.
+    private boolean generateEntityTags = true;
+
+    // Responses registered as never changing, and their marshalled forms.
+    // Registration is rare, so the map is copied on write and read without
+    // locking.
+    private volatile Map<Response, CachedResponse> staticResponses = Collections.emptyMap();
+
+    // The outcome of negotiating a response encoding, keyed by the raw
+    // Accept-Encoding value. Clients send only a handful of distinct values
+    // so this makes negotiation a single lookup. The cache is flushed when
+    // it fills up or when the set of encodings changes.
+    private ConcurrentHashMap<String, Object> negotiatedEncodings = new ConcurrentHashMap<>();
+
     private int idleClientTimeout;
+
+    // The Retry-After value (in seconds) sent when a request is rejected
+    // because the worker queue is full.
+    private int retryAfter = 1;
     private Timer idleClientTimer;
 
-    // Maps Sockets to Timer instances that are reset whenever there's
-    // activity on the socket. Used to enforce idle client timeouts.
-    private Map<Socket, TimerTask> socketActivity = new HashMap<>();
+    // How much request content is held in memory before it's moved to a
+    // temporary file, and where those files go (null for the default).
+    private int spillThreshold = HttpMessageBuffer.DEFAULT_SPILL_THRESHOLD;
+    private File spillDirectory;
 
-    // Maps Sockets to an object responsible for coordinating responses
-    // so we handle pipelined requests correctly.
-    private Map<Socket, ResponseCoordinator> socketResponseCoordinators = new HashMap<>();
+    // Limits on the size of requests. Oversized requests are rejected as
+    // soon as the problem is apparent, before they've been buffered.
+    private int maxURILength = HttpRequestBuffer.DEFAULT_MAX_URI_LENGTH;
+    private int maxHeaderSize = HttpMessageBuffer.DEFAULT_MAX_HEADER_SIZE;
+    private int maxHeaderCount = HttpMessageBuffer.DEFAULT_MAX_HEADER_COUNT;
+    private long maxContentLength;
 
     // Thread pool for handling asynchronous requests. Requests are passed off to the application pool
     // from threads in the worker pool.
@@ -261,12 +306,115 @@ public class HttpServer extends HttpProcessor {
         this.acceptPolicy = policy;
     }
 
+    /**
+     * Configure the number of listening channels this instance accepts connections on.
+     * <p>
+     * When <code>count</code> is greater than 1 this instance opens that many {@link ServerSocketChannel}s bound
+     * to the same address and port with <code>SO_REUSEPORT</code> enabled, and the operating system spreads
+     * incoming connections across them. Each listening channel is registered with its own selecting thread so
+     * combine this with {@link #setSelectorCount(int)} (using at least as many selecting threads as acceptors).
+     * <p>
+     * If the platform does not support <code>SO_REUSEPORT</code> a single listening channel is used and a warning
+     * is logged.
+     * <p>
+     * The existing listening channel is closed and replaced, so this must be invoked before the server is started.
+     *
+     * @param count
+     *            The number of listening channels. Must be at least 1.
+     * @param backlog
+     *            The maximum number of pending connections per listening channel. A value of 0 or less selects
+     *            the platform default.
+     * @throws IllegalArgumentException
+     *             if <code>count</code> is less than 1.
+     * @throws IllegalStateException
+     *             if the server has been started.
+     * @throws IOException
+     *             if an error occurs binding the new listening channels.
+     */
+    public void setAcceptorCount(int count, int backlog) throws IOException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Acceptor count must be at least 1: " + count);
+        }
+
+        synchronized (this.serverChannels) {
+            if (this.isStarted()) {
+                throw new IllegalStateException("Can't modify acceptors: server has been started");
+            }
+
+            // None of these are registered with a Selector yet, so closing
+            // them releases the port immediately.
+            for (ServerSocketChannel channel : this.serverChannels) {
+                channel.close();
+            }
+            this.serverChannels.clear();
+
+            this.bindServerChannels(count, backlog);
+        }
+    }
+
+    /**
+     * Configure the number of listening channels this instance accepts connections on, using the platform default
+     * backlog.
+     *
+     * @see #setAcceptorCount(int, int)
+     */
+    public void setAcceptorCount(int count) throws IOException {
+        this.setAcceptorCount(count, 0);
+    }
+
+    /**
+     * Get the number of listening channels this instance accepts connections on.
+     *
+     * @return The number of listening channels.
+     */
+    public int getAcceptorCount() {
+        synchronized (this.serverChannels) {
+            return this.serverChannels.size();
+        }
+    }
+
+    /**
+     * Starts accepting connections.
+     * <p>
+     * Each listening channel is registered with its own selecting thread (as far as the number of selecting threads
+     * allows).
+     */
+    @Override
+    public void start() {
+        super.start();
+
+        synchronized (this.serverChannels) {
+            for (int i = 0; i < this.serverChannels.size(); i++) {
+                this.registerListeningChannel(this.serverChannels.get(i), i);
+            }
+        }
+    }
+
     public void registerContentEncoding(Encoding encoding) {
         this.contentEncodingMap.addEncoding(encoding);
+        this.negotiatedEncodings.clear();
     }
 
     public void setEncodeResponses(boolean encode) {
         this.encodeResponses = encode;
+        this.flushStaticResponses();
+    }
+
+    /**
+     * Controls whether an <code>ETag</code> header is generated for responses to <code>GET</code> and
+     * <code>HEAD</code> requests, from a hash of their content. Requests whose <code>If-None-Match</code> header
+     * lists the tag are answered with <code>304 Not Modified</code>, without the content being marshalled or
+     * encoded.
+     * <p>
+     * This is enabled by default. {@link FileRegionResponse}s with a known modification time always get a tag
+     * derived from that, since it costs nothing to compute.
+     *
+     * @param generate
+     *            <code>false</code> to skip hashing response content.
+     */
+    public void setGenerateEntityTags(boolean generate) {
+        this.generateEntityTags = generate;
+        this.flushStaticResponses();
     }
 
     // TODO: Document
@@ -279,84 +427,397 @@ public class HttpServer extends HttpProcessor {
         this.idleClientTimeout = timeout;
     }
 
+    /**
+     * Set the <code>Retry-After</code> value sent with the <code>503</code> response used to reject requests when
+     * the worker queue is full.
+     *
+     * @param seconds
+     *            The number of seconds clients are asked to wait before retrying.
+     * @see #setMaxQueueSize(int)
+     */
+    public void setRetryAfter(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("seconds is negative");
+        }
+        this.retryAfter = seconds;
+    }
+
+    /**
+     * Configures how much of a request's content is held in memory. Content beyond this is moved to a temporary file
+     * so large uploads don't have to fit on the heap. The temporary file is deleted once the request has been
+     * handled.
+     * <p>
+     * The temporary file is created and written by the selecting thread as the content is read, and every other
+     * connection that thread serves waits while it does so. Where the disk is slow or busy a higher threshold trades
+     * heap for fewer of these stalls. Requests are never moved to disk if the threshold is at least the
+     * {@link #setMaxRequestContentLength(long) largest content accepted}.
+     *
+     * @param threshold
+     *            The number of bytes of content to hold in memory. Defaults to
+     *            {@link HttpMessageBuffer#DEFAULT_SPILL_THRESHOLD}.
+     * @param directory
+     *            The directory to create temporary files in, or <code>null</code> for the default temporary
+     *            directory.
+     */
+    public void setRequestSpillThreshold(int threshold, File directory) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("threshold is negative");
+        }
+        this.spillThreshold = threshold;
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * Configures the longest request URI accepted. Requests with a longer URI are rejected with a <code>414</code>
+     * status code as soon as the limit is passed.
+     *
+     * @param max
+     *            The longest URI accepted, in bytes. Defaults to {@link HttpRequestBuffer#DEFAULT_MAX_URI_LENGTH}.
+     */
+    public void setMaxRequestURILength(int max) {
+        if (max <= 0) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+        this.maxURILength = max;
+    }
+
+    /**
+     * Configures the limits on request headers. Requests whose headers exceed either limit are rejected with a
+     * <code>431</code> status code as soon as the limit is passed.
+     *
+     * @param maxSize
+     *            The largest number of bytes the request line and headers may occupy. Defaults to
+     *            {@link HttpMessageBuffer#DEFAULT_MAX_HEADER_SIZE}.
+     * @param maxCount
+     *            The largest number of header fields. Defaults to {@link HttpMessageBuffer#DEFAULT_MAX_HEADER_COUNT}.
+     */
+    public void setMaxRequestHeaderSize(int maxSize, int maxCount) {
+        if (maxSize <= 0 || maxCount <= 0) {
+            throw new IllegalArgumentException("Header limits must be positive: size=" + maxSize + ", count="
+                    + maxCount);
+        }
+        this.maxHeaderSize = maxSize;
+        this.maxHeaderCount = maxCount;
+    }
+
+    /**
+     * Configures the largest request content accepted. Requests with a larger <code>Content-Length</code> are
+     * rejected with a <code>413</code> status code once their headers have been read, without waiting for the
+     * content. Clients that send <code>Expect: 100-continue</code> are rejected before they send any content at all.
+     *
+     * @param max
+     *            The largest content length, in bytes, or <code>0</code> for no limit (the default).
+     */
+    public void setMaxRequestContentLength(long max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max is negative");
+        }
+        this.maxContentLength = max;
+    }
+
+    /**
+     * Registers a request handler. Handlers are offered each request in the order they were registered.
+     * <p>
+     * Handlers that implement {@link StreamingRequestHandler} may also be dispatched before a request's content has
+     * arrived.
+     */
     public HttpServer registerHandler(AsynchronousRequestHandler handler) {
         this.uriHandlers.add(handler);
+        if (handler instanceof StreamingRequestHandler) {
+            this.streamingHandlers.add((StreamingRequestHandler) handler);
+        }
         return this;
     }
 
+    /**
+     * Registers a response that never changes, such as a health check or a fixed JSON document, so it can be sent
+     * without being rebuilt every time a handler returns it.
+     * <p>
+     * The response is marshalled the first time it's sent with each combination of HTTP version, request method and
+     * content encoding, and later requests answered with the same instance are sent those bytes as they are. Since
+     * the <code>Date</code> header moves on, each form is rebuilt at most once a second. Conditional requests are
+     * answered in the usual way.
+     * <p>
+     * Neither the response's content nor its content type may change once it's registered.
+     *
+     * @return <code>rsp</code>, so a response can be registered where it's created.
+     * @throws IllegalArgumentException
+     *             if the content of <code>rsp</code> isn't held in memory.
+     */
+    public synchronized <T extends Response> T registerStaticResponse(T rsp) {
+        if (rsp instanceof FileRegionResponse || rsp instanceof StreamingResponse) {
+            throw new IllegalArgumentException("Only in-memory responses can be cached: " + rsp.getClass().getName());
+        }
+        Map<Response, CachedResponse> responses = new IdentityHashMap<>(this.staticResponses);
+        responses.put(rsp, new CachedResponse(rsp));
+        this.staticResponses = responses;
+        return rsp;
+    }
+
+    /**
+     * Discards the marshalled forms of a response registered with {@link #registerStaticResponse(Response)}. It's
+     * built afresh each time it's sent from then on.
+     */
+    public synchronized void deregisterStaticResponse(Response rsp) {
+        Map<Response, CachedResponse> responses = new IdentityHashMap<>(this.staticResponses);
+        responses.remove(rsp);
+        this.staticResponses = responses;
+    }
+
+    private void flushStaticResponses() {
+        for (CachedResponse cached : this.staticResponses.values()) {
+            cached.flush();
+        }
+    }
+
+    /**
+     * Returns the marshalled form of a {@link #registerStaticResponse(Response) static response} to send in reply to
+     * <code>request</code>.
+     *
+     * @return The form to send, or <code>null</code> if <code>rsp</code> isn't registered or can't be sent from its
+     *         cached forms in reply to this request.
+     */
+    CachedResponse.Form getStaticResponse(HttpRequestBuffer request, Response rsp, Encoding encoding)
+            throws IOException {
+        CachedResponse cached = this.staticResponses.get(rsp);
+        if (cached == null || request == null) {
+            return null;
+        }
+        // The encoding is only applied when responses are being encoded
+        return cached.getForm(this, request, this.encodeResponses ? encoding : null, this.getWriteBufferPool());
+    }
+
+    /**
+     * Sends a <code>100 (Continue)</code> response to clients waiting for one before they send request content.
+     * Requests that are too large, or that can't be handled for any other reason apparent from their headers, have
+     * already been rejected by this point.
+     * <p>
+     * The interim response can only be sent once every earlier request on the connection has been answered, since
+     * it must not overtake their responses. If any are outstanding it isn't sent, which section 8.2.3 of RFC 2616
+     * allows: the client sends its content anyway after a short wait.
+     */
+    @Override
+    protected void headersReceived(Connection connection, HttpMessageBuffer msg) throws IOException {
+        if (((HttpRequestBuffer) msg).expectsContinue() && !connection.hasMessagesInFlight()) {
+            this.queueWrite(connection, CONTINUE_RESPONSE, false);
+        }
+    }
+
+    /**
+     * Every request is answered through {@link #messageCompleted(Connection)}, so a full worker queue rejects
+     * requests on connections with nothing outstanding.
+     */
+    @Override
+    protected boolean tracksMessagesInFlight() {
+        return true;
+    }
+
+    @Override
+    protected boolean shouldStream(Connection connection, HttpMessageBuffer msg) {
+        for (StreamingRequestHandler handler : this.streamingHandlers) {
+            if (handler.wantsStream((HttpRequestBuffer) msg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Routes an HTTP request to the appropriate handler.
      */
     void routeRequest(final Socket socket, final HttpRequestBuffer request) throws Exception {
-        SocketChannel channel = socket == null ? null : socket.getChannel();
-        final RequestContext context = new RequestContext(channel, this.newSSLSession(socket), request);
-        final SocketResponseChannel rspChannel = this.newSocketResponseChannel(socket, request);
+        ServerConnection connection = (ServerConnection) this.getConnection(socket);
+        if (connection == null) {
+            // The connection was closed while the request was waiting for a worker.
+            if (log.logDebug()) {
+                log.debug("Dropping request for closed connection " + Utils.toString(socket));
+            }
+            request.releaseContent();
+            return;
+        }
+
+        final RequestContext context = new RequestContext(connection.getChannel(), this.newSSLSession(connection),
+                request);
+        final SocketResponseChannel rspChannel = this.newSocketResponseChannel(connection, request);
 
         // Pass request to the application thread pool so it can be handled asynchronously
         applicationThreadPool.submit(new Runnable() {
             @Override
             public void run() {
-                String uri = request.getURI();
-                if (log.logDebug()) {
-                    log.debug("Look up handler for URI [" + uri + "] and method [" + request.getMethod() + "]");
-                }
+                HttpServer.this.dispatchRequest(context, rspChannel);
+            }
+        });
+    }
+
+    /**
+     * Routes several requests received together on the same connection (typically pipelined requests read in a
+     * single packet). They are handled one after the other by a single application thread, and their responses are
+     * held back until all of them have been handled so they can be written together.
+     */
+    void routeRequests(Socket socket, List<HttpRequestBuffer> requests) {
+        ServerConnection connection = (ServerConnection) this.getConnection(socket);
+        if (connection == null) {
+            if (log.logDebug()) {
+                log.debug("Dropping " + requests.size() + " request(s) for closed connection "
+                        + Utils.toString(socket));
+            }
+            for (HttpRequestBuffer request : requests) {
+                request.releaseContent();
+            }
+            return;
+        }
+
+        // Response IDs are assigned here, in the order the requests arrived
+        SSLSession sslSession = this.newSSLSession(connection);
+        final RequestContext[] contexts = new RequestContext[requests.size()];
+        final SocketResponseChannel[] rspChannels = new SocketResponseChannel[requests.size()];
+        for (int i = 0; i < contexts.length; i++) {
+            HttpRequestBuffer request = requests.get(i);
+            contexts[i] = new RequestContext(connection.getChannel(), sslSession, request);
+            rspChannels[i] = this.newSocketResponseChannel(connection, request);
+        }
+
+        final ResponseCoordinator coord = connection.getResponseCoordinator();
+        applicationThreadPool.submit(new Runnable() {
+            @Override
+            public void run() {
+                coord.beginBatch();
                 try {
-                    for (AsynchronousRequestHandler handler : uriHandlers) {
-                        try {
-                            Response response = handler.handleRequest(context);
-                            if (response != null) {
-                                rspChannel.respond(response);
-                                // Return after first successful handler response
-                                return;
-                            }
-                        } catch (HttpResponseException e) {
-                            rspChannel.respond(e);
-                        } catch (Exception e) {
-                            // TODO: improve error handling
-                            if (log.logDebug()) {
-                                log.debug("Internal server error for uri [" + uri + "]", e);
-                            }
-                            rspChannel.respond(new HttpResponseException(
-                                    HttpConstants.StatusCodes._500_INTERNAL_SERVER_ERROR, "Internal Server Error"));
-                        }
+                    for (int i = 0; i < contexts.length; i++) {
+                        HttpServer.this.dispatchRequest(contexts[i], rspChannels[i]);
                     }
-                    if (log.logDebug()) {
-                        log.debug("Nothing registered for uri [" + uri + "]");
+                } finally {
+                    try {
+                        coord.endBatch();
+                    } catch (IOException e) {
+                        if (log.logDebug()) {
+                            log.debug("Error sending batched responses", e);
+                        }
                     }
-                    rspChannel.respond(new HttpResponseException(HttpConstants.StatusCodes._404_NOT_FOUND,
-                            "Not Found: " + uri));
-                } catch (IOException e1) {
                 }
             }
         });
     }
 
-    private SocketResponseChannel newSocketResponseChannel(Socket socket, HttpRequestBuffer request) {
-        Encoding rspEncoding = this.selectResponseEncoding(request);
-
-        ResponseCoordinator rc;
-        synchronized (socketResponseCoordinators) {
-            rc = socketResponseCoordinators.get(socket);
-            if (rc == null) {
-                socketResponseCoordinators.put(socket, rc = this.newResponseCoordinator(socket));
+    /**
+     * Passes a request to each registered handler in turn until one of them responds. Invoked on an application
+     * thread.
+     */
+    private void dispatchRequest(RequestContext context, SocketResponseChannel rspChannel) {
+        HttpRequestBuffer request = context.getHttpRequest();
+        String uri = request.getURI();
+        if (log.logDebug()) {
+            log.debug("Look up handler for URI [" + uri + "] and method [" + request.getMethod() + "]");
+        }
+        try {
+            for (AsynchronousRequestHandler handler : uriHandlers) {
+                if (request.isStreaming() && !(handler instanceof StreamingRequestHandler
+                        && ((StreamingRequestHandler) handler).wantsStream(request))) {
+                    continue;
+                }
+                try {
+                    Response response = handler.handleRequest(context);
+                    if (response != null) {
+                        rspChannel.respond(response);
+                        // Return after first successful handler response
+                        return;
+                    }
+                } catch (HttpResponseException e) {
+                    rspChannel.respond(e);
+                    return;
+                } catch (Exception e) {
+                    // TODO: improve error handling
+                    if (log.logDebug()) {
+                        log.debug("Internal server error for uri [" + uri + "]", e);
+                    }
+                    rspChannel.respond(new HttpResponseException(
+                            HttpConstants.StatusCodes._500_INTERNAL_SERVER_ERROR, "Internal Server Error"));
+                    return;
+                }
+            }
+            if (log.logDebug()) {
+                log.debug("Nothing registered for uri [" + uri + "]");
             }
+            rspChannel.respond(new HttpResponseException(HttpConstants.StatusCodes._404_NOT_FOUND,
+                    "Not Found: " + uri));
+        } catch (IOException e1) {
+        } finally {
+            request.releaseContent();
         }
-        return new SocketResponseChannel(rc, request, rspEncoding);
     }
 
-    private ResponseCoordinator newResponseCoordinator(Socket socket) {
-        return new ResponseCoordinator(this, socket);
+    private SocketResponseChannel newSocketResponseChannel(ServerConnection connection, HttpRequestBuffer request) {
+        Encoding rspEncoding = this.selectResponseEncoding(request);
+        return new SocketResponseChannel(connection.getResponseCoordinator(), request, rspEncoding);
     }
 
     /**
-     * This package private method exists purely to route calls to the protected {@link #queueWrite(Socket, byte[])}
-     * method from classes within this package without forcing it to be public.
+     * This package private method exists purely to route calls to the protected
+     * {@link #queueWrite(Connection, ByteBuffer[], boolean[], ContentSource, boolean)} method from classes within this
+     * package without forcing it to be public.
      *
      * @param socket
-     * @param rspData
+     * @param httpRsp
+     */
+    void queueResponse(Socket socket, HttpResponse httpRsp) throws IOException {
+        Connection connection = this.getConnection(socket);
+        if (connection != null) {
+            this.queueResponse(connection, httpRsp, null);
+        }
+    }
+
+    void queueResponse(Connection connection, HttpResponse httpRsp, ContentSource body) throws IOException {
+        this.queueResponses(connection, Collections.singletonList(new QueuedResponse(httpRsp, body)));
+    }
+
+    /**
+     * Queues several responses on a connection to be written together. The last of them may be followed by content
+     * that is written separately (a file region or a content stream).
+     * <p>
+     * Each response's headers are marshalled into a buffer from the {@link #getWriteBufferPool() write buffer pool}
+     * and its content is written from the array it's held in, so nothing is copied on the way to the socket. The
+     * pre-marshalled form of a static response is written as it is. The connection is closed afterwards if any of
+     * the responses requires it.
      */
-    void queueResponse(Socket socket, byte[] rspData, boolean close) {
-        this.queueWrite(socket, rspData, close);
+    void queueResponses(Connection connection, List<QueuedResponse> rsps) throws IOException {
+        WriteBufferPool pool = this.getWriteBufferPool();
+        List<ByteBuffer> data = new ArrayList<>(rsps.size() * 2);
+        boolean[] pooled = new boolean[rsps.size() * 2];
+        boolean close = false;
+        for (QueuedResponse rsp : rsps) {
+            ByteBuffer[] bufs;
+            if (rsp.form != null) {
+                bufs = rsp.form.getData();
+            } else {
+                bufs = rsp.response.marshal(pool);
+                pooled[data.size()] = true;
+            }
+            for (ByteBuffer buf : bufs) {
+                data.add(buf);
+            }
+            close |= rsp.mustCloseConnection();
+        }
+        ContentSource body = rsps.get(rsps.size() - 1).body;
+
+        // Only count the messages as answered once their responses are
+        // queued, so nothing checking for messages in flight can slip data in
+        // ahead of them
+        this.queueWrite(connection, data.toArray(new ByteBuffer[data.size()]), pooled, body, close);
+        for (int i = 0; i < rsps.size(); i++) {
+            this.messageCompleted(connection);
+        }
+    }
+
+    /**
+     * Rejects a request with a <code>503</code> response carrying a <code>Retry-After</code> header. The connection
+     * is closed once the response has been written.
+     */
+    @Override
+    protected void rejectMessage(Connection connection, HttpMessageBuffer msg) throws IOException {
+        HttpResponse httpRsp = this.newHttpResponse(msg, new HttpResponseException(
+                HttpConstants.StatusCodes._503_SERVICE_UNAVAILABLE, "Service Unavailable"));
+        httpRsp.addHeader(HttpConstants.Headers.RETRY_AFTER, String.valueOf(this.retryAfter));
+        this.queueWrite(connection, httpRsp.marshal(), true);
     }
 
     /**
@@ -364,6 +825,10 @@ public class HttpServer extends HttpProcessor {
      * <p>
      * This implementation encodes the response using <code>UTF-8</code>, sets the status code to <code>200</code>,
      * and sets <code>Content-Type</code> header to <code>text/xml</code> as required. No other headers are set.
+     * <p>
+     * A {@link FileRegionResponse} only gets headers (including <code>Content-Length</code>). Its content is
+     * written separately, straight from the file. So is the content of a {@link StreamingResponse}, as it's
+     * produced. The buffer held by a {@link ByteBufferResponse} is sent as it is, without being copied.
      *
      * @param rsp
      *            The XML-RPC method response to be returned in the HTTP response.
@@ -377,28 +842,181 @@ public class HttpServer extends HttpProcessor {
      */
     protected HttpResponse toHttpResponse(HttpMessageBuffer origMsg, Response rsp, Encoding encoding)
             throws IOException {
+        // Only GET and HEAD requests are conditional
+        HttpRequestBuffer request = null;
+        if (origMsg instanceof HttpRequestBuffer) {
+            request = (HttpRequestBuffer) origMsg;
+            String method = request.getMethod();
+            if (!method.equals(HttpConstants.Methods.GET) && !method.equals(HttpConstants.Methods.HEAD)) {
+                request = null;
+            }
+        }
+        boolean head = request != null && request.getMethod().equals(HttpConstants.Methods.HEAD);
+
+        if (rsp instanceof FileRegionResponse) {
+            // The content is written separately, straight from the file, so
+            // there's nothing to encode.
+            FileRegionResponse fileRsp = (FileRegionResponse) rsp;
+            long lastModified = fileRsp.getLastModified();
+            String etag = null;
+            if (request != null && lastModified >= 0) {
+                etag = EntityTags.forFile(lastModified, fileRsp.getLength());
+                if (this.isNotModified(request, etag, lastModified)) {
+                    return this.newNotModifiedResponse(request, etag, lastModified);
+                }
+            }
+
+            HttpResponse httpRsp = this.newHttpResponse(origMsg, 200, "OK", null);
+            httpRsp.addHeader(HttpConstants.Headers.CONTENT_TYPE, rsp.getContentType());
+            httpRsp.setHeader(HttpConstants.Headers.CONTENT_LENGTH, String.valueOf(fileRsp.getLength()));
+            this.addValidators(httpRsp, etag, lastModified);
+            if (head) {
+                httpRsp.setContentOmitted();
+            }
+            return httpRsp;
+        }
+
+        if (rsp instanceof StreamingResponse) {
+            // The content doesn't exist yet, so there's nothing to hash or
+            // encode.
+            ContentStream stream = ((StreamingResponse) rsp).getChannel();
+            HttpResponse httpRsp = this.newHttpResponse(origMsg, 200, "OK", null);
+            httpRsp.addHeader(HttpConstants.Headers.CONTENT_TYPE, rsp.getContentType());
+            if (stream.getLength() >= 0) {
+                httpRsp.setHeader(HttpConstants.Headers.CONTENT_LENGTH, String.valueOf(stream.getLength()));
+            } else {
+                httpRsp.setContentLengthUnknown();
+                // HTTP/1.0 clients read until the connection is closed
+                if (origMsg == null || "HTTP/1.1".equals(origMsg.getHttpVersionString())) {
+                    httpRsp.addHeader(HttpConstants.Headers.TRANSFER_ENCODING, HttpConstants.TransferEncoding.CHUNKED);
+                    stream.setChunked(true);
+                }
+            }
+            if (head) {
+                httpRsp.setContentOmitted();
+            }
+            return httpRsp;
+        }
+
+        // Buffered content is sent as it is rather than being copied out
+        ByteBuffer content;
+        if (rsp instanceof ByteBufferResponse) {
+            content = ((ByteBufferResponse) rsp).getContentBuffer();
+        } else {
+            content = ByteBuffer.wrap(rsp.getContent());
+        }
+        String etag = null;
+        if (request != null && this.generateEntityTags) {
+            // An encoded response isn't byte-for-byte what was hashed
+            etag = EntityTags.forContent(content, this.encodeResponses && encoding != null);
+            if (this.isNotModified(request, etag, -1)) {
+                return this.newNotModifiedResponse(request, etag, -1);
+            }
+        }
+
+        // A HEAD response is encoded like a GET response so its headers are
+        // the same, even though the content isn't sent
         HttpResponse httpRsp = this.newHttpResponse(origMsg, 200, "OK", encoding);
         httpRsp.addHeader(HttpConstants.Headers.CONTENT_TYPE, rsp.getContentType());
-        httpRsp.setContent(rsp.getContent());
+        httpRsp.setContent(content);
+        this.addValidators(httpRsp, etag, -1);
+        if (head) {
+            httpRsp.setContentOmitted();
+        }
         return httpRsp;
     }
 
-    // TODO: Document
+    /**
+     * Evaluates the conditional headers on a request against the current validators of the resource, as described
+     * in section 6 of RFC 7232. <code>If-None-Match</code> takes precedence; <code>If-Modified-Since</code> is only
+     * consulted in its absence.
+     *
+     * @param etag
+     *            The resource's entity tag, or <code>null</code> if it doesn't have one.
+     * @param lastModified
+     *            The time the resource was last modified, or <code>-1</code> if it isn't known.
+     * @return <code>true</code> if the request should be answered with <code>304 Not Modified</code>.
+     */
+    private boolean isNotModified(HttpRequestBuffer request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeaderValue(HttpConstants.Headers.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return etag != null && EntityTags.matches(ifNoneMatch, etag);
+        }
+
+        if (lastModified < 0) {
+            return false;
+        }
+        String ifModifiedSince = request.getHeaderValue(HttpConstants.Headers.IF_MODIFIED_SINCE);
+        if (ifModifiedSince == null) {
+            return false;
+        }
+        long since = Utils.parseHttpDate(ifModifiedSince);
+        // HTTP dates only have a resolution of one second
+        return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+
+    private HttpResponse newNotModifiedResponse(HttpRequestBuffer request, String etag, long lastModified) {
+        HttpResponse httpRsp = this.newHttpResponse(request, HttpConstants.StatusCodes._304_NOT_MODIFIED,
+                "Not Modified", null);
+        this.addValidators(httpRsp, etag, lastModified);
+        httpRsp.setContentOmitted();
+        return httpRsp;
+    }
+
+    private void addValidators(HttpResponse httpRsp, String etag, long lastModified) {
+        if (etag != null) {
+            httpRsp.setHeader(HttpConstants.Headers.ETAG, etag);
+        }
+        if (lastModified >= 0) {
+            httpRsp.setHeader(HttpConstants.Headers.LAST_MODIFIED, Utils.formatHttpDate(lastModified));
+        }
+    }
+
+    /**
+     * Selects the encoding to apply to the response to a request, based on its <code>Accept-Encoding</code> header
+     * and the encodings registered with {@link #registerContentEncoding(Encoding)}.
+     * <p>
+     * The registered encoding the client prefers most is chosen, ignoring any it has marked as unacceptable with a
+     * qvalue of <code>0</code>. The outcome is cached by header value, so the header is only parsed the first time a
+     * given value is seen.
+     *
+     * @return The encoding to use, or <code>null</code> if the response shouldn't be encoded.
+     */
     protected Encoding selectResponseEncoding(HttpRequestBuffer request) {
-        Map<String, Float> accepted = request.getAcceptedEncodings();
-        if (accepted == null) {
+        String acceptEncoding = request.getHeaderValue(HttpConstants.Headers.ACCEPT_ENCODING);
+        if (acceptEncoding == null) {
             return null;
         }
 
-        Iterator<String> encodings = accepted.keySet().iterator();
-        while (encodings.hasNext()) {
-            String encodingName = encodings.next();
-            Encoding encoding = this.contentEncodingMap.getEncoding(encodingName);
+        Object negotiated = this.negotiatedEncodings.get(acceptEncoding);
+        if (negotiated == null) {
+            Encoding encoding = this.negotiateEncoding(request.getAcceptedEncodings());
+            negotiated = encoding == null ? NO_ENCODING : encoding;
+            if (acceptEncoding.length() <= MAX_NEGOTIATED_VALUE_LENGTH) {
+                if (this.negotiatedEncodings.size() >= MAX_NEGOTIATED_ENCODINGS) {
+                    // Crude, but it bounds the cache without any bookkeeping
+                    // on the common path
+                    this.negotiatedEncodings.clear();
+                }
+                this.negotiatedEncodings.put(acceptEncoding, negotiated);
+            }
+        }
+        return negotiated == NO_ENCODING ? null : (Encoding) negotiated;
+    }
+
+    private Encoding negotiateEncoding(Map<String, Float> accepted) {
+        // Iterates in order of preference
+        for (Map.Entry<String, Float> entry : accepted.entrySet()) {
+            Float qvalue = entry.getValue();
+            if (qvalue != null && qvalue.floatValue() == 0) {
+                // Explicitly unacceptable, as is everything after it
+                break;
+            }
+            Encoding encoding = this.contentEncodingMap.getEncoding(entry.getKey());
             if (encoding != null) {
                 return encoding;
             }
         }
-
         return null;
     }
 
@@ -427,32 +1045,19 @@ public class HttpServer extends HttpProcessor {
 
     @Override
     protected void read(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        this.resetClientTimer(socketChannel.socket());
+        this.resetClientTimer((ServerConnection) key.attachment());
         super.read(key);
     }
 
     @Override
     protected void write(SelectionKey key) throws IOException {
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        this.resetClientTimer(socketChannel.socket());
+        this.resetClientTimer((ServerConnection) key.attachment());
         super.write(key);
     }
 
     @Override
-    protected void deregisterSocket(Socket socket) {
-        TimerTask task = this.socketActivity.remove(socket);
-        if (task != null) {
-            task.cancel();
-        }
-
-        super.deregisterSocket(socket);
-    }
-
-    protected void deregisterResponseCoordinator(ResponseCoordinator coordinator) {
-        synchronized (socketResponseCoordinators) {
-            socketResponseCoordinators.remove(coordinator);
-        }
+    protected Connection newConnection(SocketChannel channel) {
+        return new ServerConnection(this, channel);
     }
 
     /**
@@ -473,7 +1078,7 @@ public class HttpServer extends HttpProcessor {
 
         // Check if our AcceptPolicy will allow this new connection
         if (this.acceptPolicy != null
-                && !this.acceptPolicy.shouldRetain(socketChannel, this.getSocketSelector().keys().size())) {
+                && !this.acceptPolicy.shouldRetain(socketChannel, this.getActiveChannelCount())) {
             if (log.logTrace()) {
                 log.trace("Closing accepted connection (accept policy enforced)");
             }
@@ -481,21 +1086,17 @@ public class HttpServer extends HttpProcessor {
             return;
         }
 
-        this.registerChannel(socketChannel);
-
         // Register the new socket. This will promote it to an SSLSocket
         // if we're configured for HTTPS.
         this.registerSocket(socket, this.host, this.port, false);
 
-        // Add the new SocketChannel to our Selector
-        socketChannel.configureBlocking(false);
-        @SuppressWarnings("unused")
-        SelectionKey acceptKey = socketChannel.register(this.getSocketSelector(), SelectionKey.OP_READ);
-
-        this.resetClientTimer(socketChannel.socket());
+        // Hand the new SocketChannel to one of our selecting threads and
+        // start its idle timer.
+        ServerConnection connection = (ServerConnection) this.registerAcceptedChannel(socketChannel);
+        this.resetClientTimer(connection);
     }
 
-    private void resetClientTimer(Socket socket) {
+    private void resetClientTimer(ServerConnection connection) {
         if (this.idleClientTimer == null) {
             if (log.logTrace()) {
                 log.trace("No idle client timeout configured, skipping timer reset");
@@ -504,47 +1105,46 @@ public class HttpServer extends HttpProcessor {
         }
 
         if (log.logTrace()) {
-            log.trace("Resetting idle client timer: " + System.identityHashCode(socket));
+            log.trace("Resetting idle client timer: " + System.identityHashCode(connection.getSocket()));
         }
 
         // Store this in a local so we don't have to worry about
         // the value changing underneath us.
         long timeout = this.idleClientTimeout;
 
-        // Cancel the existing task for this socket ...
-        TimerTask curTask = this.socketActivity.get(socket);
-        if (curTask != null) {
-            curTask.cancel();
+        // Replace the existing task for this connection ...
+        TimerTask task = new IdleClientTimerTask(connection);
+        if (connection.setIdleTask(task)) {
+            // And schedule the new one (unless the connection has gone away).
+            this.idleClientTimer.schedule(task, timeout);
         }
-
-        // And schedule a new one.
-        TimerTask task = new IdleClientTimerTask(socket);
-        this.socketActivity.put(socket, task);
-        this.idleClientTimer.schedule(task, timeout);
     }
 
     private class IdleClientTimerTask extends TimerTask {
-        private Socket socket;
+        private ServerConnection connection;
 
-        IdleClientTimerTask(Socket socket) {
-            this.socket = socket;
+        IdleClientTimerTask(ServerConnection connection) {
+            this.connection = connection;
         }
 
         @Override
         public void run() {
             try {
                 if (log.logTrace()) {
-                    log.trace("Idle client timer expired: " + System.identityHashCode(socket));
+                    log.trace("Idle client timer expired: " + System.identityHashCode(connection.getSocket()));
+                }
+                SocketChannel socketChannel = this.connection.getChannel();
+                SelectionKey key = this.connection.getSelectionKey();
+                if (key != null) {
+                    key.cancel();
                 }
-                SocketChannel socketChannel = this.socket.getChannel();
-                socketChannel.keyFor(HttpServer.this.getSocketSelector()).cancel();
                 // This (shutting down the output stream) seems unnecessary but
                 // without it the client never sees a disconnect under Linux.
                 // For good measure we shutdown the input stream too.
                 socketChannel.socket().shutdownOutput();
                 socketChannel.socket().shutdownInput();
                 socketChannel.close();
-                HttpServer.this.deregisterSocket(socket);
+                HttpServer.this.deregisterConnection(this.connection);
             } catch (Exception e) {
                 log.warn("IdleClientTimerTask caught an exception", e);
             }
@@ -603,34 +1203,83 @@ public class HttpServer extends HttpProcessor {
 
     @Override
     protected void stopImpl() throws IOException {
-        this.deregisterChannel(this.serverChannel);
+        synchronized (this.serverChannels) {
+            for (ServerSocketChannel serverChannel : this.serverChannels) {
+                serverChannel.close();
 
-        this.serverChannel.close();
+                // Queue a cancellation for serverChannel. This must happen
+                // before deregistering the channel since that forgets which
+                // selecting thread owns it.
+                this.queueCancellation(serverChannel);
 
-        // Queue a cancellation for serverChannel
-        this.queueCancellation(this.serverChannel);
+                this.deregisterChannel(serverChannel);
+            }
+        }
     }
 
     /**
      * Creates and initializes a {@link ServerSocketChannel} for accepting connections on.
+     * <p>
+     * The channel is bound immediately but only registered for accepts when this instance is
+     * {@link #start() started}.
      */
     @Override
     protected void initSelector(Selector selector) throws IOException {
-        // Create a new server socket and set to non blocking mode
-        this.serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
+        synchronized (this.serverChannels) {
+            this.bindServerChannels(1, 0);
+        }
+    }
+
+    private void bindServerChannels(int count, int backlog) throws IOException {
+        SocketOption<Boolean> reusePort = null;
+        if (count > 1) {
+            reusePort = this.findReusePortOption();
+            if (reusePort == null) {
+                log.warn("SO_REUSEPORT is not supported on this platform, using a single acceptor");
+                count = 1;
+            }
+        }
 
-        // Bind the server socket to the local host and port
         InetSocketAddress isa = new InetSocketAddress(this.hostAddress, this.port);
-        serverChannel.socket().bind(isa);
+        try {
+            for (int i = 0; i < count; i++) {
+                // Create a new server socket and set to non blocking mode
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                this.serverChannels.add(serverChannel);
+                serverChannel.configureBlocking(false);
+                if (reusePort != null) {
+                    serverChannel.setOption(reusePort, Boolean.TRUE);
+                }
 
-        // Register accepts on the server socket with the selector. This
-        // step tells the selector that the socket wants to be put on the
-        // ready list when accept operations occur, so allowing multiplexed
-        // non-blocking I/O to take place.
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                // Bind the server socket to the local host and port. If we were asked
+                // for an ephemeral port every other acceptor must share the one we got.
+                serverChannel.socket().bind(isa, backlog);
+                if (isa.getPort() == 0) {
+                    isa = new InetSocketAddress(this.hostAddress, serverChannel.socket().getLocalPort());
+                }
+            }
+        } catch (IOException e) {
+            for (ServerSocketChannel serverChannel : this.serverChannels) {
+                serverChannel.close();
+            }
+            this.serverChannels.clear();
+            throw e;
+        }
+    }
 
-        this.registerChannel(serverChannel);
+    // SO_REUSEPORT is only available through StandardSocketOptions from Java 9
+    // onwards, and not on every platform, so we look it up by name. Returns
+    // null if it isn't supported.
+    @SuppressWarnings("unchecked")
+    SocketOption<Boolean> findReusePortOption() throws IOException {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            for (SocketOption<?> option : probe.supportedOptions()) {
+                if ("SO_REUSEPORT".equals(option.name()) && option.type() == Boolean.class) {
+                    return (SocketOption<Boolean>) option;
+                }
+            }
+        }
+        return null;
     }
 
     @Override
@@ -655,87 +1304,18 @@ public class HttpServer extends HttpProcessor {
     }
 
     @Override
-    protected HttpMessageBuffer getReadBuffer(Socket socket) {
-        synchronized (this.requestBuffers) {
-            HttpRequestBuffer request = this.requestBuffers.get(socket);
-            if (request == null) {
-                request = new HttpRequestBuffer(this, socket, this.contentEncodingMap);
-                this.requestBuffers.put(socket, request);
-            }
-            return request;
-        }
-    }
-
-    @Override
-    protected void removeReadBuffer(Socket socket) {
-        synchronized (this.requestBuffers) {
-            this.requestBuffers.remove(socket);
-        }
-    }
-
-    @Override
-    protected void removeReadBuffers(Socket socket) {
-        this.removeReadBuffer(socket);
-    }
-
-    @Override
-    protected void putWriteBuffer(Socket socket, ByteBuffer data) {
-        synchronized (this.responseBuffers) {
-            List<ByteBuffer> existing = this.responseBuffers.get(socket);
-            if (existing != null) {
-                existing.add(data);
-            } else {
-                LinkedList<ByteBuffer> list = new LinkedList<>();
-                list.add(data);
-                this.responseBuffers.put(socket, list);
-            }
-        }
-    }
-
-    @Override
-    protected boolean isWriteQueued(Socket socket) {
-        synchronized (this.responseBuffers) {
-            return this.responseBuffers.containsKey(socket);
-        }
-    }
-
-    @Override
-    protected ByteBuffer getWriteBuffer(Socket socket) {
-        synchronized (this.responseBuffers) {
-            List<ByteBuffer> writeBufferList = this.responseBuffers.get(socket);
-            if (writeBufferList == null || writeBufferList.isEmpty()) {
-                return null;
-            } else {
-                return writeBufferList.get(0);
-            }
-        }
-    }
-
-    @Override
-    protected void removeWriteBuffer(Socket socket) {
-        synchronized (this.responseBuffers) {
-            List<ByteBuffer> existing = this.responseBuffers.get(socket);
-            if (existing != null && !existing.isEmpty()) {
-                existing.remove(0);
-            } else {
-                this.responseBuffers.remove(socket);
-            }
-        }
-    }
-
-    @Override
-    protected void removeWriteBuffers(Socket socket) {
-        synchronized (this.responseBuffers) {
-            this.responseBuffers.remove(socket);
-        }
+    protected HttpMessageBuffer newReadBuffer(Connection connection) {
+        HttpRequestBuffer request = new HttpRequestBuffer(this, connection.getSocket(), this.contentEncodingMap);
+        request.setSpillThreshold(this.spillThreshold, this.spillDirectory);
+        request.setMaxURILength(this.maxURILength);
+        request.setHeaderLimits(this.maxHeaderSize, this.maxHeaderCount);
+        request.setMaxContentLength(this.maxContentLength);
+        return request;
     }
 
     protected HttpResponse newHttpResponse(HttpMessageBuffer msg, HttpResponseException e) {
         HttpResponse httpRsp = e.toHttpResponse(msg.getHttpVersionString());
-        if (msg.getHttpVersion() > 1.0) {
-            httpRsp.addHeader(HttpConstants.Headers.HOST, this.headerHostValue);
-        }
-        httpRsp.addHeader(HttpConstants.Headers.SERVER, this.getServerName());
+        httpRsp.setHeaderTemplate(this.getHeaderTemplate(msg));
         httpRsp.addHeader(HttpConstants.Headers.CONNECTION, "close");
         return httpRsp;
     }
@@ -752,13 +1332,29 @@ public class HttpServer extends HttpProcessor {
         } else {
             httpRsp = new HttpResponse(origMsg.getHttpVersionString(), statusCode, reasonPhrase, responseEncoding);
         }
-        if (origMsg.getHttpVersion() > 1.0) {
-            httpRsp.addHeader(HttpConstants.Headers.HOST, this.headerHostValue);
-        }
-        httpRsp.addHeader(HttpConstants.Headers.SERVER, this.getServerName());
+        httpRsp.setHeaderTemplate(this.getHeaderTemplate(origMsg));
         return httpRsp;
     }
 
+    /**
+     * Returns the pre-encoded <code>Host</code> and <code>Server</code> headers sent with every response. These are
+     * the same for every response (bar the HTTP version) so they're encoded once and copied into each response in a
+     * single write.
+     */
+    private byte[] getHeaderTemplate(HttpMessageBuffer origMsg) {
+        byte[][] templates = this.headerTemplates;
+        if (templates == null) {
+            String server = HttpConstants.Headers.SERVER + ": " + this.getServerName() + "\r\n";
+            String host = HttpConstants.Headers.HOST + ": " + this.headerHostValue + "\r\n";
+            templates = new byte[][] { server.getBytes(StandardCharsets.US_ASCII),
+                    (host + server).getBytes(StandardCharsets.US_ASCII) };
+            // Racing threads build identical templates, so it doesn't matter which wins
+            this.headerTemplates = templates;
+        }
+        // Host is only sent to HTTP/1.1 clients
+        return templates[origMsg == null || origMsg.getHttpVersion() > 1.0 ? 1 : 0];
+    }
+
     protected String getServerName() {
         return Version.getDescription();
     }
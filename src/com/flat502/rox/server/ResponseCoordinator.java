@@ -1,7 +1,8 @@
 package com.flat502.rox.server;
 
 import java.io.IOException;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -10,13 +11,23 @@ import com.flat502.rox.encoding.Encoding;
 import com.flat502.rox.http.HttpRequestBuffer;
 import com.flat502.rox.http.HttpResponse;
 import com.flat502.rox.http.exception.HttpResponseException;
+import com.flat502.rox.processing.Connection;
+import com.flat502.rox.processing.ContentSource;
+import com.flat502.rox.processing.ContentStream;
+import com.flat502.rox.processing.FileRegion;
+import com.flat502.rox.server.response.FileRegionResponse;
 import com.flat502.rox.server.response.Response;
+import com.flat502.rox.server.response.StreamingResponse;
 
 /**
  * This class is responsible for ensuring that multiple responses on the same socket delivered via different
  * ResponseChannel instances are delivered in order.
  * <P>
- * This class is not thread-safe. Consumers are expected to synchronize access.
+ * A single instance lives for as long as the {@link ServerConnection} that owns it. Responses are typically delivered
+ * from several application threads at once so access to the ordering state is synchronized on this instance.
+ * <P>
+ * While a batch of requests is being handled (see {@link #beginBatch()}) responses are held back, even when it's
+ * their turn, and are written together once the batch is done.
  */
 class ResponseCoordinator {
     /*
@@ -26,7 +37,7 @@ class ResponseCoordinator {
      */
 
     private HttpServer server;
-    private Socket socket;
+    private Connection connection;
 
     private int nextToAssign;
 
@@ -34,82 +45,173 @@ class ResponseCoordinator {
     // We can't send any responses with a higher ID than this value.
     private int nextToSend;
 
-    private List<HttpResponse> queuedResponses = new LinkedList<>();
+    private List<QueuedResponse> queuedResponses = new LinkedList<>();
+
+    // The number of batches being handled. Responses are held back while
+    // this is non-zero.
+    private int batchDepth;
 
-    ResponseCoordinator(HttpServer server, Socket socket) {
+    ResponseCoordinator(HttpServer server, Connection connection) {
         this.server = server;
-        this.socket = socket;
+        this.connection = connection;
     }
 
-    public int nextId() {
+    public synchronized int nextId() {
         return nextToAssign++;
     }
 
-    public void respond(int rspId, HttpRequestBuffer request, Response rsp, Encoding encoding) throws IOException {
-        HttpResponse httpRsp = this.server.toHttpResponse(request, rsp, encoding);
+    /**
+     * Notes that a batch of requests on this connection is about to be handled. Responses are held back until
+     * every batch that has begun has {@link #endBatch() ended}.
+     */
+    public synchronized void beginBatch() {
+        this.batchDepth++;
+    }
 
+    /**
+     * Notes that a batch of requests has been handled, and sends every response that is ready to go if no other
+     * batch is in progress.
+     */
+    public synchronized void endBatch() throws IOException {
+        if (--this.batchDepth == 0) {
+            this.flushResponses();
+        }
+    }
+
+    public synchronized void respond(int rspId, HttpRequestBuffer request, Response rsp, Encoding encoding) throws IOException {
         if (this.nextToSend > rspId) {
             throw new IllegalStateException("Attempt to resend an asynchronous HTTP response");
         }
 
-        if (this.nextToSend == rspId && this.queuedResponses.isEmpty()) {
-            // Short circuit the common case
-            this.sendResponse(httpRsp);
+        // Static responses are sent as they were marshalled the first time
+        CachedResponse.Form form = this.server.getStaticResponse(request, rsp, encoding);
+        if (form != null) {
+            this.enqueue(rspId, new QueuedResponse(form));
             return;
         }
 
-        this.stashResponse(rspId, httpRsp);
+        HttpResponse httpRsp = this.server.toHttpResponse(request, rsp, encoding);
+
+        // File content is written separately, straight from the file, and
+        // streamed content as it's produced
+        ContentSource body = null;
+        if (rsp instanceof FileRegionResponse) {
+            FileRegionResponse fileRsp = (FileRegionResponse) rsp;
+            if (httpRsp.isContentOmitted()) {
+                fileRsp.getChannel().close();
+            } else {
+                body = new FileRegion(fileRsp.getChannel(), fileRsp.getOffset(), fileRsp.getLength());
+            }
+        } else if (rsp instanceof StreamingResponse) {
+            ContentStream stream = ((StreamingResponse) rsp).getChannel();
+            if (httpRsp.isContentOmitted()) {
+                stream.discard();
+            } else {
+                body = stream;
+            }
+        }
+
+        this.enqueue(rspId, new QueuedResponse(httpRsp, body));
     }
 
-    public void respond(int rspId, HttpRequestBuffer request, HttpResponseException e) throws IOException {
+    public synchronized void respond(int rspId, HttpRequestBuffer request, HttpResponseException e) throws IOException {
         HttpResponse httpRsp = this.server.newHttpResponse(request, e);
 
         if (this.nextToSend > rspId) {
             throw new IllegalStateException("Attempt to resend an asynchronous HTTP error response");
         }
 
-        if (this.nextToSend == rspId && this.queuedResponses.isEmpty()) {
+        this.enqueue(rspId, new QueuedResponse(httpRsp, null));
+    }
+
+    private void enqueue(int rspId, QueuedResponse rsp) throws IOException {
+        if (this.nextToSend == rspId && this.queuedResponses.isEmpty() && this.batchDepth == 0) {
             // Short circuit the common case
-            this.sendResponse(httpRsp);
+            this.sendResponse(rsp);
             return;
         }
 
-        this.stashResponse(rspId, httpRsp);
+        this.stashResponse(rspId, rsp);
     }
 
     public void close() throws IOException {
-        this.server.deregisterResponseCoordinator(this);
-        this.socket.getChannel().close();
+        this.connection.getChannel().close();
     }
 
-    protected void sendResponse(HttpResponse rsp) throws IOException {
-        this.server.queueResponse(socket, rsp.marshal(), rsp.mustCloseConnection());
+    protected void sendResponse(QueuedResponse rsp) throws IOException {
+        this.server.queueResponses(this.connection, Collections.singletonList(rsp));
         this.nextToSend++;
     }
 
-    protected void stashResponse(int rspId, HttpResponse httpRsp) throws IOException {
-        try {
-            while (this.queuedResponses.size() < (rspId - this.nextToSend + 1)) {
-                this.queuedResponses.add(null);
+    protected void stashResponse(int rspId, QueuedResponse httpRsp) throws IOException {
+        while (this.queuedResponses.size() < (rspId - this.nextToSend + 1)) {
+            this.queuedResponses.add(null);
+        }
+        if (this.queuedResponses.get(rspId - this.nextToSend) != null) {
+            throw new IllegalStateException("Attempt to resend an asynchronous HTTP response");
+        }
+        this.queuedResponses.set(rspId - this.nextToSend, httpRsp);
+
+        if (this.batchDepth == 0) {
+            this.flushResponses();
+        }
+    }
+
+    /**
+     * Sends the responses at the head of the queue that are ready to go. Consecutive responses are written
+     * together, up to one that is followed by separately written content or closes the connection.
+     */
+    protected void flushResponses() throws IOException {
+        List<QueuedResponse> pending = null;
+        Iterator<QueuedResponse> iter = this.queuedResponses.iterator();
+        while (iter.hasNext()) {
+            QueuedResponse candidate = iter.next();
+            if (candidate == null) {
+                break;
             }
-            this.queuedResponses.set(rspId - this.nextToSend, httpRsp);
-
-            Iterator<HttpResponse> iter = this.queuedResponses.iterator();
-            while (iter.hasNext()) {
-                HttpResponse candidate = iter.next();
-                if (candidate == null) {
-                    return;
-                }
-                iter.remove();
-                this.sendResponse(candidate);
+            iter.remove();
+
+            if (pending == null) {
+                pending = new ArrayList<>();
             }
-        } finally {
-            if (this.queuedResponses.isEmpty()) {
-                // All responses were sent release the resources associated with
-                // this instance. A new one will be created if any later responses
-                // ultimately become available to be delivered on this channel
-                this.server.deregisterResponseCoordinator(this);
+            pending.add(candidate);
+            if (candidate.body != null || candidate.mustCloseConnection()) {
+                this.sendResponses(pending);
+                pending = null;
             }
         }
+        if (pending != null) {
+            this.sendResponses(pending);
+        }
+    }
+
+    private void sendResponses(List<QueuedResponse> rsps) throws IOException {
+        this.server.queueResponses(this.connection, rsps);
+        this.nextToSend += rsps.size();
+    }
+
+    // A response waiting to be sent: either a response to be marshalled,
+    // along with the file region or content stream (if any) that follows its
+    // headers, or the marshalled form of a static response.
+    static class QueuedResponse {
+        final HttpResponse response;
+        final ContentSource body;
+        final CachedResponse.Form form;
+
+        QueuedResponse(HttpResponse response, ContentSource body) {
+            this.response = response;
+            this.body = body;
+            this.form = null;
+        }
+
+        QueuedResponse(CachedResponse.Form form) {
+            this.response = null;
+            this.body = null;
+            this.form = form;
+        }
+
+        boolean mustCloseConnection() {
+            return this.form != null ? this.form.close : this.response.mustCloseConnection();
+        }
     }
 }
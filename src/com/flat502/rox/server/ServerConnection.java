@@ -0,0 +1,60 @@
+package com.flat502.rox.server;
+
+import java.nio.channels.SocketChannel;
+import java.util.TimerTask;
+
+import com.flat502.rox.processing.Connection;
+
+/**
+ * The per-connection state maintained by an {@link HttpServer}.
+ * <p>
+ * In addition to the state tracked by {@link Connection} this holds the {@link ResponseCoordinator} used to order
+ * responses to pipelined requests and the task used to enforce the idle client timeout.
+ */
+class ServerConnection extends Connection {
+    private final ResponseCoordinator responseCoordinator;
+
+    // Guarded by this instance
+    private TimerTask idleTask;
+    private boolean released;
+
+    ServerConnection(HttpServer server, SocketChannel channel) {
+        super(server, channel);
+        this.responseCoordinator = new ResponseCoordinator(server, this);
+    }
+
+    ResponseCoordinator getResponseCoordinator() {
+        return this.responseCoordinator;
+    }
+
+    /**
+     * Replaces the idle client timer task for this connection, cancelling any existing task.
+     *
+     * @return <code>false</code> if this connection has already been released, in which case the new task has been
+     *         cancelled and should not be scheduled.
+     */
+    synchronized boolean setIdleTask(TimerTask task) {
+        if (this.idleTask != null) {
+            this.idleTask.cancel();
+        }
+        if (this.released) {
+            task.cancel();
+            this.idleTask = null;
+            return false;
+        }
+        this.idleTask = task;
+        return true;
+    }
+
+    @Override
+    protected void release() {
+        synchronized (this) {
+            this.released = true;
+            if (this.idleTask != null) {
+                this.idleTask.cancel();
+                this.idleTask = null;
+            }
+        }
+        super.release();
+    }
+}
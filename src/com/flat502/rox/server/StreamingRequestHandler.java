@@ -0,0 +1,27 @@
+package com.flat502.rox.server;
+
+import com.flat502.rox.http.HttpRequestBuffer;
+
+/**
+ * Interface for request handlers that consume request content as it arrives.
+ * <p>
+ * When the headers of a request have been read but its content has not, every registered
+ * {@link StreamingRequestHandler} is asked whether it {@link #wantsStream(HttpRequestBuffer) wants} the request. If
+ * one does, the request is dispatched straight away rather than once all of its content has been received.
+ * {@link #handleRequest(RequestContext)} is then called on an application thread and may read the content through
+ * {@link HttpRequestBuffer#getContentChannel()} or {@link HttpRequestBuffer#getContentStream()}. Reads block until
+ * more content arrives.
+ * <p>
+ * Streamed requests are only offered to the streaming handlers that want them. Content the handler doesn't read
+ * before its response is sent is discarded as it arrives.
+ */
+public interface StreamingRequestHandler extends AsynchronousRequestHandler {
+    /**
+     * Invoked on a selecting thread once the headers of a request have been read. Implementations must not block.
+     *
+     * @param request
+     *            The request. Its headers may be inspected but its content has not arrived yet.
+     * @return <code>true</code> if this handler should be dispatched before the request's content arrives.
+     */
+    boolean wantsStream(HttpRequestBuffer request);
+}
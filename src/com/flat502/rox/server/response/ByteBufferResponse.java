@@ -2,6 +2,13 @@ package com.flat502.rox.server.response;
 
 import java.nio.ByteBuffer;
 
+/**
+ * A response whose content is the bytes remaining in a {@link ByteBuffer}.
+ * <p>
+ * The buffer is sent as it is, without being copied, and may be direct or read-only. Its position and limit are
+ * never changed, so one buffer holding a precomputed payload can be returned for any number of requests and sent on
+ * many connections at once. Its content must not be modified while it may still be being sent.
+ */
 public class ByteBufferResponse implements Response {
     private ByteBuffer byteBuffer;
     private String contentType;
@@ -11,9 +18,22 @@ public class ByteBufferResponse implements Response {
         this.contentType = contentType;
     }
 
+    /**
+     * @return A view of the content that shares the buffer passed to the constructor but has its own position and
+     *         limit.
+     */
+    public ByteBuffer getContentBuffer() {
+        return byteBuffer.duplicate();
+    }
+
+    /**
+     * Returns a copy of the content. The server doesn't use this; it sends {@link #getContentBuffer()} instead.
+     */
     @Override
     public byte[] getContent() {
-        return byteBuffer.array();
+        byte[] content = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(content);
+        return content;
     }
 
     @Override
@@ -0,0 +1,130 @@
+package com.flat502.rox.server.response;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A response whose content is a region of a file.
+ * <p>
+ * The server writes the region straight from the file rather than going through {@link #getContent()}, so the
+ * content is never loaded onto the heap. On plain connections this uses
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} (<code>sendfile</code> on most
+ * platforms). Over HTTPS the file is read through a series of memory-mapped windows instead. Responses of this type
+ * are never content-encoded.
+ * <p>
+ * The channel is closed once the response has been written (or the connection is closed first).
+ * <p>
+ * When the file's modification time is known the server sends <code>Last-Modified</code> and <code>ETag</code>
+ * headers derived from it, and answers matching conditional requests with <code>304 Not Modified</code>.
+ */
+public class FileRegionResponse implements Response {
+    private FileChannel channel;
+    private long offset;
+    private long length;
+    private String contentType;
+    private long lastModified;
+
+    /**
+     * Constructs a response containing an entire file.
+     *
+     * @throws IOException
+     *             if the file cannot be opened.
+     */
+    public FileRegionResponse(File file, String contentType) throws IOException {
+        this.channel = new FileInputStream(file).getChannel();
+        this.offset = 0;
+        this.length = this.channel.size();
+        this.contentType = contentType;
+        // File.lastModified() returns 0 if it can't tell
+        long lastModified = file.lastModified();
+        this.lastModified = lastModified == 0 ? -1 : lastModified;
+    }
+
+    /**
+     * Constructs a response containing part of a file.
+     *
+     * @param channel
+     *            The channel to read the content from. This is closed once the response has been written.
+     * @param offset
+     *            The offset of the first byte of content within the file.
+     * @param length
+     *            The number of bytes of content.
+     */
+    public FileRegionResponse(FileChannel channel, long offset, long length, String contentType) {
+        this(channel, offset, length, contentType, -1);
+    }
+
+    /**
+     * Constructs a response containing part of a file whose modification time is known.
+     *
+     * @param channel
+     *            The channel to read the content from. This is closed once the response has been written.
+     * @param offset
+     *            The offset of the first byte of content within the file.
+     * @param length
+     *            The number of bytes of content.
+     * @param lastModified
+     *            The time the file was last modified in milliseconds since the epoch, or <code>-1</code> if it isn't
+     *            known.
+     */
+    public FileRegionResponse(FileChannel channel, long offset, long length, String contentType, long lastModified) {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid file region: offset=" + offset + ", length=" + length);
+        }
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.contentType = contentType;
+        this.lastModified = lastModified;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return The time the file was last modified in milliseconds since the epoch, or <code>-1</code> if it isn't
+     *         known.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Reads the entire region onto the heap. The server doesn't use this, it's provided for callers that need the
+     * content itself.
+     */
+    @Override
+    public byte[] getContent() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("File region is too large to load: " + length + " bytes");
+        }
+        ByteBuffer content = ByteBuffer.allocate((int) length);
+        try {
+            while (content.hasRemaining()) {
+                if (channel.read(content, offset + content.position()) < 0) {
+                    throw new IOException("Unexpected end of file after " + content.position() + " byte(s)");
+                }
+            }
+        } catch (IOException e) {
+            throw (IllegalStateException) new IllegalStateException("Error reading file region").initCause(e);
+        }
+        return content.array();
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+}
@@ -0,0 +1,72 @@
+package com.flat502.rox.server.response;
+
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+
+import com.flat502.rox.processing.ContentStream;
+
+/**
+ * A response whose content is written while it's being sent, for content that is too large or too slow to produce
+ * to build in memory first (reports, exports and the like).
+ * <p>
+ * The application writes the content to {@link #getChannel()} (or {@link #getOutputStream()}) and closes it once
+ * it's done. When the length isn't known in advance the content is sent using the <code>chunked</code> transfer
+ * coding, or for HTTP/1.0 clients by closing the connection once it's complete. Responses of this type are never
+ * content-encoded and don't get an <code>ETag</code>.
+ * <p>
+ * Writes block while a bounded amount of content is waiting to go out, so the producer runs at the pace of the
+ * client. Nothing goes out until the response has been returned from the handler, so any content beyond that bound
+ * must be written from a thread of its own.
+ */
+public class StreamingResponse implements Response {
+    private ContentStream channel;
+    private String contentType;
+    private OutputStream outputStream;
+
+    /**
+     * Constructs a response whose length isn't known in advance.
+     */
+    public StreamingResponse(String contentType) {
+        this(contentType, -1);
+    }
+
+    /**
+     * Constructs a response of a known length. Exactly <code>length</code> bytes must be written; if fewer are the
+     * connection is closed once they've been sent.
+     */
+    public StreamingResponse(String contentType, long length) {
+        this.channel = new ContentStream(length);
+        this.contentType = contentType;
+    }
+
+    /**
+     * @return The channel to write the content to.
+     */
+    public ContentStream getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return A buffered stream that writes to {@link #getChannel()}. Closing it closes the channel.
+     */
+    public synchronized OutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new BufferedOutputStream(Channels.newOutputStream(channel), 8192);
+        }
+        return outputStream;
+    }
+
+    /**
+     * Streamed content is never held in memory, so this is not supported.
+     */
+    @Override
+    public byte[] getContent() {
+        throw new UnsupportedOperationException("Streamed content is not available as an array");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+}
@@ -11,16 +11,25 @@ import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Array;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.Principal;
 import java.security.cert.CertificateEncodingException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,8 +48,15 @@ public class Utils {
 
     private static final float JAVA_RUNTIME_VERION;
 
+    // The preferred HTTP date format (RFC 1123), always in GMT
+    private static final DateFormatThreadLocal HTTP_DATE_FORMATS;
+
     static {
         JAVA_RUNTIME_VERION = Float.parseFloat(System.getProperty("java.specification.version"));
+
+        SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        HTTP_DATE_FORMATS = new DateFormatThreadLocal(httpDateFormat);
     }
 
     /**
@@ -88,26 +104,248 @@ public class Utils {
         return type;
     }
 
-    // TODO: Document
+    /**
+     * Normalizes the path component of a URI.
+     * <p>
+     * Anything from the first <code>?</code> or <code>#</code> onwards is returned untouched. The path itself is
+     * normalized as described under {@link #normalizeURIPath(byte[], int, int)}.
+     *
+     * @param uri
+     *            The URI to normalize.
+     * @return The normalized URI.
+     * @throws IllegalArgumentException
+     *             if the path contains a malformed escape sequence.
+     */
     public static String normalizeURIPath(String uri) {
-        if (uri.indexOf('%') < 0 && !uri.startsWith("./") && !uri.startsWith("../") && !uri.endsWith("/.")
-                && !uri.endsWith("/..") && uri.indexOf("/../") < 0 && uri.indexOf("/./") < 0
-                && uri.indexOf("//") < 0) {
-            // Nothing %-encoded, and no special path elements
-            return uri;
+        int end = 0;
+        while (end < uri.length() && uri.charAt(end) != '?' && uri.charAt(end) != '#') {
+            end++;
         }
-        try {
-            uri = new URI(uri).normalize().getPath();
-        } catch (URISyntaxException e) {
-            throw (IllegalArgumentException) new IllegalArgumentException("Malformed URI [" + uri + "]")
-            .initCause(e);
+        byte[] path = uri.substring(0, end).getBytes(StandardCharsets.UTF_8);
+        String normalized = normalizeURIPath(path, 0, path.length);
+        return end == uri.length() ? normalized : normalized + uri.substring(end);
+    }
+
+    /**
+     * Normalizes a URI path held in <code>buf</code>, in a single pass over its bytes.
+     * <p>
+     * <code>%</code>-escapes are decoded (as UTF-8), and <code>.</code> and <code>..</code> segments are resolved
+     * (after decoding, so escaped dots can't be used to climb out of the root). An escaped <code>/</code> separates
+     * segments just as a plain one does, so it can't hide a dot segment either. Empty segments and any trailing
+     * <code>/</code> are dropped and the result always starts with <code>/</code>. A URI in absolute form (such as
+     * <code>http://host/path</code>) is reduced to its path. An empty path normalizes to <code>/</code>.
+     * <p>
+     * Paths that are already normal are returned without being copied beyond the final conversion to a
+     * {@link String}.
+     *
+     * @param buf
+     *            The buffer holding the path.
+     * @param offset
+     *            The offset of the path within <code>buf</code>.
+     * @param length
+     *            The length of the path.
+     * @return The normalized path.
+     * @throws IllegalArgumentException
+     *             if the path contains a malformed escape sequence or an escaped <code>NUL</code>.
+     */
+    public static String normalizeURIPath(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        if (isNormalPath(buf, offset, end)) {
+            return new String(buf, offset, length, StandardCharsets.ISO_8859_1);
+        }
+
+        int i = skipSchemeAndAuthority(buf, offset, end);
+
+        // Each segment is written out preceded by a '/'. segments holds the
+        // offset of the '/' ahead of each segment written so far so ".."
+        // can back up over them.
+        byte[] out = new byte[length + 1];
+        int n = 0;
+        int[] segments = new int[16];
+        int depth = 0;
+        while (i < end) {
+            if (buf[i] == '/') {
+                i++;
+                continue;
+            }
+
+            int segmentStart = n;
+            out[n++] = '/';
+            while (i < end && buf[i] != '/') {
+                int b = buf[i++];
+                if (b == '%') {
+                    int hi = i + 1 < end ? Character.digit(buf[i], 16) : -1;
+                    int lo = i + 1 < end ? Character.digit(buf[i + 1], 16) : -1;
+                    if (hi == -1 || lo == -1) {
+                        throw new IllegalArgumentException("Malformed URI [" + new String(buf, offset, length,
+                                StandardCharsets.ISO_8859_1) + "]: invalid escape sequence");
+                    }
+                    b = (hi << 4) | lo;
+                    if (b == 0) {
+                        throw new IllegalArgumentException("Malformed URI [" + new String(buf, offset, length,
+                                StandardCharsets.ISO_8859_1) + "]: escaped NUL");
+                    }
+                    i += 2;
+                    if (b == '/') {
+                        break;
+                    }
+                }
+                out[n++] = (byte) b;
+            }
+
+            int segmentLength = n - segmentStart - 1;
+            if (segmentLength == 0) {
+                // Only possible ahead of an escaped '/'
+                n = segmentStart;
+            } else if (segmentLength == 1 && out[segmentStart + 1] == '.') {
+                n = segmentStart;
+            } else if (segmentLength == 2 && out[segmentStart + 1] == '.' && out[segmentStart + 2] == '.') {
+                // Climbing above the root leaves us at the root
+                n = depth > 0 ? segments[--depth] : segmentStart;
+            } else {
+                if (depth == segments.length) {
+                    segments = Arrays.copyOf(segments, depth * 2);
+                }
+                segments[depth++] = segmentStart;
+            }
+        }
+
+        if (n == 0) {
+            return "/";
+        }
+        return new String(out, 0, n, StandardCharsets.UTF_8);
+    }
+
+    // Returns true if the path in buf[offset, end) is ASCII, absolute, has no
+    // escapes, empty segments, dot segments or trailing slash.
+    private static boolean isNormalPath(byte[] buf, int offset, int end) {
+        if (end == offset || buf[offset] != '/' || (end - offset > 1 && buf[end - 1] == '/')) {
+            return false;
+        }
+        for (int i = offset; i < end; i++) {
+            byte b = buf[i];
+            if (b == '%' || b < 0) {
+                return false;
+            }
+            if (b == '/' && i + 1 < end) {
+                byte next = buf[i + 1];
+                if (next == '/') {
+                    return false;
+                }
+                if (next == '.' && (i + 2 == end || buf[i + 2] == '/'
+                        || (buf[i + 2] == '.' && (i + 3 == end || buf[i + 3] == '/')))) {
+                    return false;
+                }
+            }
         }
-        if (uri.equals("")) {
-            uri = "/";
-        } else if (!uri.equals("/") && uri.endsWith("/")) {
-            uri = uri.substring(0, uri.length() - 1);
+        return true;
+    }
+
+    // Returns the offset of the path in an absolute URI (scheme "://"
+    // authority path), or offset if the URI isn't in that form.
+    private static int skipSchemeAndAuthority(byte[] buf, int offset, int end) {
+        int i = offset;
+        while (i < end && ((buf[i] >= 'a' && buf[i] <= 'z') || (buf[i] >= 'A' && buf[i] <= 'Z')
+                || (i > offset && ((buf[i] >= '0' && buf[i] <= '9') || buf[i] == '+' || buf[i] == '-'
+                        || buf[i] == '.')))) {
+            i++;
         }
-        return uri;
+        if (i == offset || i + 2 >= end || buf[i] != ':' || buf[i + 1] != '/' || buf[i + 2] != '/') {
+            return offset;
+        }
+        i += 3;
+        while (i < end && buf[i] != '/') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Decodes <code>application/x-www-form-urlencoded</code> data (as found in a query string or the content of an
+     * HTML form submission) in a single pass over its bytes.
+     * <p>
+     * Parameters are separated by <code>&amp;</code> and names are separated from values by the first
+     * <code>=</code>. A parameter without an <code>=</code> has an empty value. <code>+</code> decodes to a space
+     * and <code>%</code>-escapes to the byte they encode. Decoding is lenient: a malformed escape is taken
+     * literally rather than failing the whole request.
+     * <p>
+     * The returned map iterates over names in the order they first appear. Each name maps to all of its values, in
+     * order. The map and its lists are unmodifiable.
+     *
+     * @param buf
+     *            The buffer holding the encoded data.
+     * @param offset
+     *            The offset of the data within <code>buf</code>.
+     * @param length
+     *            The length of the data.
+     * @param charset
+     *            The character set the decoded bytes are in.
+     * @return The decoded parameters.
+     */
+    public static Map<String, List<String>> decodeParameters(byte[] buf, int offset, int length, Charset charset) {
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        int end = offset + length;
+        byte[] scratch = null;
+        int start = offset;
+        while (start < end) {
+            int pairEnd = start;
+            int split = -1;
+            while (pairEnd < end && buf[pairEnd] != '&') {
+                if (split == -1 && buf[pairEnd] == '=') {
+                    split = pairEnd;
+                }
+                pairEnd++;
+            }
+
+            if (pairEnd > start) {
+                if (scratch == null) {
+                    scratch = new byte[length];
+                }
+                String name = decodeComponent(buf, start, split == -1 ? pairEnd : split, charset, scratch);
+                String value = split == -1 ? "" : decodeComponent(buf, split + 1, pairEnd, charset, scratch);
+                List<String> values = params.get(name);
+                if (values == null) {
+                    values = new ArrayList<>(1);
+                    params.put(name, values);
+                }
+                values.add(value);
+            }
+            start = pairEnd + 1;
+        }
+
+        for (Map.Entry<String, List<String>> entry : params.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(params);
+    }
+
+    private static String decodeComponent(byte[] buf, int start, int end, Charset charset, byte[] scratch) {
+        int i = start;
+        while (i < end && buf[i] != '%' && buf[i] != '+') {
+            i++;
+        }
+        if (i == end) {
+            // Nothing to decode
+            return new String(buf, start, end - start, charset);
+        }
+
+        int n = i - start;
+        System.arraycopy(buf, start, scratch, 0, n);
+        while (i < end) {
+            byte b = buf[i++];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 1 < end) {
+                int hi = Character.digit(buf[i], 16);
+                int lo = Character.digit(buf[i + 1], 16);
+                if (hi != -1 && lo != -1) {
+                    b = (byte) ((hi << 4) | lo);
+                    i += 2;
+                }
+            }
+            scratch[n++] = b;
+        }
+        return new String(scratch, 0, n, charset);
     }
 
     /**
@@ -256,6 +494,52 @@ public class Utils {
         System.out.println(ts + ": " + Thread.currentThread().getName() + ": " + msg);
     }
 
+    private static boolean isNormalHttpHeaderName(String name) {
+        boolean wordStart = true;
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch == '-') {
+                wordStart = true;
+                continue;
+            }
+            if (wordStart ? Character.toUpperCase(ch) != ch : Character.toLowerCase(ch) != ch) {
+                return false;
+            }
+            wordStart = false;
+        }
+        return true;
+    }
+
+    /**
+     * Formats a time as an HTTP date in the format preferred by <a
+     * href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.3.1">section 3.3.1</a> of RFC 2616 (for
+     * example <code>Sun, 06 Nov 1994 08:49:37 GMT</code>).
+     *
+     * @param millis
+     *            The time to format, in milliseconds since the epoch.
+     * @return The formatted date.
+     */
+    public static String formatHttpDate(long millis) {
+        return HTTP_DATE_FORMATS.getFormatter().format(new Date(millis));
+    }
+
+    /**
+     * Parses an HTTP date in the format preferred by <a
+     * href="http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.3.1">section 3.3.1</a> of RFC 2616. The
+     * obsolete formats are not supported.
+     *
+     * @param value
+     *            The date to parse.
+     * @return The date in milliseconds since the epoch, or <code>-1</code> if <code>value</code> can't be parsed.
+     */
+    public static long parseHttpDate(String value) {
+        try {
+            return HTTP_DATE_FORMATS.getFormatter().parse(value.trim()).getTime();
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
     /**
      * Normalizes an HTTP header name.
      * <p>
@@ -270,7 +554,10 @@ public class Utils {
      * @return The normalized header name.
      */
     public static String normalizeHttpHeaderName(String name) {
-        // TODO: Return original String object if the header name is already in the right format
+        if (isNormalHttpHeaderName(name)) {
+            // Names are usually given as constants that are already normalized
+            return name;
+        }
         char[] chars = name.toCharArray();
         int newWord = -1;
         for (int i = 0; i < chars.length; i++) {
@@ -560,6 +847,15 @@ public class Utils {
         return toHexDump(data, 0, data.length);
     }
 
+    /**
+     * Produces a hex dump of the remaining bytes in a buffer without changing its position.
+     */
+    public static String toHexDump(ByteBuffer data) {
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        return toHexDump(copy, 0, copy.length);
+    }
+
     public static String toHexDump(byte[] data, int offset, int length) {
         StringBuffer out = new StringBuffer(data.length * 4);
         String three_spaces = "   ";
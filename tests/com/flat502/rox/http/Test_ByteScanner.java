@@ -0,0 +1,74 @@
+package com.flat502.rox.http;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class Test_ByteScanner extends TestCase {
+    public void testEveryPosition() throws Exception {
+        byte[] buf = new byte[40];
+        for (int at = 0; at < buf.length; at++) {
+            buf[at] = '\n';
+            assertEquals(at, ByteScanner.indexOf(buf, 0, buf.length, (byte) '\n'));
+            buf[at] = 0;
+        }
+    }
+
+    public void testFirstOfSeveral() throws Exception {
+        byte[] buf = "Host: x\r\nAccept: */*\r\n\r\n".getBytes("ASCII");
+        assertEquals(7, ByteScanner.indexOf(buf, 0, buf.length, (byte) '\r'));
+        assertEquals(8, ByteScanner.indexOf(buf, 0, buf.length, (byte) '\n'));
+        assertEquals(4, ByteScanner.indexOf(buf, 0, buf.length, (byte) ':'));
+        assertEquals(15, ByteScanner.indexOf(buf, 9, buf.length, (byte) ':'));
+        assertEquals(-1, ByteScanner.indexOf(buf, 0, buf.length, (byte) '?'));
+    }
+
+    public void testRangeIsRespected() throws Exception {
+        byte[] buf = "aaaaaaaaaaaaaaaaaaaaaaaaXaaaaaaaaaaaaaaaaaaaaaaX".getBytes("ASCII");
+        assertEquals(24, ByteScanner.indexOf(buf, 0, buf.length, (byte) 'X'));
+        assertEquals(-1, ByteScanner.indexOf(buf, 0, 24, (byte) 'X'));
+        assertEquals(47, ByteScanner.indexOf(buf, 25, buf.length, (byte) 'X'));
+        assertEquals(-1, ByteScanner.indexOf(buf, 25, 47, (byte) 'X'));
+        assertEquals(-1, ByteScanner.indexOf(buf, 10, 10, (byte) 'a'));
+    }
+
+    public void testHighBytes() throws Exception {
+        // Bytes at or above 0x80 mustn't be mistaken for a match
+        byte[] buf = new byte[32];
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] = (byte) (0x80 + i);
+        }
+        assertEquals(-1, ByteScanner.indexOf(buf, 0, buf.length, (byte) 0));
+        assertEquals(-1, ByteScanner.indexOf(buf, 0, buf.length, (byte) '\n'));
+        assertEquals(17, ByteScanner.indexOf(buf, 0, buf.length, (byte) 0x91));
+        assertEquals(31, ByteScanner.indexOf(buf, 0, buf.length, (byte) 0x9F));
+    }
+
+    public void testAgreesWithSimpleLoop() throws Exception {
+        Random random = new Random(42);
+        for (int n = 0; n < 2000; n++) {
+            byte[] buf = new byte[random.nextInt(100)];
+            random.nextBytes(buf);
+            int from = buf.length == 0 ? 0 : random.nextInt(buf.length);
+            int to = from + random.nextInt(buf.length - from + 1);
+            byte b = (byte) random.nextInt(256);
+            ByteBuffer view = ByteScanner.wrap(buf);
+            assertEquals(simpleIndexOf(buf, from, to, b), ByteScanner.indexOf(buf, from, to, b));
+            assertEquals(simpleIndexOf(buf, from, to, b), ByteScanner.indexOf(view, from, to, b));
+        }
+    }
+
+    private static int simpleIndexOf(byte[] buf, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_ByteScanner.class);
+    }
+}
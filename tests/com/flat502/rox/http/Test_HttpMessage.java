@@ -1,7 +1,15 @@
 package com.flat502.rox.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+import com.flat502.rox.encoding.GZipEncoding;
+import com.flat502.rox.processing.WriteBufferPool;
 
 import org.custommonkey.xmlunit.XMLTestCase;
 
@@ -17,6 +25,136 @@ public class Test_HttpMessage extends XMLTestCase {
         assertEquals("Two--Dashes", httpMsg.normalizeHeaderName("two--dashes"));
     }
 
+    public void testNormalizedNamesAreReused() throws Exception {
+        TestHttpMessage httpMsg = new TestHttpMessage();
+        String name = "Content-Type";
+        assertSame(name, httpMsg.normalizeHeaderName(name));
+        assertEquals("Etag", httpMsg.normalizeHeaderName("ETag"));
+    }
+
+    public void testHeaderTemplate() throws Exception {
+        HttpResponse httpRsp = new HttpResponse(200, "OK");
+        httpRsp.setHeaderTemplate("Server: test\r\nHost: here\r\n".getBytes("ASCII"));
+        httpRsp.setContent("Hello".getBytes("ASCII"));
+        String rsp = new String(httpRsp.marshal(), "ASCII");
+        assertTrue(rsp.startsWith("HTTP/1.1 200 OK\r\nServer: test\r\nHost: here\r\nDate: "));
+        assertTrue(rsp.endsWith("\r\nContent-Length: 5\r\n\r\nHello"));
+    }
+
+    public void testDateHeader() throws Exception {
+        HttpResponse first = new HttpResponse(200, "OK");
+        HttpResponse second = new HttpResponse(200, "OK");
+        String date = first.getHeaderValue(HttpConstants.Headers.DATE);
+        assertTrue(date, date.matches("\\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT"));
+        String rsp = new String(first.marshal(), "ASCII");
+        assertTrue(rsp.contains("\r\nDate: " + date + "\r\n"));
+
+        // An explicitly set date replaces the cached one
+        second.setHeader(HttpConstants.Headers.DATE, "Sun, 06 Nov 1994 08:49:37 GMT");
+        rsp = new String(second.marshal(), "ASCII");
+        assertTrue(rsp.contains("\r\nDate: Sun, 06 Nov 1994 08:49:37 GMT\r\n"));
+    }
+
+    public void testResponseContentOmitted() throws Exception {
+        HttpResponse httpRsp = new HttpResponse(200, "OK");
+        httpRsp.setContent("Hello".getBytes("ASCII"));
+        httpRsp.setContentOmitted();
+        String rsp = new String(httpRsp.marshal(), "ASCII");
+        assertTrue(rsp.contains("Content-Length: 5\r\n"));
+        assertTrue(rsp.endsWith("\r\n\r\n"));
+        assertFalse(rsp.contains("Hello"));
+    }
+
+    public void testNotModifiedHasNoContentLength() throws Exception {
+        HttpResponse httpRsp = new HttpResponse(304, "Not Modified");
+        httpRsp.setContentOmitted();
+        String rsp = new String(httpRsp.marshal(), "ASCII");
+        assertTrue(rsp.startsWith("HTTP/1.1 304 Not Modified\r\n"));
+        assertFalse(rsp.contains("Content-Length"));
+    }
+
+    public void testMarshalToBuffers() throws Exception {
+        HttpResponse httpRsp = new HttpResponse(404, "Not Found");
+        httpRsp.setHeaderTemplate("Server: test\r\n".getBytes("ASCII"));
+        httpRsp.addHeader(HttpConstants.Headers.CONTENT_TYPE, "text/plain");
+        byte[] content = "Hello".getBytes("ASCII");
+        httpRsp.setContent(content);
+
+        ByteBuffer[] bufs = httpRsp.marshal(new WriteBufferPool(true));
+        assertEquals(2, bufs.length);
+        assertTrue(bufs[0].isDirect());
+        assertSame(content, bufs[1].array());
+        assertEquals(new String(httpRsp.marshal(), "ASCII"), new String(concat(bufs), "ASCII"));
+    }
+
+    public void testMarshalToBuffersWithoutContent() throws Exception {
+        HttpResponse httpRsp = new HttpResponse(200, "OK");
+        httpRsp.setContent("Hello".getBytes("ASCII"));
+        httpRsp.setContentOmitted();
+        ByteBuffer[] bufs = httpRsp.marshal(new WriteBufferPool(false));
+        assertEquals(1, bufs.length);
+        String rsp = new String(concat(bufs), "ASCII");
+        assertTrue(rsp.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(rsp.endsWith("Content-Length: 5\r\n\r\n"));
+    }
+
+    public void testMarshalToBuffersEncoded() throws Exception {
+        HttpResponse httpRsp = new HttpResponse(200, "OK", new GZipEncoding());
+        httpRsp.setContent("Hello, Hello, Hello".getBytes("ASCII"));
+        ByteBuffer[] bufs = httpRsp.marshal(new WriteBufferPool(true));
+        assertEquals(2, bufs.length);
+        String head = new String(concat(new ByteBuffer[] { bufs[0] }), "ASCII");
+        assertTrue(head.contains("Content-Length: " + bufs[1].remaining() + "\r\n"));
+
+        byte[] encoded = concat(new ByteBuffer[] { bufs[1] });
+        InputStream is = new GZIPInputStream(new ByteArrayInputStream(encoded));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        int b;
+        while ((b = is.read()) != -1) {
+            decoded.write(b);
+        }
+        assertEquals("Hello, Hello, Hello", new String(decoded.toByteArray(), "ASCII"));
+    }
+
+    public void testMarshalSharedDirectBuffer() throws Exception {
+        ByteBuffer shared = ByteBuffer.allocateDirect(32);
+        shared.put("xxHello Worldyy".getBytes("ASCII"));
+        shared.position(2).limit(13);
+        ByteBuffer readOnly = shared.asReadOnlyBuffer();
+
+        for (int i = 0; i < 2; i++) {
+            HttpResponse httpRsp = new HttpResponse(200, "OK", null);
+            httpRsp.setContent(readOnly);
+            ByteBuffer[] bufs = httpRsp.marshal(new WriteBufferPool(true));
+            assertEquals(2, bufs.length);
+            assertTrue(bufs[1].isDirect());
+            assertEquals(11, bufs[1].remaining());
+            String rsp = new String(concat(bufs), "ASCII");
+            assertTrue(rsp.contains("Content-Length: 11\r\n"));
+            assertTrue(rsp.endsWith("\r\n\r\nHello World"));
+
+            // Writing the content doesn't disturb the shared buffer
+            bufs[1].position(bufs[1].limit());
+            assertEquals(2, readOnly.position());
+            assertEquals(13, readOnly.limit());
+        }
+
+        // Putting the same message on a stream copies it out
+        HttpResponse httpRsp = new HttpResponse(200, "OK", null);
+        httpRsp.setContent(readOnly);
+        assertTrue(new String(httpRsp.marshal(), "ASCII").endsWith("\r\n\r\nHello World"));
+    }
+
+    private static byte[] concat(ByteBuffer[] bufs) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (ByteBuffer buf : bufs) {
+            byte[] data = new byte[buf.remaining()];
+            buf.duplicate().get(data);
+            os.write(data, 0, data.length);
+        }
+        return os.toByteArray();
+    }
+
     private class TestHttpMessage extends HttpMessage {
         protected TestHttpMessage() {
             super(null);
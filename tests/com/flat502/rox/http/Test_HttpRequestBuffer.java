@@ -3,11 +3,15 @@ package com.flat502.rox.http;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import org.custommonkey.xmlunit.XMLTestCase;
 
 import com.flat502.rox.http.exception.HttpResponseException;
+import com.flat502.rox.http.exception.InvalidHeaderException;
 
 public class Test_HttpRequestBuffer extends XMLTestCase {
     public void testSimplePOST() throws Exception {
@@ -33,6 +37,52 @@ public class Test_HttpRequestBuffer extends XMLTestCase {
         assertEquals("", new String(httpReq.getContent(), "UTF-8"));
     }
 
+    public void testQueryParameters() throws Exception {
+        String[] msg = new String[] { "GET /a/../method/?q=rox+server&n=1&n=2 HTTP/1.1", "Host: hostname", "", "" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertEquals("/method", httpReq.getPath());
+        assertEquals("/method?q=rox+server&n=1&n=2", httpReq.getURI());
+        assertEquals("/a/../method/?q=rox+server&n=1&n=2", httpReq.getRawURI());
+        assertEquals("q=rox+server&n=1&n=2", httpReq.getQueryString());
+        assertEquals("rox server", httpReq.getQueryParameter("q"));
+        assertEquals(Arrays.asList("1", "2"), httpReq.getQueryParameters().get("n"));
+        assertSame(httpReq.getQueryParameters(), httpReq.getQueryParameters());
+    }
+
+    public void testNoQueryParameters() throws Exception {
+        String[] msg = new String[] { "GET /method HTTP/1.1", "Host: hostname", "", "" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertNull(httpReq.getQueryString());
+        assertTrue(httpReq.getQueryParameters().isEmpty());
+        assertNull(httpReq.getQueryParameter("q"));
+    }
+
+    public void testFormParameters() throws Exception {
+        String[] msg = new String[] { "POST /form HTTP/1.1", "Host: hostname",
+                "Content-Type: application/x-www-form-urlencoded", "Content-Length: 24", "",
+                "name=caf%C3%A9&flag&x=%2" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertEquals("caf\u00e9", httpReq.getFormParameter("name"));
+        assertEquals("", httpReq.getFormParameter("flag"));
+        assertEquals("%2", httpReq.getFormParameter("x"));
+        assertTrue(httpReq.getQueryParameters().isEmpty());
+    }
+
+    public void testFormParametersNotForm() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Type: text/xml",
+                "Content-Length: 5", "", "a=b&c" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertTrue(httpReq.getFormParameters().isEmpty());
+    }
+
+    public void testMalformedURIEscape() throws Exception {
+        this.assertBadRequest(new String[] { "GET /foo%zz HTTP/1.1", "Host: hostname", "", "" }, 400);
+    }
+
+    public void testMalformedRequestLine() throws Exception {
+        this.assertBadRequest(new String[] { "GET", "Host: hostname", "", "" }, 400);
+    }
+
     public void testUnsupportedHttpVersion() throws Exception {
         String[] msg = new String[] { "POST / HTTP/0.9", "Host: hostname", "Content-Type: text/xml",
                 "Content-Length: 5", "", "Hello" };
@@ -45,6 +95,15 @@ public class Test_HttpRequestBuffer extends XMLTestCase {
         }
     }
 
+    public void testHeadRequest() throws Exception {
+        String[] msg = new String[] { "HEAD /method HTTP/1.1", "Host: hostname", "", "" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertTrue(httpReq.isComplete());
+        assertEquals("HEAD", httpReq.getMethod());
+        assertSame(HttpConstants.Methods.HEAD, httpReq.getMethod());
+        assertEquals("/method", httpReq.getPath());
+    }
+
     public void testUnsupportedHttpMethod() throws Exception {
         String[] msg = new String[] { "DELETE / HTTP/1.1", "Host: hostname", "Content-Type: text/xml",
                 "Content-Length: 5", "", "Hello" };
@@ -260,6 +319,19 @@ public class Test_HttpRequestBuffer extends XMLTestCase {
         assertEquals("other", keys.next());
     }
 
+    public void testAcceptContentMalformedElementsIgnored() throws Exception {
+        String[] msg = new String[] { "GET / HTTP/1.1", "Host: hostname",
+                "Accept-Encoding: gzip;q=x, , deflate;q=0, compress;q=2, br;a;b, Identity ;q=0.2", "", "" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertTrue(httpReq.isComplete());
+        Iterator keys = httpReq.getAcceptedEncodings().keySet().iterator();
+        assertEquals("identity", keys.next());
+        assertEquals("deflate", keys.next());
+        assertFalse(keys.hasNext());
+        assertEquals(new Float(0), httpReq.getAcceptedEncodings().get("deflate"));
+        assertSame(httpReq.getAcceptedEncodings(), httpReq.getAcceptedEncodings());
+    }
+
     public void testAcceptContentSortOrder() throws Exception {
         String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Type: text/xml",
                 "Content-Length: 5",
@@ -318,6 +390,375 @@ public class Test_HttpRequestBuffer extends XMLTestCase {
         assertEquals("More", new String(httpReq3.getContent(), "UTF-8"));
     }
 
+    public void testPipelinedRequestsFromDirectBuffer() throws Exception {
+        String[] msg = new String[] { "GET / HTTP/1.1", "Host: hostname", "Content-Type: text/xml",
+                "Content-Length: 5", "", "HelloGET / HTTP/1.1", "Host: hostname", "Content-Type: text/xml",
+                "Content-Length: 5", "", "World" };
+
+        byte[] data = toBuffer(msg);
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data).flip();
+
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        assertTrue(httpReq.addBytes(buf));
+        assertEquals(82, buf.position());
+        assertEquals("Hello", new String(httpReq.getContent(), "UTF-8"));
+
+        HttpRequestBuffer httpReq2 = new HttpRequestBuffer(null, null);
+        assertTrue(httpReq2.addBytes(buf));
+        assertFalse(buf.hasRemaining());
+        assertEquals("World", new String(httpReq2.getContent(), "UTF-8"));
+    }
+
+    public void testPartialRequestFromDirectBuffer() throws Exception {
+        byte[] data = toBuffer(new String[] { "GET / HTTP/1.1", "Host: hostname", "Content-Length: 5", "", "Hello" });
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data, 0, 10).flip();
+        assertFalse(httpReq.addBytes(buf));
+        assertFalse(buf.hasRemaining());
+
+        buf.clear();
+        buf.put(data, 10, data.length - 10).flip();
+        assertTrue(httpReq.addBytes(buf));
+        assertFalse(buf.hasRemaining());
+        assertEquals("Hello", new String(httpReq.getContent(), "UTF-8"));
+    }
+
+    public void testRequestOneByteAtATime() throws Exception {
+        byte[] data = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "X-Custom-Header: some",
+                "\tmultiline value", "Content-Length: 5", "", "Hello" });
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        for (int i = 0; i < data.length - 1; i++) {
+            assertEquals(-1, httpReq.addBytes(data, i, 1));
+            assertFalse(httpReq.isComplete());
+        }
+        assertEquals(0, httpReq.addBytes(data, data.length - 1, 1));
+        assertTrue(httpReq.isComplete());
+        assertEquals("POST", httpReq.getMethod());
+        assertEquals("some\r\n\tmultiline value", httpReq.getHeaderValue("X-Custom-Header"));
+        assertEquals("Hello", new String(httpReq.getContent(), "UTF-8"));
+    }
+
+    public void testContentInManyReads() throws Exception {
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        byte[] head = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname",
+                "Content-Length: " + body.length, "", "" });
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        assertEquals(-1, httpReq.addBytes(head, 0, head.length));
+        assertNull(httpReq.getContent());
+
+        int offset = 0;
+        while (offset + 1000 < body.length) {
+            assertEquals(-1, httpReq.addBytes(body, offset, 1000));
+            offset += 1000;
+        }
+        assertEquals(0, httpReq.addBytes(body, offset, body.length - offset));
+        assertTrue(Arrays.equals(body, httpReq.getContent()));
+    }
+
+    public void testHeadersIncompleteUntilBlankLine() throws Exception {
+        byte[] data = toBuffer(new String[] { "GET / HTTP/1.1", "Host: hostname", "", "" });
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        assertEquals(-1, httpReq.addBytes(data, 0, data.length - 2));
+        try {
+            httpReq.getHeaders();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(0, httpReq.addBytes(data, data.length - 2, 2));
+        assertEquals("hostname", httpReq.getHeaderValue("Host"));
+        assertEquals(0, httpReq.getContent().length);
+    }
+
+    public void testLeadingBlankLines() throws Exception {
+        String[] msg = new String[] { "", "GET / HTTP/1.1", "Host: hostname", "", "" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertTrue(httpReq.isComplete());
+        assertEquals("GET", httpReq.getMethod());
+    }
+
+    public void testNegativeContentLength() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Length: -1", "", "" };
+        try {
+            this.newHttpRequestBuffer(msg);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(HttpConstants.StatusCodes._400_BAD_REQUEST, e.getStatusCode());
+            assertTrue(e.getCause() instanceof InvalidHeaderException);
+        }
+    }
+
+    public void testChunkedContent() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Type: text/xml",
+                "Transfer-Encoding: chunked", "", "5", "Hello", "1;name=value", ",", "6", " World", "0", "", "" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertTrue(httpReq.isComplete());
+        assertEquals("Hello, World", new String(httpReq.getContent(), "UTF-8"));
+        assertEquals("text/xml", httpReq.getContentType());
+    }
+
+    public void testChunkedContentOneByteAtATime() throws Exception {
+        byte[] data = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: Chunked", "",
+                "a", "0123456789", "00010", "abcdefghijklmnop", "0", "X-Checksum: 1234", "", "" });
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        for (int i = 0; i < data.length - 1; i++) {
+            assertEquals(-1, httpReq.addBytes(data, i, 1));
+        }
+        assertEquals(0, httpReq.addBytes(data, data.length - 1, 1));
+        assertEquals("0123456789abcdefghijklmnop", new String(httpReq.getContent(), "UTF-8"));
+        assertEquals("1234", httpReq.getHeaderValue("X-Checksum"));
+    }
+
+    public void testLargeChunkedContent() throws Exception {
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        byte[] head = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked", "",
+                "" });
+        assertEquals(-1, httpReq.addBytes(head, 0, head.length));
+        byte[] chunkHead = toBuffer(new String[] { Integer.toHexString(body.length), "" });
+        assertEquals(-1, httpReq.addBytes(chunkHead, 0, chunkHead.length));
+        assertEquals(-1, httpReq.addBytes(body, 0, body.length));
+        byte[] tail = toBuffer(new String[] { "", "0", "", "" });
+        assertEquals(0, httpReq.addBytes(tail, 0, tail.length));
+        assertTrue(Arrays.equals(body, httpReq.getContent()));
+    }
+
+    public void testChunkedTrailerExclusions() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked", "", "5",
+                "Hello", "0", "Host: elsewhere", "Content-Length: 10", "X-Trailer: value", "", "" };
+        HttpRequestBuffer httpReq = this.newHttpRequestBuffer(msg);
+        assertTrue(httpReq.isComplete());
+        assertEquals("hostname", httpReq.getHeaderValue("Host"));
+        assertNull(httpReq.getHeaderValue("Content-Length"));
+        assertEquals("value", httpReq.getHeaderValue("X-Trailer"));
+        assertEquals("value", httpReq.getHeaders().get("X-Trailer"));
+    }
+
+    public void testPipelinedAfterChunkedContent() throws Exception {
+        byte[] buf = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked", "",
+                "5", "Hello", "0", "", "GET / HTTP/1.1", "Host: hostname", "", "" });
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        int excess = httpReq.addBytes(buf, 0, buf.length);
+        assertTrue(excess > 0);
+        assertEquals("Hello", new String(httpReq.getContent(), "UTF-8"));
+
+        HttpRequestBuffer httpReq2 = new HttpRequestBuffer(null, null);
+        assertEquals(0, httpReq2.addBytes(buf, excess, buf.length - excess));
+        assertEquals("GET", httpReq2.getMethod());
+    }
+
+    public void testChunkedWithContentLength() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked",
+                "Content-Length: 5", "", "5", "Hello", "0", "", "" };
+        this.assertBadRequest(msg, HttpConstants.StatusCodes._400_BAD_REQUEST);
+    }
+
+    public void testUnsupportedTransferEncoding() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: gzip, chunked", "",
+                "5", "Hello", "0", "", "" };
+        this.assertBadRequest(msg, HttpConstants.StatusCodes._501_NOT_IMPLEMENTED);
+    }
+
+    public void testMalformedChunkSize() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked", "", "5x",
+                "Hello", "0", "", "" };
+        this.assertBadRequest(msg, HttpConstants.StatusCodes._400_BAD_REQUEST);
+    }
+
+    public void testChunkDataTooLong() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked", "", "4",
+                "Hello", "0", "", "" };
+        this.assertBadRequest(msg, HttpConstants.StatusCodes._400_BAD_REQUEST);
+    }
+
+    public void testChunkSizeTooLarge() throws Exception {
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked", "",
+                "80000000", "Hello", "0", "", "" };
+        this.assertBadRequest(msg, HttpConstants.StatusCodes._413_REQUEST_ENTITY_TOO_LARGE);
+    }
+
+    public void testChunkSizeOverflow() throws Exception {
+        // Too many digits for any integer type, with or without a content limit
+        String[] msg = new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked", "",
+                "ffffffffffffffffff", "Hello", "0", "", "" };
+        this.assertBadRequest(msg, HttpConstants.StatusCodes._413_REQUEST_ENTITY_TOO_LARGE);
+    }
+
+    public void testContentSpillsToDisk() throws Exception {
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        byte[] head = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Length: " + body.length,
+                "", "" });
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setSpillThreshold(1024, null);
+        assertEquals(-1, httpReq.addBytes(head, 0, head.length));
+        assertTrue(httpReq.isHeaderComplete());
+        assertEquals(0, httpReq.addBytes(body, 0, body.length));
+        assertTrue(Arrays.equals(body, httpReq.getContent()));
+        httpReq.releaseContent();
+    }
+
+    public void testContentChannelBeforeComplete() throws Exception {
+        byte[] data = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Length: 10", "",
+                "0123456789" });
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        assertEquals(-1, httpReq.addBytes(data, 0, data.length - 5));
+        ReadableByteChannel channel = httpReq.getContentChannel();
+        ByteBuffer dst = ByteBuffer.allocate(20);
+        assertEquals(5, channel.read(dst));
+        assertNull(httpReq.getContent());
+
+        assertEquals(0, httpReq.addBytes(data, data.length - 5, 5));
+        assertEquals(5, channel.read(dst));
+        assertEquals(-1, channel.read(dst));
+        assertEquals("0123456789", new String(dst.array(), 0, dst.position(), "UTF-8"));
+    }
+
+    public void testURITooLong() throws Exception {
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setMaxURILength(16);
+        byte[] data = toBuffer(new String[] { "GET /0123456789abcdef HTTP/1.1", "Host: hostname", "", "" });
+        try {
+            httpReq.addBytes(data, 0, data.length);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(414, e.getStatusCode());
+        }
+    }
+
+    public void testURITooLongBeforeLineEnds() throws Exception {
+        // Rejected without waiting for the rest of the request line
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setMaxURILength(16);
+        byte[] data = new byte[200];
+        Arrays.fill(data, (byte) 'a');
+        System.arraycopy("GET /".getBytes("ASCII"), 0, data, 0, 5);
+        try {
+            httpReq.addBytes(data, 0, data.length);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(414, e.getStatusCode());
+        }
+    }
+
+    public void testHeadersTooLarge() throws Exception {
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setHeaderLimits(64, 100);
+        byte[] data = toBuffer(new String[] { "GET / HTTP/1.1", "Host: hostname",
+                "X-Padding: 0123456789012345678901234567890123456789", "", "" });
+        try {
+            httpReq.addBytes(data, 0, data.length);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(431, e.getStatusCode());
+        }
+    }
+
+    public void testHeadersTooLargeIncomplete() throws Exception {
+        // An endless header is rejected once it passes the limit
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setHeaderLimits(1024, 100);
+        byte[] head = toBuffer(new String[] { "GET / HTTP/1.1", "X-Padding: " });
+        assertEquals(-1, httpReq.addBytes(head, 0, head.length - 2));
+        byte[] padding = new byte[100];
+        Arrays.fill(padding, (byte) 'a');
+        try {
+            for (int i = 0; i < 11; i++) {
+                assertEquals(-1, httpReq.addBytes(padding, 0, padding.length));
+            }
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(431, e.getStatusCode());
+        }
+    }
+
+    public void testHeadersWithinLimit() throws Exception {
+        String[] msg = new String[] { "GET / HTTP/1.1", "Host: hostname", "", "" };
+        int length = toBuffer(msg).length;
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setHeaderLimits(length, 1);
+        byte[] data = toBuffer(msg);
+        assertEquals(0, httpReq.addBytes(data, 0, data.length));
+    }
+
+    public void testTooManyHeaders() throws Exception {
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setHeaderLimits(1024, 2);
+        byte[] data = toBuffer(new String[] { "GET / HTTP/1.1", "Host: hostname", "X-One: 1", "X-Two: 2", "", "" });
+        try {
+            httpReq.addBytes(data, 0, data.length);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(431, e.getStatusCode());
+        }
+    }
+
+    public void testContentTooLarge() throws Exception {
+        // Rejected on the strength of the headers alone
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setMaxContentLength(10);
+        byte[] data = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Length: 11", "", "" });
+        try {
+            httpReq.addBytes(data, 0, data.length);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(413, e.getStatusCode());
+        }
+    }
+
+    public void testChunkedContentTooLarge() throws Exception {
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        httpReq.setMaxContentLength(10);
+        byte[] data = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "Transfer-Encoding: chunked", "",
+                "6", "hello ", "6", "" });
+        try {
+            httpReq.addBytes(data, 0, data.length);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(413, e.getStatusCode());
+        }
+    }
+
+    public void testExpectContinue() throws Exception {
+        HttpRequestBuffer httpReq = new HttpRequestBuffer(null, null);
+        byte[] data = toBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Length: 5",
+                "Expect: 100-Continue", "", "" });
+        assertEquals(-1, httpReq.addBytes(data, 0, data.length));
+        assertTrue(httpReq.expectsContinue());
+
+        httpReq = this.newHttpRequestBuffer(new String[] { "POST / HTTP/1.0", "Content-Length: 5",
+                "Expect: 100-continue", "", "" });
+        assertFalse(httpReq.expectsContinue());
+
+        httpReq = this.newHttpRequestBuffer(new String[] { "POST / HTTP/1.1", "Host: hostname",
+                "Content-Length: 5", "", "" });
+        assertFalse(httpReq.expectsContinue());
+    }
+
+    public void testUnknownExpectation() throws Exception {
+        this.assertBadRequest(new String[] { "POST / HTTP/1.1", "Host: hostname", "Content-Length: 5",
+                "Expect: something-else", "", "" }, 417);
+    }
+
+    private void assertBadRequest(String[] msg, int statusCode) throws Exception {
+        try {
+            this.newHttpRequestBuffer(msg);
+            fail();
+        } catch (HttpResponseException e) {
+            assertEquals(statusCode, e.getStatusCode());
+        }
+    }
+
     private HttpRequestBuffer newHttpRequestBuffer(String[] msg) throws Exception {
         return this.newHttpRequestBuffer(msg, "UTF-8");
     }
@@ -0,0 +1,41 @@
+package com.flat502.rox.http;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.utils.Utils;
+
+public class Test_KnownHeaders extends TestCase {
+    public void testNamesAreNormalized() throws Exception {
+        for (String name : KnownHeaders.getNames()) {
+            assertEquals(Utils.normalizeHttpHeaderName(name), name);
+        }
+    }
+
+    public void testLookupFromBytes() throws Exception {
+        for (String name : KnownHeaders.getNames()) {
+            byte[] lower = ("x" + name.toLowerCase() + "y").getBytes("ASCII");
+            assertSame(name, KnownHeaders.lookup(lower, 1, name.length()));
+            byte[] upper = name.toUpperCase().getBytes("ASCII");
+            assertSame(name, KnownHeaders.lookup(upper, 0, upper.length));
+        }
+    }
+
+    public void testLookupFromString() throws Exception {
+        for (String name : KnownHeaders.getNames()) {
+            assertSame(name, KnownHeaders.lookup(name.toLowerCase()));
+            assertSame(name, KnownHeaders.lookup(new String(name)));
+        }
+    }
+
+    public void testUnknownNames() throws Exception {
+        assertNull(KnownHeaders.lookup("X-Custom-Header"));
+        assertNull(KnownHeaders.lookup("Hos"));
+        assertNull(KnownHeaders.lookup(""));
+        byte[] name = "Content_Length".getBytes("ASCII");
+        assertNull(KnownHeaders.lookup(name, 0, name.length));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_KnownHeaders.class);
+    }
+}
@@ -0,0 +1,166 @@
+package com.flat502.rox.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class Test_MessageBody extends TestCase {
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.dir = Files.createTempDirectory("Test_MessageBody").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : this.dir.listFiles()) {
+            file.delete();
+        }
+        this.dir.delete();
+    }
+
+    public void testInMemory() throws Exception {
+        byte[] data = this.newData(1000);
+        MessageBody body = new MessageBody(data.length, 4096, this.dir);
+        body.write(ByteBuffer.wrap(data, 0, 400), 400);
+        body.write(ByteBuffer.wrap(data, 400, 600), 600);
+        body.complete();
+
+        assertFalse(body.isSpilled());
+        assertEquals(1000, body.length());
+        // Sized from the expected length, so no copy is needed
+        assertTrue(Arrays.equals(data, body.toByteArray()));
+        assertSame(body.toByteArray(), body.toByteArray());
+        assertTrue(Arrays.equals(data, this.readAll(body.newInputStream())));
+    }
+
+    public void testUnknownLengthGrows() throws Exception {
+        byte[] data = this.newData(10000);
+        MessageBody body = new MessageBody(-1, 65536, this.dir);
+        for (int i = 0; i < data.length; i += 1000) {
+            body.write(ByteBuffer.wrap(data, i, 1000), 1000);
+        }
+        body.complete();
+        assertFalse(body.isSpilled());
+        assertTrue(Arrays.equals(data, body.toByteArray()));
+    }
+
+    public void testSpillsPastThreshold() throws Exception {
+        byte[] data = this.newData(10000);
+        MessageBody body = new MessageBody(-1, 4096, this.dir);
+        body.write(ByteBuffer.wrap(data, 0, 3000), 3000);
+        assertFalse(body.isSpilled());
+        body.write(ByteBuffer.wrap(data, 3000, 7000), 7000);
+        assertTrue(body.isSpilled());
+        body.complete();
+
+        assertTrue(Arrays.equals(data, body.toByteArray()));
+        assertTrue(Arrays.equals(data, this.readAll(body.newInputStream())));
+
+        body.release();
+        assertEquals(0, this.dir.listFiles().length);
+    }
+
+    public void testSpillsWhenExpectedLengthTooLarge() throws Exception {
+        MessageBody body = new MessageBody(10000, 4096, this.dir);
+        body.write(ByteBuffer.wrap(new byte[10]), 10);
+        assertTrue(body.isSpilled());
+        body.release();
+    }
+
+    public void testStreamingRead() throws Exception {
+        final byte[] data = this.newData(100000);
+        final MessageBody body = new MessageBody(data.length, 8192, this.dir);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < data.length; i += 1000) {
+                        body.write(ByteBuffer.wrap(data, i, 1000), 1000);
+                        Thread.sleep(1);
+                    }
+                    body.complete();
+                } catch (Exception e) {
+                    body.fail(new IOException(e.toString()));
+                }
+            }
+        };
+        writer.start();
+
+        // Reads block until content arrives and end when it's complete
+        ReadableByteChannel channel = body.newChannel();
+        ByteBuffer dst = ByteBuffer.allocate(data.length + 1);
+        while (channel.read(dst) != -1) {
+        }
+        writer.join();
+        assertEquals(data.length, dst.position());
+        assertTrue(Arrays.equals(data, Arrays.copyOf(dst.array(), data.length)));
+        assertTrue(body.isSpilled());
+        body.release();
+    }
+
+    public void testFailWakesReader() throws Exception {
+        final MessageBody body = new MessageBody(100, 4096, this.dir);
+        body.write(ByteBuffer.wrap(new byte[10]), 10);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                body.fail(new IOException("closed"));
+            }
+        }.start();
+
+        ReadableByteChannel channel = body.newChannel();
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        assertEquals(10, channel.read(dst));
+        try {
+            channel.read(dst);
+            fail();
+        } catch (IOException e) {
+            assertEquals("closed", e.getCause().getMessage());
+        }
+    }
+
+    public void testWritesAfterReleaseAreDiscarded() throws Exception {
+        MessageBody body = new MessageBody(-1, 10, this.dir);
+        body.write(ByteBuffer.wrap(new byte[20]), 20);
+        body.release();
+        assertEquals(0, this.dir.listFiles().length);
+
+        ByteBuffer src = ByteBuffer.wrap(new byte[20]);
+        body.write(src, 20);
+        assertFalse(src.hasRemaining());
+        assertEquals(40, body.length());
+    }
+
+    private byte[] newData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        return data;
+    }
+
+    private byte[] readAll(InputStream is) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+        int b;
+        while ((b = is.read()) != -1) {
+            buf.put((byte) b);
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_MessageBody.class);
+    }
+}
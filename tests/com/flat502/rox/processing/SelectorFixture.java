@@ -0,0 +1,107 @@
+package com.flat502.rox.processing;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Channels registered with {@link ChannelSelector}s whose selecting threads aren't running, so a test can drive
+ * selection from its own thread. Everything opened through an instance is closed by {@link #close()}.
+ */
+class SelectorFixture {
+    private HttpProcessor processor;
+    private List<Pipe> pipes = new ArrayList<>();
+    private List<Loopback> loopbacks = new ArrayList<>();
+    private ServerSocketChannel listener;
+
+    /**
+     * @param processor
+     *            The processor channels are registered on behalf of. May be <code>null</code> if only
+     *            {@link #newPipeKey(ChannelSelector)} is used.
+     */
+    SelectorFixture(HttpProcessor processor) {
+        this.processor = processor;
+    }
+
+    /**
+     * Registers the read end of a new pipe for reads.
+     */
+    SelectionKey newPipeKey(ChannelSelector selector) throws IOException {
+        Pipe pipe = Pipe.open();
+        this.pipes.add(pipe);
+        pipe.source().configureBlocking(false);
+        if (this.processor != null) {
+            selector.addChannel(this.processor, pipe.source());
+        }
+        return pipe.source().register(selector.getSocketSelector(), SelectionKey.OP_READ);
+    }
+
+    /**
+     * Opens a loopback connection. The server end is a {@link Connection} registered for reads.
+     */
+    Loopback connect(ChannelSelector selector) throws IOException {
+        if (this.listener == null) {
+            this.listener = ServerSocketChannel.open();
+            this.listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        Socket client = new Socket(InetAddress.getLoopbackAddress(), this.listener.socket().getLocalPort());
+        client.setSoTimeout(2000);
+        SocketChannel channel = this.listener.accept();
+        channel.configureBlocking(false);
+
+        Connection connection = this.processor.newConnection(channel);
+        connection.setChannelSelector(selector);
+        SelectionKey key = channel.register(selector.getSocketSelector(), SelectionKey.OP_READ, connection);
+        connection.setSelectionKey(key);
+
+        Loopback loopback = new Loopback(client, connection, key);
+        this.loopbacks.add(loopback);
+        return loopback;
+    }
+
+    void close() throws IOException {
+        for (Pipe pipe : this.pipes) {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+        for (Loopback loopback : this.loopbacks) {
+            loopback.client.close();
+            loopback.connection.getChannel().close();
+        }
+        if (this.listener != null) {
+            this.listener.close();
+        }
+    }
+
+    class Loopback {
+        final Socket client;
+        final Connection connection;
+        final SelectionKey key;
+
+        Loopback(Socket client, Connection connection, SelectionKey key) {
+            this.client = client;
+            this.connection = connection;
+            this.key = key;
+        }
+
+        /**
+         * Writes data from the client and has the server end read it, as the selecting thread would once the
+         * connection became readable. Loopback delivers a single write of up to 64KB as one segment, so all of it
+         * is readable by then.
+         */
+        void send(byte[] data) throws Exception {
+            this.client.getOutputStream().write(data);
+            this.key.selector().select(2000);
+            this.key.selector().selectedKeys().clear();
+            SelectorFixture.this.processor.read(this.key);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.flat502.rox.processing;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.ServerResourcePool;
+
+public class Test_ChannelSelector extends TestCase {
+    private ChannelSelector selector;
+    private int wakeups;
+    private ServerSocketChannel listener;
+    private SocketChannel client;
+    private SocketChannel channel;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.selector = new ChannelSelector(new ServerResourcePool()) {
+            @Override
+            void wakeup() {
+                Test_ChannelSelector.this.wakeups++;
+                super.wakeup();
+            }
+        };
+        this.listener = ServerSocketChannel.open();
+        this.listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.client = SocketChannel.open(this.listener.getLocalAddress());
+        this.channel = this.listener.accept();
+        this.channel.configureBlocking(false);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.client.close();
+        this.channel.close();
+        this.listener.close();
+        this.selector.getSocketSelector().close();
+    }
+
+    public void testFirstChangeWakesSelector() throws Exception {
+        assertFalse(this.selector.isWakeupPending());
+        this.selector.queueRegistration(this.channel);
+        assertTrue(this.selector.isWakeupPending());
+        assertEquals(1, this.wakeups);
+    }
+
+    public void testLaterChangesDontWakeAgain() throws Exception {
+        this.selector.queueRegistration(this.channel);
+
+        // The flag is still set so these don't issue another wakeup
+        this.selector.queueInterestOps(this.channel.socket(), SelectionKey.OP_WRITE);
+        this.selector.queueInterestOps(this.channel.socket(), SelectionKey.OP_READ);
+        assertTrue(this.selector.isWakeupPending());
+        assertEquals(1, this.wakeups);
+    }
+
+    public void testDrainingClearsFlag() throws Exception {
+        this.selector.queueRegistration(this.channel);
+        this.selector.processPendingSelectorChanges();
+        assertFalse(this.selector.isWakeupPending());
+
+        this.selector.queueInterestOps(this.channel.socket(), SelectionKey.OP_WRITE);
+        assertTrue(this.selector.isWakeupPending());
+        assertEquals(2, this.wakeups);
+    }
+
+    public void testChangesAppliedInOrder() throws Exception {
+        // An interest ops change for a channel that isn't registered yet is
+        // dropped, so this only sticks if the registration is applied first
+        this.selector.queueRegistration(this.channel);
+        this.selector.queueInterestOps(this.channel.socket(), SelectionKey.OP_WRITE);
+        this.selector.processPendingSelectorChanges();
+
+        SelectionKey key = this.channel.keyFor(this.selector.getSocketSelector());
+        assertNotNull(key);
+        assertEquals(SelectionKey.OP_WRITE, key.interestOps());
+        assertEquals(1, this.selector.getChannelCount());
+
+        this.selector.queueInterestOps(this.channel.socket(), SelectionKey.OP_READ);
+        this.selector.queueCancellation(this.channel);
+        this.selector.processPendingSelectorChanges();
+        assertFalse(key.isValid());
+        assertFalse(this.channel.isOpen());
+    }
+
+    public void testRegistrationAttachesConnection() throws Exception {
+        Connection connection = new Connection(null, this.channel);
+        this.selector.queueRegistration(connection);
+        this.selector.processPendingSelectorChanges();
+
+        SelectionKey key = this.channel.keyFor(this.selector.getSocketSelector());
+        assertSame(connection, key.attachment());
+        assertSame(key, connection.getSelectionKey());
+        assertEquals(SelectionKey.OP_READ, key.interestOps());
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_ChannelSelector.class);
+    }
+}
@@ -0,0 +1,152 @@
+package com.flat502.rox.processing;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.HttpServer;
+import com.flat502.rox.server.ServerResourcePool;
+
+public class Test_Connection extends TestCase {
+    private HttpServer server;
+    private WriteBufferPool pool;
+    private SocketChannel channel;
+    private Connection connection;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), 0, false, new ServerResourcePool());
+        this.pool = ((HttpProcessor) this.server).getWriteBufferPool();
+        this.channel = SocketChannel.open();
+        this.connection = new Connection(this.server, this.channel);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.channel.close();
+        this.server.stop();
+    }
+
+    public void testCopyStopsAtContentSource() throws Exception {
+        ByteBuffer a = ByteBuffer.allocate(4);
+        ByteBuffer b = this.pool.acquire(4);
+        ByteBuffer c = ByteBuffer.allocate(4);
+        this.connection.putWriteBuffer(a, false);
+        this.connection.putWriteBuffer(b, true);
+        this.connection.putWriteContent(new Source());
+        this.connection.putWriteBuffer(c, false);
+
+        ByteBuffer[] dst = new ByteBuffer[8];
+        assertEquals(2, this.connection.getWriteBuffers(dst));
+        assertSame(a, dst[0]);
+        assertSame(b, dst[1]);
+        assertNull(dst[2]);
+    }
+
+    public void testCopyStopsWhenFull() throws Exception {
+        ByteBuffer a = ByteBuffer.allocate(4);
+        this.connection.putWriteBuffer(a, false);
+        this.connection.putWriteBuffer(ByteBuffer.allocate(4), false);
+
+        ByteBuffer[] dst = new ByteBuffer[1];
+        assertEquals(1, this.connection.getWriteBuffers(dst));
+        assertSame(a, dst[0]);
+    }
+
+    public void testPartiallyWrittenBufferStays() throws Exception {
+        ByteBuffer a = ByteBuffer.allocate(4);
+        ByteBuffer b = ByteBuffer.allocate(4);
+        this.connection.putWriteBuffer(a, false);
+        this.connection.putWriteBuffer(b, false);
+
+        a.position(4);
+        b.position(2);
+        assertFalse(this.connection.removeWrittenBuffers());
+        assertSame(b, this.connection.getWriteQueueHead());
+
+        b.position(4);
+        assertTrue(this.connection.removeWrittenBuffers());
+        assertNull(this.connection.getWriteQueueHead());
+    }
+
+    public void testWrittenPooledBufferReleased() throws Exception {
+        ByteBuffer buf = this.pool.acquire(100);
+        this.connection.putWriteBuffer(buf, true);
+        buf.position(buf.limit());
+        assertTrue(this.connection.removeWrittenBuffers());
+
+        // Released buffers are handed out again first
+        assertSame(buf, this.pool.acquire(100));
+    }
+
+    public void testPartiallyWrittenPooledBufferKept() throws Exception {
+        ByteBuffer buf = this.pool.acquire(100);
+        this.connection.putWriteBuffer(buf, true);
+        buf.position(50);
+        assertFalse(this.connection.removeWrittenBuffers());
+        assertSame(buf, this.connection.getWriteQueueHead());
+        assertNotSame(buf, this.pool.acquire(100));
+    }
+
+    public void testUnpooledBufferNotReleased() throws Exception {
+        ByteBuffer buf = this.pool.acquire(100);
+        this.connection.putWriteBuffer(buf, false);
+        buf.position(buf.limit());
+        assertTrue(this.connection.removeWrittenBuffers());
+        assertNotSame(buf, this.pool.acquire(100));
+    }
+
+    public void testIncompleteSourceBlocksRemoval() throws Exception {
+        Source source = new Source();
+        ByteBuffer after = ByteBuffer.allocate(4);
+        this.connection.putWriteContent(source);
+        this.connection.putWriteBuffer(after, false);
+        after.position(4);
+
+        assertFalse(this.connection.removeWrittenBuffers());
+        assertSame(source, this.connection.getWriteQueueHead());
+        assertFalse(source.released);
+
+        source.complete = true;
+        assertTrue(this.connection.removeWrittenBuffers());
+        assertTrue(source.released);
+    }
+
+    public void testReleaseReturnsPooledBuffers() throws Exception {
+        ByteBuffer buf = this.pool.acquire(100);
+        Source source = new Source();
+        this.connection.putWriteBuffer(buf, true);
+        this.connection.putWriteContent(source);
+
+        this.connection.release();
+        assertTrue(source.released);
+        assertFalse(this.connection.isWriteQueued());
+        assertSame(buf, this.pool.acquire(100));
+    }
+
+    private static class Source extends ContentSource {
+        boolean complete;
+        boolean released;
+
+        @Override
+        public boolean isComplete() {
+            return this.complete;
+        }
+
+        @Override
+        ByteBuffer nextChunk() {
+            return null;
+        }
+
+        @Override
+        void release() {
+            this.released = true;
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_Connection.class);
+    }
+}
@@ -0,0 +1,88 @@
+package com.flat502.rox.processing;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.HttpServer;
+import com.flat502.rox.server.ServerResourcePool;
+
+public class Test_ConnectionRegistration extends TestCase {
+    private HttpServer server;
+    private HttpProcessor processor;
+    private ServerSocketChannel listener;
+    private Socket client;
+    private SocketChannel channel;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), 0, false, new ServerResourcePool());
+        this.processor = this.server;
+        this.listener = ServerSocketChannel.open();
+        this.listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.client = new Socket(InetAddress.getLoopbackAddress(), this.listener.socket().getLocalPort());
+        this.channel = this.listener.accept();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.client.close();
+        this.channel.close();
+        this.listener.close();
+        this.server.stop();
+    }
+
+    public void testAttachedOnRegistration() throws Exception {
+        Connection connection = this.register();
+        SelectionKey key = connection.getSelectionKey();
+
+        assertNotNull(key);
+        assertSame(connection, key.attachment());
+        assertSame(connection, this.processor.getConnection(this.channel.socket()));
+        assertSame(this.processor, connection.getChannelSelector().getOwner(this.channel));
+    }
+
+    public void testDetachedOnDeregistration() throws Exception {
+        Connection connection = this.register();
+        SelectionKey key = connection.getSelectionKey();
+
+        this.processor.deregisterConnection(connection);
+        this.assertForgotten(connection, key);
+    }
+
+    public void testDetachedOnRemoteClose() throws Exception {
+        Connection connection = this.register();
+        SelectionKey key = connection.getSelectionKey();
+
+        this.client.close();
+        key.selector().select(2000);
+        key.selector().selectedKeys().clear();
+        this.processor.read(key);
+
+        assertFalse(key.isValid());
+        assertFalse(this.channel.isOpen());
+        this.assertForgotten(connection, key);
+    }
+
+    // Registers the accepted channel as the selecting thread would
+    private Connection register() throws Exception {
+        Connection connection = this.processor.registerAcceptedChannel(this.channel);
+        connection.getChannelSelector().processPendingSelectorChanges();
+        return connection;
+    }
+
+    private void assertForgotten(Connection connection, SelectionKey key) {
+        assertNull(key.attachment());
+        assertNull(this.processor.getConnection(this.channel.socket()));
+        assertNull(connection.getChannelSelector().getOwner(this.channel));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_ConnectionRegistration.class);
+    }
+}
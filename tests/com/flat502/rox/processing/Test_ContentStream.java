@@ -0,0 +1,111 @@
+package com.flat502.rox.processing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import junit.framework.TestCase;
+
+public class Test_ContentStream extends TestCase {
+    public void testUnframed() throws Exception {
+        ContentStream stream = new ContentStream(-1);
+        stream.write(ByteBuffer.wrap("Hello".getBytes("ASCII")));
+        assertEquals("Hello", drain(stream));
+        assertFalse(stream.isComplete());
+        stream.close();
+        assertEquals("", drain(stream));
+        assertTrue(stream.isComplete());
+    }
+
+    public void testChunked() throws Exception {
+        ContentStream stream = new ContentStream(-1);
+        stream.setChunked(true);
+        stream.write(ByteBuffer.wrap("Hello".getBytes("ASCII")));
+        stream.write(ByteBuffer.wrap(new byte[26]));
+        assertEquals("5\r\nHello\r\n1a\r\n" + new String(new byte[26], "ASCII") + "\r\n", drain(stream));
+        stream.close();
+        assertEquals("0\r\n\r\n", drain(stream));
+        assertTrue(stream.isComplete());
+    }
+
+    public void testLargeWritesAreSplit() throws Exception {
+        ContentStream stream = new ContentStream(-1, 1024 * 1024);
+        stream.setChunked(true);
+        stream.write(ByteBuffer.allocate(40000));
+        String data = drain(stream);
+        assertTrue(data.startsWith("8000\r\n"));
+        assertTrue(data.contains("\r\n1c40\r\n"));
+    }
+
+    public void testDeclaredLength() throws Exception {
+        ContentStream stream = new ContentStream(4);
+        stream.write(ByteBuffer.wrap(new byte[3]));
+        try {
+            stream.write(ByteBuffer.wrap(new byte[2]));
+            fail();
+        } catch (IOException e) {
+        }
+        stream.close();
+        stream.nextChunk().position(3);
+        try {
+            stream.nextChunk();
+            fail();
+        } catch (IOException e) {
+        }
+    }
+
+    public void testWritesBlockWhenFull() throws Exception {
+        final ContentStream stream = new ContentStream(-1, 10);
+        stream.write(ByteBuffer.wrap(new byte[10]));
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    stream.write(ByteBuffer.wrap(new byte[5]));
+                } catch (IOException e) {
+                }
+            }
+        };
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+        assertEquals(10, stream.nextChunk().remaining());
+        writer.join(1000);
+        assertFalse(writer.isAlive());
+        stream.nextChunk().position(10);
+        assertEquals(5, drain(stream).length());
+    }
+
+    public void testReleaseFailsWrites() throws Exception {
+        ContentStream stream = new ContentStream(-1);
+        stream.release();
+        assertFalse(stream.isOpen());
+        try {
+            stream.write(ByteBuffer.wrap(new byte[1]));
+            fail();
+        } catch (ClosedChannelException e) {
+        }
+    }
+
+    public void testDiscard() throws Exception {
+        ContentStream stream = new ContentStream(-1, 10);
+        stream.discard();
+        stream.write(ByteBuffer.wrap(new byte[100]));
+        stream.close();
+        assertEquals("", drain(stream));
+        assertTrue(stream.isComplete());
+    }
+
+    // Consumes everything that's ready to be written
+    private static String drain(ContentStream stream) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ByteBuffer buf;
+        while ((buf = stream.nextChunk()) != null) {
+            while (buf.hasRemaining()) {
+                os.write(buf.get());
+            }
+        }
+        return new String(os.toByteArray(), "ASCII");
+    }
+}
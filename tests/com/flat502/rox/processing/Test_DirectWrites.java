@@ -0,0 +1,192 @@
+package com.flat502.rox.processing;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.HttpServer;
+import com.flat502.rox.server.ServerResourcePool;
+
+public class Test_DirectWrites extends TestCase {
+    // Far more than the socket buffers at either end can hold
+    private static final int LARGE = 16 * 1024 * 1024;
+
+    private ServerResourcePool pool;
+    private HttpServer server;
+    private HttpProcessor processor;
+    private SelectorFixture fixture;
+    private SelectorFixture.Loopback loopback;
+    private Connection connection;
+    private ChannelSelector selector;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.pool = new ServerResourcePool();
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), 0, false, this.pool);
+        this.processor = this.server;
+        this.fixture = new SelectorFixture(this.server);
+        this.selector = this.pool.getChannelSelector();
+        this.loopback = this.fixture.connect(this.selector);
+        this.connection = this.loopback.connection;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.fixture.close();
+        this.server.stop();
+    }
+
+    public void testCompleteWriteNeverQueued() throws Exception {
+        WriteBufferPool writePool = this.processor.getWriteBufferPool();
+        ByteBuffer pooled = writePool.acquire(5);
+        pooled.put("Hello".getBytes("ASCII")).flip();
+        ByteBuffer plain = ByteBuffer.wrap(", world".getBytes("ASCII"));
+
+        this.processor.queueWrite(this.connection, new ByteBuffer[] { pooled, plain }, new boolean[] { true, false },
+                null, false);
+
+        assertFalse(this.connection.isWriteQueued());
+        assertFalse(this.selector.isWakeupPending());
+        assertEquals(SelectionKey.OP_READ, this.loopback.key.interestOps());
+        assertEquals("Hello, world", new String(this.receive(12), "ASCII"));
+
+        // Released buffers are handed out again first
+        assertSame(pooled, writePool.acquire(5));
+    }
+
+    public void testPartialWriteQueuesRemainder() throws Exception {
+        ByteBuffer large = ByteBuffer.wrap(pattern(LARGE));
+        this.processor.queueWrite(this.connection, new ByteBuffer[] { large }, null, false);
+
+        assertTrue(large.hasRemaining());
+        assertSame(large, this.connection.getWriteQueueHead());
+        // An OP_WRITE has been asked for
+        assertTrue(this.selector.isWakeupPending());
+
+        // Once the client has everything sent so far the socket has room
+        // again, but anything written now must still go behind the rest
+        int sent = large.position();
+        byte[] head = this.receive(sent);
+        byte[] tail = "tail".getBytes("ASCII");
+        this.processor.queueWrite(this.connection, tail, false);
+        ByteBuffer[] queued = new ByteBuffer[4];
+        assertEquals(2, this.connection.getWriteBuffers(queued));
+        assertSame(large, queued[0]);
+        assertEquals(ByteBuffer.wrap(tail), queued[1]);
+
+        Reader reader = new Reader(LARGE - sent + tail.length);
+        this.drain(reader);
+        byte[] rest = reader.getData();
+        byte[] expected = pattern(LARGE);
+        for (int i = 0; i < LARGE; i++) {
+            byte actual = i < sent ? head[i] : rest[i - sent];
+            if (actual != expected[i]) {
+                fail("Mismatch at offset " + i);
+            }
+        }
+        assertEquals("tail", new String(rest, LARGE - sent, tail.length, "ASCII"));
+    }
+
+    public void testDirectWritesRacingSelectorKeepOrder() throws Exception {
+        final int chunkSize = 32 * 1024;
+        final int chunks = 256;
+
+        // Writes numbered chunks while this thread plays the selecting
+        // thread, writing out whatever has been queued
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < chunks; i++) {
+                    byte[] chunk = new byte[chunkSize];
+                    Arrays.fill(chunk, (byte) i);
+                    Test_DirectWrites.this.processor.queueWrite(Test_DirectWrites.this.connection, chunk, false);
+                }
+            }
+        };
+
+        Reader reader = new Reader(chunkSize * chunks);
+        reader.start();
+        writer.start();
+        while (writer.isAlive() || this.connection.isWriteQueued()) {
+            if (this.connection.isWriteQueued()) {
+                this.processor.write(this.loopback.key);
+            } else {
+                Thread.yield();
+            }
+        }
+        writer.join();
+        reader.join();
+
+        byte[] received = reader.getData();
+        for (int i = 0; i < received.length; i++) {
+            if (received[i] != (byte) (i / chunkSize)) {
+                fail("Chunk " + (i / chunkSize) + " out of order at offset " + i);
+            }
+        }
+    }
+
+    // Plays the selecting thread until everything queued has been written
+    // and the reader has it all
+    private void drain(Reader reader) throws Exception {
+        reader.start();
+        while (this.connection.isWriteQueued()) {
+            this.processor.write(this.loopback.key);
+            Thread.yield();
+        }
+        reader.join();
+    }
+
+    private byte[] receive(int length) throws Exception {
+        byte[] data = new byte[length];
+        InputStream is = this.loopback.client.getInputStream();
+        int offset = 0;
+        while (offset < length) {
+            int n = is.read(data, offset, length - offset);
+            assertTrue(n > 0);
+            offset += n;
+        }
+        return data;
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private class Reader extends Thread {
+        private int length;
+        private byte[] data;
+        private Throwable failure;
+
+        Reader(int length) {
+            this.length = length;
+        }
+
+        @Override
+        public void run() {
+            try {
+                this.data = Test_DirectWrites.this.receive(this.length);
+            } catch (Throwable e) {
+                this.failure = e;
+            }
+        }
+
+        byte[] getData() throws Exception {
+            if (this.failure != null) {
+                throw new Exception("Reading failed", this.failure);
+            }
+            return this.data;
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_DirectWrites.class);
+    }
+}
@@ -0,0 +1,113 @@
+package com.flat502.rox.processing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import junit.framework.TestCase;
+
+public class Test_FileRegion extends TestCase {
+    private File file;
+    private byte[] data;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.data = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < this.data.length; i++) {
+            this.data[i] = (byte) (i * 31);
+        }
+        this.file = File.createTempFile("Test_FileRegion", ".bin");
+        FileOutputStream os = new FileOutputStream(this.file);
+        os.write(this.data);
+        os.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.file.delete();
+    }
+
+    public void testTransferTo() throws Exception {
+        FileChannel channel = new FileInputStream(this.file).getChannel();
+        FileRegion region = new FileRegion(channel, 100, 5000);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        assertEquals(1000, region.transferTo(Channels.newChannel(os), 1000));
+        assertEquals(4000, region.remaining());
+        assertFalse(region.isComplete());
+
+        assertEquals(4000, region.transferTo(Channels.newChannel(os), Long.MAX_VALUE));
+        assertTrue(region.isComplete());
+        assertRegion(os.toByteArray(), 100, 5000);
+
+        region.close();
+        assertFalse(channel.isOpen());
+    }
+
+    public void testChunks() throws Exception {
+        FileRegion region = new FileRegion(new FileInputStream(this.file).getChannel(), 1, this.data.length - 1);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        int chunks = 0;
+        ByteBuffer chunk;
+        while ((chunk = region.nextChunk()) != null) {
+            assertSame(chunk, region.nextChunk());
+            // Consume the chunk in two goes to check partial consumption
+            byte[] half = new byte[chunk.remaining() / 2];
+            chunk.get(half);
+            os.write(half);
+            assertFalse(region.isComplete());
+            byte[] rest = new byte[chunk.remaining()];
+            chunk.get(rest);
+            os.write(rest);
+            chunks++;
+        }
+
+        assertEquals(4, chunks);
+        assertTrue(region.isComplete());
+        assertRegion(os.toByteArray(), 1, this.data.length - 1);
+        region.close();
+    }
+
+    public void testEmptyRegion() throws Exception {
+        FileRegion region = new FileRegion(new FileInputStream(this.file).getChannel(), 10, 0);
+        assertTrue(region.isComplete());
+        assertNull(region.nextChunk());
+        region.close();
+    }
+
+    public void testTransferFromTruncatedFile() throws Exception {
+        FileRegion region = new FileRegion(new FileInputStream(this.file).getChannel(), 0, 5000);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertEquals(1000, region.transferTo(Channels.newChannel(os), 1000));
+
+        this.truncate(500);
+        try {
+            region.transferTo(Channels.newChannel(os), Long.MAX_VALUE);
+            fail();
+        } catch (IOException e) {
+        }
+        region.close();
+    }
+
+    private void truncate(long length) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    private void assertRegion(byte[] actual, int offset, int length) {
+        assertEquals(length, actual.length);
+        for (int i = 0; i < length; i++) {
+            if (actual[i] != this.data[offset + i]) {
+                fail("Mismatch at offset " + i);
+            }
+        }
+    }
+}
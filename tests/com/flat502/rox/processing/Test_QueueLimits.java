@@ -0,0 +1,185 @@
+package com.flat502.rox.processing;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.http.HttpMessageBuffer;
+import com.flat502.rox.http.HttpRequestBuffer;
+import com.flat502.rox.server.HttpServer;
+import com.flat502.rox.server.ServerResourcePool;
+
+public class Test_QueueLimits extends TestCase {
+    private static final String GET = "GET / HTTP/1.1\r\nHost: hostname\r\n\r\n";
+    private static final String POST = "POST / HTTP/1.1\r\nHost: hostname\r\nContent-Length: 5\r\n\r\nHello";
+
+    private ServerResourcePool pool;
+    private HttpServer server;
+    private List<HttpMessageBuffer> released = new ArrayList<>();
+    private boolean untracked;
+
+    private SelectorFixture fixture;
+    private SelectorFixture.Loopback loopback;
+    private Socket client;
+    private Connection connection;
+    private SelectionKey key;
+
+    @Override
+    protected void setUp() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        this.pool = new ServerResourcePool();
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), port, false, this.pool) {
+            @Override
+            protected HttpMessageBuffer newReadBuffer(Connection connection) {
+                return new HttpRequestBuffer(this, connection.getSocket()) {
+                    @Override
+                    public void releaseContent() {
+                        Test_QueueLimits.this.released.add(this);
+                        super.releaseContent();
+                    }
+                };
+            }
+
+            @Override
+            protected boolean tracksMessagesInFlight() {
+                return !Test_QueueLimits.this.untracked && super.tracksMessagesInFlight();
+            }
+        };
+
+        // A connection registered with the server's selector, which isn't
+        // running, so reads are driven from this thread
+        this.fixture = new SelectorFixture(this.server);
+        this.loopback = this.fixture.connect(this.pool.getChannelSelector());
+        this.client = this.loopback.client;
+        this.connection = this.loopback.connection;
+        this.key = this.loopback.key;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.fixture.close();
+        this.server.stop();
+    }
+
+    public void testSuspendAtHighWatermark() throws Exception {
+        this.server.setQueueWatermarks(3, 1);
+
+        this.send(GET);
+        this.send(GET);
+        assertEquals(2, this.server.getQueue().size());
+        assertFalse(this.connection.isReadSuspended());
+        assertEquals(SelectionKey.OP_READ, this.key.interestOps() & SelectionKey.OP_READ);
+
+        this.send(GET);
+        assertEquals(3, this.server.getQueue().size());
+        assertTrue(this.connection.isReadSuspended());
+        assertEquals(0, this.key.interestOps() & SelectionKey.OP_READ);
+    }
+
+    public void testResumeAtLowWatermark() throws Exception {
+        this.server.setQueueWatermarks(3, 1);
+        this.send(GET);
+        this.send(GET);
+        this.send(GET);
+        assertTrue(this.connection.isReadSuspended());
+
+        ChannelSelector selector = this.pool.getChannelSelector();
+        this.server.getQueue().remove();
+        selector.resumeReadsIfDrained();
+        assertTrue(this.connection.isReadSuspended());
+        assertEquals(0, this.key.interestOps() & SelectionKey.OP_READ);
+
+        this.server.getQueue().remove();
+        selector.resumeReadsIfDrained();
+        assertFalse(this.connection.isReadSuspended());
+        assertEquals(SelectionKey.OP_READ, this.key.interestOps() & SelectionKey.OP_READ);
+    }
+
+    public void testFullQueueAcceptsWhileMessagesInFlight() throws Exception {
+        this.server.setMaxQueueSize(1);
+        this.server.getQueue().add(new Object());
+        this.connection.messagesQueued(1);
+
+        // The connection is waiting on an earlier response, so refusing this
+        // one would reorder its responses. It's queued and reads stop instead.
+        this.send(GET);
+        assertEquals(2, this.server.getQueue().size());
+        assertTrue(this.connection.isReadSuspended());
+        this.client.setSoTimeout(200);
+        assertEquals("", this.receive());
+    }
+
+    public void testFullQueueRejectsWhenNothingInFlight() throws Exception {
+        this.server.setMaxQueueSize(1);
+        this.server.getQueue().add(new Object());
+
+        this.send(GET);
+        assertEquals(1, this.server.getQueue().size());
+        assertTrue(this.connection.isReadSuspended());
+        String rsp = this.receive();
+        assertTrue(rsp, rsp.startsWith("HTTP/1.1 503 "));
+        assertTrue(rsp, rsp.contains("Retry-After: "));
+    }
+
+    public void testFullQueueOnlySuspendsWhenUntracked() throws Exception {
+        // As for a client, which never reports its messages completed
+        this.untracked = true;
+        this.server.setMaxQueueSize(1);
+
+        this.send(GET);
+        assertFalse(this.connection.hasMessagesInFlight());
+        this.server.getQueue().add(new Object());
+
+        // Nothing is known to be waiting on this connection, but that doesn't
+        // mean it's safe to reject
+        this.send(GET);
+        assertEquals(3, this.server.getQueue().size());
+        assertFalse(this.connection.hasMessagesInFlight());
+        assertTrue(this.connection.isReadSuspended());
+        assertEquals(0, this.key.interestOps() & SelectionKey.OP_READ);
+        this.client.setSoTimeout(200);
+        assertEquals("", this.receive());
+    }
+
+    public void testRejectedBatchContentReleased() throws Exception {
+        this.server.setMaxQueueSize(1);
+        this.server.getQueue().add(new Object());
+
+        this.send(POST + POST);
+        assertEquals(1, this.server.getQueue().size());
+        assertEquals(2, this.released.size());
+        assertTrue(this.connection.isReadSuspended());
+        assertTrue(this.receive().startsWith("HTTP/1.1 503 "));
+    }
+
+    // Writes data from the client and has the server read it
+    private void send(String data) throws Exception {
+        this.loopback.send(data.getBytes("ASCII"));
+    }
+
+    // Returns whatever the server has written to the client, if anything
+    private String receive() throws Exception {
+        InputStream is = this.client.getInputStream();
+        byte[] buf = new byte[4096];
+        try {
+            int n = is.read(buf);
+            return n == -1 ? "" : new String(buf, 0, n, "ASCII");
+        } catch (SocketTimeoutException e) {
+            return "";
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_QueueLimits.class);
+    }
+}
@@ -0,0 +1,129 @@
+package com.flat502.rox.processing;
+
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.HttpServer;
+import com.flat502.rox.server.ServerResourcePool;
+
+public class Test_ReadBudget extends TestCase {
+    private static final String GET = "GET / HTTP/1.1\r\nHost: hostname\r\n\r\n";
+
+    private ServerResourcePool pool;
+    private HttpServer server;
+    private List<SelectionKey> dispatched = new ArrayList<>();
+    private SelectorFixture fixture;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.pool = new ServerResourcePool();
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), 0, false, this.pool) {
+            @Override
+            protected void handleSelectionKeyOperation(SelectionKey key) {
+                Test_ReadBudget.this.dispatched.add(key);
+            }
+        };
+        this.fixture = new SelectorFixture(this.server);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.fixture.close();
+        this.server.stop();
+    }
+
+    public void testOverBudgetKeyDeferredOnce() throws Exception {
+        ChannelSelector selector = this.pool.getChannelSelector();
+        SelectionKey a = this.fixture.newPipeKey(selector);
+        SelectionKey b = this.fixture.newPipeKey(selector);
+        SelectionKey c = this.fixture.newPipeKey(selector);
+
+        selector.processReadyKeys(this.keys(a, b, c));
+        assertEquals(Arrays.asList(a, b, c), this.dispatched);
+
+        // a used up its budget, so it goes last on the next pass only
+        selector.readBudgetExhausted(a, false);
+        this.dispatched.clear();
+        Set<SelectionKey> ready = this.keys(a, b, c);
+        selector.processReadyKeys(ready);
+        assertEquals(Arrays.asList(b, c, a), this.dispatched);
+        assertTrue(ready.isEmpty());
+
+        this.dispatched.clear();
+        selector.processReadyKeys(this.keys(a, b, c));
+        assertEquals(Arrays.asList(a, b, c), this.dispatched);
+    }
+
+    public void testDeferredKeyNotReadyIsForgotten() throws Exception {
+        ChannelSelector selector = this.pool.getChannelSelector();
+        SelectionKey a = this.fixture.newPipeKey(selector);
+        SelectionKey b = this.fixture.newPipeKey(selector);
+
+        selector.readBudgetExhausted(a, true);
+        selector.processReadyKeys(this.keys(b));
+        this.dispatched.clear();
+        selector.processReadyKeys(this.keys(a, b));
+        assertEquals(Arrays.asList(a, b), this.dispatched);
+    }
+
+    public void testCountersAggregated() throws Exception {
+        this.pool.setSelectorCount(2);
+        ChannelSelector first = this.pool.getChannelSelector(0);
+        ChannelSelector second = this.pool.getChannelSelector(1);
+        SelectionKey a = this.fixture.newPipeKey(first);
+        SelectionKey b = this.fixture.newPipeKey(second);
+
+        first.readBudgetExhausted(a, false);
+        second.readBudgetExhausted(b, false);
+        second.readBudgetExhausted(b, true);
+        assertEquals(1, first.getReadByteBudgetHits());
+        assertEquals(0, first.getReadMessageBudgetHits());
+        assertEquals(2, this.server.getReadByteBudgetHits());
+        assertEquals(1, this.server.getReadMessageBudgetHits());
+    }
+
+    public void testByteBudgetHitByRead() throws Exception {
+        this.server.setReadBudget(1, 1000);
+        this.read(new byte[32 * 1024]);
+        assertEquals(1, this.server.getReadByteBudgetHits());
+        assertEquals(0, this.server.getReadMessageBudgetHits());
+    }
+
+    public void testMessageBudgetHitByRead() throws Exception {
+        StringBuilder data = new StringBuilder();
+        while (data.length() < 32 * 1024) {
+            data.append(GET);
+        }
+        this.server.setReadBudget(1024 * 1024, 1);
+        this.read(data.toString().getBytes("ASCII"));
+        assertEquals(0, this.server.getReadByteBudgetHits());
+        assertEquals(1, this.server.getReadMessageBudgetHits());
+    }
+
+    public void testNoHitWhenDrained() throws Exception {
+        this.server.setReadBudget(1024 * 1024, 1000);
+        this.read(GET.getBytes("ASCII"));
+        assertEquals(0, this.server.getReadByteBudgetHits());
+        assertEquals(0, this.server.getReadMessageBudgetHits());
+    }
+
+    // Has the server read data sent on a new connection
+    private void read(byte[] data) throws Exception {
+        this.fixture.connect(this.pool.getChannelSelector()).send(data);
+    }
+
+    private Set<SelectionKey> keys(SelectionKey... keys) {
+        return new LinkedHashSet<>(Arrays.asList(keys));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_ReadBudget.class);
+    }
+}
@@ -0,0 +1,72 @@
+package com.flat502.rox.processing;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class Test_ReadBufferPool extends TestCase {
+    public void testSizeClasses() {
+        ReadBufferPool pool = new ReadBufferPool(1024, 8192);
+        assertEquals(4, pool.getSizeClassCount());
+        assertEquals(1024, pool.getSize(0));
+        assertEquals(8192, pool.getSize(3));
+    }
+
+    public void testSizeClassesStopBelowMax() {
+        ReadBufferPool pool = new ReadBufferPool(1000, 5000);
+        assertEquals(3, pool.getSizeClassCount());
+        assertEquals(4000, pool.getSize(2));
+    }
+
+    public void testAcquireIsDirectAndCleared() {
+        ReadBufferPool pool = new ReadBufferPool(1024, 4096);
+        ByteBuffer buf = pool.acquire(1);
+        assertTrue(buf.isDirect());
+        assertEquals(0, buf.position());
+        assertEquals(2048, buf.capacity());
+        assertEquals(2048, buf.limit());
+    }
+
+    public void testBuffersAreDistinct() {
+        ReadBufferPool pool = new ReadBufferPool(1024, 1024);
+        ByteBuffer a = pool.acquire(0);
+        ByteBuffer b = pool.acquire(0);
+        a.put(0, (byte) 1);
+        b.put(0, (byte) 2);
+        assertEquals(1, a.get(0));
+        assertEquals(2, b.get(0));
+    }
+
+    public void testReleaseReuses() {
+        ReadBufferPool pool = new ReadBufferPool(1024, 1024);
+        ByteBuffer buf = pool.acquire(0);
+        buf.put((byte) 1).flip();
+        pool.release(buf, 0);
+        ByteBuffer again = pool.acquire(0);
+        assertSame(buf, again);
+        assertEquals(0, again.position());
+        assertEquals(1024, again.limit());
+    }
+
+    public void testAdjust() {
+        ReadBufferPool pool = new ReadBufferPool(1024, 4096);
+        assertEquals(1, pool.adjust(0, 1024));
+        assertEquals(2, pool.adjust(2, 4096));
+        assertEquals(0, pool.adjust(1, 100));
+        assertEquals(0, pool.adjust(0, 100));
+        assertEquals(1, pool.adjust(1, 1500));
+    }
+
+    public void testInvalidSizes() {
+        try {
+            new ReadBufferPool(0, 1024);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new ReadBufferPool(1024, 512);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
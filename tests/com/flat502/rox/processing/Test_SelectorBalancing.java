@@ -0,0 +1,78 @@
+package com.flat502.rox.processing;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.ServerResourcePool;
+
+public class Test_SelectorBalancing extends TestCase {
+    private ServerResourcePool pool;
+    private ChannelSelector[] selectors = new ChannelSelector[3];
+    private SelectorFixture fixture = new SelectorFixture(null);
+
+    @Override
+    protected void setUp() throws Exception {
+        this.pool = new ServerResourcePool();
+        this.pool.setSelectorCount(3);
+        this.pool.getChannelSelector();
+
+        // No channels are registered yet, so this is one pass of the
+        // round-robin
+        for (int i = 0; i < 3; i++) {
+            this.selectors[i] = this.pool.nextChannelSelector();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.fixture.close();
+        for (ChannelSelector selector : this.selectors) {
+            selector.getSocketSelector().close();
+        }
+    }
+
+    public void testTiesAreRoundRobin() throws Exception {
+        Set<ChannelSelector> chosen = new HashSet<>(Arrays.asList(this.selectors));
+        assertEquals(3, chosen.size());
+
+        // And around again, in the same order
+        for (int i = 0; i < 3; i++) {
+            assertSame(this.selectors[i], this.pool.nextChannelSelector());
+        }
+    }
+
+    public void testLeastLoadedChosen() throws Exception {
+        ChannelSelector idle = this.selectors[2];
+        this.addChannels(this.selectors[0], 2);
+        this.addChannels(this.selectors[1], 1);
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(idle, this.pool.nextChannelSelector());
+        }
+    }
+
+    public void testBalancesAsChannelsArrive() throws Exception {
+        this.addChannels(this.selectors[1], 1);
+
+        // Each registration evens things out until all selectors are level
+        for (int i = 0; i < 5; i++) {
+            this.addChannels(this.pool.nextChannelSelector(), 1);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, this.selectors[i].getChannelCount());
+        }
+    }
+
+    private void addChannels(ChannelSelector selector, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            this.fixture.newPipeKey(selector);
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_SelectorBalancing.class);
+    }
+}
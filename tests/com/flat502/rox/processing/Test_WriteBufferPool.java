@@ -0,0 +1,58 @@
+package com.flat502.rox.processing;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class Test_WriteBufferPool extends TestCase {
+    public void testAcquireRoundsUpToSizeClass() {
+        WriteBufferPool pool = new WriteBufferPool(true);
+        ByteBuffer buf = pool.acquire(300);
+        assertTrue(buf.isDirect());
+        assertEquals(0, buf.position());
+        assertEquals(300, buf.limit());
+        assertEquals(512, buf.capacity());
+    }
+
+    public void testHeapBuffers() {
+        WriteBufferPool pool = new WriteBufferPool(false);
+        assertFalse(pool.isDirect());
+        assertFalse(pool.acquire(10).isDirect());
+    }
+
+    public void testBuffersAreDistinct() {
+        WriteBufferPool pool = new WriteBufferPool(true);
+        ByteBuffer a = pool.acquire(256);
+        ByteBuffer b = pool.acquire(256);
+        a.put(0, (byte) 1);
+        b.put(0, (byte) 2);
+        assertEquals(1, a.get(0));
+        assertEquals(2, b.get(0));
+    }
+
+    public void testReleaseReuses() {
+        WriteBufferPool pool = new WriteBufferPool(true);
+        ByteBuffer buf = pool.acquire(100);
+        buf.put((byte) 1).flip();
+        pool.release(buf);
+        ByteBuffer again = pool.acquire(200);
+        assertSame(buf, again);
+        assertEquals(0, again.position());
+        assertEquals(200, again.limit());
+    }
+
+    public void testLargeBuffersAreNotPooled() {
+        WriteBufferPool pool = new WriteBufferPool(true);
+        ByteBuffer buf = pool.acquire(10000);
+        assertEquals(10000, buf.capacity());
+        pool.release(buf);
+        assertNotSame(buf, pool.acquire(10000));
+    }
+
+    public void testForeignBuffersAreIgnored() {
+        WriteBufferPool pool = new WriteBufferPool(true);
+        ByteBuffer heap = ByteBuffer.allocate(256);
+        pool.release(heap);
+        assertNotSame(heap, pool.acquire(256));
+    }
+}
@@ -0,0 +1,120 @@
+package com.flat502.rox.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.response.PlaintextResponse;
+import com.flat502.rox.server.response.Response;
+
+public class Test_Acceptors extends TestCase {
+    private HttpServer server;
+    private int port;
+
+    @Override
+    protected void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            this.port = probe.getLocalPort();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (this.server != null) {
+            this.server.stop();
+        }
+    }
+
+    public void testSeveralAcceptors() throws Exception {
+        this.server = this.newServer(false);
+        if (this.server.findReusePortOption() == null) {
+            // Covered by testFallbackWithoutReusePort
+            return;
+        }
+
+        this.server.setSelectorCount(3);
+        this.server.setAcceptorCount(3, 64);
+        assertEquals(3, this.server.getAcceptorCount());
+
+        this.server.start();
+        for (int i = 0; i < 12; i++) {
+            assertEquals("HTTP/1.1 200 OK", this.get());
+        }
+    }
+
+    public void testFallbackWithoutReusePort() throws Exception {
+        this.server = this.newServer(true);
+        this.server.setAcceptorCount(3);
+        assertEquals(1, this.server.getAcceptorCount());
+
+        this.server.start();
+        assertEquals("HTTP/1.1 200 OK", this.get());
+    }
+
+    public void testInvalidCountsRejected() throws Exception {
+        this.server = this.newServer(false);
+        try {
+            this.server.setAcceptorCount(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            this.server.setAcceptorCount(-1, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(1, this.server.getAcceptorCount());
+    }
+
+    public void testCountFixedOnceStarted() throws Exception {
+        this.server = this.newServer(false);
+        this.server.start();
+        try {
+            this.server.setAcceptorCount(2);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(1, this.server.getAcceptorCount());
+    }
+
+    private HttpServer newServer(final boolean noReusePort) throws Exception {
+        HttpServer server = new HttpServer(InetAddress.getLoopbackAddress(), this.port) {
+            @Override
+            SocketOption<Boolean> findReusePortOption() throws IOException {
+                return noReusePort ? null : super.findReusePortOption();
+            }
+        };
+        server.registerHandler(new AsynchronousRequestHandler() {
+            @Override
+            public Response handleRequest(RequestContext context) throws Exception {
+                return new PlaintextResponse("ok");
+            }
+        });
+        return server;
+    }
+
+    // Sends a request on a new connection and returns the status line
+    private String get() throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(
+                    "GET / HTTP/1.1\r\nHost: hostname\r\nConnection: close\r\n\r\n".getBytes("ASCII"));
+            InputStream is = socket.getInputStream();
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = is.read()) != -1 && c != '\r') {
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_Acceptors.class);
+    }
+}
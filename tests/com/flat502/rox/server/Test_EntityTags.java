@@ -0,0 +1,67 @@
+package com.flat502.rox.server;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class Test_EntityTags extends TestCase {
+    public void testStrongAndWeak() throws Exception {
+        byte[] content = "Hello World".getBytes("ASCII");
+        String strong = EntityTags.forContent(content, false);
+        String weak = EntityTags.forContent(content, true);
+        assertTrue(strong.startsWith("\"") && strong.endsWith("\""));
+        assertEquals("W/" + strong, weak);
+    }
+
+    public void testContentSensitive() throws Exception {
+        assertEquals(EntityTags.forContent("Hello World".getBytes("ASCII"), false),
+                EntityTags.forContent("Hello World".getBytes("ASCII"), false));
+        assertFalse(EntityTags.forContent("Hello World".getBytes("ASCII"), false).equals(
+                EntityTags.forContent("Hello Worle".getBytes("ASCII"), false)));
+        assertFalse(EntityTags.forContent(new byte[0], false).equals(
+                EntityTags.forContent(new byte[1], false)));
+        assertFalse(EntityTags.hash(new byte[8]) == EntityTags.hash(new byte[16]));
+    }
+
+    public void testEveryByteCounts() throws Exception {
+        byte[] content = new byte[37];
+        long hash = EntityTags.hash(content);
+        for (int i = 0; i < content.length; i++) {
+            content[i] = 1;
+            assertFalse(hash == EntityTags.hash(content));
+            content[i] = 0;
+        }
+    }
+
+    public void testBufferMatchesArray() throws Exception {
+        byte[] content = "Hello World, hashed from a buffer".getBytes("ASCII");
+        ByteBuffer direct = ByteBuffer.allocateDirect(content.length + 5);
+        direct.position(3);
+        direct.put(content);
+        direct.flip();
+        direct.position(3);
+        assertEquals(EntityTags.hash(content), EntityTags.hash(direct));
+        assertEquals(EntityTags.forContent(content, false), EntityTags.forContent(direct.asReadOnlyBuffer(), false));
+        assertEquals(3, direct.position());
+    }
+
+    public void testFileTag() throws Exception {
+        assertEquals("\"1f4-a\"", EntityTags.forFile(500, 10));
+    }
+
+    public void testMatches() throws Exception {
+        String tag = "\"abc\"";
+        assertTrue(EntityTags.matches("\"abc\"", tag));
+        assertTrue(EntityTags.matches("W/\"abc\"", tag));
+        assertTrue(EntityTags.matches("\"abc\"", "W/" + tag));
+        assertTrue(EntityTags.matches("\"xyz\", \"abc\"", tag));
+        assertTrue(EntityTags.matches("*", tag));
+        assertFalse(EntityTags.matches("\"xyz\"", tag));
+        assertFalse(EntityTags.matches("\"abcd\", \"ab\"", tag));
+        assertFalse(EntityTags.matches("", tag));
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_EntityTags.class);
+    }
+}
@@ -0,0 +1,90 @@
+package com.flat502.rox.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.response.FileRegionResponse;
+import com.flat502.rox.server.response.Response;
+
+public class Test_FileResponses extends TestCase {
+    // Far more than the socket buffers at either end can hold
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    private HttpServer server;
+    private int port;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.file = File.createTempFile("Test_FileResponses", ".bin");
+        try (FileOutputStream os = new FileOutputStream(this.file)) {
+            byte[] block = new byte[64 * 1024];
+            for (int i = 0; i < FILE_SIZE / block.length; i++) {
+                os.write(block);
+            }
+        }
+
+        try (ServerSocket probe = new ServerSocket(0)) {
+            this.port = probe.getLocalPort();
+        }
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), this.port);
+        this.server.registerHandler(new AsynchronousRequestHandler() {
+            @Override
+            public Response handleRequest(RequestContext context) throws Exception {
+                return new FileRegionResponse(Test_FileResponses.this.file, "application/octet-stream");
+            }
+        });
+        this.server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.server.stop();
+        this.file.delete();
+    }
+
+    public void testTruncatedFileClosesConnection() throws Exception {
+        try (Socket socket = new Socket()) {
+            // Keep the response from fitting in the socket buffers
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port));
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: hostname\r\n\r\n".getBytes("ASCII"));
+
+            // Once the response has started the rest of it is queued behind
+            // a full socket
+            InputStream is = socket.getInputStream();
+            byte[] buf = new byte[4096];
+            long total = is.read(buf);
+            assertTrue(total > 0);
+            assertTrue(new String(buf, 0, (int) total, "ASCII").startsWith("HTTP/1.1 200 OK\r\n"));
+
+            try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+                raf.setLength(0);
+            }
+
+            try {
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    total += n;
+                }
+            } catch (SocketTimeoutException e) {
+                fail("Connection left open after its file was truncated");
+            }
+            assertTrue(total < FILE_SIZE);
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_FileResponses.class);
+    }
+}
@@ -0,0 +1,106 @@
+package com.flat502.rox.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.http.HttpRequestBuffer;
+import com.flat502.rox.http.exception.HttpResponseException;
+import com.flat502.rox.server.response.PlaintextResponse;
+import com.flat502.rox.server.response.Response;
+
+public class Test_PipelinedErrors extends TestCase {
+    private HttpServer server;
+    private int port;
+
+    @Override
+    protected void setUp() throws Exception {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            this.port = probe.getLocalPort();
+        }
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), this.port);
+        this.server.registerHandler(new AsynchronousRequestHandler() {
+            @Override
+            public Response handleRequest(RequestContext context) throws Exception {
+                String uri = context.getHttpRequest().getURI();
+                if (uri.startsWith("/err")) {
+                    throw new HttpResponseException(400, "Bad thing");
+                }
+                if (uri.startsWith("/fail")) {
+                    throw new IllegalStateException("failed");
+                }
+                return new PlaintextResponse("ok");
+            }
+        });
+        this.server.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.server.stop();
+    }
+
+    public void testHandlerErrorIsNotReplacedWhenPipelined() throws Exception {
+        String rsp = this.pipeline("/err", "/err", "/ok");
+        assertTrue(rsp, rsp.startsWith("HTTP/1.1 400 Bad thing\r\n"));
+        assertFalse(rsp, rsp.contains(" 404 "));
+    }
+
+    public void testHandlerFailureIsNotReplacedWhenPipelined() throws Exception {
+        String rsp = this.pipeline("/fail", "/fail", "/ok");
+        assertTrue(rsp, rsp.startsWith("HTTP/1.1 500 Internal Server Error\r\n"));
+        assertFalse(rsp, rsp.contains(" 404 "));
+    }
+
+    public void testSecondResponseForStashedIdRejected() throws Exception {
+        HttpRequestBuffer req = new HttpRequestBuffer(null, null);
+        byte[] msg = "GET /err HTTP/1.1\r\nHost: hostname\r\n\r\n".getBytes("ASCII");
+        req.addBytes(msg, 0, msg.length);
+
+        ResponseCoordinator coord = new ResponseCoordinator(this.server, null);
+        coord.beginBatch();
+        coord.nextId();
+        int id = coord.nextId();
+        coord.respond(id, req, new HttpResponseException(400, "Bad thing"));
+        try {
+            coord.respond(id, req, new HttpResponseException(404, "Not Found"));
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    // Writes requests for each URI in a single packet so they're dispatched
+    // as a batch, and returns everything sent back.
+    private String pipeline(String... uris) throws Exception {
+        StringBuilder requests = new StringBuilder();
+        for (String uri : uris) {
+            requests.append("GET ").append(uri).append(" HTTP/1.1\r\nHost: hostname\r\n\r\n");
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.port)) {
+            socket.setSoTimeout(2000);
+            socket.getOutputStream().write(requests.toString().getBytes("ASCII"));
+            InputStream is = socket.getInputStream();
+            ByteArrayOutputStream rsp = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            try {
+                int n;
+                while ((n = is.read(buf)) != -1) {
+                    rsp.write(buf, 0, n);
+                }
+            } catch (SocketTimeoutException e) {
+                // The connection may be kept open after the last response
+            }
+            return rsp.toString("ASCII");
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_PipelinedErrors.class);
+    }
+}
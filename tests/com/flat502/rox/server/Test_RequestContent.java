@@ -0,0 +1,99 @@
+package com.flat502.rox.server;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.server.response.PlaintextResponse;
+import com.flat502.rox.server.response.Response;
+
+public class Test_RequestContent extends TestCase {
+    private static final int CONTENT_LENGTH = 10000;
+
+    private HttpServer server;
+    private int port;
+
+    // Temporary files are unlinked as soon as they're created, so content
+    // is sent to a directory that doesn't exist to show where it went
+    private File missingDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.missingDir = Files.createTempDirectory("Test_RequestContent").toFile();
+        this.missingDir.delete();
+        try (ServerSocket probe = new ServerSocket(0)) {
+            this.port = probe.getLocalPort();
+        }
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), this.port);
+        this.server.registerHandler(new AsynchronousRequestHandler() {
+            @Override
+            public Response handleRequest(RequestContext context) throws Exception {
+                return new PlaintextResponse(String.valueOf(context.getHttpRequest().getContent().length));
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        this.server.stop();
+    }
+
+    public void testSpillsPastConfiguredThreshold() throws Exception {
+        this.server.setRequestSpillThreshold(CONTENT_LENGTH - 1, this.missingDir);
+        this.server.start();
+        assertTrue(this.post().startsWith("HTTP/1.1 500 "));
+    }
+
+    public void testHeldInMemoryUpToThreshold() throws Exception {
+        this.server.setRequestSpillThreshold(CONTENT_LENGTH, this.missingDir);
+        this.server.start();
+        String rsp = this.post();
+        assertTrue(rsp.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(rsp.endsWith("\r\n\r\n" + CONTENT_LENGTH));
+    }
+
+    public void testNegativeThresholdRejected() throws Exception {
+        try {
+            this.server.setRequestSpillThreshold(-1, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    // Posts CONTENT_LENGTH bytes and returns the response
+    private String post() throws Exception {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.port)) {
+            socket.setSoTimeout(5000);
+            OutputStream os = socket.getOutputStream();
+            os.write(("POST / HTTP/1.1\r\nHost: hostname\r\nContent-Type: text/plain\r\nContent-Length: "
+                    + CONTENT_LENGTH + "\r\n\r\n").getBytes("ASCII"));
+            os.write(new byte[CONTENT_LENGTH]);
+
+            InputStream is = socket.getInputStream();
+            StringBuilder rsp = new StringBuilder();
+            while (rsp.indexOf("\r\n\r\n") == -1) {
+                int c = is.read();
+                assertTrue(c != -1);
+                rsp.append((char) c);
+            }
+            int start = rsp.indexOf("Content-Length: ") + "Content-Length: ".length();
+            int length = Integer.parseInt(rsp.substring(start, rsp.indexOf("\r", start)));
+            for (int i = 0; i < length; i++) {
+                int c = is.read();
+                assertTrue(c != -1);
+                rsp.append((char) c);
+            }
+            return rsp.toString();
+        }
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_RequestContent.class);
+    }
+}
@@ -0,0 +1,159 @@
+package com.flat502.rox.server;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.flat502.rox.encoding.Encoding;
+import com.flat502.rox.encoding.GZipEncoding;
+import com.flat502.rox.http.HttpRequestBuffer;
+import com.flat502.rox.http.HttpResponse;
+import com.flat502.rox.processing.WriteBufferPool;
+import com.flat502.rox.server.response.ByteArrayResponse;
+import com.flat502.rox.server.response.Response;
+
+public class Test_StaticResponses extends TestCase {
+    private HttpServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.server = new HttpServer(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    public void testUnregistered() throws Exception {
+        Response rsp = new ByteArrayResponse("ok".getBytes("ASCII"), "text/plain");
+        assertNull(this.server.getStaticResponse(newRequest("GET / HTTP/1.1"), rsp, null));
+    }
+
+    public void testRegistered() throws Exception {
+        Response rsp = this.server.registerStaticResponse(new ByteArrayResponse("ok".getBytes("ASCII"),
+                "text/plain"));
+        CachedResponse.Form form = this.server.getStaticResponse(newRequest("GET / HTTP/1.1"), rsp, null);
+        assertNotNull(form);
+        assertFalse(form.close);
+
+        String wire = toString(form.getData());
+        assertTrue(wire.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(wire.contains("Content-Length: 2\r\n"));
+        assertTrue(wire.contains("Etag: "));
+        assertTrue(wire.endsWith("\r\n\r\nok"));
+
+        // Each caller gets buffers of its own over the same content
+        ByteBuffer[] data = form.getData();
+        for (ByteBuffer buf : data) {
+            buf.position(buf.limit());
+        }
+        assertEquals(wire, toString(form.getData()));
+
+        // Repeated requests within the same second share a form
+        CachedResponse.Form again = this.server.getStaticResponse(newRequest("GET /x HTTP/1.1"), rsp, null);
+        if (again.second == form.second) {
+            assertSame(form, again);
+        }
+    }
+
+    public void testFormsByVersionAndMethod() throws Exception {
+        Response rsp = this.server.registerStaticResponse(new ByteArrayResponse("ok".getBytes("ASCII"),
+                "text/plain"));
+
+        CachedResponse.Form form = this.server.getStaticResponse(newRequest("GET / HTTP/1.0"), rsp, null);
+        assertTrue(form.close);
+        assertTrue(toString(form.getData()).startsWith("HTTP/1.0 200 OK\r\n"));
+
+        form = this.server.getStaticResponse(newRequest("HEAD / HTTP/1.1"), rsp, null);
+        String wire = toString(form.getData());
+        assertTrue(wire.contains("Content-Length: 2\r\n"));
+        assertTrue(wire.endsWith("\r\n\r\n"));
+
+        form = this.server.getStaticResponse(newRequest("POST / HTTP/1.1", "Content-Length: 0"), rsp, null);
+        assertFalse(toString(form.getData()).contains("Etag: "));
+    }
+
+    public void testHeadEncodedLikeGet() throws Exception {
+        byte[] content = new byte[4096];
+        Arrays.fill(content, (byte) 'x');
+        Response rsp = this.server.registerStaticResponse(new ByteArrayResponse(content, "text/plain"));
+        this.server.setEncodeResponses(true);
+        Encoding encoding = new GZipEncoding();
+
+        String get = toString(this.server.getStaticResponse(newRequest("GET / HTTP/1.1"), rsp, encoding).getData());
+        String head = toString(this.server.getStaticResponse(newRequest("HEAD / HTTP/1.1"), rsp, encoding).getData());
+        String getHeaders = get.substring(0, get.indexOf("\r\n\r\n") + 4);
+        assertEquals(getHeaders, head);
+        assertTrue(head.contains("Content-Encoding: gzip\r\n"));
+        assertFalse(head.contains("Content-Length: " + content.length + "\r\n"));
+        assertEquals(get.length() - getHeaders.length(), contentLength(head));
+
+        // Responses built afresh and written to a stream agree
+        HttpResponse httpRsp = this.server.toHttpResponse(newRequest("HEAD / HTTP/1.1"), rsp, encoding);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        httpRsp.marshal(os);
+        assertEquals(head, os.toString("ASCII"));
+    }
+
+    public void testFormsDontHoldPooledBuffers() throws Exception {
+        WriteBufferPool pool = new WriteBufferPool(true);
+        ByteBuffer pooled = pool.acquire(200);
+        pool.release(pooled);
+
+        Response rsp = new ByteArrayResponse("ok".getBytes("ASCII"), "text/plain");
+        CachedResponse cached = new CachedResponse(rsp);
+        CachedResponse.Form form = cached.getForm(this.server, newRequest("GET / HTTP/1.1"), null, pool);
+        String wire = toString(form.getData());
+
+        // The headers were marshalled into the pooled buffer, which has been
+        // returned, and reusing it doesn't disturb the form
+        assertSame(pooled, pool.acquire(200));
+        while (pooled.hasRemaining()) {
+            pooled.put((byte) 'x');
+        }
+        assertEquals(wire, toString(form.getData()));
+    }
+
+    public void testConditionalRequestsAreNotCached() throws Exception {
+        Response rsp = this.server.registerStaticResponse(new ByteArrayResponse("ok".getBytes("ASCII"),
+                "text/plain"));
+        assertNull(this.server.getStaticResponse(newRequest("GET / HTTP/1.1", "If-None-Match: \"x\""), rsp, null));
+    }
+
+    public void testDeregistered() throws Exception {
+        Response rsp = this.server.registerStaticResponse(new ByteArrayResponse("ok".getBytes("ASCII"),
+                "text/plain"));
+        this.server.deregisterStaticResponse(rsp);
+        assertNull(this.server.getStaticResponse(newRequest("GET / HTTP/1.1"), rsp, null));
+    }
+
+    private static HttpRequestBuffer newRequest(String... lines) throws Exception {
+        StringBuilder msg = new StringBuilder();
+        for (String line : lines) {
+            msg.append(line).append("\r\n");
+        }
+        msg.append("Host: hostname\r\n\r\n");
+        HttpRequestBuffer request = new HttpRequestBuffer(null, null);
+        byte[] buf = msg.toString().getBytes("ASCII");
+        request.addBytes(buf, 0, buf.length);
+        return request;
+    }
+
+    private static int contentLength(String headers) {
+        int start = headers.indexOf("Content-Length: ") + "Content-Length: ".length();
+        return Integer.parseInt(headers.substring(start, headers.indexOf('\r', start)));
+    }
+
+    private static String toString(ByteBuffer[] bufs) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (ByteBuffer buf : bufs) {
+            byte[] data = new byte[buf.remaining()];
+            buf.duplicate().get(data);
+            os.write(data, 0, data.length);
+        }
+        return os.toString("ASCII");
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(Test_StaticResponses.class);
+    }
+}
@@ -1,7 +1,12 @@
 package com.flat502.rox.utils;
 
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -27,6 +32,92 @@ public class Test_Utils extends TestCase {
         assertEquals("/foo", uri);
     }
 
+    public void testNormalizeCurrentReference() throws Exception {
+        assertEquals("/foo/bar", Utils.normalizeURIPath("/foo/./bar"));
+        assertEquals("/foo", Utils.normalizeURIPath("/foo/."));
+    }
+
+    public void testNormalizeParentAboveRoot() throws Exception {
+        assertEquals("/etc/passwd", Utils.normalizeURIPath("/../../etc/passwd"));
+        assertEquals("/", Utils.normalizeURIPath("/foo/../.."));
+    }
+
+    public void testNormalizeEmptySegments() throws Exception {
+        assertEquals("/foo/bar", Utils.normalizeURIPath("//foo///bar//"));
+    }
+
+    public void testNormalizeEscapes() throws Exception {
+        assertEquals("/foo bar", Utils.normalizeURIPath("/foo%20bar"));
+        assertEquals("/caf\u00e9", Utils.normalizeURIPath("/caf%C3%A9"));
+        // Escaped dots are resolved too
+        assertEquals("/bar", Utils.normalizeURIPath("/foo/%2e%2E/bar"));
+    }
+
+    public void testNormalizeEscapedSlashes() throws Exception {
+        // Escaped slashes separate segments, so they can't smuggle dot
+        // segments past resolution
+        assertEquals("/etc", Utils.normalizeURIPath("/a%2F..%2F..%2Fetc"));
+        assertEquals("/etc", Utils.normalizeURIPath("/a/%2e%2e%2f%2E%2E%2fetc"));
+        assertEquals("/a/b", Utils.normalizeURIPath("/a%2f%2F/b%2F"));
+        assertEquals("/a/b", Utils.normalizeURIPath("/a%2Fb"));
+    }
+
+    public void testNormalizeMalformedEscape() throws Exception {
+        String[] uris = new String[] { "/foo%2", "/foo%zz", "/foo%00" };
+        for (String uri : uris) {
+            try {
+                Utils.normalizeURIPath(uri);
+                fail(uri);
+            } catch (IllegalArgumentException e) {
+            }
+        }
+    }
+
+    public void testNormalizeKeepsQuery() throws Exception {
+        assertEquals("/bar?a=/../b", Utils.normalizeURIPath("/foo/../bar/?a=/../b"));
+    }
+
+    public void testNormalizeAbsoluteForm() throws Exception {
+        assertEquals("/foo", Utils.normalizeURIPath("http://host:8080/foo/"));
+        assertEquals("/", Utils.normalizeURIPath("http://host"));
+    }
+
+    public void testNormalizeBytes() throws Exception {
+        byte[] buf = "GET /a/./b HTTP/1.1".getBytes("ASCII");
+        assertEquals("/a/b", Utils.normalizeURIPath(buf, 4, 6));
+        assertEquals("/a", Utils.normalizeURIPath(buf, 4, 2));
+    }
+
+    public void testDecodeParameters() throws Exception {
+        byte[] buf = "a=1&b=two+words&a=%33&c&=empty&&d=%zz".getBytes("ASCII");
+        Map<String, List<String>> params = Utils.decodeParameters(buf, 0, buf.length, StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("a", "b", "c", "", "d"), new ArrayList<>(params.keySet()));
+        assertEquals(Arrays.asList("1", "3"), params.get("a"));
+        assertEquals(Arrays.asList("two words"), params.get("b"));
+        assertEquals(Arrays.asList(""), params.get("c"));
+        assertEquals(Arrays.asList("empty"), params.get(""));
+        // Malformed escapes are taken literally
+        assertEquals(Arrays.asList("%zz"), params.get("d"));
+    }
+
+    public void testDecodeParametersCharset() throws Exception {
+        byte[] buf = "name=caf%C3%A9".getBytes("ASCII");
+        assertEquals("caf\u00e9", Utils.decodeParameters(buf, 0, buf.length, StandardCharsets.UTF_8).get("name").get(0));
+        buf = "name=caf%E9".getBytes("ASCII");
+        assertEquals("caf\u00e9", Utils.decodeParameters(buf, 0, buf.length, StandardCharsets.ISO_8859_1).get("name")
+                .get(0));
+    }
+
+    public void testDecodeParametersUnmodifiable() throws Exception {
+        byte[] buf = "a=1".getBytes("ASCII");
+        Map<String, List<String>> params = Utils.decodeParameters(buf, 0, buf.length, StandardCharsets.UTF_8);
+        try {
+            params.get("a").add("2");
+            fail();
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
     public void testContentTypeBare() {
         String ct = Utils.extractContentType("text/xml");
         assertEquals("text/xml", ct);
@@ -82,6 +173,17 @@ public class Test_Utils extends TestCase {
         assertEquals("", pair[1]);
     }
 
+    public void testFormatHttpDate() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", Utils.formatHttpDate(784111777000L));
+    }
+
+    public void testParseHttpDate() {
+        assertEquals(784111777000L, Utils.parseHttpDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(784111777000L, Utils.parseHttpDate(" Sun, 06 Nov 1994 08:49:37 GMT "));
+        assertEquals(-1, Utils.parseHttpDate("yesterday"));
+        assertEquals(-1, Utils.parseHttpDate(""));
+    }
+
     public static void main(String[] args) {
         junit.textui.TestRunner.run(Test_Utils.class);
     }